@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.ngrams;
+
+import java.util.Arrays;
+
+
+/**
+ * A set of primitive <code>long</code> values. In contrast to a {@link java.util.Set} of {@link Long}s this doesn't box any values and it can be cleared and
+ * reused without releasing its internal storage. That makes it a good sink for packed N-grams (see {@link NGramGenerator#getPackedNgrams(LongSet, CharSequence)}
+ * ).
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class LongSet
+{
+	/**
+	 * The value that marks an empty slot. Since <code>0</code> is a valid value too, it's tracked separately in {@link #mHasEmptyValue}.
+	 */
+	private final static long EMPTY = 0;
+
+	/**
+	 * The maximum fill ratio of the table before it grows.
+	 */
+	private final static float LOAD_FACTOR = 0.5f;
+
+	private long[] mTable;
+	private int mMask;
+	private int mSize;
+	private boolean mHasEmptyValue;
+
+
+	/**
+	 * Create a new {@link LongSet} with a default capacity.
+	 */
+	public LongSet()
+	{
+		this(64);
+	}
+
+
+	/**
+	 * Create a new {@link LongSet} that can take the given number of values without growing.
+	 *
+	 * @param capacity
+	 *            The expected number of values.
+	 */
+	public LongSet(int capacity)
+	{
+		int tableSize = Integer.highestOneBit(Math.max(4, (int) (capacity / LOAD_FACTOR)) - 1) << 1;
+		mTable = new long[tableSize];
+		mMask = tableSize - 1;
+	}
+
+
+	/**
+	 * Adds the given value to this set.
+	 *
+	 * @param value
+	 *            The value to add.
+	 * @return <code>true</code> if the value has been added, <code>false</code> if it was already in the set.
+	 */
+	public boolean add(long value)
+	{
+		if (value == EMPTY)
+		{
+			if (mHasEmptyValue)
+			{
+				return false;
+			}
+			mHasEmptyValue = true;
+			++mSize;
+			return true;
+		}
+
+		final long[] table = mTable;
+		final int mask = mMask;
+		int slot = hash(value) & mask;
+		long current;
+		while ((current = table[slot]) != EMPTY)
+		{
+			if (current == value)
+			{
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = value;
+		if (++mSize > (mTable.length * LOAD_FACTOR))
+		{
+			grow();
+		}
+		return true;
+	}
+
+
+	/**
+	 * Adds all values of the given {@link LongSet} to this set.
+	 *
+	 * @param other
+	 *            The {@link LongSet} to add.
+	 */
+	public void addAll(LongSet other)
+	{
+		if (other.mHasEmptyValue)
+		{
+			add(EMPTY);
+		}
+		for (long value : other.mTable)
+		{
+			if (value != EMPTY)
+			{
+				add(value);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns whether the given value is contained in this set.
+	 *
+	 * @param value
+	 *            The value to look for.
+	 * @return <code>true</code> if the value is in this set, <code>false</code> otherwise.
+	 */
+	public boolean contains(long value)
+	{
+		if (value == EMPTY)
+		{
+			return mHasEmptyValue;
+		}
+
+		final long[] table = mTable;
+		final int mask = mMask;
+		int slot = hash(value) & mask;
+		long current;
+		while ((current = table[slot]) != EMPTY)
+		{
+			if (current == value)
+			{
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Removes the given value from this set.
+	 *
+	 * @param value
+	 *            The value to remove.
+	 * @return <code>true</code> if the value has been removed, <code>false</code> if it wasn't in the set.
+	 */
+	public boolean remove(long value)
+	{
+		if (value == EMPTY)
+		{
+			if (!mHasEmptyValue)
+			{
+				return false;
+			}
+			mHasEmptyValue = false;
+			--mSize;
+			return true;
+		}
+
+		final long[] table = mTable;
+		final int mask = mMask;
+		int slot = hash(value) & mask;
+		long current;
+		while ((current = table[slot]) != value)
+		{
+			if (current == EMPTY)
+			{
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		// remove the value and move up any following values of the same probe sequence, so we don't need tombstones
+		int gap = slot;
+		slot = (slot + 1) & mask;
+		while ((current = table[slot]) != EMPTY)
+		{
+			int home = hash(current) & mask;
+			if (((slot - home) & mask) >= ((slot - gap) & mask))
+			{
+				table[gap] = current;
+				gap = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		table[gap] = EMPTY;
+		--mSize;
+		return true;
+	}
+
+
+	/**
+	 * Returns the number of values in this set.
+	 *
+	 * @return The size of this set.
+	 */
+	public int size()
+	{
+		return mSize;
+	}
+
+
+	/**
+	 * Returns whether this set is empty.
+	 *
+	 * @return <code>true</code> if this set doesn't contain any values.
+	 */
+	public boolean isEmpty()
+	{
+		return mSize == 0;
+	}
+
+
+	/**
+	 * Removes all values from this set. The internal storage is retained, so the set can be reused without allocating memory.
+	 */
+	public void clear()
+	{
+		if (mSize > 0)
+		{
+			Arrays.fill(mTable, EMPTY);
+			mSize = 0;
+			mHasEmptyValue = false;
+		}
+	}
+
+
+	/**
+	 * Returns the values of this set in a new array. The order of the values is undefined.
+	 *
+	 * @return An array with all the values of this set.
+	 */
+	public long[] toArray()
+	{
+		long[] result = new long[mSize];
+		int pos = 0;
+		if (mHasEmptyValue)
+		{
+			result[pos++] = EMPTY;
+		}
+		for (long value : mTable)
+		{
+			if (value != EMPTY)
+			{
+				result[pos++] = value;
+			}
+		}
+		return result;
+	}
+
+
+	private void grow()
+	{
+		long[] oldTable = mTable;
+		mTable = new long[oldTable.length << 1];
+		mMask = mTable.length - 1;
+		mSize = mHasEmptyValue ? 1 : 0;
+		for (long value : oldTable)
+		{
+			if (value != EMPTY)
+			{
+				add(value);
+			}
+		}
+	}
+
+
+	private static int hash(long value)
+	{
+		// the finalizer of MurmurHash3, packed N-grams differ mostly in their upper bits, so we need a good mix
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return (int) value;
+	}
+}
@@ -25,6 +25,10 @@ import java.util.regex.Pattern;
 
 /**
  * Generator for N-grams from a given String.
+ * <p>
+ * Instances are immutable, so a generator can be shared by any number of threads. The <code>with...</code> methods return a new generator with the
+ * respective setting.
+ * </p>
  * 
  * @author Marten Gajda <marten@dmfs.org>
  */
@@ -40,14 +44,52 @@ public final class NGramGenerator
 	 */
 	private final static Pattern SEPARATOR_PATTERN_NO_NUMBERS = Pattern.compile("[^\\p{L}\\p{M}]+");
 
+	/**
+	 * The maximum N of N-grams that can be packed into a <code>long</code>.
+	 */
+	public final static int MAX_PACKED_N = 4;
+
+	/**
+	 * Character class of characters that separate words.
+	 */
+	private final static byte CLASS_SEPARATOR = 0;
+
+	/**
+	 * Character class of letters and marks.
+	 */
+	private final static byte CLASS_LETTER = 1;
+
+	/**
+	 * Character class of the digits 0-9.
+	 */
+	private final static byte CLASS_DIGIT = 2;
+
+	/**
+	 * The N of the N-grams of CJK text if {@link #withCjkBigrams(boolean)} is enabled.
+	 */
+	private final static int CJK_N = 2;
+
+	/**
+	 * A lookup table for the character classes of the first 256 characters, which cover most of the text we usually see. All other characters are classified
+	 * by {@link #classify(int)}.
+	 */
+	private final static byte[] CHAR_CLASSES = new byte[256];
+
+	static
+	{
+		for (int i = 0; i < CHAR_CLASSES.length; ++i)
+		{
+			CHAR_CLASSES[i] = classify(i);
+		}
+	}
+
 	private final int mN;
 	private final int mMinWordLen;
-	private boolean mAllLowercase = true;
-	private boolean mReturnNumbers = true;
-	private boolean mAddSpaceInFront = false;
-	private Locale mLocale = Locale.getDefault();
-
-	private char[] mTempArray;
+	private final boolean mAllLowercase;
+	private final boolean mReturnNumbers;
+	private final boolean mAddSpaceInFront;
+	private final boolean mCjkBigrams;
+	private final Locale mLocale;
 
 
 	public NGramGenerator(int n)
@@ -57,54 +99,76 @@ public final class NGramGenerator
 
 
 	public NGramGenerator(int n, int minWordLen)
+	{
+		this(n, minWordLen, true, true, false, false, Locale.getDefault());
+	}
+
+
+	private NGramGenerator(int n, int minWordLen, boolean allLowercase, boolean returnNumbers, boolean addSpaceInFront, boolean cjkBigrams, Locale locale)
 	{
 		mN = n;
 		mMinWordLen = minWordLen;
-		mTempArray = new char[n];
-		mTempArray[0] = ' ';
+		mAllLowercase = allLowercase;
+		mReturnNumbers = returnNumbers;
+		mAddSpaceInFront = addSpaceInFront;
+		mCjkBigrams = cjkBigrams;
+		mLocale = locale;
 	}
 
 
 	/**
-	 * Set whether to convert all words to lower-case first.
+	 * Returns a copy of this generator that converts (or doesn't convert) all words to lower-case first.
 	 * 
 	 * @param lowercase
 	 *            true to convert the test to lower case first.
-	 * @return This instance.
+	 * @return A new {@link NGramGenerator} with the given setting.
 	 */
-	public NGramGenerator setAllLowercase(boolean lowercase)
+	public NGramGenerator withAllLowercase(boolean lowercase)
 	{
-		mAllLowercase = lowercase;
-		return this;
+		return new NGramGenerator(mN, mMinWordLen, lowercase, mReturnNumbers, mAddSpaceInFront, mCjkBigrams, mLocale);
 	}
 
 
 	/**
-	 * Set whether to index the beginning of a word with a space in front. This slightly raises the weight of word beginnings when searching.
+	 * Returns a copy of this generator that indexes (or doesn't index) the beginning of a word with a space in front. This slightly raises the weight of word
+	 * beginnings when searching.
 	 * 
 	 * @param addSpace
 	 *            <code>true</code> to add a space in front of each word, <code>false</code> otherwise.
-	 * @return This instance.
+	 * @return A new {@link NGramGenerator} with the given setting.
+	 */
+	public NGramGenerator withAddSpaceInFront(boolean addSpace)
+	{
+		return new NGramGenerator(mN, mMinWordLen, mAllLowercase, mReturnNumbers, addSpace, mCjkBigrams, mLocale);
+	}
+
+
+	/**
+	 * Returns a copy of this generator that splits (or doesn't split) runs of Han, Kana and Hangul characters (see {@link #isCjk(char)}) from the rest of a
+	 * word and returns bigrams of these runs, regardless of N and the minimum word length. Chinese and Japanese don't separate words, so without this a long CJK text is a single huge "word" and
+	 * results in a lot of N-grams that are never searched for. Runs of a single character are returned as they are.
+	 * 
+	 * @param cjkBigrams
+	 *            <code>true</code> to return bigrams of CJK text, <code>false</code> to treat CJK characters like any other letter.
+	 * @return A new {@link NGramGenerator} with the given setting.
 	 */
-	public NGramGenerator setAddSpaceInFront(boolean addSpace)
+	public NGramGenerator withCjkBigrams(boolean cjkBigrams)
 	{
-		mAddSpaceInFront = addSpace;
-		return this;
+		return new NGramGenerator(mN, mMinWordLen, mAllLowercase, mReturnNumbers, mAddSpaceInFront, cjkBigrams, mLocale);
 	}
 
 
 	/**
-	 * Sets the {@link Locale} to use when converting the input string to lower case. This has no effect when {@link #setAllLowercase(boolean)} is called with
-	 * <code>false</code>.
+	 * Returns a copy of this generator that uses the given {@link Locale} to convert the input string to lower case. This has no effect when
+	 * {@link #withAllLowercase(boolean)} is called with <code>false</code>.
 	 * 
 	 * @param locale
 	 *            The {@link Locale} to user for the conversion to lower case.
-	 * @return This instance.
+	 * @return A new {@link NGramGenerator} with the given setting.
 	 */
-	public NGramGenerator setLocale(Locale locale)
+	public NGramGenerator withLocale(Locale locale)
 	{
-		mLocale = locale;
-		return this;
+		return new NGramGenerator(mN, mMinWordLen, mAllLowercase, mReturnNumbers, mAddSpaceInFront, mCjkBigrams, locale);
 	}
 
 
@@ -156,17 +220,377 @@ public final class NGramGenerator
 	}
 
 
+	/**
+	 * Get all N-grams contained in the given {@link CharSequence} packed into <code>long</code>s (see {@link #pack(CharSequence)}). This yields the same N-grams
+	 * as {@link #getNgrams(Set, String)}, but it doesn't allocate any memory (unless the given {@link LongSet} needs to grow).
+	 * <p>
+	 * Note that this converts characters to lower case one by one, so locale specific rules are not taken into account.
+	 * </p>
+	 * 
+	 * @param set
+	 *            The {@link LongSet} to add all the packed N-grams to, or <code>null</code> to create a new set.
+	 * @param data
+	 *            The {@link CharSequence} to analyze.
+	 * @return The {@link LongSet} containing the packed N-grams.
+	 */
+	public LongSet getPackedNgrams(LongSet set, CharSequence data)
+	{
+		if (mN > MAX_PACKED_N)
+		{
+			throw new IllegalStateException("Can't pack " + mN + "-grams, the maximum is " + MAX_PACKED_N);
+		}
+
+		if (set == null)
+		{
+			set = new LongSet(128);
+		}
+
+		getPackedNgrams(data, set, null);
+		return set;
+	}
+
+
+	/**
+	 * Marks the characters of the given {@link CharSequence} that belong to any of the given packed N-grams. This walks the N-grams of the data like
+	 * {@link #getPackedNgrams(LongSet, CharSequence)} and marks the characters of each N-gram that is contained in <code>ngrams</code>. This is meant to
+	 * highlight the parts of a text that match a search query.
+	 * 
+	 * @param data
+	 *            The {@link CharSequence} to analyze.
+	 * @param ngrams
+	 *            The packed N-grams to look for.
+	 * @param matches
+	 *            An array with at least as many elements as <code>data</code> has characters. The elements of the matching characters are set to
+	 *            <code>true</code>, all other elements are left untouched.
+	 */
+	public void markMatches(CharSequence data, LongSet ngrams, boolean[] matches)
+	{
+		if (mN > MAX_PACKED_N)
+		{
+			throw new IllegalStateException("Can't pack " + mN + "-grams, the maximum is " + MAX_PACKED_N);
+		}
+
+		getPackedNgrams(data, ngrams, matches);
+	}
+
+
+	/**
+	 * Walks the words of the given {@link CharSequence}. If <code>matches</code> is <code>null</code> the packed N-grams of the words are added to
+	 * <code>ngrams</code>, otherwise the characters of the N-grams that are contained in <code>ngrams</code> are marked in <code>matches</code>.
+	 */
+	private void getPackedNgrams(CharSequence data, LongSet ngrams, boolean[] matches)
+	{
+		final int len = data.length();
+		final boolean returnNumbers = mReturnNumbers;
+		int wordStart = -1;
+		int i = 0;
+		while (i < len)
+		{
+			// classify code points, the two chars of a supplementary character belong to the same class
+			int codePoint = Character.codePointAt(data, i);
+			byte charClass = charClass(codePoint);
+			boolean isWordChar = charClass == CLASS_LETTER || returnNumbers && charClass == CLASS_DIGIT;
+			if (isWordChar && wordStart < 0)
+			{
+				wordStart = i;
+			}
+			else if (!isWordChar && wordStart >= 0)
+			{
+				getPackedNgrams(data, wordStart, i, ngrams, matches);
+				wordStart = -1;
+			}
+			i += Character.charCount(codePoint);
+		}
+
+		if (wordStart >= 0)
+		{
+			getPackedNgrams(data, wordStart, len, ngrams, matches);
+		}
+	}
+
+
+	/**
+	 * Add the packed N-grams of the word between <code>start</code> (inclusive) and <code>end</code> (exclusive) to the given {@link LongSet} or mark their
+	 * matches, see {@link #getPackedNgrams(CharSequence, LongSet, boolean[])}.
+	 */
+	private void getPackedNgrams(CharSequence data, int start, int end, LongSet ngrams, boolean[] matches)
+	{
+		if (!mCjkBigrams)
+		{
+			getPackedNgrams(data, start, end, ngrams, matches, mN, mMinWordLen);
+			return;
+		}
+
+		// split the word into runs of CJK and other characters
+		int runStart = start;
+		boolean cjkRun = isCjk(data.charAt(start));
+		for (int i = start + 1; i < end; ++i)
+		{
+			boolean cjk = isCjk(data.charAt(i));
+			if (cjk != cjkRun)
+			{
+				getPackedNgrams(data, runStart, i, ngrams, matches, cjkRun ? CJK_N : mN, cjkRun ? 1 : mMinWordLen);
+				runStart = i;
+				cjkRun = cjk;
+			}
+		}
+		getPackedNgrams(data, runStart, end, ngrams, matches, cjkRun ? CJK_N : mN, cjkRun ? 1 : mMinWordLen);
+	}
+
+
+	/**
+	 * Add the packed N-grams of the given size of the word between <code>start</code> (inclusive) and <code>end</code> (exclusive) to the given
+	 * {@link LongSet} or mark their matches, see {@link #getPackedNgrams(CharSequence, LongSet, boolean[])}.
+	 */
+	private void getPackedNgrams(CharSequence data, int start, int end, LongSet ngrams, boolean[] matches, int n, int minWordLen)
+	{
+		final int len = end - start;
+
+		if (len < minWordLen)
+		{
+			return;
+		}
+
+		final int last = Math.max(1, len - n + 1);
+
+		for (int i = 0; i < last; ++i)
+		{
+			int ngramEnd = start + Math.min(i + n, len);
+			addNgram(ngrams, matches, pack(data, start + i, ngramEnd, false), start + i, ngramEnd);
+		}
+
+		if (mAddSpaceInFront)
+		{
+			int ngramEnd = start + Math.min(len, n - 1);
+			addNgram(ngrams, matches, pack(data, start, ngramEnd, true), start, ngramEnd);
+		}
+	}
+
+
+	/**
+	 * Adds a packed N-gram to the given {@link LongSet} or, if <code>matches</code> is not <code>null</code>, marks its characters if it's contained in the
+	 * set.
+	 */
+	private static void addNgram(LongSet ngrams, boolean[] matches, long ngram, int start, int end)
+	{
+		if (matches == null)
+		{
+			ngrams.add(ngram);
+		}
+		else if (ngrams.contains(ngram))
+		{
+			for (int i = start; i < end; ++i)
+			{
+				matches[i] = true;
+			}
+		}
+	}
+
+
+	/**
+	 * Packs the characters between <code>start</code> and <code>end</code> into a <code>long</code>, converting them to lower case if necessary.
+	 */
+	private long pack(CharSequence data, int start, int end, boolean spaceInFront)
+	{
+		final boolean lowercase = mAllLowercase;
+		long result = 0;
+		int shift = 48;
+		if (spaceInFront)
+		{
+			result = (long) ' ' << shift;
+			shift -= 16;
+		}
+		for (int i = start; i < end; ++i, shift -= 16)
+		{
+			result |= (long) (lowercase ? toLowerCase(data, i) : data.charAt(i)) << shift;
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns the lower case of the char at the given index. A supplementary character is converted as a whole, so for each of its two chars this returns the
+	 * respective char of the lower case character.
+	 */
+	private static char toLowerCase(CharSequence data, int index)
+	{
+		char c = data.charAt(index);
+		if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE)
+		{
+			return Character.toLowerCase(c);
+		}
+
+		boolean high = Character.isHighSurrogate(c);
+		// the code point of the pair this char belongs to, that's the char itself if it's not part of a pair
+		int codePoint = high ? Character.codePointAt(data, index) : Character.codePointBefore(data, index + 1);
+		if (codePoint == c)
+		{
+			return c;
+		}
+		int lowerCodePoint = Character.toLowerCase(codePoint);
+		if (!Character.isSupplementaryCodePoint(lowerCodePoint))
+		{
+			return c;
+		}
+		int offset = lowerCodePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT;
+		return high ? (char) (Character.MIN_HIGH_SURROGATE + (offset >>> 10)) : (char) (Character.MIN_LOW_SURROGATE + (offset & 0x3ff));
+	}
+
+
+	/**
+	 * Packs the given N-gram into a <code>long</code>. Each character takes 16 bits, the first character goes to the most significant bits and unused
+	 * characters are filled with <code>0</code>. So N-grams with a common prefix are adjacent when sorted by their unsigned value.
+	 * 
+	 * @param ngram
+	 *            The N-gram to pack, must not be longer than {@link #MAX_PACKED_N}.
+	 * @return The packed N-gram.
+	 */
+	public static long pack(CharSequence ngram)
+	{
+		final int len = ngram.length();
+		if (len > MAX_PACKED_N)
+		{
+			throw new IllegalArgumentException("Can't pack N-grams longer than " + MAX_PACKED_N + " characters: '" + ngram + "'");
+		}
+
+		long result = 0;
+		for (int i = 0, shift = 48; i < len; ++i, shift -= 16)
+		{
+			result |= (long) ngram.charAt(i) << shift;
+		}
+		return result;
+	}
+
+
+	/**
+	 * Converts a packed N-gram back to a {@link String}.
+	 * 
+	 * @param packedNgram
+	 *            A packed N-gram as returned by {@link #pack(CharSequence)} or {@link #getPackedNgrams(LongSet, CharSequence)}.
+	 * @return The N-gram.
+	 */
+	public static String unpack(long packedNgram)
+	{
+		char[] chars = new char[MAX_PACKED_N];
+		int len = 0;
+		for (int shift = 48; shift >= 0; shift -= 16)
+		{
+			char c = (char) (packedNgram >>> shift);
+			if (c == 0)
+			{
+				break;
+			}
+			chars[len++] = c;
+		}
+		return new String(chars, 0, len);
+	}
+
+
+	/**
+	 * Returns the character class of the given code point, using the lookup table if possible.
+	 */
+	private static byte charClass(int codePoint)
+	{
+		return codePoint < CHAR_CLASSES.length ? CHAR_CLASSES[codePoint] : classify(codePoint);
+	}
+
+
+	/**
+	 * Returns whether the given character is an ideograph or a letter of the Hiragana, Katakana, Bopomofo or Hangul scripts. Radicals, punctuation and other
+	 * symbols of these scripts are not CJK characters, they separate words like any other symbol. Characters outside of the Basic Multilingual Plane are not
+	 * recognized.
+	 * 
+	 * @param c
+	 *            The character to test.
+	 * @return <code>true</code> if the character is a CJK character.
+	 */
+	public static boolean isCjk(char c)
+	{
+		return (c >= 0x1100 && c <= 0x11ff // Hangul Jamo
+			|| c >= 0x3040 && c <= 0x318f // Hiragana, Katakana, Bopomofo and Hangul compatibility Jamo
+			|| c >= 0x31f0 && c <= 0x31ff // Katakana phonetic extensions
+			|| c >= 0x3400 && c <= 0x4dbf // CJK unified ideographs extension A
+			|| c >= 0x4e00 && c <= 0x9fff // CJK unified ideographs
+			|| c >= 0xac00 && c <= 0xd7af // Hangul syllables
+			|| c >= 0xf900 && c <= 0xfaff // CJK compatibility ideographs
+			|| c >= 0xff66 && c <= 0xff9f) // half-width Katakana
+			&& isLetterOrMark(c);
+	}
+
+
+	/**
+	 * Determines the character class of the given code point. This must match the classes of {@link #SEPARATOR_PATTERN}, which matches code points as well,
+	 * so letters outside of the Basic Multilingual Plane are letters too. An unpaired surrogate is a separator. CJK characters are letters, they are only told
+	 * apart by {@link #isCjk(char)} if CJK bigrams are enabled.
+	 */
+	private static byte classify(int codePoint)
+	{
+		if (codePoint >= '0' && codePoint <= '9')
+		{
+			return CLASS_DIGIT;
+		}
+
+		return isLetterOrMark(codePoint) ? CLASS_LETTER : CLASS_SEPARATOR;
+	}
+
+
+	/**
+	 * Returns whether the given code point is a letter or a mark, i.e. whether it's matched by <code>[\p{L}\p{M}]</code>.
+	 */
+	private static boolean isLetterOrMark(int codePoint)
+	{
+		switch (Character.getType(codePoint))
+		{
+			case Character.UPPERCASE_LETTER:
+			case Character.LOWERCASE_LETTER:
+			case Character.TITLECASE_LETTER:
+			case Character.MODIFIER_LETTER:
+			case Character.OTHER_LETTER:
+			case Character.NON_SPACING_MARK:
+			case Character.ENCLOSING_MARK:
+			case Character.COMBINING_SPACING_MARK:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+
 	public void getNgrams(String word, Set<String> ngrams)
 	{
 		final int len = word.length();
-		final int minWordLen = mMinWordLen;
+		if (!mCjkBigrams || len == 0)
+		{
+			getNgrams(word, ngrams, mN, mMinWordLen);
+			return;
+		}
+
+		// split the word into runs of CJK and other characters
+		int runStart = 0;
+		boolean cjkRun = isCjk(word.charAt(0));
+		for (int i = 1; i < len; ++i)
+		{
+			boolean cjk = isCjk(word.charAt(i));
+			if (cjk != cjkRun)
+			{
+				getNgrams(word.substring(runStart, i), ngrams, cjkRun ? CJK_N : mN, cjkRun ? 1 : mMinWordLen);
+				runStart = i;
+				cjkRun = cjk;
+			}
+		}
+		getNgrams(word.substring(runStart), ngrams, cjkRun ? CJK_N : mN, cjkRun ? 1 : mMinWordLen);
+	}
+
+
+	private void getNgrams(String word, Set<String> ngrams, int n, int minWordLen)
+	{
+		final int len = word.length();
 
 		if (len < minWordLen)
 		{
 			return;
 		}
 
-		final int n = mN;
 		final int last = Math.max(1, len - n + 1);
 
 		for (int i = 0; i < last; ++i)
@@ -177,21 +601,12 @@ public final class NGramGenerator
 		if (mAddSpaceInFront)
 		{
 			/*
-			 * Add another String with a space and the first n-1 characters of the word.
-			 * 
-			 * We could just call
-			 * 
-			 * ngrams.add(" " + word.substring(0, Math.min(len, n - 1));
-			 * 
-			 * But it's probably way more efficient like this:
+			 * Add another String with a space and the first n-1 characters of the word. The array is local, so this is safe to call from multiple threads.
 			 */
-			char[] tempArray = mTempArray;
-
 			int count = Math.min(len, n - 1);
-			for (int i = 0; i < count; ++i)
-			{
-				tempArray[i + 1] = word.charAt(i);
-			}
+			char[] tempArray = new char[count + 1];
+			tempArray[0] = ' ';
+			word.getChars(0, count, tempArray, 1);
 			ngrams.add(new String(tempArray));
 		}
 	}
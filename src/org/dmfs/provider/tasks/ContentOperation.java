@@ -24,6 +24,11 @@ import org.dmfs.provider.tasks.TaskContract.Tasks;
 import org.dmfs.provider.tasks.model.CursorContentValuesTaskAdapter;
 import org.dmfs.provider.tasks.model.TaskAdapter;
 import org.dmfs.provider.tasks.processors.tasks.TaskInstancesProcessor;
+import org.dmfs.provider.tasks.search.SearchEngine;
+import org.dmfs.provider.tasks.search.SearchEngineFactory;
+import org.dmfs.provider.tasks.search.SearchIndexRebuilder;
+import org.dmfs.provider.tasks.search.SearchResultCache;
+import org.dmfs.provider.tasks.search.SearchSessionCache;
 import org.dmfs.rfc5545.DateTime;
 
 import android.annotation.SuppressLint;
@@ -34,6 +39,7 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
@@ -70,6 +76,78 @@ public enum ContentOperation
 		}
 	}),
 
+	/**
+	 * Rebuilds the search index in chunks of a few hundred tasks. Each chunk is indexed in its own transaction, so other operations are not
+	 * blocked for long. If a rebuild is pending (e.g. after a database upgrade or because a previous rebuild has been interrupted) it's continued, otherwise a
+	 * new rebuild of the index of the active search engine is started.
+	 */
+	REBUILD_SEARCH_INDEX(new OperationHandler()
+	{
+		/**
+		 * The number of tasks to index per transaction.
+		 */
+		private final static int REBUILD_CHUNK_SIZE = 200;
+
+
+		@Override
+		public void handleOperation(Context context, Uri uri, SQLiteDatabase db, ContentValues values)
+		{
+			long start = System.currentTimeMillis();
+
+			if (SearchIndexRebuilder.pendingEngine(db) == null)
+			{
+				SearchIndexRebuilder.schedule(db, SearchEngineFactory.activeEngine().name());
+			}
+
+			int chunks = 0;
+			boolean more;
+			do
+			{
+				more = SearchIndexRebuilder.rebuildChunk(db, REBUILD_CHUNK_SIZE);
+				// the index has changed, so the candidates of the search sessions and the cached results might be outdated
+				SearchSessionCache.invalidate();
+				SearchResultCache.invalidate();
+				++chunks;
+			} while (more);
+
+			Log.i("TaskProvider", "time to rebuild search index in " + chunks + " chunks: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}),
+
+	/**
+	 * Compacts the search index by removing entries that are no longer needed. It logs the space that has been reclaimed, i.e. the number of database pages
+	 * that are no longer in use.
+	 * <p>
+	 * The provider fires this operation when the search engine requests an optimization, see {@link SearchEngine#needsOptimization()}.
+	 * </p>
+	 */
+	COMPACT_SEARCH_INDEX(new OperationHandler()
+	{
+		@Override
+		public void handleOperation(Context context, Uri uri, SQLiteDatabase db, ContentValues values)
+		{
+			long start = System.currentTimeMillis();
+			long usedPages = usedPages(db);
+
+			SearchEngineFactory.activeEngine().optimizeIndex(db);
+			SearchSessionCache.invalidate();
+			SearchResultCache.invalidate();
+
+			long reclaimed = (usedPages - usedPages(db)) * db.getPageSize();
+			Log.i("TaskProvider", "time to compact search index: " + (System.currentTimeMillis() - start) + " ms, reclaimed " + reclaimed / 1024 + " kB");
+		}
+
+
+		/**
+		 * Returns the number of database pages that are in use. Free pages are either returned to the file system or reused by SQLite, depending on the
+		 * auto vacuum mode.
+		 */
+		private long usedPages(SQLiteDatabase db)
+		{
+			return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+		}
+	}),
+
 	/**
 	 * Takes care of everything we need to send task start and task due broadcasts.
 	 */
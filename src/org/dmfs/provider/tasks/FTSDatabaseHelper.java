@@ -17,20 +17,34 @@
 
 package org.dmfs.provider.tasks;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
+import org.dmfs.ngrams.LongSet;
 import org.dmfs.ngrams.NGramGenerator;
+import org.dmfs.provider.tasks.TaskContract.Instances;
 import org.dmfs.provider.tasks.TaskContract.Properties;
 import org.dmfs.provider.tasks.TaskContract.TaskColumns;
 import org.dmfs.provider.tasks.TaskContract.Tasks;
 import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
 import org.dmfs.provider.tasks.model.TaskAdapter;
+import org.dmfs.provider.tasks.search.NGramSearchEngine;
+import org.dmfs.provider.tasks.search.PropertyTextExtractorFactory;
+import org.dmfs.provider.tasks.search.ScopedQuery;
+import org.dmfs.provider.tasks.search.SearchEngineFactory;
+import org.dmfs.provider.tasks.search.SearchIndexRebuilder;
+import org.dmfs.provider.tasks.search.SearchResult;
+import org.dmfs.provider.tasks.search.SearchResultCache;
+import org.dmfs.provider.tasks.search.SearchSession;
+import org.dmfs.provider.tasks.search.TaskFilter;
 
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
-import android.text.TextUtils;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
 
 /**
@@ -41,18 +55,61 @@ import android.text.TextUtils;
  */
 public class FTSDatabaseHelper
 {
+	private static final String TAG = "FTSDatabaseHelper";
 
-	private final static float SEARCH_RESULTS_MIN_SCORE = 0.4f;
+	/**
+	 * The maximum number of N-grams we search for. Longer queries are sampled down to this number of N-grams, so the search time doesn't grow with the length
+	 * of the query.
+	 */
+	private final static int MAX_QUERY_NGRAMS = 128;
+
+	/**
+	 * N-grams that are contained in more entries than this fraction of the number of tasks are considered too common to contribute to the search results.
+	 */
+	private final static float MAX_DOCUMENT_FREQUENCY_RATIO = 0.3f;
+
+	/**
+	 * The minimum weight of an N-gram that has not been pruned.
+	 */
+	private final static double MIN_NGRAM_WEIGHT = 0.01;
+
+	/**
+	 * The number of orphaned N-grams that are removed per transaction when the index is compacted.
+	 */
+	private final static int COMPACTION_BATCH_SIZE = TaskDatabaseHelper.MAX_INLINE_IDS;
+
+	/**
+	 * A Generator for 3-grams. CJK text is split into bigrams.
+	 */
+	private final static NGramGenerator TRIGRAM_GENERATOR = new NGramGenerator(3, 1).withAddSpaceInFront(true).withCjkBigrams(true);
+
+	/**
+	 * A Generator for 4-grams. CJK text is split into bigrams, which are the same as the ones of the {@link #TRIGRAM_GENERATOR}.
+	 */
+	private final static NGramGenerator TETRAGRAM_GENERATOR = new NGramGenerator(4, 3 /* shorter words are fully covered by trigrams */).withAddSpaceInFront(
+		true).withCjkBigrams(true);
+
+	/**
+	 * A {@link LongSet} per thread that takes the packed N-grams of an entry. This is reused, so indexing a text doesn't allocate anything per N-gram.
+	 */
+	private final static ThreadLocal<LongSet> NGRAM_SINK = new ThreadLocal<LongSet>()
+	{
+		@Override
+		protected LongSet initialValue()
+		{
+			return new LongSet(256);
+		}
+	};
 
 	/**
-	 * A Generator for 3-grams.
+	 * The cache of N-gram ids that are known to be in the N-gram table.
 	 */
-	private final static NGramGenerator TRIGRAM_GENERATOR = new NGramGenerator(3, 1).setAddSpaceInFront(true);
+	private final static NGramCache NGRAM_CACHE = new NGramCache(8192);
 
 	/**
-	 * A Generator for 4-grams.
+	 * The cache of the most recent search results.
 	 */
-	private final static NGramGenerator TETRAGRAM_GENERATOR = new NGramGenerator(4, 3 /* shorter words are fully covered by trigrams */).setAddSpaceInFront(true);
+	private final static SearchResultCache RESULT_CACHE = new SearchResultCache();
 
 	/**
 	 * Search content columns. Defines all the columns for the full text search
@@ -77,10 +134,16 @@ public class FTSDatabaseHelper
 		public static final String TYPE = "fts_type";
 
 		/**
-		 * An n-gram for a task.
+		 * An n-gram for a task. This is the packed N-gram as returned by {@link NGramGenerator#pack(CharSequence)}.
 		 */
 		public static final String NGRAM_ID = "fts_ngram_id";
 
+		/**
+		 * The state of the task, <code>1</code> if the task is closed, <code>0</code> otherwise. This partitions the entries into the ones of open tasks and the
+		 * ones of closed tasks, so searches for open tasks don't have to read the entries of closed tasks.
+		 */
+		public static final String CLOSED = "fts_closed";
+
 	}
 
 	/**
@@ -91,7 +154,7 @@ public class FTSDatabaseHelper
 	public interface NGramColumns
 	{
 		/**
-		 * The row id of the N-gram.
+		 * The row id of the N-gram. This is the packed N-gram as returned by {@link NGramGenerator#pack(CharSequence)}.
 		 */
 		public static final String NGRAM_ID = "ngram_id";
 
@@ -100,6 +163,11 @@ public class FTSDatabaseHelper
 		 */
 		public static final String TEXT = "ngram_text";
 
+		/**
+		 * The number of entries that contain the N-gram. This is maintained by triggers on the {@link FTSDatabaseHelper#FTS_CONTENT_TABLE}.
+		 */
+		public static final String DOCUMENT_FREQUENCY = "ngram_df";
+
 	}
 
 	public static final String FTS_CONTENT_TABLE = "FTS_Content";
@@ -111,25 +179,103 @@ public class FTSDatabaseHelper
 	 * SQL command to create the table for full text search and contains relationships between ngrams and tasks
 	 */
 	private final static String SQL_CREATE_SEARCH_CONTENT_TABLE = "CREATE TABLE " + FTS_CONTENT_TABLE + "( " + FTSContentColumns.TASK_ID + " Integer, "
-		+ FTSContentColumns.NGRAM_ID + " Integer, " + FTSContentColumns.PROPERTY_ID + " Integer, " + FTSContentColumns.TYPE + " Integer, " + "FOREIGN KEY("
-		+ FTSContentColumns.TASK_ID + ") REFERENCES " + Tables.TASKS + "(" + TaskColumns._ID + ")," + "FOREIGN KEY(" + FTSContentColumns.TASK_ID
-		+ ") REFERENCES " + Tables.TASKS + "(" + TaskColumns._ID + ") UNIQUE (" + FTSContentColumns.TASK_ID + ", " + FTSContentColumns.TYPE + ", "
-		+ FTSContentColumns.PROPERTY_ID + ") ON CONFLICT IGNORE )";
+		+ FTSContentColumns.NGRAM_ID + " Integer, " + FTSContentColumns.PROPERTY_ID + " Integer, " + FTSContentColumns.TYPE + " Integer, "
+		+ FTSContentColumns.CLOSED + " Integer DEFAULT 0, " + "FOREIGN KEY("
+		+ FTSContentColumns.TASK_ID + ") REFERENCES " + Tables.TASKS + "(" + TaskColumns._ID + "))";
+
+	/**
+	 * SQL command to create the table that stores the NGRAMS. The row id of an N-gram is its packed value, so there is no need to look up the id of an N-gram
+	 * or to index the text.
+	 */
+	private final static String SQL_CREATE_NGRAM_TABLE = "CREATE TABLE " + FTS_NGRAM_TABLE + "( " + NGramColumns.NGRAM_ID + " Integer PRIMARY KEY, "
+		+ NGramColumns.TEXT + " Text, " + NGramColumns.DOCUMENT_FREQUENCY + " Integer DEFAULT 0)";
 
 	/**
-	 * SQL command to create the table that stores the NGRAMS
+	 * SQL command to add the document frequency column to N-gram tables of version 17.
 	 */
-	private final static String SQL_CREATE_NGRAM_TABLE = "CREATE TABLE " + FTS_NGRAM_TABLE + "( " + NGramColumns.NGRAM_ID
-		+ " Integer PRIMARY KEY AUTOINCREMENT, " + NGramColumns.TEXT + " Text)";
+	private final static String SQL_ADD_NGRAM_DOCUMENT_FREQUENCY_COLUMN = "ALTER TABLE " + FTS_NGRAM_TABLE + " ADD COLUMN "
+		+ NGramColumns.DOCUMENT_FREQUENCY + " Integer DEFAULT 0";
 
-	// FIXME: at present the minimum score is hard coded can we leave that decision to the caller?
-	private final static String SQL_RAW_QUERY_SEARCH_TASK = "SELECT %s " + ", min(1.0*count(*)/?, 1.0) as " + TaskContract.Tasks.SCORE + " from "
-		+ FTS_NGRAM_TABLE + " join " + FTS_CONTENT_TABLE + " on (" + FTS_NGRAM_TABLE + "." + NGramColumns.NGRAM_ID + "=" + FTS_CONTENT_TABLE + "."
-		+ FTSContentColumns.NGRAM_ID + ") join " + Tables.INSTANCE_VIEW + " on (" + Tables.INSTANCE_VIEW + "." + Tasks._ID + " = " + FTS_CONTENT_TABLE + "."
-		+ FTSContentColumns.TASK_ID + ") where %s group by " + Tasks._ID + " having " + TaskContract.Tasks.SCORE + " >= " + SEARCH_RESULTS_MIN_SCORE
-		+ " order by %s;";
+	/**
+	 * SQL command to add the task state column to content tables of version 19 and older.
+	 */
+	private final static String SQL_ADD_SEARCH_CONTENT_CLOSED_COLUMN = "ALTER TABLE " + FTS_CONTENT_TABLE + " ADD COLUMN " + FTSContentColumns.CLOSED
+		+ " Integer DEFAULT 0";
+
+	/**
+	 * SQL command to set the task state of all entries of closed tasks.
+	 */
+	private final static String SQL_INITIALIZE_SEARCH_CONTENT_CLOSED = "UPDATE " + FTS_CONTENT_TABLE + " SET " + FTSContentColumns.CLOSED + " = 1 WHERE "
+		+ FTSContentColumns.TASK_ID + " IN (SELECT " + Tasks._ID + " FROM " + Tables.TASKS + " WHERE " + Tasks.IS_CLOSED + " = 1)";
+
+	/**
+	 * SQL command to move the entries of a task to the partition of its current state. The arguments are the new state and the task id.
+	 */
+	private final static String SQL_UPDATE_SEARCH_CONTENT_CLOSED = "UPDATE " + FTS_CONTENT_TABLE + " SET " + FTSContentColumns.CLOSED + " = ?1 WHERE "
+		+ FTSContentColumns.TASK_ID + " = ?2 AND " + FTSContentColumns.CLOSED + " != ?1";
+
+	/**
+	 * SQL command to calculate the document frequencies of all N-grams.
+	 */
+	private final static String SQL_INITIALIZE_NGRAM_DOCUMENT_FREQUENCY = "UPDATE " + FTS_NGRAM_TABLE + " SET " + NGramColumns.DOCUMENT_FREQUENCY
+		+ " = (SELECT count(*) FROM " + FTS_CONTENT_TABLE + " WHERE " + FTSContentColumns.NGRAM_ID + " = " + FTS_NGRAM_TABLE + "." + NGramColumns.NGRAM_ID
+		+ ")";
+
+	/**
+	 * SQL command to create a trigger that increments the document frequency of an N-gram when a relation is inserted.
+	 */
+	private final static String SQL_CREATE_NGRAM_DF_INSERT_TRIGGER = "CREATE TRIGGER ngram_df_insert_trigger AFTER INSERT ON " + FTS_CONTENT_TABLE
+		+ " BEGIN UPDATE " + FTS_NGRAM_TABLE + " SET " + NGramColumns.DOCUMENT_FREQUENCY + " = " + NGramColumns.DOCUMENT_FREQUENCY + " + 1 WHERE "
+		+ NGramColumns.NGRAM_ID + " = new." + FTSContentColumns.NGRAM_ID + "; END";
+
+	/**
+	 * SQL command to create a trigger that decrements the document frequency of an N-gram when a relation is deleted. This also catches the relations that
+	 * are removed by the task and property delete triggers.
+	 */
+	private final static String SQL_CREATE_NGRAM_DF_DELETE_TRIGGER = "CREATE TRIGGER ngram_df_delete_trigger AFTER DELETE ON " + FTS_CONTENT_TABLE
+		+ " BEGIN UPDATE " + FTS_NGRAM_TABLE + " SET " + NGramColumns.DOCUMENT_FREQUENCY + " = " + NGramColumns.DOCUMENT_FREQUENCY + " - 1 WHERE "
+		+ NGramColumns.NGRAM_ID + " = old." + FTSContentColumns.NGRAM_ID + "; END";
+
+	/**
+	 * SQL command to insert an N-gram if it doesn't exist yet.
+	 */
+	private final static String SQL_INSERT_NGRAM = "INSERT OR IGNORE INTO " + FTS_NGRAM_TABLE + " (" + NGramColumns.NGRAM_ID + ", " + NGramColumns.TEXT
+		+ ") VALUES (?, ?)";
+
+	/**
+	 * SQL command to insert a relation between an N-gram and a task. The relation is put into the partition of the current state of the task. The arguments are
+	 * the task id, the N-gram, the property id and the type.
+	 */
+	private final static String SQL_INSERT_NGRAM_RELATION = "INSERT OR IGNORE INTO " + FTS_CONTENT_TABLE + " (" + FTSContentColumns.TASK_ID + ", "
+		+ FTSContentColumns.NGRAM_ID + ", " + FTSContentColumns.PROPERTY_ID + ", " + FTSContentColumns.TYPE + ", " + FTSContentColumns.CLOSED
+		+ ") SELECT ?1, ?2, ?3, ?4, ifnull(" + Tasks.IS_CLOSED + ", 0) FROM " + Tables.TASKS + " WHERE " + Tasks._ID + " = ?1";
+
+	/**
+	 * The query of the scores of the matching tasks. The inner query determines the score of each matching N-gram per task, which is the highest weight of the
+	 * types of the entries it's found in multiplied by the weight of the N-gram. Only tasks that match the task selection and the instance selection are
+	 * scored. The outer query sums up the N-gram scores per task and drops the tasks below the minimum score.
+	 * <p>
+	 * The arguments are: 1) the total weight of the query N-grams, 2) the expression of the N-gram weight, 3) the selection of the N-grams, 4) the selection
+	 * of the tasks, applied to the task table, 5) the selection of the instances (if any) and 6) the minimum score.
+	 * </p>
+	 */
+	private final static String SQL_RAW_QUERY_SEARCH_TASK_SCORES = "SELECT search_task_id, min(sum(ngram_score) / %1$s, 1.0) AS "
+		+ TaskContract.Tasks.SCORE + " FROM (SELECT " + FTSContentColumns.TASK_ID + " AS search_task_id, max(" + typeWeightExpression(FTSContentColumns.TYPE)
+		+ ") * %2$s AS ngram_score FROM " + FTS_CONTENT_TABLE + " JOIN " + Tables.TASKS + " ON (" + Tables.TASKS + "." + Tasks._ID + " = "
+		+ FTSContentColumns.TASK_ID + ") WHERE %3$s AND %4$s%5$s GROUP BY " + FTSContentColumns.TASK_ID + ", " + FTSContentColumns.NGRAM_ID
+		+ ") GROUP BY search_task_id HAVING " + TaskContract.Tasks.SCORE + " >= %6$s";
+
+	/**
+	 * Restricts the scored tasks to the ones that have instances matching a selection. The argument is the selection of the instances.
+	 */
+	private final static String SQL_RAW_QUERY_SEARCH_INSTANCE_SELECTION = " AND " + FTSContentColumns.TASK_ID + " IN (SELECT " + Instances.TASK_ID
+		+ " FROM " + Tables.INSTANCE_VIEW + " WHERE %1$s)";
 
-	private final static String SQL_RAW_QUERY_SEARCH_TASK_DEFAULT_PROJECTION = Tables.INSTANCE_VIEW + ".* ," + FTS_NGRAM_TABLE + "." + NGramColumns.TEXT;
+	/**
+	 * Selects the N-grams in a range of packed N-grams. N-grams with a common prefix form a range (see {@link NGramGenerator#pack(CharSequence)}), so this
+	 * finds all N-grams with a given prefix with a range scan of the N-gram index. The arguments are the first and the last N-gram of the range.
+	 */
+	private final static String SQL_RAW_QUERY_SEARCH_NGRAM_RANGE = FTSContentColumns.NGRAM_ID + " BETWEEN %1$d AND %2$d";
 
 	private final static String SQL_CREATE_SEARCH_TASK_DELETE_TRIGGER = "CREATE TRIGGER search_task_delete_trigger AFTER DELETE ON " + Tables.TASKS + " BEGIN "
 		+ " DELETE FROM " + FTS_CONTENT_TABLE + " WHERE " + FTSContentColumns.TASK_ID + " =  old." + Tasks._ID + "; END";
@@ -138,6 +284,21 @@ public class FTSDatabaseHelper
 		+ Tables.PROPERTIES + " BEGIN " + " DELETE FROM " + FTS_CONTENT_TABLE + " WHERE " + FTSContentColumns.TASK_ID + " =  old." + Properties.TASK_ID
 		+ " AND " + FTSContentColumns.PROPERTY_ID + " = old." + Properties.PROPERTY_ID + "; END";
 
+	/**
+	 * The selection of N-grams that are not referenced by any entry. The document frequency tells that already, but we double check that with the index on the
+	 * N-gram id of the content table.
+	 */
+	private final static String SQL_ORPHANED_NGRAM_SELECTION = NGramColumns.DOCUMENT_FREQUENCY + " <= 0 AND NOT EXISTS (SELECT 1 FROM " + FTS_CONTENT_TABLE
+		+ " WHERE " + FTSContentColumns.NGRAM_ID + " = " + FTS_NGRAM_TABLE + "." + NGramColumns.NGRAM_ID + ")";
+
+	private final static String SQL_DROP_SEARCH_TASK_DELETE_TRIGGER = "DROP TRIGGER IF EXISTS search_task_delete_trigger;";
+
+	private final static String SQL_DROP_SEARCH_TASK_DELETE_PROPERTY_TRIGGER = "DROP TRIGGER IF EXISTS search_task_delete_property_trigger;";
+
+	private final static String SQL_DROP_SEARCH_CONTENT_TABLE = "DROP TABLE IF EXISTS " + FTS_CONTENT_TABLE + ";";
+
+	private final static String SQL_DROP_NGRAM_TABLE = "DROP TABLE IF EXISTS " + FTS_NGRAM_TABLE + ";";
+
 	/**
 	 * The different types of searchable entries for tasks linked to the <code>TYPE</code> column.
 	 * 
@@ -162,10 +323,95 @@ public class FTSDatabaseHelper
 		public static final int LOCATION = 3;
 
 		/**
-		 * This is an entry for a property of a task.
+		 * This is an entry for a category of a task. This and all following types are types of property entries.
+		 */
+		public static final int CATEGORY = 4;
+
+		/**
+		 * This is an entry for a comment of a task.
+		 */
+		public static final int COMMENT = 5;
+
+		/**
+		 * This is an entry for an attendee or a contact of a task.
 		 */
-		public static final int PROPERTY = 4;
+		public static final int PERSON = 6;
+
+		/**
+		 * This is an entry for an attachment of a task.
+		 */
+		public static final int ATTACHMENT = 7;
+
+	}
+
+	/**
+	 * The weights of the {@link SearchableTypes} in search results. A match in the title ranks higher than a match in a category, the location or the
+	 * description. Comments, people and attachments rank lowest.
+	 */
+	private final static float TITLE_WEIGHT = 1.0f;
+	private final static float CATEGORY_WEIGHT = 0.9f;
+	private final static float LOCATION_WEIGHT = 0.8f;
+	private final static float DESCRIPTION_WEIGHT = 0.7f;
+	private final static float COMMENT_WEIGHT = 0.6f;
+	private final static float PERSON_WEIGHT = 0.6f;
+	private final static float ATTACHMENT_WEIGHT = 0.5f;
+
+
+	/**
+	 * Returns an SQL expression that evaluates to the weight of the {@link SearchableTypes} in the given column.
+	 * 
+	 * @param typeColumn
+	 *            The name of a column that contains a {@link SearchableTypes} value.
+	 * @return An SQL expression.
+	 */
+	public static String typeWeightExpression(String typeColumn)
+	{
+		return "CASE " + typeColumn + " WHEN " + SearchableTypes.TITLE + " THEN " + TITLE_WEIGHT + " WHEN " + SearchableTypes.CATEGORY + " THEN "
+			+ CATEGORY_WEIGHT + " WHEN " + SearchableTypes.LOCATION + " THEN " + LOCATION_WEIGHT + " WHEN " + SearchableTypes.COMMENT + " THEN "
+			+ COMMENT_WEIGHT + " WHEN " + SearchableTypes.PERSON + " THEN " + PERSON_WEIGHT + " WHEN " + SearchableTypes.ATTACHMENT + " THEN "
+			+ ATTACHMENT_WEIGHT + " ELSE " + DESCRIPTION_WEIGHT + " END";
+	}
+
+
+	/**
+	 * Returns the weight of the given {@link SearchableTypes} value, the same value {@link #typeWeightExpression(String)} evaluates to.
+	 * 
+	 * @param type
+	 *            A {@link SearchableTypes} value.
+	 * @return The weight.
+	 */
+	public static float typeWeight(int type)
+	{
+		switch (type)
+		{
+			case SearchableTypes.TITLE:
+				return TITLE_WEIGHT;
+			case SearchableTypes.CATEGORY:
+				return CATEGORY_WEIGHT;
+			case SearchableTypes.LOCATION:
+				return LOCATION_WEIGHT;
+			case SearchableTypes.COMMENT:
+				return COMMENT_WEIGHT;
+			case SearchableTypes.PERSON:
+				return PERSON_WEIGHT;
+			case SearchableTypes.ATTACHMENT:
+				return ATTACHMENT_WEIGHT;
+			default:
+				return DESCRIPTION_WEIGHT;
+		}
+	}
 
+
+	/**
+	 * Returns whether the given {@link SearchableTypes} value is the type of a property entry.
+	 * 
+	 * @param type
+	 *            A {@link SearchableTypes} value.
+	 * @return <code>true</code> if entries of this type belong to a property.
+	 */
+	public static boolean isPropertyType(int type)
+	{
+		return type >= SearchableTypes.CATEGORY;
 	}
 
 
@@ -179,14 +425,202 @@ public class FTSDatabaseHelper
 	{
 		if (oldVersion < 8)
 		{
+			// FTS didn't exist yet, so we just create the current schema, the index is built in the background
 			initializeFTS(db);
-			initializeFTSContent(db);
+			SearchIndexRebuilder.schedule(db, NGramSearchEngine.NAME);
+			return;
 		}
 		if (oldVersion < 16)
 		{
 			db.execSQL(TaskDatabaseHelper.createIndexString(FTS_CONTENT_TABLE, true, FTSContentColumns.TYPE, FTSContentColumns.TASK_ID,
 				FTSContentColumns.PROPERTY_ID));
 		}
+		if (oldVersion < 17)
+		{
+			/*
+			 * N-grams are stored as packed integers now. Since all N-gram ids change we rebuild the index from scratch. This also gets rid of the unique
+			 * constraints that allowed only one N-gram per property. The index is built in the background, so the upgrade doesn't block the database.
+			 * 
+			 * Note that searches return only the tasks that have been indexed so far until the rebuild is complete. Unlike an engine switch, there is no
+			 * index to serve them from in the meantime, because queries can't be mapped to the N-gram ids of the old tables.
+			 */
+			db.execSQL(SQL_DROP_SEARCH_TASK_DELETE_TRIGGER);
+			db.execSQL(SQL_DROP_SEARCH_TASK_DELETE_PROPERTY_TRIGGER);
+			db.execSQL(SQL_DROP_SEARCH_CONTENT_TABLE);
+			db.execSQL(SQL_DROP_NGRAM_TABLE);
+			initializeFTS(db);
+			SearchIndexRebuilder.schedule(db, NGramSearchEngine.NAME);
+		}
+		else if (oldVersion < 18)
+		{
+			// version 17 N-gram tables don't have document frequencies yet, the schema created above already contains them
+			db.execSQL(SQL_ADD_NGRAM_DOCUMENT_FREQUENCY_COLUMN);
+			db.execSQL(SQL_INITIALIZE_NGRAM_DOCUMENT_FREQUENCY);
+			db.execSQL(SQL_CREATE_NGRAM_DF_INSERT_TRIGGER);
+			db.execSQL(SQL_CREATE_NGRAM_DF_DELETE_TRIGGER);
+		}
+		if (oldVersion < 19)
+		{
+			// CJK text is indexed as bigrams now, so the existing CJK N-grams no longer match any query
+			SearchEngineFactory.scheduleRebuild(db);
+		}
+		if (oldVersion >= 17 && oldVersion < 20)
+		{
+			// partition the entries by the state of their tasks, tables of older versions have been recreated with the current schema above
+			db.execSQL(SQL_ADD_SEARCH_CONTENT_CLOSED_COLUMN);
+			db.execSQL(SQL_INITIALIZE_SEARCH_CONTENT_CLOSED);
+			db.execSQL(TaskDatabaseHelper.createIndexString(FTS_CONTENT_TABLE, false, FTSContentColumns.CLOSED, FTSContentColumns.NGRAM_ID));
+		}
+		if (oldVersion >= 19 && oldVersion < 21)
+		{
+			// comments, attendees, contacts and attachments have their own types now, they used to share the type of categories, older versions have
+			// scheduled a rebuild above
+			SearchEngineFactory.scheduleRebuild(db);
+
+			// the postings index of these versions doesn't have the segment tables yet
+			SearchEngineFactory.onUpgrade(db);
+		}
+	}
+
+
+	/**
+	 * Must be called when a transaction begins, so the N-gram cache can track the N-grams that are inserted in the transaction.
+	 */
+	public static void onBeginTransaction()
+	{
+		NGRAM_CACHE.onBegin();
+	}
+
+
+	/**
+	 * Must be called right before a transaction is committed.
+	 */
+	public static void onCommitTransaction()
+	{
+		NGramCache cache = NGRAM_CACHE;
+		cache.onCommit();
+		if (Log.isLoggable(TAG, Log.VERBOSE) && cache.transactionHits() + cache.transactionMisses() > 0)
+		{
+			Log.v(TAG, "N-gram cache: " + cache.transactionHits() + " hits, " + cache.transactionMisses() + " misses in transaction, " + cache.hits()
+				+ " hits, " + cache.misses() + " misses in total");
+		}
+	}
+
+
+	/**
+	 * Must be called when a transaction has been rolled back.
+	 */
+	public static void onRollbackTransaction()
+	{
+		NGRAM_CACHE.onRollback();
+	}
+
+
+	/**
+	 * Removes all entries from the N-gram tables and fills them with the texts of all existing tasks and properties.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public static void rebuildIndex(SQLiteDatabase db)
+	{
+		clearIndex(db);
+		initializeFTSContent(db);
+	}
+
+
+	/**
+	 * Removes all entries from the N-gram tables. The tables themselves remain in place.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public static void clearIndex(SQLiteDatabase db)
+	{
+		// delete the N-grams first, so the document frequency trigger doesn't find anything to update
+		db.delete(FTS_NGRAM_TABLE, null, null);
+		db.delete(FTS_CONTENT_TABLE, null, null);
+		NGRAM_CACHE.clear();
+	}
+
+
+	/**
+	 * Removes the N-grams that are no longer referenced by any entry. The N-gram table is walked in the order of the N-gram ids and the orphaned N-grams are
+	 * removed in batches, each in its own transaction, so this doesn't block other writers for long.
+	 * <p>
+	 * Note that the N-gram ids are the packed N-grams, so they can't be renumbered. Removing the orphans is all it takes to keep the table dense.
+	 * </p>
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @return The number of N-grams that have been removed.
+	 */
+	public static int compactIndex(SQLiteDatabase db)
+	{
+		int removed = 0;
+		Long watermark = null;
+		long[] orphans;
+		do
+		{
+			db.beginTransaction();
+			try
+			{
+				orphans = queryOrphanedNGrams(db, watermark);
+				if (orphans.length > 0)
+				{
+					removed += db.delete(FTS_NGRAM_TABLE,
+						TaskDatabaseHelper.createIdSelection(NGramColumns.NGRAM_ID, orphans, 0, orphans.length) + " AND " + SQL_ORPHANED_NGRAM_SELECTION, null);
+					watermark = orphans[orphans.length - 1];
+
+					// the cache must not contain any of the removed ids, clear it before any other transaction can see the removal
+					NGRAM_CACHE.clear();
+				}
+				db.setTransactionSuccessful();
+			}
+			finally
+			{
+				db.endTransaction();
+			}
+		} while (orphans.length == COMPACTION_BATCH_SIZE);
+
+		return removed;
+	}
+
+
+	/**
+	 * Returns the ids of the next {@link #COMPACTION_BATCH_SIZE} orphaned N-grams after the given id in ascending order.
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param watermark
+	 *            The id of the last N-gram of the previous batch or <code>null</code> to start with the first N-gram.
+	 */
+	private static long[] queryOrphanedNGrams(SQLiteDatabase db, Long watermark)
+	{
+		String selection = SQL_ORPHANED_NGRAM_SELECTION;
+		String[] selectionArgs = null;
+		if (watermark != null)
+		{
+			selection = NGramColumns.NGRAM_ID + " > ? AND " + selection;
+			selectionArgs = new String[] { watermark.toString() };
+		}
+
+		Cursor c = db.query(FTS_NGRAM_TABLE, new String[] { NGramColumns.NGRAM_ID }, selection, selectionArgs, null, null, NGramColumns.NGRAM_ID,
+			String.valueOf(COMPACTION_BATCH_SIZE));
+		try
+		{
+			long[] result = new long[c.getCount()];
+			int i = 0;
+			while (c.moveToNext())
+			{
+				result[i++] = c.getLong(0);
+			}
+			return result;
+		}
+		finally
+		{
+			c.close();
+		}
 	}
 
 
@@ -202,71 +636,65 @@ public class FTSDatabaseHelper
 		db.execSQL(SQL_CREATE_NGRAM_TABLE);
 		db.execSQL(SQL_CREATE_SEARCH_TASK_DELETE_TRIGGER);
 		db.execSQL(SQL_CREATE_SEARCH_TASK_DELETE_PROPERTY_TRIGGER);
+		db.execSQL(SQL_CREATE_NGRAM_DF_INSERT_TRIGGER);
+		db.execSQL(SQL_CREATE_NGRAM_DF_DELETE_TRIGGER);
 
 		// create indices
-		db.execSQL(TaskDatabaseHelper.createIndexString(FTS_NGRAM_TABLE, true, NGramColumns.TEXT));
 		db.execSQL(TaskDatabaseHelper.createIndexString(FTS_CONTENT_TABLE, false, FTSContentColumns.NGRAM_ID));
 		db.execSQL(TaskDatabaseHelper.createIndexString(FTS_CONTENT_TABLE, false, FTSContentColumns.TASK_ID));
 		db.execSQL(TaskDatabaseHelper.createIndexString(FTS_CONTENT_TABLE, true, FTSContentColumns.PROPERTY_ID, FTSContentColumns.TASK_ID,
 			FTSContentColumns.NGRAM_ID));
 
-		db.execSQL(TaskDatabaseHelper.createIndexString(FTS_CONTENT_TABLE, true, FTSContentColumns.TYPE, FTSContentColumns.TASK_ID,
+		db.execSQL(TaskDatabaseHelper.createIndexString(FTS_CONTENT_TABLE, false, FTSContentColumns.TYPE, FTSContentColumns.TASK_ID,
 			FTSContentColumns.PROPERTY_ID));
+		// the partitions of open and closed tasks
+		db.execSQL(TaskDatabaseHelper.createIndexString(FTS_CONTENT_TABLE, false, FTSContentColumns.CLOSED, FTSContentColumns.NGRAM_ID));
 
 	}
 
 
 	/**
-	 * Creates the FTS entries for the existing tasks.
+	 * Creates the FTS entries for the existing tasks and their properties.
 	 * 
 	 * @param db
 	 *            The writable {@link SQLiteDatabase}.
 	 */
 	private static void initializeFTSContent(SQLiteDatabase db)
 	{
+		// the index is empty, so the entries can just be inserted
+		NGramIndexer indexer = new NGramIndexer(db, true);
+
 		String[] task_projection = new String[] { Tasks._ID, Tasks.TITLE, Tasks.DESCRIPTION, Tasks.LOCATION };
-		Cursor c = db.query(Tables.TASKS_PROPERTY_VIEW, task_projection, null, null, null, null, null);
-		while (c.moveToNext())
+		Cursor c = db.query(Tables.TASKS, task_projection, null, null, null, null, null);
+		try
 		{
-			insertTaskFTSEntries(db, c.getLong(0), c.getString(1), c.getString(2), c.getString(3));
+			while (c.moveToNext())
+			{
+				long taskId = c.getLong(0);
+				indexer.add(taskId, -1, SearchableTypes.TITLE, c.getString(1));
+				indexer.add(taskId, -1, SearchableTypes.DESCRIPTION, c.getString(2));
+				indexer.add(taskId, -1, SearchableTypes.LOCATION, c.getString(3));
+			}
 		}
-		c.close();
-	}
-
-
-	/**
-	 * Inserts the searchable texts of the task in the database.
-	 * 
-	 * @param db
-	 *            The writable {@link SQLiteDatabase}.
-	 * 
-	 * @param taskId
-	 *            The row id of the task.
-	 * @param title
-	 *            The title of the task.
-	 * @param description
-	 *            The description of the task.
-	 */
-	private static void insertTaskFTSEntries(SQLiteDatabase db, long taskId, String title, String description, String location)
-	{
-		// title
-		if (title != null && title.length() > 0)
+		finally
 		{
-			updateEntry(db, taskId, -1, SearchableTypes.TITLE, title);
+			c.close();
 		}
 
-		// location
-		if (location != null && location.length() > 0)
+		c = PropertyTextExtractorFactory.queryProperties(db, null);
+		try
 		{
-			updateEntry(db, taskId, -1, SearchableTypes.LOCATION, location);
+			while (c.moveToNext())
+			{
+				indexer.add(c.getLong(0), c.getLong(1), PropertyTextExtractorFactory.type(c), PropertyTextExtractorFactory.text(c));
+			}
 		}
-
-		// description
-		if (description != null && description.length() > 0)
+		finally
 		{
-			updateEntry(db, taskId, -1, SearchableTypes.DESCRIPTION, description);
+			c.close();
 		}
 
+		indexer.finish();
 	}
 
 
@@ -301,6 +729,58 @@ public class FTSDatabaseHelper
 	}
 
 
+	/**
+	 * Updates the searchable entries of the given tasks from the values in the database. This is meant to be used after inserting or updating a large number
+	 * of tasks, since it loads the tasks in chunks.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskIds
+	 *            The ids of the tasks to update. Ids of tasks that don't exist are ignored.
+	 */
+	public static void updateTaskFTSEntries(SQLiteDatabase db, long[] taskIds)
+	{
+		NGramIndexer indexer = new NGramIndexer(db, false);
+		String[] task_projection = new String[] { Tasks._ID, Tasks.TITLE, Tasks.DESCRIPTION, Tasks.LOCATION };
+		for (int start = 0; start < taskIds.length; start += TaskDatabaseHelper.MAX_INLINE_IDS)
+		{
+			int end = Math.min(taskIds.length, start + TaskDatabaseHelper.MAX_INLINE_IDS);
+			Cursor c = db.query(Tables.TASKS, task_projection, TaskDatabaseHelper.createIdSelection(Tasks._ID, taskIds, start, end), null, null, null, null);
+			try
+			{
+				while (c.moveToNext())
+				{
+					long taskId = c.getLong(0);
+					indexer.add(taskId, -1, SearchableTypes.TITLE, c.getString(1));
+					indexer.add(taskId, -1, SearchableTypes.DESCRIPTION, c.getString(2));
+					indexer.add(taskId, -1, SearchableTypes.LOCATION, c.getString(3));
+				}
+			}
+			finally
+			{
+				c.close();
+			}
+		}
+		indexer.finish();
+	}
+
+
+	/**
+	 * Moves the searchable entries of a task to the partition of its new state.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The row id of the task.
+	 * @param closed
+	 *            <code>true</code> if the task has been closed, <code>false</code> if it has been reopened.
+	 */
+	public static void updateTaskFTSState(SQLiteDatabase db, long taskId, boolean closed)
+	{
+		db.execSQL(SQL_UPDATE_SEARCH_CONTENT_CLOSED, new Object[] { closed ? 1 : 0, taskId });
+	}
+
+
 	/**
 	 * Updates or creates the searchable entries for a property. Passing <code>null</code> as searchable text will remove the entry.
 	 * 
@@ -310,75 +790,287 @@ public class FTSDatabaseHelper
 	 *            the row id of the task this property belongs to.
 	 * @param propertyId
 	 *            the id of the property
+	 * @param type
+	 *            the {@link SearchableTypes} type of the property
 	 * @param searchableText
 	 *            the searchable text value of the property
 	 */
-	public static void updatePropertyFTSEntry(SQLiteDatabase db, long taskId, long propertyId, String searchableText)
+	public static void updatePropertyFTSEntry(SQLiteDatabase db, long taskId, long propertyId, int type, String searchableText)
 	{
-		updateEntry(db, taskId, propertyId, SearchableTypes.PROPERTY, searchableText);
+		updateEntry(db, taskId, propertyId, type, searchableText);
 	}
 
 
 	/**
-	 * Inserts NGrams into the NGram database.
+	 * Updates or creates the searchable entries of several properties of a task. The current N-grams of all the properties are loaded at once.
 	 * 
 	 * @param db
-	 *            A writable {@link SQLiteDatabase}.
-	 * @param ngrams
-	 *            The set of NGrams.
-	 * @return The ids of the ngrams in the given set.
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            the row id of the task the properties belong to.
+	 * @param propertyIds
+	 *            the ids of the properties
+	 * @param types
+	 *            the {@link SearchableTypes} types of the properties
+	 * @param searchableTexts
+	 *            the searchable text values of the properties, <code>null</code> elements remove the respective entries
 	 */
-	private static Set<Long> insertNGrams(SQLiteDatabase db, Set<String> ngrams)
+	public static void updatePropertyFTSEntries(SQLiteDatabase db, long taskId, long[] propertyIds, int[] types, String[] searchableTexts)
 	{
-		Set<Long> nGramIds = new HashSet<Long>(ngrams.size());
-		ContentValues values = new ContentValues(1);
-		for (String ngram : ngrams)
+		if (propertyIds.length == 1)
 		{
-			values.put(NGramColumns.TEXT, ngram);
-			long nGramId = db.insertWithOnConflict(FTS_NGRAM_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
-			if (nGramId == -1)
-			{
-				// the docs say insertWithOnConflict returns the existing row id when CONFLICT_IGNORE is specified an the values conflict with an existing
-				// column, however, that doesn't seem to work reliably, so we when for an error condition and get the row id ourselves
-				Cursor c = db
-					.query(FTS_NGRAM_TABLE, new String[] { NGramColumns.NGRAM_ID }, NGramColumns.TEXT + "=?", new String[] { ngram }, null, null, null);
-				try
-				{
-					if (c.moveToFirst())
-					{
-						nGramId = c.getLong(0);
-					}
-				}
-				finally
-				{
-					c.close();
-				}
-
-			}
-			nGramIds.add(nGramId);
+			updatePropertyFTSEntry(db, taskId, propertyIds[0], types[0], searchableTexts[0]);
+			return;
 		}
-		return nGramIds;
 
+		Map<Long, LongSet> currentNgrams = queryPropertyNGramRelations(db, taskId);
+		LongSet ngrams = NGRAM_SINK.get();
+		for (int i = 0; i < propertyIds.length; ++i)
+		{
+			ngrams.clear();
+			tokenize(searchableTexts[i], ngrams);
+			LongSet current = currentNgrams.get(propertyIds[i]);
+			updateEntry(db, taskId, propertyIds[i], types[i], ngrams, current == null ? new long[0] : current.toArray());
+		}
 	}
 
 
-	private static void updateEntry(SQLiteDatabase db, long taskId, long propertyId, int type, String searchableText)
-	{
-		// delete existing NGram relations
-		deleteNGramRelations(db, taskId, propertyId, type);
+	/**
+	 * Inserts NGrams into the NGram database, unless they already exist.
+	 * 
+	 * @param db
+	 *            A writable {@link SQLiteDatabase}.
+	 * @param ngrams
+	 *            The set of packed NGrams.
+	 */
+	private static void insertNGrams(SQLiteDatabase db, LongSet ngrams)
+	{
+		final NGramCache cache = NGRAM_CACHE;
+		SQLiteStatement statement = null;
+		try
+		{
+			for (long ngram : ngrams.toArray())
+			{
+				if (cache.contains(ngram))
+				{
+					// we know this one is already in the database
+					continue;
+				}
+
+				if (statement == null)
+				{
+					statement = db.compileStatement(SQL_INSERT_NGRAM);
+				}
+				statement.bindLong(1, ngram);
+				statement.bindString(2, NGramGenerator.unpack(ngram));
+				statement.executeInsert();
+				cache.add(ngram);
+			}
+		}
+		finally
+		{
+			if (statement != null)
+			{
+				statement.close();
+			}
+		}
+	}
+
 
+	/**
+	 * Updates the NGram relations of an entry. Only relations of NGrams that have been added to or removed from the entry are touched, so small changes of
+	 * a long text result in a few writes only.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The task row id.
+	 * @param propertyId
+	 *            The property row id, ignored if <code>type</code> is not the type of a property.
+	 * @param type
+	 *            The {@link SearchableTypes} type.
+	 * @param searchableText
+	 *            The new text of the entry, may be <code>null</code> to remove the entry.
+	 */
+	private static void updateEntry(SQLiteDatabase db, long taskId, long propertyId, int type, String searchableText)
+	{
+		LongSet ngrams = NGRAM_SINK.get();
+		ngrams.clear();
+		tokenize(searchableText, ngrams);
+		updateEntry(db, taskId, propertyId, type, ngrams);
+	}
+
+
+	/**
+	 * Adds the packed N-grams of the given text to the given {@link LongSet}. This doesn't touch any shared state, so it can be called from any thread.
+	 * 
+	 * @param searchableText
+	 *            The text, may be <code>null</code>.
+	 * @param ngrams
+	 *            The {@link LongSet} to add the N-grams to.
+	 */
+	public static void tokenize(String searchableText, LongSet ngrams)
+	{
 		if (searchableText != null && searchableText.length() > 0)
 		{
-			// generate nGrams
-			Set<String> propertyNgrams = TRIGRAM_GENERATOR.getNgrams(searchableText);
+			TRIGRAM_GENERATOR.getPackedNgrams(ngrams, searchableText);
+			TETRAGRAM_GENERATOR.getPackedNgrams(ngrams, searchableText);
+		}
+	}
 
-			TETRAGRAM_GENERATOR.getNgrams(propertyNgrams, searchableText);
 
-			// insert ngrams
-			Set<Long> propertyNgramIds = insertNGrams(db, propertyNgrams);
+	/**
+	 * Returns the ranges of the given text that match any of the given N-grams, i.e. the characters that belong to an N-gram of the text that is contained in
+	 * <code>ngrams</code>. The text is tokenized like an indexed text, so the ranges show why the text matches a query.
+	 * 
+	 * @param text
+	 *            The text, may be <code>null</code>.
+	 * @param ngrams
+	 *            The packed N-grams of a query, see {@link #tokenize(String, LongSet)}.
+	 * @return A comma separated list of ranges in the form <code>start-end</code>, with <code>end</code> being exclusive, or <code>null</code> if nothing
+	 *         matches.
+	 */
+	public static String matchRanges(String text, LongSet ngrams)
+	{
+		if (text == null || text.length() == 0 || ngrams.isEmpty())
+		{
+			return null;
+		}
 
-			// insert ngram relations
-			insertNGramRelations(db, propertyNgramIds, taskId, propertyId, type);
+		final int length = text.length();
+		boolean[] matches = new boolean[length];
+		TRIGRAM_GENERATOR.markMatches(text, ngrams, matches);
+		TETRAGRAM_GENERATOR.markMatches(text, ngrams, matches);
+
+		StringBuilder result = null;
+		int i = 0;
+		while (i < length)
+		{
+			if (!matches[i])
+			{
+				++i;
+				continue;
+			}
+			int start = i;
+			while (i < length && matches[i])
+			{
+				++i;
+			}
+			if (result == null)
+			{
+				result = new StringBuilder(32);
+			}
+			else
+			{
+				result.append(',');
+			}
+			result.append(start).append('-').append(i);
+		}
+		return result == null ? null : result.toString();
+	}
+
+
+	/**
+	 * Updates the NGram relations of an entry to the given N-grams, see {@link #updateEntry(SQLiteDatabase, long, long, int, String)}.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The task row id.
+	 * @param propertyId
+	 *            The property row id, ignored if <code>type</code> is not the type of a property.
+	 * @param type
+	 *            The {@link SearchableTypes} type.
+	 * @param ngrams
+	 *            The packed N-grams of the new text of the entry, an empty set removes the entry. Note that this set is modified.
+	 */
+	static void updateEntry(SQLiteDatabase db, long taskId, long propertyId, int type, LongSet ngrams)
+	{
+		// load the current NGrams
+		updateEntry(db, taskId, propertyId, type, ngrams, queryNGramRelations(db, taskId, propertyId, type));
+	}
+
+
+	/**
+	 * Inserts the NGram relations of an entry that has no relations yet, e.g. because the index has just been cleared. Unlike
+	 * {@link #updateEntry(SQLiteDatabase, long, long, int, LongSet)} this doesn't query the current relations of the entry.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The task row id.
+	 * @param propertyId
+	 *            The property row id, ignored if <code>type</code> is not the type of a property.
+	 * @param type
+	 *            The {@link SearchableTypes} type.
+	 * @param ngrams
+	 *            The packed N-grams of the text of the entry.
+	 */
+	static void insertEntry(SQLiteDatabase db, long taskId, long propertyId, int type, LongSet ngrams)
+	{
+		if (!ngrams.isEmpty())
+		{
+			insertNGrams(db, ngrams);
+			insertNGramRelations(db, ngrams, taskId, propertyId, type);
+		}
+	}
+
+
+	/**
+	 * Updates the NGram relations of an entry with the given current N-grams to the given N-grams.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The task row id.
+	 * @param propertyId
+	 *            The property row id, ignored if <code>type</code> is not the type of a property.
+	 * @param type
+	 *            The {@link SearchableTypes} type.
+	 * @param ngrams
+	 *            The packed N-grams of the new text of the entry, an empty set removes the entry. Note that this set is modified.
+	 * @param currentNgrams
+	 *            The packed N-grams that are currently stored for the entry. Note that this array is modified.
+	 */
+	private static void updateEntry(SQLiteDatabase db, long taskId, long propertyId, int type, LongSet ngrams, long[] currentNgrams)
+	{
+		if (ngrams.isEmpty())
+		{
+			if (currentNgrams.length > 0)
+			{
+				// the entry has been removed
+				deleteNGramRelations(db, taskId, propertyId, type);
+			}
+			return;
+		}
+
+		// remove all existing NGrams from the new set and collect the ones that no longer exist at the beginning of currentNgrams
+		int removedCount = 0;
+		for (long ngram : currentNgrams)
+		{
+			if (!ngrams.remove(ngram))
+			{
+				currentNgrams[removedCount++] = ngram;
+			}
+		}
+
+		if (removedCount == currentNgrams.length && removedCount > 0)
+		{
+			// nothing left, remove all of them in one go
+			deleteNGramRelations(db, taskId, propertyId, type);
+		}
+		else if (removedCount > 0)
+		{
+			deleteNGramRelations(db, taskId, propertyId, type, currentNgrams, removedCount);
+		}
+
+		if (!ngrams.isEmpty())
+		{
+			// insert the new ngrams
+			insertNGrams(db, ngrams);
+
+			// insert ngram relations, the packed ngrams are the ngram ids
+			insertNGramRelations(db, ngrams, taskId, propertyId, type);
 		}
 	}
 
@@ -389,7 +1081,7 @@ public class FTSDatabaseHelper
 	 * @param db
 	 *            A writable {@link SQLiteDatabase}.
 	 * @param ngramIds
-	 *            The set of NGram ids.
+	 *            The set of NGram ids (which are the packed NGrams).
 	 * @param taskId
 	 *            The row id of the task.
 	 * @param propertyId
@@ -397,25 +1089,102 @@ public class FTSDatabaseHelper
 	 * @param The
 	 *            entry type of the relation (title, description, property).
 	 */
-	private static void insertNGramRelations(SQLiteDatabase db, Set<Long> ngramIds, long taskId, Long propertyId, int contentType)
+	private static void insertNGramRelations(SQLiteDatabase db, LongSet ngramIds, long taskId, long propertyId, int contentType)
 	{
-		ContentValues values = new ContentValues(4);
-		for (Long ngramId : ngramIds)
+		SQLiteStatement statement = db.compileStatement(SQL_INSERT_NGRAM_RELATION);
+		try
 		{
-			values.put(FTSContentColumns.TASK_ID, taskId);
-			values.put(FTSContentColumns.NGRAM_ID, ngramId);
-			values.put(FTSContentColumns.TYPE, contentType);
-			if (contentType == SearchableTypes.PROPERTY)
+			statement.bindLong(1, taskId);
+			if (isPropertyType(contentType))
 			{
-				values.put(FTSContentColumns.PROPERTY_ID, propertyId);
+				statement.bindLong(3, propertyId);
 			}
 			else
 			{
-				values.putNull(FTSContentColumns.PROPERTY_ID);
+				statement.bindNull(3);
+			}
+			statement.bindLong(4, contentType);
+
+			for (long ngramId : ngramIds.toArray())
+			{
+				statement.bindLong(2, ngramId);
+				statement.executeInsert();
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+
+	/**
+	 * Returns the ids of the NGrams of an entry.
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The task row id.
+	 * @param propertyId
+	 *            The property row id, ignored if <code>contentType</code> is not the type of a property.
+	 * @param contentType
+	 *            The {@link SearchableTypes} type.
+	 * @return An array of NGram ids.
+	 */
+	private static long[] queryNGramRelations(SQLiteDatabase db, long taskId, long propertyId, int contentType)
+	{
+		Cursor c = db.query(FTS_CONTENT_TABLE, new String[] { FTSContentColumns.NGRAM_ID }, relationSelection(taskId, propertyId, contentType).toString(),
+			null, null, null, null);
+		try
+		{
+			long[] result = new long[c.getCount()];
+			int i = 0;
+			while (c.moveToNext())
+			{
+				result[i++] = c.getLong(0);
 			}
-			db.insertWithOnConflict(FTS_CONTENT_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+			return result;
 		}
+		finally
+		{
+			c.close();
+		}
+	}
 
+
+	/**
+	 * Returns the NGram ids of all property entries of a task by property id.
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The task row id.
+	 * @return A {@link Map} of property ids to the {@link LongSet}s of their NGram ids.
+	 */
+	private static Map<Long, LongSet> queryPropertyNGramRelations(SQLiteDatabase db, long taskId)
+	{
+		Map<Long, LongSet> result = new HashMap<Long, LongSet>();
+		Cursor c = db.query(FTS_CONTENT_TABLE, new String[] { FTSContentColumns.PROPERTY_ID, FTSContentColumns.NGRAM_ID }, FTSContentColumns.TYPE + " >= "
+			+ SearchableTypes.CATEGORY + " AND " + FTSContentColumns.TASK_ID + " = " + taskId, null, null, null, null);
+		try
+		{
+			while (c.moveToNext())
+			{
+				long propertyId = c.getLong(0);
+				LongSet ngrams = result.get(propertyId);
+				if (ngrams == null)
+				{
+					ngrams = new LongSet(64);
+					result.put(propertyId, ngrams);
+				}
+				ngrams.add(c.getLong(1));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		return result;
 	}
 
 
@@ -427,30 +1196,158 @@ public class FTSDatabaseHelper
 	 * @param taskId
 	 *            The task row id.
 	 * @param propertyId
-	 *            The property row id, ignored if <code>contentType</code> is not {@link SearchableTypes#PROPERTY}.
+	 *            The property row id, ignored if <code>contentType</code> is not the type of a property.
 	 * @param contentType
 	 *            The {@link SearchableTypes} type.
 	 * @return The number of deleted relations.
 	 */
 	private static int deleteNGramRelations(SQLiteDatabase db, long taskId, long propertyId, int contentType)
 	{
-		StringBuilder whereClause = new StringBuilder(FTSContentColumns.TASK_ID).append(" = ").append(taskId);
+		return db.delete(FTS_CONTENT_TABLE, relationSelection(taskId, propertyId, contentType).toString(), null);
+	}
+
+
+	/**
+	 * Deletes specific NGram relations of a task.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The task row id.
+	 * @param propertyId
+	 *            The property row id, ignored if <code>contentType</code> is not the type of a property.
+	 * @param contentType
+	 *            The {@link SearchableTypes} type.
+	 * @param ngramIds
+	 *            An array containing the ids of the NGrams to remove.
+	 * @param count
+	 *            The number of ids to take from the beginning of <code>ngramIds</code>.
+	 * @return The number of deleted relations.
+	 */
+	private static int deleteNGramRelations(SQLiteDatabase db, long taskId, long propertyId, int contentType, long[] ngramIds, int count)
+	{
+		int result = 0;
+		for (int start = 0; start < count; start += TaskDatabaseHelper.MAX_INLINE_IDS)
+		{
+			int end = Math.min(count, start + TaskDatabaseHelper.MAX_INLINE_IDS);
+			StringBuilder whereClause = relationSelection(taskId, propertyId, contentType);
+			whereClause.append(" AND ").append(TaskDatabaseHelper.createIdSelection(FTSContentColumns.NGRAM_ID, ngramIds, start, end));
+			result += db.delete(FTS_CONTENT_TABLE, whereClause.toString(), null);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns a selection that matches all NGram relations of an entry.
+	 */
+	private static StringBuilder relationSelection(long taskId, long propertyId, int contentType)
+	{
+		StringBuilder whereClause = new StringBuilder(256).append(FTSContentColumns.TASK_ID).append(" = ").append(taskId);
 		whereClause.append(" AND ").append(FTSContentColumns.TYPE).append(" = ").append(contentType);
-		if (contentType == SearchableTypes.PROPERTY)
+		if (isPropertyType(contentType))
 		{
 			whereClause.append(" AND ").append(FTSContentColumns.PROPERTY_ID).append(" = ").append(propertyId);
 		}
-		return db.delete(FTS_CONTENT_TABLE, whereClause.toString(), null);
+		return whereClause;
+	}
+
+
+	/**
+	 * Returns the N-grams to search for. If there are more than {@link #MAX_QUERY_NGRAMS} N-grams this returns a sample that prefers word beginnings (the
+	 * N-grams with a leading space) and that is spread evenly over the remaining N-grams. The sample is sorted, so the same query always results in the same
+	 * sample.
+	 * 
+	 * @param ngrams
+	 *            The packed N-grams of the query.
+	 * @return An array of at most {@link #MAX_QUERY_NGRAMS} packed N-grams.
+	 */
+	public static long[] selectQueryNgrams(LongSet ngrams)
+	{
+		long[] all = ngrams.toArray();
+		if (all.length <= MAX_QUERY_NGRAMS)
+		{
+			return all;
+		}
+
+		// move the word beginnings to the front
+		int wordStarts = 0;
+		for (int i = 0; i < all.length; ++i)
+		{
+			if ((all[i] >>> 48) == ' ')
+			{
+				long temp = all[wordStarts];
+				all[wordStarts++] = all[i];
+				all[i] = temp;
+			}
+		}
+		Arrays.sort(all, 0, wordStarts);
+		Arrays.sort(all, wordStarts, all.length);
+
+		long[] result = new long[MAX_QUERY_NGRAMS];
+		int fromWordStarts = Math.min(wordStarts, MAX_QUERY_NGRAMS);
+		sample(all, 0, wordStarts, result, 0, fromWordStarts);
+		sample(all, wordStarts, all.length, result, fromWordStarts, MAX_QUERY_NGRAMS - fromWordStarts);
+		return result;
+	}
+
+
+	/**
+	 * Returns the range of packed N-grams that a search for a single character has to look at. For most scripts these are the word beginnings, i.e. the
+	 * N-grams that start with a space and the character. CJK text has no word beginnings, so for CJK characters these are all the N-grams that start with the
+	 * character. An empty query selects all word beginnings.
+	 * 
+	 * @param searchString
+	 *            A query of at most one character, may be <code>null</code>.
+	 * @return An array of the first and the last packed N-gram of the range.
+	 */
+	public static long[] prefixRange(String searchString)
+	{
+		if (searchString == null || searchString.length() == 0)
+		{
+			long start = (long) ' ' << 48;
+			return new long[] { start, start | 0xffffffffffffL };
+		}
+
+		char c = Character.toLowerCase(searchString.charAt(0));
+		if (NGramGenerator.isCjk(c))
+		{
+			// "c\0\0\0" to "c￿￿￿", the packed value is negative if the character is >= 0x8000, but the range is still in order
+			long start = (long) c << 48;
+			return new long[] { start, start | 0xffffffffffffL };
+		}
+
+		// " c\0\0" to " c￿￿"
+		long start = ((long) ' ' << 48) | ((long) c << 32);
+		return new long[] { start, start | 0xffffffffL };
 	}
 
 
 	/**
-	 * Queries the task database to get a cursor with the search results.
+	 * Copies <code>count</code> values that are evenly spread over the range <code>from</code> to <code>to</code> of <code>source</code> to
+	 * <code>dest</code>.
+	 */
+	private static void sample(long[] source, int from, int to, long[] dest, int destPos, int count)
+	{
+		final int len = to - from;
+		for (int i = 0; i < count; ++i)
+		{
+			dest[destPos + i] = source[from + (int) ((long) i * len / count)];
+		}
+	}
+
+
+	/**
+	 * Queries the task database to get a cursor with the search results. The ids and scores of the matching tasks are cached until the next write, so
+	 * repeating a search only loads the instances of the result. Results with more than {@link SearchResultCache#MAX_RESULT_SIZE} tasks and results that are
+	 * restricted to the candidates of a session are not cached.
 	 * 
 	 * @param db
 	 *            The {@link SQLiteDatabase}.
 	 * @param searchString
 	 *            The search query string.
+	 * @param types
+	 *            The {@link SearchableTypes} to search as a bit mask, see {@link ScopedQuery#types()}.
 	 * @param projection
 	 *            The database projection for the query.
 	 * @param selection
@@ -459,102 +1356,352 @@ public class FTSDatabaseHelper
 	 *            The arguments for the query.
 	 * @param sortOrder
 	 *            The sorting order of the query.
+	 * @param minScore
+	 *            The minimum score of the results.
+	 * @param limit
+	 *            The maximum number of results or a value <code>&lt;= 0</code> to return all results.
+	 * @param session
+	 *            The {@link SearchSession} of the caller or <code>null</code>.
 	 * @return A cursor of the task database with the search result.
 	 */
-	public static Cursor getTaskSearchCursor(SQLiteDatabase db, String searchString, String[] projection, String selection, String[] selectionArgs,
-		String sortOrder)
+	public static Cursor getTaskSearchCursor(SQLiteDatabase db, String searchString, int types, String[] projection, String selection,
+		String[] selectionArgs, String sortOrder, float minScore, int limit, SearchSession session)
 	{
-
-		StringBuilder selectionBuilder = new StringBuilder(1024);
-
-		if (!TextUtils.isEmpty(selection))
-		{
-			selectionBuilder.append(" (");
-			selectionBuilder.append(selection);
-			selectionBuilder.append(") AND (");
-		}
-		else
+		String cacheKey = SearchResultCache.key(searchString, types, minScore, selection, selectionArgs);
+		// get the generation first, a write during the search must not leave an outdated result in the cache
+		long cacheGeneration = SearchResultCache.generation();
+		SearchResult result = RESULT_CACHE.get(cacheKey);
+		if (result != null)
 		{
-			selectionBuilder.append(" (");
+			return result.query(db, projection, selection, selectionArgs, sortOrder, limit);
 		}
 
-		Set<String> ngrams = TRIGRAM_GENERATOR.getNgrams(searchString);
-		TETRAGRAM_GENERATOR.getNgrams(ngrams, searchString);
+		// the query must be tokenized like the indexed texts
+		LongSet ngrams = new LongSet(128);
+		tokenize(searchString, ngrams);
+
+		String totalWeight;
+		String ngramWeight;
+		StringBuilder ngramSelection = new StringBuilder(4096);
 
-		String[] queryArgs;
+		// the N-grams that are actually searched for and their weights
+		long[] usedNgrams = null;
+		float[] usedWeights = null;
+		int used = 0;
 
 		if (searchString != null && searchString.length() > 1)
 		{
-
-			selectionBuilder.append(NGramColumns.TEXT);
-			selectionBuilder.append(" in (");
-
-			for (int i = 0, count = ngrams.size(); i < count; ++i)
+			long[] queryNgrams = selectQueryNgrams(ngrams);
+			Arrays.sort(queryNgrams);
+			double[] weights = queryNGramWeights(db, queryNgrams);
+			usedNgrams = new long[queryNgrams.length];
+			usedWeights = new float[queryNgrams.length];
+
+			// the ngram ids are just numbers, so we can put them into the statement and don't hit the limit of bind arguments
+			ngramSelection.append(FTSContentColumns.NGRAM_ID);
+			ngramSelection.append(" in (");
+
+			// the weight of each N-gram
+			StringBuilder weightBuilder = new StringBuilder(queryNgrams.length * 40 + 64);
+			weightBuilder.append("CASE ").append(FTSContentColumns.NGRAM_ID);
+
+			double weightSum = 0;
+			for (int i = 0; i < queryNgrams.length; ++i)
 			{
-				if (i > 0)
+				float weight = (float) weights[i];
+				if (weight <= 0)
 				{
-					selectionBuilder.append(",");
+					// pruned
+					continue;
 				}
-				selectionBuilder.append("?");
+				weightSum += weight;
 
+				if (used > 0)
+				{
+					ngramSelection.append(",");
+				}
+				ngramSelection.append(queryNgrams[i]);
+				weightBuilder.append(" WHEN ").append(queryNgrams[i]).append(" THEN ").append(weight);
+				usedNgrams[used] = queryNgrams[i];
+				usedWeights[used] = weight;
+				++used;
 			}
+			weightBuilder.append(" ELSE 0 END");
+			ngramSelection.append(")");
 
-			// selection arguments
-			if (selectionArgs != null && selectionArgs.length > 0)
+			ngramWeight = used == 0 ? "0" : weightBuilder.toString();
+			totalWeight = used == 0 ? "1" : String.valueOf(weightSum);
+		}
+		else
+		{
+			long[] range = prefixRange(searchString);
+			// format the numbers in a fixed locale, the default locale might not use ASCII digits
+			ngramSelection.append(String.format(Locale.US, SQL_RAW_QUERY_SEARCH_NGRAM_RANGE, range[0], range[1]));
+			ngramWeight = "1";
+			totalWeight = String.valueOf(Math.max(1, ngrams.size()));
+		}
+
+		if (types != ScopedQuery.ALL_TYPES)
+		{
+			// only look at the entries of the given fields, the type is the first column of an index
+			ngramSelection.append(" AND ").append(ScopedQuery.typeSelection(FTSContentColumns.TYPE, types));
+		}
+
+		// apply the filters on lists, accounts and status before scoring, the remaining selection is applied to the instances of the results
+		TaskFilter filter = TaskFilter.split(selection, selectionArgs);
+
+		if (filter.openOnly())
+		{
+			// only read the partition of open tasks
+			ngramSelection.append(" AND ").append(FTSContentColumns.CLOSED).append(" = 0");
+		}
+
+		// the candidates of a session depend on the searched fields and the selection, they are only reused for searches with the same ones
+		String sessionScope = null;
+		long sessionGeneration = 0;
+		// a result that is restricted to the candidates of a session is not cached, it relies on the state of the session
+		boolean restricted = false;
+		if (session != null && used > 0 && searchString.length() >= SearchSession.MIN_QUERY_LENGTH)
+		{
+			usedNgrams = truncate(usedNgrams, used);
+			usedWeights = truncate(usedWeights, used);
+			sessionScope = SearchResultCache.key(null, types, 0, selection, selectionArgs);
+			sessionGeneration = session.generation();
+			long[] candidates = session.candidates(sessionScope, usedNgrams, usedWeights, minScore);
+			if (candidates != null)
 			{
-				queryArgs = new String[selectionArgs.length + ngrams.size() + 1];
-				queryArgs[0] = String.valueOf(ngrams.size());
-				System.arraycopy(selectionArgs, 0, queryArgs, 1, selectionArgs.length);
-				String[] ngramArray = ngrams.toArray(new String[ngrams.size()]);
-				System.arraycopy(ngramArray, 0, queryArgs, selectionArgs.length + 1, ngramArray.length);
+				// no task outside of the candidates can reach the minimum score, so we only need to score the candidates
+				ngramSelection.append(" AND ").append(TaskDatabaseHelper.createIdSelection(FTSContentColumns.TASK_ID, candidates, 0, candidates.length));
+				restricted = true;
 			}
-			else
-			{
-				String[] temp = ngrams.toArray(new String[ngrams.size()]);
+		}
+
+		StringBuilder taskSelection = new StringBuilder(256);
+		if (filter.taskSelection() != null)
+		{
+			taskSelection.append(filter.taskSelection());
+			taskSelection.append(" AND ");
+		}
+		taskSelection.append(Tasks._DELETED);
+		taskSelection.append(" = 0");
+
+		String instanceSelection = filter.selection() == null ? "" : String.format(SQL_RAW_QUERY_SEARCH_INSTANCE_SELECTION, filter.selection());
 
-				queryArgs = new String[temp.length + 1];
-				queryArgs[0] = String.valueOf(ngrams.size());
-				System.arraycopy(temp, 0, queryArgs, 1, temp.length);
+		// the task selection comes first in the statement, so do its arguments
+		String[] queryArgs = concat(filter.taskSelectionArgs(), filter.selectionArgs());
+
+		long[] taskIds;
+		float[] scores;
+		int count;
+		if (sessionScope != null && !restricted)
+		{
+			// score all tasks that match any of the N-grams, they are the candidates of the next query of the session
+			taskIds = new long[SearchSession.MAX_CANDIDATES + 1];
+			scores = new float[SearchSession.MAX_CANDIDATES + 1];
+			int all = queryScores(db, String.format(SQL_RAW_QUERY_SEARCH_TASK_SCORES, totalWeight, ngramWeight, ngramSelection, taskSelection,
+				instanceSelection, 0), queryArgs, taskIds, scores);
+			session.update(sessionScope, usedNgrams, all > SearchSession.MAX_CANDIDATES ? null : truncate(taskIds, all), sessionGeneration);
+
+			// the tasks are sorted by score, so the result is complete if we've seen a task below the minimum score or all tasks
+			count = countAbove(scores, all, minScore);
+			if (count == all && all > SearchSession.MAX_CANDIDATES)
+			{
+				count = Integer.MAX_VALUE;
 			}
-			selectionBuilder.append(" ) ");
 		}
 		else
 		{
-			selectionBuilder.append(NGramColumns.TEXT);
-			selectionBuilder.append(" like ?");
+			taskIds = new long[SearchResultCache.MAX_RESULT_SIZE + 1];
+			scores = new float[SearchResultCache.MAX_RESULT_SIZE + 1];
+			count = queryScores(db, String.format(SQL_RAW_QUERY_SEARCH_TASK_SCORES, totalWeight, ngramWeight, ngramSelection, taskSelection,
+				instanceSelection, minScore), queryArgs, taskIds, scores);
+		}
 
-			// selection arguments
-			if (selectionArgs != null && selectionArgs.length > 0)
+		if (count <= SearchResultCache.MAX_RESULT_SIZE)
+		{
+			result = new SearchResult(truncate(taskIds, count), truncate(scores, count));
+			if (!restricted)
 			{
-				queryArgs = new String[selectionArgs.length + 2];
-				queryArgs[0] = String.valueOf(ngrams.size());
-				System.arraycopy(selectionArgs, 0, queryArgs, 1, selectionArgs.length);
-				queryArgs[queryArgs.length - 1] = " " + searchString + "%";
+				RESULT_CACHE.put(cacheKey, result, cacheGeneration);
 			}
-			else
+			return result.query(db, projection, selection, selectionArgs, sortOrder, limit);
+		}
+
+		// too many tasks to load them by id, join the scores instead, the selection of the instances is applied to the join
+		return SearchResult.query(db,
+			String.format(SQL_RAW_QUERY_SEARCH_TASK_SCORES, totalWeight, ngramWeight, ngramSelection, taskSelection, "", minScore),
+			filter.taskSelectionArgs(), projection, selection, selectionArgs, sortOrder, limit);
+	}
+
+
+	/**
+	 * Runs the given score query and reads the best scoring tasks into the given arrays, best first, until the arrays are full.
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param scoreQuery
+	 *            A query that returns task ids and scores.
+	 * @param args
+	 *            The arguments of the query.
+	 * @param taskIds
+	 *            The array to take the task ids.
+	 * @param scores
+	 *            The array to take the scores, at least as long as <code>taskIds</code>.
+	 * @return The number of tasks that have been read. If this equals the length of <code>taskIds</code> there may be more tasks.
+	 */
+	private static int queryScores(SQLiteDatabase db, String scoreQuery, String[] args, long[] taskIds, float[] scores)
+	{
+		Cursor c = db.rawQuery(scoreQuery + " ORDER BY " + TaskContract.Tasks.SCORE + " DESC LIMIT " + taskIds.length, args);
+		try
+		{
+			int count = 0;
+			while (c.moveToNext())
 			{
-				queryArgs = new String[2];
-				queryArgs[0] = String.valueOf(ngrams.size());
-				queryArgs[1] = " " + searchString + "%";
+				taskIds[count] = c.getLong(0);
+				scores[count] = c.getFloat(1);
+				++count;
 			}
+			return count;
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Returns the number of scores at the beginning of the given array that are not below the given minimum score. The scores must be sorted in descending
+	 * order.
+	 */
+	private static int countAbove(float[] scores, int count, float minScore)
+	{
+		int result = 0;
+		while (result < count && scores[result] >= minScore)
+		{
+			++result;
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns an array that contains the first <code>length</code> elements of the given array. This replaces <code>Arrays.copyOf</code>, which is not
+	 * available before API level 9.
+	 */
+	private static long[] truncate(long[] array, int length)
+	{
+		long[] result = new long[length];
+		System.arraycopy(array, 0, result, 0, length);
+		return result;
+	}
 
+
+	/**
+	 * Returns an array that contains the first <code>length</code> elements of the given array.
+	 */
+	private static float[] truncate(float[] array, int length)
+	{
+		float[] result = new float[length];
+		System.arraycopy(array, 0, result, 0, length);
+		return result;
+	}
+
+
+	/**
+	 * Returns an array that contains the elements of both given arrays, either of which may be <code>null</code>.
+	 */
+	private static String[] concat(String[] first, String[] second)
+	{
+		if (first == null || first.length == 0)
+		{
+			return second;
 		}
+		if (second == null || second.length == 0)
+		{
+			return first;
+		}
+		String[] result = new String[first.length + second.length];
+		System.arraycopy(first, 0, result, 0, first.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
 
-		selectionBuilder.append(") AND ");
-		selectionBuilder.append(Tasks._DELETED);
-		selectionBuilder.append(" = 0");
 
-		if (sortOrder == null)
+	/**
+	 * Returns the weights of the given query N-grams. The weight of an N-gram is its inverse document frequency, so rare N-grams contribute more to the score
+	 * than common ones. If the query contains any N-grams that are contained in less than {@link #MAX_DOCUMENT_FREQUENCY_RATIO} of the tasks, all more common
+	 * N-grams get a weight of <code>0</code>, i.e. they are pruned from the search.
+	 * <p>
+	 * N-grams that are not in the index at all get the highest weight, because they lower the score of every task.
+	 * </p>
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param queryNgrams
+	 *            The sorted packed N-grams of the query.
+	 * @return An array with the weight of each N-gram.
+	 */
+	private static double[] queryNGramWeights(SQLiteDatabase db, long[] queryNgrams)
+	{
+		long[] documentFrequencies = new long[queryNgrams.length];
+		Cursor c = db.query(FTS_NGRAM_TABLE, new String[] { NGramColumns.NGRAM_ID, NGramColumns.DOCUMENT_FREQUENCY },
+			TaskDatabaseHelper.createIdSelection(NGramColumns.NGRAM_ID, queryNgrams, 0, queryNgrams.length), null, null, null, null);
+		try
+		{
+			while (c.moveToNext())
+			{
+				int index = Arrays.binarySearch(queryNgrams, c.getLong(0));
+				if (index >= 0)
+				{
+					documentFrequencies[index] = c.getLong(1);
+				}
+			}
+		}
+		finally
 		{
-			sortOrder = Tasks.SCORE + " desc";
+			c.close();
 		}
-		else
+
+		return ngramWeights(documentFrequencies, DatabaseUtils.queryNumEntries(db, Tables.TASKS));
+	}
+
+
+	/**
+	 * Returns the weights of N-grams with the given document frequencies, see {@link #queryNGramWeights(SQLiteDatabase, long[])}.
+	 * 
+	 * @param documentFrequencies
+	 *            The number of entries that contain each of the N-grams.
+	 * @param taskCount
+	 *            The number of tasks.
+	 * @return An array with the weight of each N-gram, <code>0</code> for pruned N-grams.
+	 */
+	public static double[] ngramWeights(long[] documentFrequencies, long taskCount)
+	{
+		long maxDocumentFrequency = (long) (taskCount * MAX_DOCUMENT_FREQUENCY_RATIO);
+
+		boolean prune = false;
+		for (long documentFrequency : documentFrequencies)
 		{
-			sortOrder = Tasks.SCORE + " desc, " + sortOrder;
+			if (documentFrequency > 0 && documentFrequency <= maxDocumentFrequency)
+			{
+				// there is at least one rare N-gram that actually matches something, so we can drop the common ones
+				prune = true;
+				break;
+			}
 		}
 
-		Cursor c = db.rawQueryWithFactory(null,
-			String.format(SQL_RAW_QUERY_SEARCH_TASK, SQL_RAW_QUERY_SEARCH_TASK_DEFAULT_PROJECTION, selectionBuilder.toString(), sortOrder), queryArgs, null);
-		return c;
+		double[] result = new double[documentFrequencies.length];
+		for (int i = 0; i < documentFrequencies.length; ++i)
+		{
+			long documentFrequency = documentFrequencies[i];
+			if (prune && documentFrequency > maxDocumentFrequency)
+			{
+				continue;
+			}
+			// the probabilistic IDF, N-grams may appear in multiple entries per task, so the document frequency can exceed the number of tasks
+			result[i] = Math.max(MIN_NGRAM_WEIGHT, Math.log((Math.max(0, taskCount - documentFrequency) + 0.5) / (documentFrequency + 0.5) + 1));
+		}
+		return result;
 	}
 }
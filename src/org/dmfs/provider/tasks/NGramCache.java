@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.Arrays;
+
+import org.dmfs.ngrams.LongSet;
+
+import android.database.sqlite.SQLiteTransactionListener;
+
+
+/**
+ * A bounded cache of the N-gram ids that are known to exist in {@link FTSDatabaseHelper#FTS_NGRAM_TABLE}. It allows to skip the insert statement for most
+ * N-grams once the N-gram table is warm.
+ * <p>
+ * The cache is 4-way set-associative, each set evicts its least recently used entry. Ids added during a transaction are kept in a separate set until the
+ * transaction is committed and they are dropped if the transaction is rolled back. To do that the cache needs to know about the transaction boundaries, see
+ * {@link #onBegin()}, {@link #onCommit()} and {@link #onRollback()}. Outside of such a transaction, and on any other thread than the one that started it, the
+ * cache doesn't return any hits and doesn't take any ids. That keeps ids of other databases (like a temporary one) out of the cache.
+ * </p>
+ * <p>
+ * Note that {@link SQLiteTransactionListener#onCommit()} is called right before the actual commit. In the unlikely case that the commit itself fails the cache
+ * may contain a few ids that are not in the database. This would only affect the N-gram texts in the search results, not the search results themselves.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class NGramCache
+{
+	/**
+	 * The number of entries per set.
+	 */
+	private final static int WAYS = 4;
+
+	/**
+	 * The value that marks an empty slot. Packed N-grams are never <code>0</code>.
+	 */
+	private final static long EMPTY = 0;
+
+	private final long[] mTable;
+	private final int mSetMask;
+
+	/**
+	 * The ids that have been added in the current transaction.
+	 */
+	private final LongSet mPending = new LongSet(512);
+
+	/**
+	 * The thread that runs the current transaction or <code>null</code> if there is no transaction.
+	 */
+	private Thread mTransactionThread;
+
+	private int mTransactionHits;
+	private int mTransactionMisses;
+	private long mHits;
+	private long mMisses;
+
+
+	/**
+	 * Creates a new cache that takes up to the given number of ids.
+	 *
+	 * @param capacity
+	 *            The capacity of the cache, will be rounded up to the next power of two.
+	 */
+	public NGramCache(int capacity)
+	{
+		int sets = Integer.highestOneBit(Math.max(1, capacity / WAYS - 1)) << 1;
+		mTable = new long[sets * WAYS];
+		mSetMask = sets - 1;
+	}
+
+
+	/**
+	 * Returns whether the given N-gram id is known to exist in the database. This also updates the hit and miss counters.
+	 *
+	 * @param ngramId
+	 *            The id of the N-gram.
+	 * @return <code>true</code> if the N-gram id is known to exist in the database (or to be inserted in the current transaction).
+	 */
+	public synchronized boolean contains(long ngramId)
+	{
+		if (mTransactionThread != Thread.currentThread())
+		{
+			return false;
+		}
+
+		if (mPending.contains(ngramId) || lookup(ngramId))
+		{
+			++mTransactionHits;
+			return true;
+		}
+		++mTransactionMisses;
+		return false;
+	}
+
+
+	/**
+	 * Adds an N-gram id that has been inserted (or that is known to exist) in the current transaction. The id doesn't become visible to other transactions
+	 * before the current transaction has been committed.
+	 *
+	 * @param ngramId
+	 *            The id of the N-gram.
+	 */
+	public synchronized void add(long ngramId)
+	{
+		if (mTransactionThread == Thread.currentThread())
+		{
+			mPending.add(ngramId);
+		}
+	}
+
+
+	/**
+	 * Removes all ids from the cache. Call this whenever N-grams are removed from the database.
+	 */
+	public synchronized void clear()
+	{
+		Arrays.fill(mTable, EMPTY);
+		mPending.clear();
+	}
+
+
+	/**
+	 * Returns the number of cache hits since the cache has been created.
+	 */
+	public synchronized long hits()
+	{
+		return mHits;
+	}
+
+
+	/**
+	 * Returns the number of cache misses since the cache has been created.
+	 */
+	public synchronized long misses()
+	{
+		return mMisses;
+	}
+
+
+	/**
+	 * Notifies the cache about the beginning of a transaction.
+	 */
+	public synchronized void onBegin()
+	{
+		mPending.clear();
+		mTransactionThread = Thread.currentThread();
+		mTransactionHits = 0;
+		mTransactionMisses = 0;
+	}
+
+
+	/**
+	 * Notifies the cache that the current transaction is about to be committed. All ids added in the transaction become visible.
+	 */
+	public synchronized void onCommit()
+	{
+		for (long ngramId : mPending.toArray())
+		{
+			if (!lookup(ngramId))
+			{
+				insert(ngramId);
+			}
+		}
+		endTransaction();
+	}
+
+
+	/**
+	 * Notifies the cache that the current transaction has been rolled back. All ids added in the transaction are dropped.
+	 */
+	public synchronized void onRollback()
+	{
+		endTransaction();
+	}
+
+
+	/**
+	 * Returns the number of cache hits in the current or last transaction.
+	 */
+	public synchronized int transactionHits()
+	{
+		return mTransactionHits;
+	}
+
+
+	/**
+	 * Returns the number of cache misses in the current or last transaction.
+	 */
+	public synchronized int transactionMisses()
+	{
+		return mTransactionMisses;
+	}
+
+
+	private void endTransaction()
+	{
+		mPending.clear();
+		mTransactionThread = null;
+		mHits += mTransactionHits;
+		mMisses += mTransactionMisses;
+	}
+
+
+	/**
+	 * Looks up the given id and moves it to the front of its set if it's found.
+	 */
+	private boolean lookup(long ngramId)
+	{
+		final long[] table = mTable;
+		final int base = (hash(ngramId) & mSetMask) * WAYS;
+		for (int i = base, end = base + WAYS; i < end; ++i)
+		{
+			long current = table[i];
+			if (current == ngramId)
+			{
+				System.arraycopy(table, base, table, base + 1, i - base);
+				table[base] = ngramId;
+				return true;
+			}
+			if (current == EMPTY)
+			{
+				return false;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Inserts the given id at the front of its set, evicting the least recently used id of the set if necessary.
+	 */
+	private void insert(long ngramId)
+	{
+		final long[] table = mTable;
+		final int base = (hash(ngramId) & mSetMask) * WAYS;
+		System.arraycopy(table, base, table, base + 1, WAYS - 1);
+		table[base] = ngramId;
+	}
+
+
+	private static int hash(long value)
+	{
+		// the finalizer of MurmurHash3
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return (int) value;
+	}
+}
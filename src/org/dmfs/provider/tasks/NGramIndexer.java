@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dmfs.ngrams.LongSet;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Process;
+
+
+/**
+ * Updates a large number of N-gram index entries at once. The texts are tokenized in batches on a pool of worker threads, one per CPU core. The results are
+ * written to the database on the thread that adds the entries, in the order they have been added, so the database is only accessed by a single writer.
+ * <p>
+ * Call {@link #add(long, long, int, String)} for each entry and {@link #finish()} at the end. Don't forget to call {@link #finish()}, otherwise the last
+ * entries are not written.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class NGramIndexer
+{
+	/**
+	 * The number of entries that are tokenized in one go.
+	 */
+	private final static int BATCH_SIZE = 64;
+
+	/**
+	 * The number of tokenizer threads.
+	 */
+	private final static int THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The maximum number of batches that have been tokenized (or are being tokenized) but have not been written yet. This limits the memory we need for the
+	 * results.
+	 */
+	private final static int MAX_PENDING_BATCHES = THREADS * 2;
+
+	/**
+	 * The executor of the tokenizer tasks, created on first use.
+	 */
+	private static ExecutorService sExecutor;
+
+	private final SQLiteDatabase mDb;
+	private final boolean mInsertOnly;
+	private final LinkedList<Batch> mPendingBatches = new LinkedList<Batch>();
+	private Batch mCurrentBatch;
+
+
+	/**
+	 * Creates an {@link NGramIndexer} that writes to the given database.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param insertOnly
+	 *            <code>true</code> if none of the entries exists in the index yet, e.g. because the index has just been cleared. In that case the entries are
+	 *            inserted without looking up their current N-grams.
+	 */
+	public NGramIndexer(SQLiteDatabase db, boolean insertOnly)
+	{
+		mDb = db;
+		mInsertOnly = insertOnly;
+	}
+
+
+	/**
+	 * Adds an entry to update. The entry may be written right away or at any later time, until {@link #finish()} returns.
+	 *
+	 * @param taskId
+	 *            The task row id.
+	 * @param propertyId
+	 *            The property row id, ignored if <code>type</code> is not the type of a property.
+	 * @param type
+	 *            The {@link FTSDatabaseHelper.SearchableTypes} type.
+	 * @param searchableText
+	 *            The new text of the entry, may be <code>null</code> to remove the entry.
+	 */
+	public void add(long taskId, long propertyId, int type, String searchableText)
+	{
+		if (mCurrentBatch == null)
+		{
+			mCurrentBatch = new Batch();
+		}
+
+		if (mCurrentBatch.add(taskId, propertyId, type, searchableText))
+		{
+			submitCurrentBatch();
+		}
+	}
+
+
+	/**
+	 * Writes all remaining entries.
+	 */
+	public void finish()
+	{
+		submitCurrentBatch();
+		while (!mPendingBatches.isEmpty())
+		{
+			writeNextBatch();
+		}
+	}
+
+
+	private void submitCurrentBatch()
+	{
+		Batch batch = mCurrentBatch;
+		if (batch == null)
+		{
+			return;
+		}
+		mCurrentBatch = null;
+
+		if (THREADS > 1)
+		{
+			batch.mResult = executor().submit(batch);
+		}
+		mPendingBatches.add(batch);
+
+		while (mPendingBatches.size() > MAX_PENDING_BATCHES)
+		{
+			writeNextBatch();
+		}
+	}
+
+
+	private void writeNextBatch()
+	{
+		Batch batch = mPendingBatches.removeFirst();
+		LongSet[] ngrams = batch.get();
+		for (int i = 0, count = batch.mCount; i < count; ++i)
+		{
+			if (mInsertOnly)
+			{
+				FTSDatabaseHelper.insertEntry(mDb, batch.mTaskIds[i], batch.mPropertyIds[i], batch.mTypes[i], ngrams[i]);
+			}
+			else
+			{
+				FTSDatabaseHelper.updateEntry(mDb, batch.mTaskIds[i], batch.mPropertyIds[i], batch.mTypes[i], ngrams[i]);
+			}
+		}
+	}
+
+
+	private static synchronized ExecutorService executor()
+	{
+		if (sExecutor == null)
+		{
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory()
+				{
+					private final AtomicInteger mCount = new AtomicInteger();
+
+
+					@Override
+					public Thread newThread(final Runnable runnable)
+					{
+						Thread thread = new Thread(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								runnable.run();
+							}
+						}, "NGramTokenizer-" + mCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+			{
+				// don't keep idle threads around, indexing large batches is rare
+				executor.allowCoreThreadTimeOut(true);
+			}
+			sExecutor = executor;
+		}
+		return sExecutor;
+	}
+
+	/**
+	 * A batch of entries to tokenize.
+	 */
+	private final static class Batch implements Callable<LongSet[]>
+	{
+		private final long[] mTaskIds = new long[BATCH_SIZE];
+		private final long[] mPropertyIds = new long[BATCH_SIZE];
+		private final int[] mTypes = new int[BATCH_SIZE];
+		private final String[] mTexts = new String[BATCH_SIZE];
+		private int mCount;
+
+		/**
+		 * The result of the tokenizer task or <code>null</code> if the batch is tokenized by the writer.
+		 */
+		private Future<LongSet[]> mResult;
+
+
+		/**
+		 * Adds an entry and returns whether the batch is full.
+		 */
+		public boolean add(long taskId, long propertyId, int type, String searchableText)
+		{
+			mTaskIds[mCount] = taskId;
+			mPropertyIds[mCount] = propertyId;
+			mTypes[mCount] = type;
+			mTexts[mCount] = searchableText;
+			return ++mCount == BATCH_SIZE;
+		}
+
+
+		@Override
+		public LongSet[] call()
+		{
+			LongSet[] result = new LongSet[mCount];
+			for (int i = 0; i < mCount; ++i)
+			{
+				result[i] = new LongSet(128);
+				FTSDatabaseHelper.tokenize(mTexts[i], result[i]);
+			}
+			return result;
+		}
+
+
+		/**
+		 * Returns the N-grams of the entries, waiting for the tokenizer task if necessary.
+		 */
+		public LongSet[] get()
+		{
+			if (mResult == null)
+			{
+				return call();
+			}
+
+			try
+			{
+				return mResult.get();
+			}
+			catch (InterruptedException e)
+			{
+				// keep the interrupt flag and do the work ourselves
+				Thread.currentThread().interrupt();
+				mResult.cancel(false);
+				return call();
+			}
+			catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+				{
+					throw (RuntimeException) cause;
+				}
+				throw new RuntimeException("Can't tokenize entries", cause);
+			}
+		}
+	}
+}
@@ -20,6 +20,7 @@ package org.dmfs.provider.tasks;
 import java.util.List;
 
 import org.dmfs.provider.tasks.model.EntityAdapter;
+import org.dmfs.provider.tasks.processors.BatchEntityProcessor;
 import org.dmfs.provider.tasks.processors.EntityProcessor;
 
 import android.database.sqlite.SQLiteDatabase;
@@ -50,6 +51,22 @@ public enum ProviderOperation
 		{
 			processor.afterInsert(db, entityAdapter, isSyncAdapter);
 		}
+
+
+		@Override
+		<T extends EntityAdapter<?>> void executeBeforeBatchProcessor(SQLiteDatabase db, BatchEntityProcessor<T> processor, List<T> entityAdapters,
+			boolean isSyncAdapter)
+		{
+			processor.beforeInsertBatch(db, entityAdapters, isSyncAdapter);
+		}
+
+
+		@Override
+		<T extends EntityAdapter<?>> void executeAfterBatchProcessor(SQLiteDatabase db, BatchEntityProcessor<T> processor, List<T> entityAdapters,
+			boolean isSyncAdapter)
+		{
+			processor.afterInsertBatch(db, entityAdapters, isSyncAdapter);
+		}
 	},
 
 	/**
@@ -68,6 +85,22 @@ public enum ProviderOperation
 		{
 			processor.afterUpdate(db, entityAdapter, isSyncAdapter);
 		}
+
+
+		@Override
+		<T extends EntityAdapter<?>> void executeBeforeBatchProcessor(SQLiteDatabase db, BatchEntityProcessor<T> processor, List<T> entityAdapters,
+			boolean isSyncAdapter)
+		{
+			processor.beforeUpdateBatch(db, entityAdapters, isSyncAdapter);
+		}
+
+
+		@Override
+		<T extends EntityAdapter<?>> void executeAfterBatchProcessor(SQLiteDatabase db, BatchEntityProcessor<T> processor, List<T> entityAdapters,
+			boolean isSyncAdapter)
+		{
+			processor.afterUpdateBatch(db, entityAdapters, isSyncAdapter);
+		}
 	},
 
 	/**
@@ -86,6 +119,29 @@ public enum ProviderOperation
 		{
 			processor.afterDelete(db, entityAdapter, isSyncAdapter);
 		}
+
+
+		@Override
+		<T extends EntityAdapter<?>> void executeBeforeBatchProcessor(SQLiteDatabase db, BatchEntityProcessor<T> processor, List<T> entityAdapters,
+			boolean isSyncAdapter)
+		{
+			// there are no batch methods for deletes
+			for (T entityAdapter : entityAdapters)
+			{
+				processor.beforeDelete(db, entityAdapter, isSyncAdapter);
+			}
+		}
+
+
+		@Override
+		<T extends EntityAdapter<?>> void executeAfterBatchProcessor(SQLiteDatabase db, BatchEntityProcessor<T> processor, List<T> entityAdapters,
+			boolean isSyncAdapter)
+		{
+			for (T entityAdapter : entityAdapters)
+			{
+				processor.afterDelete(db, entityAdapter, isSyncAdapter);
+			}
+		}
 	};
 
 	private final static String TAG = "OpenTasks.Operation";
@@ -97,6 +153,14 @@ public enum ProviderOperation
 	abstract <T extends EntityAdapter<?>> void executeAfterProcessor(SQLiteDatabase db, EntityProcessor<T> processor, T entityAdapter, boolean isSyncAdapter);
 
 
+	abstract <T extends EntityAdapter<?>> void executeBeforeBatchProcessor(SQLiteDatabase db, BatchEntityProcessor<T> processor, List<T> entityAdapters,
+		boolean isSyncAdapter);
+
+
+	abstract <T extends EntityAdapter<?>> void executeAfterBatchProcessor(SQLiteDatabase db, BatchEntityProcessor<T> processor, List<T> entityAdapters,
+		boolean isSyncAdapter);
+
+
 	/**
 	 * Executes this operation by running the respective methods of the given {@link EntityProcessor}s.
 	 * 
@@ -133,4 +197,107 @@ public enum ProviderOperation
 			log.log(this, entityAdapter.uri(authority));
 		}
 	}
+
+
+	/**
+	 * Executes this operation on a chunk of entities.
+	 * <p>
+	 * The before methods of the processors are called entity by entity in the order of the chain, like in
+	 * {@link #execute(SQLiteDatabase, List, EntityAdapter, boolean, ProviderOperationsLog, String)}, so each entity is written by the last processor before
+	 * the next entity is processed. Only the leading {@link BatchEntityProcessor}s of the chain, which run before anything has been written, are called once
+	 * with all the entities of the chunk.
+	 * </p>
+	 * <p>
+	 * Once all entities have been written, the after methods are called in the order of the chain. {@link BatchEntityProcessor}s are called once with all the
+	 * entities, consecutive processors that don't support batches are called entity by entity to keep their relative order for each entity.
+	 * </p>
+	 * 
+	 * @param db
+	 *            An {@link SQLiteDatabase}.
+	 * @param processors
+	 *            The {@link EntityProcessor} chain.
+	 * @param entityAdapters
+	 *            The {@link EntityAdapter}s to operate on.
+	 * @param isSyncAdapter
+	 *            <code>true</code> if this operation is triggered by a sync adapter, false otherwise.
+	 * @param log
+	 *            An {@link ProviderOperationsLog} to log this operation.
+	 * @param authority
+	 *            The authority of this provider.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends EntityAdapter<?>> void executeBatch(SQLiteDatabase db, List<EntityProcessor<T>> processors, List<T> entityAdapters, boolean isSyncAdapter,
+		ProviderOperationsLog log, String authority)
+	{
+		if (entityAdapters.isEmpty())
+		{
+			return;
+		}
+
+		final int count = processors.size();
+
+		// the leading batch processors see all entities before any other processor runs
+		int first = 0;
+		while (first < count && processors.get(first) instanceof BatchEntityProcessor)
+		{
+			executeBeforeBatchProcessor(db, (BatchEntityProcessor<T>) processors.get(first), entityAdapters, isSyncAdapter);
+			++first;
+		}
+
+		for (T entityAdapter : entityAdapters)
+		{
+			for (int i = first; i < count; ++i)
+			{
+				executeBeforeProcessor(db, processors.get(i), entityAdapter, isSyncAdapter);
+			}
+		}
+
+		executeAfterBatch(db, processors, entityAdapters, isSyncAdapter);
+
+		for (T entityAdapter : entityAdapters)
+		{
+			if (this != UPDATE || entityAdapter.hasUpdates()) // don't log empty operations
+			{
+				log.log(this, entityAdapter.uri(authority));
+			}
+		}
+	}
+
+
+	/**
+	 * Runs the after methods of the processor chain on a chunk of entities that have all been written.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends EntityAdapter<?>> void executeAfterBatch(SQLiteDatabase db, List<EntityProcessor<T>> processors, List<T> entityAdapters,
+		boolean isSyncAdapter)
+	{
+		int count = processors.size();
+		int first = 0;
+		while (first < count)
+		{
+			EntityProcessor<T> processor = processors.get(first);
+			if (processor instanceof BatchEntityProcessor)
+			{
+				executeAfterBatchProcessor(db, (BatchEntityProcessor<T>) processor, entityAdapters, isSyncAdapter);
+				++first;
+				continue;
+			}
+
+			// find the end of this run of processors without batch support
+			int end = first + 1;
+			while (end < count && !(processors.get(end) instanceof BatchEntityProcessor))
+			{
+				++end;
+			}
+
+			for (T entityAdapter : entityAdapters)
+			{
+				for (int i = first; i < end; ++i)
+				{
+					executeAfterProcessor(db, processors.get(i), entityAdapter, isSyncAdapter);
+				}
+			}
+			first = end;
+		}
+	}
 }
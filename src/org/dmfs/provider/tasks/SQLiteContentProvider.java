@@ -29,6 +29,7 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteTransactionListener;
 import android.net.Uri;
 
 
@@ -42,6 +43,10 @@ import android.net.Uri;
  * also pass the database to the *InTransaction methods.
  * 
  * update visibility of class and methods
+ * 
+ * added a transaction listener
+ * 
+ * added bulkInsertInTransaction
  */
 abstract class SQLiteContentProvider extends ContentProvider
 {
@@ -90,6 +95,23 @@ abstract class SQLiteContentProvider extends ContentProvider
 		boolean callerIsSyncAdapter);
 
 
+	/**
+	 * The equivalent of the {@link #bulkInsert} method, but invoked within a transaction. The default implementation calls
+	 * {@link #insertInTransaction(SQLiteDatabase, Uri, ContentValues, boolean)} for each of the values. Subclasses can override this to insert the values in
+	 * chunks.
+	 */
+	public int bulkInsertInTransaction(SQLiteDatabase db, Uri uri, ContentValues[] values, boolean callerIsSyncAdapter)
+	{
+		int numValues = values.length;
+		for (int i = 0; i < numValues; i++)
+		{
+			insertInTransaction(db, uri, values[i], callerIsSyncAdapter);
+			db.yieldIfContendedSafely();
+		}
+		return numValues;
+	}
+
+
 	/**
 	 * The equivalent of the {@link #delete} method, but invoked within a transaction.
 	 */
@@ -108,6 +130,15 @@ abstract class SQLiteContentProvider extends ContentProvider
 	}
 
 
+	/**
+	 * Returns a {@link SQLiteTransactionListener} to be notified about the transactions of this provider, or <code>null</code> if no listener is required.
+	 */
+	protected SQLiteTransactionListener getTransactionListener()
+	{
+		return null;
+	}
+
+
 	public boolean isCallerSyncAdapter(Uri uri)
 	{
 		return false;
@@ -135,7 +166,7 @@ abstract class SQLiteContentProvider extends ContentProvider
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		if (!applyingBatch)
 		{
-			db.beginTransaction();
+			db.beginTransactionWithListener(getTransactionListener());
 			try
 			{
 				result = insertInTransaction(db, uri, values, callerIsSyncAdapter);
@@ -159,17 +190,13 @@ abstract class SQLiteContentProvider extends ContentProvider
 	@Override
 	public int bulkInsert(Uri uri, ContentValues[] values)
 	{
-		int numValues = values.length;
+		int numValues = 0;
 		boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-		db.beginTransaction();
+		db.beginTransactionWithListener(getTransactionListener());
 		try
 		{
-			for (int i = 0; i < numValues; i++)
-			{
-				insertInTransaction(db, uri, values[i], callerIsSyncAdapter);
-				db.yieldIfContendedSafely();
-			}
+			numValues = bulkInsertInTransaction(db, uri, values, callerIsSyncAdapter);
 			db.setTransactionSuccessful();
 		}
 		finally
@@ -191,7 +218,7 @@ abstract class SQLiteContentProvider extends ContentProvider
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		if (!applyingBatch)
 		{
-			db.beginTransaction();
+			db.beginTransactionWithListener(getTransactionListener());
 			try
 			{
 				count = updateInTransaction(db, uri, values, selection, selectionArgs, callerIsSyncAdapter);
@@ -222,7 +249,7 @@ abstract class SQLiteContentProvider extends ContentProvider
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		if (!applyingBatch)
 		{
-			db.beginTransaction();
+			db.beginTransactionWithListener(getTransactionListener());
 			try
 			{
 				count = deleteInTransaction(db, uri, selection, selectionArgs, callerIsSyncAdapter);
@@ -250,7 +277,7 @@ abstract class SQLiteContentProvider extends ContentProvider
 		int opCount = 0;
 		boolean callerIsSyncAdapter = false;
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-		db.beginTransaction();
+		db.beginTransactionWithListener(getTransactionListener());
 		try
 		{
 			mApplyingBatch.set(true);
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+import org.dmfs.provider.tasks.search.ScopedQuery;
+import org.dmfs.provider.tasks.search.SearchEngine;
+import org.dmfs.provider.tasks.search.SearchEngineFactory;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * A benchmark that compares the available {@link SearchEngine}s. For each engine it creates a temporary in-memory database with the same synthetic corpus of
+ * tasks, builds the search index and runs a fixed set of queries. It reports the time to build the index, the size of the index and the average query latency.
+ * <p>
+ * This doesn't touch the task database, so it can be run at any time, e.g. from an instrumentation test. Note that it takes a while for large corpora, so don't
+ * run it on the main thread.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class SearchEngineBenchmark
+{
+	private static final String TAG = "SearchEngineBenchmark";
+
+	/**
+	 * The syllables of the words in the synthetic corpus.
+	 */
+	private final static String[] SYLLABLES = { "ka", "lo", "mi", "ne", "ru", "ta", "ber", "chen", "dor", "fin", "gar", "hol", "ist", "jun", "kle", "lin",
+		"mor", "nut", "ost", "pra", "quo", "ris", "sto", "tür", "ung", "ver", "wal", "xen", "yor", "zug", "ße" };
+
+	/**
+	 * The number of distinct words in the synthetic corpus.
+	 */
+	private final static int VOCABULARY_SIZE = 3000;
+
+	/**
+	 * The number of queries per run.
+	 */
+	private final static int QUERY_COUNT = 20;
+
+
+	private SearchEngineBenchmark()
+	{
+	}
+
+
+	/**
+	 * Runs the benchmark and returns a report. The report is logged as well.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @param taskCount
+	 *            The number of tasks in the corpus.
+	 * @param queryRepetitions
+	 *            The number of times each query is run.
+	 * @param seed
+	 *            The seed of the random corpus. Runs with the same seed use the same corpus and queries.
+	 * @return The report.
+	 */
+	public static String run(Context context, int taskCount, int queryRepetitions, long seed)
+	{
+		String[] vocabulary = createVocabulary(new Random(seed));
+		String[] queries = createQueries(new Random(seed + 1), vocabulary);
+
+		StringBuilder report = new StringBuilder(512);
+		report.append(String.format(Locale.ENGLISH, "%d tasks, %d queries x %d%n", taskCount, queries.length, queryRepetitions));
+		report.append(String.format(Locale.ENGLISH, "%-8s %12s %12s %12s %12s%n", "engine", "index ms", "index kB", "query ms", "results"));
+
+		for (SearchEngine engine : SearchEngineFactory.all())
+		{
+			SQLiteDatabase db = SQLiteDatabase.create(null);
+			try
+			{
+				new TaskDatabaseHelper(context, null).onCreate(db);
+				insertCorpus(db, new Random(seed + 2), vocabulary, taskCount);
+
+				long pagesBefore = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+				long indexStart = SystemClock.elapsedRealtime();
+				db.beginTransaction();
+				try
+				{
+					engine.rebuildIndex(db);
+					db.setTransactionSuccessful();
+				}
+				finally
+				{
+					db.endTransaction();
+				}
+				long indexTime = SystemClock.elapsedRealtime() - indexStart;
+
+				long indexSize = (DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) - pagesBefore) * db.getPageSize();
+
+				long results = 0;
+				long queryStart = System.nanoTime();
+				for (int i = 0; i < queryRepetitions; ++i)
+				{
+					for (String query : queries)
+					{
+						Cursor c = engine.search(db, query, ScopedQuery.ALL_TYPES, null, null, null, null, SearchEngine.DEFAULT_MIN_SCORE, 0, null);
+						try
+						{
+							results += c.getCount();
+						}
+						finally
+						{
+							c.close();
+						}
+					}
+				}
+				int queryRuns = Math.max(1, queryRepetitions * queries.length);
+				double queryTime = (System.nanoTime() - queryStart) / 1000000.0 / queryRuns;
+
+				report.append(String.format(Locale.ENGLISH, "%-8s %12d %12d %12.2f %12.1f%n", engine.name(), indexTime, indexSize / 1024, queryTime,
+					(double) results / queryRuns));
+			}
+			finally
+			{
+				db.close();
+			}
+		}
+
+		String result = report.toString();
+		Log.i(TAG, result);
+		return result;
+	}
+
+
+	/**
+	 * Creates a list of random words.
+	 */
+	private static String[] createVocabulary(Random random)
+	{
+		String[] result = new String[VOCABULARY_SIZE];
+		StringBuilder word = new StringBuilder(16);
+		for (int i = 0; i < result.length; ++i)
+		{
+			word.setLength(0);
+			for (int j = 0, syllables = 1 + random.nextInt(4); j < syllables; ++j)
+			{
+				word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			}
+			result[i] = word.toString();
+		}
+		return result;
+	}
+
+
+	/**
+	 * Creates a mix of single word, word prefix and multi-word queries.
+	 */
+	private static String[] createQueries(Random random, String[] vocabulary)
+	{
+		String[] result = new String[QUERY_COUNT];
+		for (int i = 0; i < result.length; ++i)
+		{
+			String word = randomWord(random, vocabulary);
+			switch (i % 4)
+			{
+				case 0:
+					result[i] = word;
+					break;
+				case 1:
+					result[i] = word.substring(0, Math.min(word.length(), 3));
+					break;
+				case 2:
+					result[i] = word + " " + randomWord(random, vocabulary);
+					break;
+				default:
+					result[i] = word + " " + randomWord(random, vocabulary) + " " + randomWord(random, vocabulary);
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Inserts a task list with the given number of tasks with random texts and one instance per task.
+	 */
+	private static void insertCorpus(SQLiteDatabase db, Random random, String[] vocabulary, int taskCount)
+	{
+		db.beginTransaction();
+		try
+		{
+			ContentValues values = new ContentValues(8);
+			values.put(TaskContract.TaskLists.ACCOUNT_NAME, "benchmark");
+			values.put(TaskContract.TaskLists.ACCOUNT_TYPE, TaskContract.LOCAL_ACCOUNT_TYPE);
+			values.put(TaskContract.TaskLists.LIST_NAME, "benchmark");
+			long listId = db.insert(Tables.LISTS, null, values);
+
+			for (int i = 0; i < taskCount; ++i)
+			{
+				values.clear();
+				values.put(TaskContract.Tasks.LIST_ID, listId);
+				values.put(TaskContract.Tasks.TITLE, randomText(random, vocabulary, 1 + random.nextInt(5)));
+				values.put(TaskContract.Tasks.DESCRIPTION, randomText(random, vocabulary, random.nextInt(40)));
+				if (random.nextBoolean())
+				{
+					values.put(TaskContract.Tasks.LOCATION, randomText(random, vocabulary, 1 + random.nextInt(3)));
+				}
+				long taskId = db.insert(Tables.TASKS, null, values);
+
+				values.clear();
+				values.put(TaskContract.Instances.TASK_ID, taskId);
+				db.insert(Tables.INSTANCES, null, values);
+			}
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+	}
+
+
+	private static String randomText(Random random, String[] vocabulary, int words)
+	{
+		StringBuilder result = new StringBuilder(words * 10);
+		for (int i = 0; i < words; ++i)
+		{
+			if (i > 0)
+			{
+				result.append(random.nextInt(8) == 0 ? ", " : " ");
+			}
+			result.append(randomWord(random, vocabulary));
+		}
+		return result.toString();
+	}
+
+
+	/**
+	 * Picks a random word, preferring the first words of the vocabulary to get a skewed distribution like in natural language.
+	 */
+	private static String randomWord(Random random, String[] vocabulary)
+	{
+		int index = (int) (vocabulary.length * Math.pow(random.nextDouble(), 3));
+		return vocabulary[Math.min(index, vocabulary.length - 1)];
+	}
+}
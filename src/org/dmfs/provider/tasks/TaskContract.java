@@ -71,6 +71,16 @@ public final class TaskContract
 	 */
 	public static final String LOAD_PROPERTIES = "load_properties";
 
+	/**
+	 * URI parameter to signal that the caller is about to insert or update a large number of tasks, e.g. during the initial sync. This is respected for sync
+	 * adapters only (see {@link #CALLER_IS_SYNCADAPTER}).
+	 * <p>
+	 * Once an operation with this parameter has been executed the provider defers the full text search index, the task instances and the dirty flags of the
+	 * task lists for the rest of the transaction (or batch). The deferred work is done in one go right before the transaction is committed.
+	 * </p>
+	 */
+	public static final String BULK_LOAD = "bulk_load";
+
 	/**
 	 * URI parameter to submit the account name of the account we operate on.
 	 */
@@ -845,6 +855,24 @@ public final class TaskContract
 		 * </p>
 		 */
 		public final static String SCORE = "score";
+
+		/**
+		 * The parts of the title that match the search query. Only returned by searches with {@link Tasks#SEARCH_MATCHES_PARAMETER}.
+		 * <p>
+		 * Value: String, a comma separated list of character ranges in the form <code>start-end</code>, with <code>end</code> being exclusive, or
+		 * <code>null</code> if the title doesn't match.
+		 * </p>
+		 */
+		public final static String TITLE_MATCHES = "title_matches";
+
+		/**
+		 * The parts of the description that match the search query. Only returned by searches with {@link Tasks#SEARCH_MATCHES_PARAMETER}.
+		 * <p>
+		 * Value: String, a comma separated list of character ranges in the form <code>start-end</code>, with <code>end</code> being exclusive, or
+		 * <code>null</code> if the description doesn't match.
+		 * </p>
+		 */
+		public final static String DESCRIPTION_MATCHES = "description_matches";
 	}
 
 	/**
@@ -938,6 +966,38 @@ public final class TaskContract
 
 		static final String SEARCH_QUERY_PARAMETER = "q";
 
+		/**
+		 * The name of a search URI query parameter that contains the minimum {@link #SCORE} of the search results. The value must be in [0, 1.0], the default
+		 * is <code>0.4</code>.
+		 */
+		public static final String SEARCH_MIN_SCORE_PARAMETER = "min_score";
+
+		/**
+		 * The name of a search URI query parameter that contains the maximum number of search results. Use this if you need the best results only, it's
+		 * faster than loading all results.
+		 */
+		public static final String SEARCH_LIMIT_PARAMETER = "limit";
+
+		/**
+		 * The name of a search URI query parameter that contains a session token chosen by the caller. Use the same token for all queries of a search-as-you-type
+		 * session. If a query just extends the previous query of the session the provider only needs to score the tasks that matched the previous query.
+		 */
+		public static final String SEARCH_SESSION_PARAMETER = "session";
+
+		/**
+		 * The name of a search URI query parameter that enables the typo tolerant search. The value is the maximum number of typos per word, either
+		 * <code>1</code> or <code>2</code>. Short words always need to match exactly. The typo tolerant search only looks at the title and the location of the
+		 * tasks.
+		 */
+		public static final String SEARCH_FUZZY_PARAMETER = "fuzzy";
+
+		/**
+		 * The name of a search URI query parameter that switches the search to a lightweight result. If the value is <code>true</code> the result contains one
+		 * row per task with the columns {@link #_ID} (the id of the task), {@link #SCORE}, {@link #TITLE_MATCHES} and {@link #DESCRIPTION_MATCHES} only. The
+		 * projection is ignored. Use this if you already have the task data and just need to know which tasks match and what to highlight.
+		 */
+		public static final String SEARCH_MATCHES_PARAMETER = "matches";
+
 		public static final String DEFAULT_SORT_ORDER = DUE;
 
 		public static final String[] SYNC_ADAPTER_COLUMNS = new String[] { _DIRTY, SYNC1, SYNC2, SYNC3, SYNC4, SYNC5, SYNC6, SYNC7, SYNC8, _SYNC_ID,
@@ -963,6 +1023,28 @@ public final class TaskContract
 			builder.appendQueryParameter(SEARCH_QUERY_PARAMETER, Uri.encode(query));
 			return builder.build();
 		}
+
+
+		/**
+		 * Get a search {@link Uri} that returns the best results only.
+		 * 
+		 * @param authority
+		 *            The authority.
+		 * @param query
+		 *            The search query.
+		 * @param minScore
+		 *            The minimum {@link #SCORE} of the results, see {@link #SEARCH_MIN_SCORE_PARAMETER}.
+		 * @param limit
+		 *            The maximum number of results, see {@link #SEARCH_LIMIT_PARAMETER}.
+		 * @return A {@link Uri}.
+		 */
+		public final static Uri getSearchUri(String authority, String query, float minScore, int limit)
+		{
+			Uri.Builder builder = getSearchUri(authority, query).buildUpon();
+			builder.appendQueryParameter(SEARCH_MIN_SCORE_PARAMETER, String.valueOf(minScore));
+			builder.appendQueryParameter(SEARCH_LIMIT_PARAMETER, String.valueOf(limit));
+			return builder.build();
+		}
 	}
 
 	/**
@@ -22,6 +22,8 @@ import org.dmfs.provider.tasks.TaskContract.Property.Alarm;
 import org.dmfs.provider.tasks.TaskContract.Property.Category;
 import org.dmfs.provider.tasks.TaskContract.TaskLists;
 import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.search.PropertyTextExtractorFactory;
+import org.dmfs.provider.tasks.search.SearchEngineFactory;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -60,7 +62,7 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 	/**
 	 * The database version.
 	 */
-	static final int DATABASE_VERSION = 16;
+	static final int DATABASE_VERSION = 21;
 
 	/**
 	 * List of all tables we provide.
@@ -543,6 +545,93 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 
 	}
 
+	/**
+	 * SQL command to create a trigger that marks a list as dirty if a task in that list is inserted as dirty or deleted.
+	 */
+	private final static String SQL_CREATE_TASK_LIST_MAKE_DIRTY_ON_INSERT_TRIGGER = "CREATE TRIGGER task_list_make_dirty_on_insert AFTER INSERT ON "
+		+ Tables.TASKS + " BEGIN UPDATE " + Tables.LISTS + " SET " + TaskContract.TaskLists._DIRTY + "=" + TaskContract.TaskLists._DIRTY + " + " + "new."
+		+ TaskContract.Tasks._DIRTY + " + " + "new." + TaskContract.Tasks._DELETED + " WHERE " + TaskContract.TaskLists._ID + "= new."
+		+ TaskContract.Tasks.LIST_ID + "; END";
+
+	private final static String SQL_DROP_TASK_LIST_MAKE_DIRTY_ON_INSERT_TRIGGER = "DROP TRIGGER task_list_make_dirty_on_insert;";
+
+	/**
+	 * SQL command to mark the lists of a set of new tasks dirty, just like {@link #SQL_CREATE_TASK_LIST_MAKE_DIRTY_ON_INSERT_TRIGGER} does for a single task.
+	 * The task selection has to be inserted twice.
+	 */
+	private final static String SQL_MAKE_LISTS_DIRTY = "UPDATE " + Tables.LISTS + " SET " + TaskContract.TaskLists._DIRTY + " = "
+		+ TaskContract.TaskLists._DIRTY + " + (SELECT sum(" + TaskContract.Tasks._DIRTY + " + " + TaskContract.Tasks._DELETED + ") FROM " + Tables.TASKS
+		+ " WHERE " + TaskContract.Tasks.LIST_ID + " = " + Tables.LISTS + "." + TaskContract.TaskLists._ID + " AND %1$s) WHERE "
+		+ TaskContract.TaskLists._ID + " IN (SELECT " + TaskContract.Tasks.LIST_ID + " FROM " + Tables.TASKS + " WHERE %1$s)";
+
+	/**
+	 * The maximum number of ids we put into a single statement, see {@link #createIdSelection(String, long[], int, int)}.
+	 */
+	public final static int MAX_INLINE_IDS = 500;
+
+
+	/**
+	 * Builds a selection that matches the given column against a range of the given ids. The ids are put into the selection, so there is no need for selection
+	 * arguments, but callers should not use more than {@link #MAX_INLINE_IDS} ids at a time.
+	 * 
+	 * @param column
+	 *            The name of the column.
+	 * @param ids
+	 *            An array of ids.
+	 * @param start
+	 *            The index of the first id to use.
+	 * @param end
+	 *            The index after the last id to use.
+	 * @return The selection string.
+	 */
+	public final static String createIdSelection(String column, long[] ids, int start, int end)
+	{
+		StringBuilder selection = new StringBuilder(column.length() + (end - start) * 12 + 8);
+		selection.append(column).append(" in (");
+		for (int i = start; i < end; ++i)
+		{
+			if (i > start)
+			{
+				selection.append(",");
+			}
+			selection.append(ids[i]);
+		}
+		selection.append(")");
+		return selection.toString();
+	}
+
+	/**
+	 * Removes the trigger that marks a task list dirty when a task is inserted into it. Each call must be followed by a call to
+	 * {@link #resumeListDirtyOnInsertTrigger(SQLiteDatabase, long[])} within the same transaction.
+	 * 
+	 * @param db
+	 *            A writable {@link SQLiteDatabase}.
+	 */
+	static void suspendListDirtyOnInsertTrigger(SQLiteDatabase db)
+	{
+		db.execSQL(SQL_DROP_TASK_LIST_MAKE_DIRTY_ON_INSERT_TRIGGER);
+	}
+
+
+	/**
+	 * Marks the lists of the given tasks dirty like the trigger would have done and restores the trigger that has been removed by
+	 * {@link #suspendListDirtyOnInsertTrigger(SQLiteDatabase)}.
+	 * 
+	 * @param db
+	 *            A writable {@link SQLiteDatabase}.
+	 * @param insertedTaskIds
+	 *            The ids of the tasks that have been inserted since the trigger has been suspended.
+	 */
+	static void resumeListDirtyOnInsertTrigger(SQLiteDatabase db, long[] insertedTaskIds)
+	{
+		for (int start = 0; start < insertedTaskIds.length; start += MAX_INLINE_IDS)
+		{
+			String taskSelection = createIdSelection(TaskContract.Tasks._ID, insertedTaskIds, start, Math.min(insertedTaskIds.length, start + MAX_INLINE_IDS));
+			db.execSQL(String.format(SQL_MAKE_LISTS_DIRTY, taskSelection));
+		}
+		db.execSQL(SQL_CREATE_TASK_LIST_MAKE_DIRTY_ON_INSERT_TRIGGER);
+	}
+
 	private final OnDatabaseOperationListener mListener;
 
 
@@ -578,9 +667,7 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 			+ TaskContract.Tasks._DELETED + " WHERE " + TaskContract.TaskLists._ID + "= new." + TaskContract.Tasks.LIST_ID + "; END");
 
 		// trigger that marks a list as dirty if a task in that list gets marked as dirty or deleted
-		db.execSQL("CREATE TRIGGER task_list_make_dirty_on_insert AFTER INSERT ON " + Tables.TASKS + " BEGIN UPDATE " + Tables.LISTS + " SET "
-			+ TaskContract.TaskLists._DIRTY + "=" + TaskContract.TaskLists._DIRTY + " + " + "new." + TaskContract.Tasks._DIRTY + " + " + "new."
-			+ TaskContract.Tasks._DELETED + " WHERE " + TaskContract.TaskLists._ID + "= new." + TaskContract.Tasks.LIST_ID + "; END");
+		db.execSQL(SQL_CREATE_TASK_LIST_MAKE_DIRTY_ON_INSERT_TRIGGER);
 
 		// create instances table and view
 		db.execSQL(SQL_CREATE_INSTANCES_TABLE);
@@ -649,6 +736,21 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 	}
 
 
+	/**
+	 * Makes sure the search index is maintained by the active search engine and contains the enabled properties.
+	 */
+	@Override
+	public void onOpen(SQLiteDatabase db)
+	{
+		super.onOpen(db);
+		if (!db.isReadOnly())
+		{
+			SearchEngineFactory.onOpen(db);
+			PropertyTextExtractorFactory.onOpen(db);
+		}
+	}
+
+
 	/**
 	 * Manages the database schema migration.
 	 */
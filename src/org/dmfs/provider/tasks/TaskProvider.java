@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.dmfs.ngrams.LongSet;
 import org.dmfs.provider.tasks.TaskContract.Alarms;
 import org.dmfs.provider.tasks.TaskContract.Categories;
 import org.dmfs.provider.tasks.TaskContract.CategoriesColumns;
@@ -46,6 +47,7 @@ import org.dmfs.provider.tasks.model.CursorContentValuesListAdapter;
 import org.dmfs.provider.tasks.model.CursorContentValuesTaskAdapter;
 import org.dmfs.provider.tasks.model.ListAdapter;
 import org.dmfs.provider.tasks.model.TaskAdapter;
+import org.dmfs.provider.tasks.processors.DeferrableEntityProcessor;
 import org.dmfs.provider.tasks.processors.EntityProcessor;
 import org.dmfs.provider.tasks.processors.lists.ListExecutionProcessor;
 import org.dmfs.provider.tasks.processors.lists.ListValidatorProcessor;
@@ -56,6 +58,17 @@ import org.dmfs.provider.tasks.processors.tasks.RelationProcessor;
 import org.dmfs.provider.tasks.processors.tasks.TaskExecutionProcessor;
 import org.dmfs.provider.tasks.processors.tasks.TaskInstancesProcessor;
 import org.dmfs.provider.tasks.processors.tasks.TaskValidatorProcessor;
+import org.dmfs.provider.tasks.search.FuzzySearch;
+import org.dmfs.provider.tasks.search.PropertyEntryBuffer;
+import org.dmfs.provider.tasks.search.PropertyTextExtractorFactory;
+import org.dmfs.provider.tasks.search.ScopedQuery;
+import org.dmfs.provider.tasks.search.SearchEngine;
+import org.dmfs.provider.tasks.search.SearchEngineFactory;
+import org.dmfs.provider.tasks.search.SearchIndexRebuilder;
+import org.dmfs.provider.tasks.search.SearchMatches;
+import org.dmfs.provider.tasks.search.SearchResultCache;
+import org.dmfs.provider.tasks.search.SearchSession;
+import org.dmfs.provider.tasks.search.SearchSessionCache;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -75,10 +88,12 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteTransactionListener;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
@@ -101,7 +116,7 @@ import android.text.TextUtils;
  * @author Tobias Reinsch <tobias@dmfs.org>
  * 
  */
-public final class TaskProvider extends SQLiteContentProvider implements OnAccountsUpdateListener, OnDatabaseOperationListener
+public final class TaskProvider extends SQLiteContentProvider implements OnAccountsUpdateListener, OnDatabaseOperationListener, SQLiteTransactionListener
 {
 
 	private static final int LISTS = 1;
@@ -122,6 +137,12 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 
 	private static final int OPERATIONS = 100000;
 
+	/**
+	 * The number of tasks that are passed to the task processors at once when multiple tasks are inserted or updated, see
+	 * {@link ProviderOperation#executeBatch(SQLiteDatabase, List, List, boolean, ProviderOperationsLog, String)}.
+	 */
+	private static final int TASK_BATCH_SIZE = 100;
+
 	private final static Set<String> TASK_LIST_SYNC_COLUMNS = new HashSet<String>(Arrays.asList(TaskLists.SYNC_ADAPTER_COLUMNS));
 
 	/**
@@ -154,6 +175,32 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	 */
 	private ProviderOperationsLog mOperationsLog = new ProviderOperationsLog();
 
+	/**
+	 * Indicates that properties have been written in the current transaction. Property writes are not tracked by {@link #mOperationsLog}, but they change the
+	 * search results.
+	 */
+	private boolean mPropertiesChanged;
+
+	/**
+	 * Indicates that a sync adapter bulk loads tasks in the current transaction, see {@link TaskContract#BULK_LOAD}.
+	 */
+	private boolean mBulkLoad;
+
+	/**
+	 * The ids of the tasks that have been inserted in bulk load mode.
+	 */
+	private final LongSet mBulkLoadTaskIds = new LongSet(1024);
+
+	/**
+	 * The search-as-you-type sessions of the callers, see {@link Tasks#SEARCH_SESSION_PARAMETER}.
+	 */
+	private final SearchSessionCache mSearchSessions = new SearchSessionCache();
+
+	/**
+	 * The {@link SearchEngine} that has been notified about the beginning of the current transaction.
+	 */
+	private SearchEngine mTransactionSearchEngine;
+
 
 	@Override
 	public boolean onCreate()
@@ -162,6 +209,13 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 
 		mAuthority = providerInfo.authority;
 
+		if (providerInfo.metaData != null)
+		{
+			SearchEngineFactory.setActiveEngine(providerInfo.metaData.getString(SearchEngineFactory.META_DATA_SEARCH_ENGINE));
+			SearchEngineFactory.setSegmentEnabled(providerInfo.metaData.getBoolean(SearchEngineFactory.META_DATA_SEARCH_INDEX_SEGMENT, false));
+			PropertyTextExtractorFactory.setEnabled(providerInfo.metaData.getString(PropertyTextExtractorFactory.META_DATA_SEARCH_PROPERTIES));
+		}
+
 		mTaskProcessors.add(new TaskValidatorProcessor());
 		mTaskProcessors.add(new AutoUpdateProcessor());
 		mTaskProcessors.add(new RelationProcessor());
@@ -211,6 +265,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 		accountManager.addOnAccountsUpdatedListener(this, mAsyncHandler, true);
 
 		updateNotifications();
+		resumeSearchIndexRebuild();
 
 		return result;
 	}
@@ -246,6 +301,140 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	}
 
 
+	/**
+	 * Returns the minimum score of the search results given in the {@link Tasks#SEARCH_MIN_SCORE_PARAMETER} of the given search {@link Uri}.
+	 * 
+	 * @param uri
+	 *            The search {@link Uri}.
+	 * @return The minimum score.
+	 */
+	public float getSearchMinScore(Uri uri)
+	{
+		String param = uri.getQueryParameter(Tasks.SEARCH_MIN_SCORE_PARAMETER);
+		if (param == null)
+		{
+			return SearchEngine.DEFAULT_MIN_SCORE;
+		}
+
+		try
+		{
+			float minScore = Float.parseFloat(param);
+			if (minScore >= 0 && minScore <= 1)
+			{
+				return minScore;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			// handled below
+		}
+		throw new IllegalArgumentException("Invalid minimum search score: " + param);
+	}
+
+
+	/**
+	 * Returns the maximum number of search results given in the {@link Tasks#SEARCH_LIMIT_PARAMETER} of the given search {@link Uri}.
+	 * 
+	 * @param uri
+	 *            The search {@link Uri}.
+	 * @return The maximum number of results or <code>0</code> if there is no limit.
+	 */
+	public int getSearchLimit(Uri uri)
+	{
+		String param = uri.getQueryParameter(Tasks.SEARCH_LIMIT_PARAMETER);
+		if (param == null)
+		{
+			return 0;
+		}
+
+		try
+		{
+			int limit = Integer.parseInt(param);
+			if (limit >= 0)
+			{
+				return limit;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			// handled below
+		}
+		throw new IllegalArgumentException("Invalid search limit: " + param);
+	}
+
+
+	/**
+	 * Returns whether the given search {@link Uri} asks for the lightweight result, see {@link Tasks#SEARCH_MATCHES_PARAMETER}.
+	 * 
+	 * @param uri
+	 *            The search {@link Uri}.
+	 * @return <code>true</code> if the result should contain the task ids, scores and matches only.
+	 */
+	public boolean isSearchMatchesOnly(Uri uri)
+	{
+		return "true".equals(uri.getQueryParameter(Tasks.SEARCH_MATCHES_PARAMETER));
+	}
+
+
+	/**
+	 * Returns the maximum number of typos per word given in the {@link Tasks#SEARCH_FUZZY_PARAMETER} of the given search {@link Uri}.
+	 * 
+	 * @param uri
+	 *            The search {@link Uri}.
+	 * @return The maximum number of typos or <code>0</code> if the {@link Uri} doesn't ask for a typo tolerant search.
+	 */
+	public int getSearchMaxEdits(Uri uri)
+	{
+		String param = uri.getQueryParameter(Tasks.SEARCH_FUZZY_PARAMETER);
+		if (param == null)
+		{
+			return 0;
+		}
+
+		try
+		{
+			int maxEdits = Integer.parseInt(param);
+			if (maxEdits >= 0 && maxEdits <= FuzzySearch.MAX_EDITS)
+			{
+				return maxEdits;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			// handled below
+		}
+		throw new IllegalArgumentException("Invalid number of typos: " + param);
+	}
+
+
+	/**
+	 * Returns the {@link SearchSession} identified by the {@link Tasks#SEARCH_SESSION_PARAMETER} of the given search {@link Uri}.
+	 * 
+	 * @param uri
+	 *            The search {@link Uri}.
+	 * @return The {@link SearchSession} or <code>null</code> if the {@link Uri} doesn't contain a session token.
+	 */
+	private SearchSession getSearchSession(Uri uri)
+	{
+		String token = uri.getQueryParameter(Tasks.SEARCH_SESSION_PARAMETER);
+		return token == null ? null : mSearchSessions.get(token);
+	}
+
+
+	/**
+	 * Return true if the URI indicates that a sync adapter wants to bulk load tasks with {@link TaskContract#BULK_LOAD}.
+	 * 
+	 * @param uri
+	 *            The {@link Uri} to check.
+	 * @return <code>true</code> if the URI requests the bulk load mode, <code>false</code> otherwise.
+	 */
+	public boolean isBulkLoad(Uri uri)
+	{
+		String param = uri.getQueryParameter(TaskContract.BULK_LOAD);
+		return param != null && !"false".equals(param);
+	}
+
+
 	/**
 	 * Get the account name from the given {@link Uri}.
 	 * 
@@ -667,7 +856,28 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 			case SEARCH:
 				String searchString = uri.getQueryParameter(Tasks.SEARCH_QUERY_PARAMETER);
 				searchString = Uri.decode(searchString);
-				Cursor searchCursor = FTSDatabaseHelper.getTaskSearchCursor(db, searchString, projection, selection, selectionArgs, sortOrder);
+				// restrict the search to the fields given in the query, if any
+				ScopedQuery query = ScopedQuery.parse(searchString);
+				int maxEdits = getSearchMaxEdits(uri);
+				boolean matchesOnly = isSearchMatchesOnly(uri);
+				// the lightweight result has one row per task, so it applies the limit to the tasks rather than the instances
+				String[] searchProjection = matchesOnly ? SearchMatches.SEARCH_PROJECTION : projection;
+				int searchLimit = matchesOnly ? 0 : getSearchLimit(uri);
+				Cursor searchCursor;
+				if (maxEdits > 0)
+				{
+					searchCursor = FuzzySearch.search(SearchEngineFactory.activeEngine(), db, query.text(), query.types(), searchProjection, selection,
+						selectionArgs, sortOrder, getSearchMinScore(uri), searchLimit, maxEdits);
+				}
+				else
+				{
+					searchCursor = SearchEngineFactory.activeEngine().search(db, query.text(), query.types(), searchProjection, selection, selectionArgs,
+						sortOrder, getSearchMinScore(uri), searchLimit, getSearchSession(uri));
+				}
+				if (matchesOnly && searchCursor != null)
+				{
+					searchCursor = SearchMatches.matches(db, searchCursor, query.text(), getSearchLimit(uri));
+				}
 				if (searchCursor != null)
 				{
 					// attach tasks uri for notifications, that way the search results are updated when a task changes
@@ -803,6 +1013,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 				selection = updateSelection(selectPropertyId(uri), selection);
 
 			case PROPERTIES:
+				mPropertiesChanged = true;
 				// fetch all properties that match the selection
 				Cursor cursor = db.query(Tables.PROPERTIES, null, selection, selectionArgs, null, null, null);
 
@@ -885,11 +1096,21 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 				break;
 			}
 			case TASKS:
+				if (isSyncAdapter && isBulkLoad(uri))
+				{
+					startBulkLoad(db);
+				}
+
 				final TaskAdapter task = new ContentValuesTaskAdapter(values);
 
 				ProviderOperation.INSERT.execute(db, mTaskProcessors, task, isSyncAdapter, mOperationsLog, mAuthority);
 
 				rowId = task.id();
+
+				if (mBulkLoad)
+				{
+					mBulkLoadTaskIds.add(rowId);
+				}
 				result_uri = TaskContract.Tasks.getContentUri(mAuthority);
 
 				postNotifyUri(Instances.getContentUri(mAuthority));
@@ -898,6 +1119,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 				break;
 
 			case PROPERTIES:
+				mPropertiesChanged = true;
 				String mimetype = values.getAsString(Properties.MIMETYPE);
 
 				if (mimetype == null)
@@ -941,6 +1163,63 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	}
 
 
+	/**
+	 * Inserts tasks in chunks of {@link #TASK_BATCH_SIZE}, so the task processors can handle each chunk at once. Any other values are inserted one by one.
+	 */
+	@Override
+	public int bulkInsertInTransaction(SQLiteDatabase db, Uri uri, ContentValues[] values, boolean isSyncAdapter)
+	{
+		if (mUriMatcher.match(uri) != TASKS)
+		{
+			return super.bulkInsertInTransaction(db, uri, values, isSyncAdapter);
+		}
+
+		List<TaskAdapter> tasks = new ArrayList<TaskAdapter>(TASK_BATCH_SIZE);
+		for (int start = 0; start < values.length; start += TASK_BATCH_SIZE)
+		{
+			// yielding commits the transaction, so we may have to enter the bulk load mode again
+			if (isSyncAdapter && isBulkLoad(uri))
+			{
+				startBulkLoad(db);
+			}
+
+			int end = Math.min(values.length, start + TASK_BATCH_SIZE);
+			tasks.clear();
+			for (int i = start; i < end; ++i)
+			{
+				tasks.add(new ContentValuesTaskAdapter(values[i]));
+			}
+
+			ProviderOperation.INSERT.executeBatch(db, mTaskProcessors, tasks, isSyncAdapter, mOperationsLog, mAuthority);
+
+			for (TaskAdapter task : tasks)
+			{
+				long rowId = task.id();
+				if (rowId <= 0)
+				{
+					throw new SQLException("Failed to insert row into " + uri);
+				}
+
+				if (mBulkLoad)
+				{
+					mBulkLoadTaskIds.add(rowId);
+				}
+				postNotifyUri(ContentUris.withAppendedId(Tasks.getContentUri(mAuthority), rowId));
+			}
+
+			db.yieldIfContendedSafely();
+		}
+
+		if (values.length > 0)
+		{
+			postNotifyUri(Instances.getContentUri(mAuthority));
+			postNotifyUri(Tasks.getContentUri(mAuthority));
+			postNotifyUri(uri);
+		}
+		return values.length;
+	}
+
+
 	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
 	@Override
 	public int updateInTransaction(final SQLiteDatabase db, Uri uri, final ContentValues values, String selection, String[] selectionArgs,
@@ -1018,20 +1297,40 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 
 			case TASKS:
 			{
+				if (isSyncAdapter && isBulkLoad(uri))
+				{
+					startBulkLoad(db);
+				}
+
 				// iterate over all tasks that match the selection. We iterate "manually" to execute any processors before or after insert.
 				final Cursor cursor = db.query(Tables.TASKS_VIEW, null, selection, selectionArgs, null, null, null, null);
 
 				try
 				{
-					while (cursor.moveToNext())
+					if (cursor.getCount() == 1)
 					{
-						// clone task values if we have more than one task to update
-						// we need this, because the processors may change the values
-						final TaskAdapter task = new CursorContentValuesTaskAdapter(cursor, cursor.getCount() > 1 ? new ContentValues(values) : values);
+						cursor.moveToFirst();
+						final TaskAdapter task = new CursorContentValuesTaskAdapter(cursor, values);
 
 						ProviderOperation.UPDATE.execute(db, mTaskProcessors, task, isSyncAdapter, mOperationsLog, mAuthority);
 						count++;
 					}
+					else
+					{
+						// pass the tasks to the processors in chunks, each task needs a copy of its row, because the cursor moves on
+						List<TaskAdapter> tasks = new ArrayList<TaskAdapter>(Math.min(cursor.getCount(), TASK_BATCH_SIZE));
+						while (cursor.moveToNext())
+						{
+							// clone task values, because the processors may change the values
+							tasks.add(new CursorContentValuesTaskAdapter(rowSnapshot(cursor), new ContentValues(values)));
+							if (tasks.size() == TASK_BATCH_SIZE || cursor.isLast())
+							{
+								ProviderOperation.UPDATE.executeBatch(db, mTaskProcessors, tasks, isSyncAdapter, mOperationsLog, mAuthority);
+								count += tasks.size();
+								tasks.clear();
+							}
+						}
+					}
 				}
 				finally
 				{
@@ -1054,6 +1353,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 				{
 					throw new IllegalArgumentException("property mimetypes can not be modified");
 				}
+				mPropertiesChanged = true;
 
 				if (values.containsKey(Properties.TASK_ID))
 				{
@@ -1155,6 +1455,43 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	}
 
 
+	/**
+	 * Optimizes the search index in the background.
+	 */
+	private void optimizeSearchIndex()
+	{
+		mAsyncHandler.post(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				ContentOperation.COMPACT_SEARCH_INDEX.fire(getContext(), null);
+			}
+		});
+	}
+
+
+	/**
+	 * Continues a pending rebuild of the search index, e.g. after a database upgrade or if the last rebuild has been interrupted.
+	 */
+	private void resumeSearchIndexRebuild()
+	{
+		mAsyncHandler.post(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				if (SearchIndexRebuilder.pendingEngine(getDatabaseHelper().getWritableDatabase()) != null)
+				{
+					ContentOperation.REBUILD_SEARCH_INDEX.fire(getContext(), null);
+				}
+			}
+		});
+	}
+
+
 	/**
 	 * Validate the given category values.
 	 * 
@@ -1225,17 +1562,194 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	protected void onEndTransaction(boolean callerIsSyncAdapter)
 	{
 		super.onEndTransaction(callerIsSyncAdapter);
+		// invalidate again, a search might have stored candidates between onCommit and the actual commit
+		SearchSessionCache.invalidate();
 		Intent providerChangedIntent = new Intent(Intent.ACTION_PROVIDER_CHANGED, TaskContract.getContentUri(mAuthority));
 		if (!mOperationsLog.isEmpty())
 		{
 			updateNotifications();
 		}
+		if (!mOperationsLog.isEmpty() || mPropertiesChanged)
+		{
+			// the cached search results might be outdated
+			SearchResultCache.invalidate();
+			mPropertiesChanged = false;
+		}
+		if (mTransactionSearchEngine != null && mTransactionSearchEngine.needsOptimization())
+		{
+			optimizeSearchIndex();
+		}
 		// add the change log to the broadcast
 		providerChangedIntent.putExtras(mOperationsLog.toBundle(true));
 		getContext().sendBroadcast(providerChangedIntent);
 	};
 
 
+	@Override
+	protected SQLiteTransactionListener getTransactionListener()
+	{
+		return this;
+	}
+
+
+	@Override
+	public void onBegin()
+	{
+		mTransactionSearchEngine = SearchEngineFactory.activeEngine();
+		mTransactionSearchEngine.onBeginTransaction();
+		PropertyEntryBuffer.begin();
+	}
+
+
+	@Override
+	public void onCommit()
+	{
+		SQLiteDatabase db = getDatabaseHelper().getWritableDatabase();
+		if (mBulkLoad)
+		{
+			// this is called right before the commit, so we can still do the deferred work in this transaction
+			finishBulkLoad(db);
+		}
+		// write the property texts of this transaction, one task at a time
+		PropertyEntryBuffer.flush(db, mTransactionSearchEngine);
+		mTransactionSearchEngine.onCommitTransaction(db);
+		SearchSessionCache.invalidate();
+	}
+
+
+	@Override
+	public void onRollback()
+	{
+		if (mBulkLoad)
+		{
+			// drop all the deferred work, the trigger is restored by the rollback
+			discardBulkLoad();
+		}
+		PropertyEntryBuffer.discard();
+		mTransactionSearchEngine.onRollbackTransaction();
+	}
+
+
+	/**
+	 * Returns a copy of the current row of the given {@link Cursor}. The copy is positioned on its only row.
+	 * 
+	 * @param cursor
+	 *            A {@link Cursor} that's positioned on a valid row.
+	 * @return A {@link Cursor} containing a copy of the row.
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static Cursor rowSnapshot(Cursor cursor)
+	{
+		String[] columns = cursor.getColumnNames();
+		Object[] row = new Object[columns.length];
+		for (int i = 0; i < columns.length; ++i)
+		{
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+			{
+				// the cursor doesn't know the column types, but the task columns don't contain blobs
+				row[i] = cursor.getString(i);
+				continue;
+			}
+
+			switch (cursor.getType(i))
+			{
+				case Cursor.FIELD_TYPE_NULL:
+					row[i] = null;
+					break;
+				case Cursor.FIELD_TYPE_INTEGER:
+					row[i] = cursor.getLong(i);
+					break;
+				case Cursor.FIELD_TYPE_FLOAT:
+					row[i] = cursor.getDouble(i);
+					break;
+				case Cursor.FIELD_TYPE_BLOB:
+					row[i] = cursor.getBlob(i);
+					break;
+				default:
+					row[i] = cursor.getString(i);
+			}
+		}
+
+		MatrixCursor result = new MatrixCursor(columns, 1);
+		result.addRow(row);
+		result.moveToFirst();
+		return result;
+	}
+
+
+	/**
+	 * Enters the bulk load mode for the rest of the current transaction, unless it's already active. In bulk load mode all
+	 * {@link DeferrableEntityProcessor}s defer their work and the lists are not marked dirty when tasks are inserted.
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase} of the current transaction.
+	 */
+	@SuppressWarnings("unchecked")
+	private void startBulkLoad(SQLiteDatabase db)
+	{
+		if (mBulkLoad)
+		{
+			return;
+		}
+
+		TaskDatabaseHelper.suspendListDirtyOnInsertTrigger(db);
+		for (EntityProcessor<TaskAdapter> processor : mTaskProcessors)
+		{
+			if (processor instanceof DeferrableEntityProcessor)
+			{
+				((DeferrableEntityProcessor<TaskAdapter>) processor).startDeferring();
+			}
+		}
+		mBulkLoad = true;
+	}
+
+
+	/**
+	 * Leaves the bulk load mode and performs all the deferred work.
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase} of the current transaction.
+	 */
+	@SuppressWarnings("unchecked")
+	private void finishBulkLoad(SQLiteDatabase db)
+	{
+		try
+		{
+			for (EntityProcessor<TaskAdapter> processor : mTaskProcessors)
+			{
+				if (processor instanceof DeferrableEntityProcessor)
+				{
+					((DeferrableEntityProcessor<TaskAdapter>) processor).flushDeferred(db);
+				}
+			}
+			TaskDatabaseHelper.resumeListDirtyOnInsertTrigger(db, mBulkLoadTaskIds.toArray());
+		}
+		finally
+		{
+			// in case anything went wrong the transaction will be rolled back, make sure we don't leave any processor in deferred mode
+			discardBulkLoad();
+		}
+	}
+
+
+	/**
+	 * Leaves the bulk load mode and drops any deferred work.
+	 */
+	@SuppressWarnings("unchecked")
+	private void discardBulkLoad()
+	{
+		mBulkLoad = false;
+		mBulkLoadTaskIds.clear();
+		for (EntityProcessor<TaskAdapter> processor : mTaskProcessors)
+		{
+			if (processor instanceof DeferrableEntityProcessor)
+			{
+				((DeferrableEntityProcessor<TaskAdapter>) processor).discardDeferred();
+			}
+		}
+	}
+
+
 	@Override
 	public SQLiteOpenHelper getDatabaseHelper(Context context)
 	{
@@ -183,7 +183,7 @@ public class CategoryHandler extends PropertyHandler
 		insertRelation(db, taskId, values.getAsLong(Category.CATEGORY_ID), id);
 
 		// update FTS entry with category name
-		updateFTSEntry(db, taskId, id, values.getAsString(Category.CATEGORY_NAME));
+		updateFTSEntry(db, Category.CONTENT_ITEM_TYPE, taskId, id, values, null);
 		return id;
 	}
 
@@ -212,11 +212,8 @@ public class CategoryHandler extends PropertyHandler
 		values = validateValues(db, taskId, propertyId, false, values, isSyncAdapter);
 		values = getOrInsertCategory(db, values);
 
-		if (values.containsKey(Category.CATEGORY_NAME))
-		{
-			// update FTS entry with new category name
-			updateFTSEntry(db, taskId, propertyId, values.getAsString(Category.CATEGORY_NAME));
-		}
+		// update FTS entry with new category name
+		updateFTSEntry(db, Category.CONTENT_ITEM_TYPE, taskId, propertyId, values, oldValues);
 
 		return super.update(db, taskId, propertyId, values, oldValues, isSyncAdapter);
 	}
@@ -17,12 +17,16 @@
 
 package org.dmfs.provider.tasks.handler;
 
+import org.dmfs.provider.tasks.TaskContract.Properties;
+
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
 
 /**
- * This class is used to handle properties with unknown / unsupported mime-types.
+ * This class is used to handle properties with unknown / unsupported mime-types. The texts of comments, attendees, contacts and attachments are added to the
+ * search index by their {@link org.dmfs.provider.tasks.search.PropertyTextExtractor}s.
  * 
  * @author Tobias Reinsch <tobias@dmfs.org>
  * 
@@ -53,4 +57,55 @@ public class DefaultPropertyHandler extends PropertyHandler
 		return values;
 	}
 
+
+	/**
+	 * Inserts the property into the database and adds its text to the search index, if properties of this mimetype are indexed.
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The id of the task the new property belongs to.
+	 * @param values
+	 *            The {@link ContentValues} to insert.
+	 * @param isSyncAdapter
+	 *            Indicates that the transaction was triggered from a SyncAdapter.
+	 * 
+	 * @return The row id of the new property as <code>long</code>
+	 */
+	@Override
+	public long insert(SQLiteDatabase db, long taskId, ContentValues values, boolean isSyncAdapter)
+	{
+		long id = super.insert(db, taskId, values, isSyncAdapter);
+		if (id >= 0)
+		{
+			updateFTSEntry(db, values.getAsString(Properties.MIMETYPE), taskId, id, values, null);
+		}
+		return id;
+	}
+
+
+	/**
+	 * Updates the property in the database and its text in the search index, if properties of this mimetype are indexed.
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The id of the task this property belongs to.
+	 * @param propertyId
+	 *            The id of the property.
+	 * @param values
+	 *            The {@link ContentValues} to update.
+	 * @param oldValues
+	 *            A {@link Cursor} pointing to the old values in the database.
+	 * @param isSyncAdapter
+	 *            Indicates that the transaction was triggered from a SyncAdapter.
+	 * 
+	 * @return The number of rows affected.
+	 */
+	@Override
+	public int update(SQLiteDatabase db, long taskId, long propertyId, ContentValues values, Cursor oldValues, boolean isSyncAdapter)
+	{
+		updateFTSEntry(db, oldValues.getString(oldValues.getColumnIndex(Properties.MIMETYPE)), taskId, propertyId, values, oldValues);
+		return super.update(db, taskId, propertyId, values, oldValues, isSyncAdapter);
+	}
 }
@@ -17,9 +17,11 @@
 
 package org.dmfs.provider.tasks.handler;
 
-import org.dmfs.provider.tasks.FTSDatabaseHelper;
 import org.dmfs.provider.tasks.TaskContract.Properties;
 import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+import org.dmfs.provider.tasks.search.PropertyEntryBuffer;
+import org.dmfs.provider.tasks.search.PropertyTextExtractor;
+import org.dmfs.provider.tasks.search.PropertyTextExtractorFactory;
 
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -126,7 +128,8 @@ public abstract class PropertyHandler
 
 
 	/**
-	 * Method hook to insert FTS entries on database migration.
+	 * Method hook to insert FTS entries on database migration. Within a transaction the entry is written when the transaction is committed, see
+	 * {@link PropertyEntryBuffer}.
 	 * 
 	 * @param db
 	 *            The {@link SQLiteDatabase}.
@@ -134,12 +137,40 @@ public abstract class PropertyHandler
 	 *            the row id of the task this property belongs to
 	 * @param propertyId
 	 *            the id of the property
+	 * @param type
+	 *            the {@link org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes} type of the property
 	 * @param text
 	 *            the searchable text of the property. If the property has multiple text snippets to search in, concat them separated by a space.
 	 */
-	protected void updateFTSEntry(SQLiteDatabase db, long taskId, long propertyId, String text)
+	protected void updateFTSEntry(SQLiteDatabase db, long taskId, long propertyId, int type, String text)
 	{
-		FTSDatabaseHelper.updatePropertyFTSEntry(db, taskId, propertyId, text);
+		PropertyEntryBuffer.update(db, taskId, propertyId, type, text);
+	}
+
 
+	/**
+	 * Updates the FTS entry of a property with the text returned by the {@link PropertyTextExtractor} of its mimetype. Nothing is written if properties of
+	 * this mimetype are not indexed or if an update doesn't change the text.
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param mimeType
+	 *            The mimetype of the property.
+	 * @param taskId
+	 *            the row id of the task this property belongs to
+	 * @param propertyId
+	 *            the id of the property
+	 * @param values
+	 *            The new values of the property.
+	 * @param oldValues
+	 *            A {@link Cursor} pointing to the old values in the database or <code>null</code> if the property is new.
+	 */
+	protected void updateFTSEntry(SQLiteDatabase db, String mimeType, long taskId, long propertyId, ContentValues values, Cursor oldValues)
+	{
+		PropertyTextExtractor extractor = PropertyTextExtractorFactory.get(mimeType);
+		if (extractor != null && (oldValues == null || extractor.isUpdated(values)))
+		{
+			updateFTSEntry(db, taskId, propertyId, extractor.type(), extractor.text(values, oldValues));
+		}
 	}
 }
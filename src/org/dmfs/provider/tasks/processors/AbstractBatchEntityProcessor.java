@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package org.dmfs.provider.tasks.processors;
+
+import java.util.List;
+
+import org.dmfs.provider.tasks.model.EntityAdapter;
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * A default implementation of {@link BatchEntityProcessor} that calls the respective per-entity method for each entity of a chunk. Concrete processors only
+ * need to override the batch methods they can do better.
+ * 
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public abstract class AbstractBatchEntityProcessor<T extends EntityAdapter<?>> extends AbstractEntityProcessor<T> implements BatchEntityProcessor<T>
+{
+	@Override
+	public void beforeInsertBatch(SQLiteDatabase db, List<T> entityAdapters, boolean isSyncAdapter)
+	{
+		for (T entityAdapter : entityAdapters)
+		{
+			beforeInsert(db, entityAdapter, isSyncAdapter);
+		}
+	}
+
+
+	@Override
+	public void afterInsertBatch(SQLiteDatabase db, List<T> entityAdapters, boolean isSyncAdapter)
+	{
+		for (T entityAdapter : entityAdapters)
+		{
+			afterInsert(db, entityAdapter, isSyncAdapter);
+		}
+	}
+
+
+	@Override
+	public void beforeUpdateBatch(SQLiteDatabase db, List<T> entityAdapters, boolean isSyncAdapter)
+	{
+		for (T entityAdapter : entityAdapters)
+		{
+			beforeUpdate(db, entityAdapter, isSyncAdapter);
+		}
+	}
+
+
+	@Override
+	public void afterUpdateBatch(SQLiteDatabase db, List<T> entityAdapters, boolean isSyncAdapter)
+	{
+		for (T entityAdapter : entityAdapters)
+		{
+			afterUpdate(db, entityAdapter, isSyncAdapter);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package org.dmfs.provider.tasks.processors;
+
+import java.util.List;
+
+import org.dmfs.provider.tasks.model.EntityAdapter;
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * An {@link EntityProcessor} that is able to process a chunk of entities at once when many entities are inserted or updated in one call, e.g. by
+ * {@link android.content.ContentProvider#bulkInsert(android.net.Uri, android.content.ContentValues[])}. This allows to replace one statement per entity by a
+ * few statements per chunk.
+ * <p>
+ * Within a chunk a batch method is called instead of the respective per-entity method. The after batch methods are called once all entities of the chunk
+ * have been written. The before batch methods are only called if all processors before this one support batches, otherwise the per-entity before method
+ * is called for each entity, because the entities are written one by one. So a before batch method must not rely on the before methods of later processors
+ * having run for any entity of the chunk. See
+ * {@link org.dmfs.provider.tasks.ProviderOperation#executeBatch(SQLiteDatabase, List, List, boolean, org.dmfs.provider.tasks.ProviderOperationsLog, String)}.
+ * </p>
+ * 
+ * @param <T>
+ *            The type of the entity adapter.
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public interface BatchEntityProcessor<T extends EntityAdapter<?>> extends EntityProcessor<T>
+{
+	/**
+	 * Called before a chunk of entities is inserted, if all processors before this one support batches.
+	 * 
+	 * @param db
+	 *            A writable database.
+	 * @param entityAdapters
+	 *            The {@link EntityAdapter}s that are about to be inserted, in the order of insertion. You can modify the entities at this stage.
+	 * @param isSyncAdapter
+	 *            <code>true</code> if the caller is a sync adapter, false otherwise.
+	 */
+	public void beforeInsertBatch(SQLiteDatabase db, List<T> entityAdapters, boolean isSyncAdapter);
+
+
+	/**
+	 * Called after a chunk of entities has been inserted.
+	 * 
+	 * @param db
+	 *            A writable database.
+	 * @param entityAdapters
+	 *            The {@link EntityAdapter}s that have been inserted, in the order of insertion. Modifying the entities has no effect.
+	 * @param isSyncAdapter
+	 *            <code>true</code> if the caller is a sync adapter, false otherwise.
+	 */
+	public void afterInsertBatch(SQLiteDatabase db, List<T> entityAdapters, boolean isSyncAdapter);
+
+
+	/**
+	 * Called before a chunk of entities is updated, if all processors before this one support batches.
+	 * 
+	 * @param db
+	 *            A writable database.
+	 * @param entityAdapters
+	 *            The {@link EntityAdapter}s that are about to be updated. You can modify the entities at this stage.
+	 * @param isSyncAdapter
+	 *            <code>true</code> if the caller is a sync adapter, false otherwise.
+	 */
+	public void beforeUpdateBatch(SQLiteDatabase db, List<T> entityAdapters, boolean isSyncAdapter);
+
+
+	/**
+	 * Called after a chunk of entities has been updated.
+	 * 
+	 * @param db
+	 *            A writable database.
+	 * @param entityAdapters
+	 *            The {@link EntityAdapter}s that have been updated. Modifying the entities has no effect.
+	 * @param isSyncAdapter
+	 *            <code>true</code> if the caller is a sync adapter, false otherwise.
+	 */
+	public void afterUpdateBatch(SQLiteDatabase db, List<T> entityAdapters, boolean isSyncAdapter);
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package org.dmfs.provider.tasks.processors;
+
+import org.dmfs.provider.tasks.model.EntityAdapter;
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * An {@link EntityProcessor} that is able to defer its work when a large number of entities is inserted or updated. The deferred work is done for all entities
+ * at once, which is usually much faster than doing it entity by entity.
+ * 
+ * @param <T>
+ *            The type of the entity adapter.
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public interface DeferrableEntityProcessor<T extends EntityAdapter<?>> extends EntityProcessor<T>
+{
+	/**
+	 * Start deferring the work until {@link #flushDeferred(SQLiteDatabase)} or {@link #discardDeferred()} is called.
+	 */
+	public void startDeferring();
+
+
+	/**
+	 * Perform all deferred work and stop deferring. This must be called within the transaction that the work has been deferred in.
+	 * 
+	 * @param db
+	 *            A writable database.
+	 */
+	public void flushDeferred(SQLiteDatabase db);
+
+
+	/**
+	 * Drop all deferred work and stop deferring. Call this if the transaction that the work has been deferred in has been rolled back.
+	 */
+	public void discardDeferred();
+}
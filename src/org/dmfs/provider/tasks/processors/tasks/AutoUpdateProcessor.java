@@ -23,6 +23,7 @@ import org.dmfs.provider.tasks.TaskDatabaseHelper;
 import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
 import org.dmfs.provider.tasks.model.TaskAdapter;
 import org.dmfs.provider.tasks.processors.AbstractEntityProcessor;
+import org.dmfs.provider.tasks.search.SearchEngineFactory;
 import org.dmfs.rfc5545.DateTime;
 
 import android.content.ContentValues;
@@ -91,6 +92,13 @@ public class AutoUpdateProcessor extends AbstractEntityProcessor<TaskAdapter>
 			TaskAdapter.ORIGINAL_INSTANCE_SYNC_ID.setIn(values, task.valueOf(TaskAdapter.SYNC_ID));
 			db.update(TaskDatabaseHelper.Tables.TASKS, values, TaskContract.Tasks.ORIGINAL_INSTANCE_ID + "=" + task.id(), null);
 		}
+
+		if (task.isUpdated(TaskAdapter.IS_CLOSED))
+		{
+			// move the search index entries of the task to the partition of its new state
+			Boolean closed = task.valueOf(TaskAdapter.IS_CLOSED);
+			SearchEngineFactory.activeEngine().updateTaskState(db, task.id(), closed != null && closed);
+		}
 	}
 
 
@@ -17,31 +17,86 @@
 
 package org.dmfs.provider.tasks.processors.tasks;
 
-import org.dmfs.provider.tasks.FTSDatabaseHelper;
+import org.dmfs.ngrams.LongSet;
 import org.dmfs.provider.tasks.model.TaskAdapter;
 import org.dmfs.provider.tasks.processors.AbstractEntityProcessor;
+import org.dmfs.provider.tasks.processors.DeferrableEntityProcessor;
+import org.dmfs.provider.tasks.search.SearchEngineFactory;
 
 import android.database.sqlite.SQLiteDatabase;
 
 
 /**
- * A {@link TaskProcessor} to update the fast text search table when inserting or updating a task.
+ * A {@link TaskProcessor} to update the search index of the active {@link org.dmfs.provider.tasks.search.SearchEngine} when inserting or updating a task.
+ * <p>
+ * When deferring, this just collects the ids of the tasks to update and updates all of them in {@link #flushDeferred(SQLiteDatabase)}.
+ * </p>
  * 
  * @author Marten Gajda <marten@dmfs.org>
  */
-public class FtsProcessor extends AbstractEntityProcessor<TaskAdapter>
+public class FtsProcessor extends AbstractEntityProcessor<TaskAdapter> implements DeferrableEntityProcessor<TaskAdapter>
 {
+	private final LongSet mDeferredTaskIds = new LongSet(1024);
+
+	private boolean mDeferring;
+
 
 	@Override
 	public void afterInsert(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
 	{
-		FTSDatabaseHelper.updateTaskFTSEntries(db, task);
+		if (mDeferring)
+		{
+			mDeferredTaskIds.add(task.id());
+			return;
+		}
+		SearchEngineFactory.activeEngine().updateTaskEntries(db, task);
 	}
 
 
 	@Override
 	public void afterUpdate(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
 	{
-		FTSDatabaseHelper.updateTaskFTSEntries(db, task);
+		if (mDeferring)
+		{
+			if (task.isUpdated(TaskAdapter.TITLE) || task.isUpdated(TaskAdapter.LOCATION) || task.isUpdated(TaskAdapter.DESCRIPTION))
+			{
+				mDeferredTaskIds.add(task.id());
+			}
+			return;
+		}
+		SearchEngineFactory.activeEngine().updateTaskEntries(db, task);
+	}
+
+
+	@Override
+	public void startDeferring()
+	{
+		mDeferring = true;
+	}
+
+
+	@Override
+	public void flushDeferred(SQLiteDatabase db)
+	{
+		mDeferring = false;
+		try
+		{
+			if (!mDeferredTaskIds.isEmpty())
+			{
+				SearchEngineFactory.activeEngine().updateTaskEntries(db, mDeferredTaskIds.toArray());
+			}
+		}
+		finally
+		{
+			mDeferredTaskIds.clear();
+		}
+	}
+
+
+	@Override
+	public void discardDeferred()
+	{
+		mDeferring = false;
+		mDeferredTaskIds.clear();
 	}
 }
@@ -17,11 +17,16 @@
 
 package org.dmfs.provider.tasks.processors.tasks;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.dmfs.provider.tasks.TaskContract.Property.Relation;
 import org.dmfs.provider.tasks.TaskContract.Tasks;
 import org.dmfs.provider.tasks.TaskDatabaseHelper;
 import org.dmfs.provider.tasks.model.TaskAdapter;
-import org.dmfs.provider.tasks.processors.AbstractEntityProcessor;
+import org.dmfs.provider.tasks.processors.AbstractBatchEntityProcessor;
 
 import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
@@ -36,12 +41,29 @@ import android.database.sqlite.SQLiteDatabase;
  * <p>
  * It also updates {@link Relation#RELATED_UID} when a tasks is synced the first time and a UID has been set.
  * </p>
+ * <p>
+ * When a chunk of tasks is inserted or updated, the relations of all tasks of the chunk are updated with a single statement.
+ * </p>
  * TODO: update {@link Tasks#PARENT_ID} of related tasks.
  * 
  * @author Marten Gajda <marten@dmfs.org>
  */
-public class RelationProcessor extends AbstractEntityProcessor<TaskAdapter>
+public class RelationProcessor extends AbstractBatchEntityProcessor<TaskAdapter>
 {
+	/**
+	 * Updates the {@link Relation#RELATED_ID} of all relations to a number of UIDs. The first argument is the mime type, the following arguments are the UIDs.
+	 * The first placeholder takes the CASE branches that map the UIDs to task ids, the second one takes the placeholders of the UIDs.
+	 */
+	private final static String SQL_UPDATE_RELATED_IDS = "UPDATE " + TaskDatabaseHelper.Tables.PROPERTIES + " SET " + Relation.RELATED_ID + " = CASE "
+		+ Relation.RELATED_UID + "%s END WHERE " + Relation.MIMETYPE + " = ?1 AND " + Relation.RELATED_UID + " in (%s)";
+
+	/**
+	 * Updates the {@link Relation#RELATED_UID} of all relations to a number of task ids. The first argument is the mime type, the following arguments are the
+	 * UIDs. The first placeholder takes the CASE branches that map the task ids to UIDs, the second one takes the task id selection.
+	 */
+	private final static String SQL_UPDATE_RELATED_UIDS = "UPDATE " + TaskDatabaseHelper.Tables.PROPERTIES + " SET " + Relation.RELATED_UID + " = CASE "
+		+ Relation.RELATED_ID + "%s END WHERE " + Relation.MIMETYPE + " = ?1 AND %s";
+
 
 	@Override
 	public void afterInsert(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
@@ -91,6 +113,88 @@ public class RelationProcessor extends AbstractEntityProcessor<TaskAdapter>
 	}
 
 
+	@Override
+	public void afterInsertBatch(SQLiteDatabase db, List<TaskAdapter> tasks, boolean isSyncAdapter)
+	{
+		if (!isSyncAdapter)
+		{
+			// the tasks were created on the device, so they don't have a UID
+			return;
+		}
+
+		// the task ids by UID, if multiple tasks share a UID the last one wins, just like with single inserts
+		Map<String, Long> taskIds = new LinkedHashMap<String, Long>(tasks.size() * 2);
+		for (TaskAdapter task : tasks)
+		{
+			String uid = task.valueOf(TaskAdapter._UID);
+			if (uid != null)
+			{
+				taskIds.put(uid, task.id());
+			}
+		}
+
+		List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(taskIds.entrySet());
+		for (int start = 0; start < entries.size(); start += TaskDatabaseHelper.MAX_INLINE_IDS)
+		{
+			int end = Math.min(entries.size(), start + TaskDatabaseHelper.MAX_INLINE_IDS);
+			StringBuilder cases = new StringBuilder((end - start) * 24);
+			StringBuilder uids = new StringBuilder((end - start) * 5);
+			Object[] args = new Object[end - start + 1];
+			args[0] = Relation.CONTENT_ITEM_TYPE;
+			for (int i = start; i < end; ++i)
+			{
+				int arg = i - start + 2;
+				cases.append(" WHEN ?").append(arg).append(" THEN ").append(entries.get(i).getValue());
+				if (i > start)
+				{
+					uids.append(',');
+				}
+				uids.append('?').append(arg);
+				args[arg - 1] = entries.get(i).getKey();
+			}
+			db.execSQL(String.format(SQL_UPDATE_RELATED_IDS, cases, uids), args);
+		}
+	}
+
+
+	@Override
+	public void afterUpdateBatch(SQLiteDatabase db, List<TaskAdapter> tasks, boolean isSyncAdapter)
+	{
+		if (!isSyncAdapter)
+		{
+			// only sync adapters may assign a UID
+			return;
+		}
+
+		List<TaskAdapter> tasksWithUid = new ArrayList<TaskAdapter>(tasks.size());
+		for (TaskAdapter task : tasks)
+		{
+			if (task.valueOf(TaskAdapter._UID) != null)
+			{
+				tasksWithUid.add(task);
+			}
+		}
+
+		for (int start = 0; start < tasksWithUid.size(); start += TaskDatabaseHelper.MAX_INLINE_IDS)
+		{
+			int end = Math.min(tasksWithUid.size(), start + TaskDatabaseHelper.MAX_INLINE_IDS);
+			StringBuilder cases = new StringBuilder((end - start) * 24);
+			long[] ids = new long[end - start];
+			Object[] args = new Object[end - start + 1];
+			args[0] = Relation.CONTENT_ITEM_TYPE;
+			for (int i = start; i < end; ++i)
+			{
+				TaskAdapter task = tasksWithUid.get(i);
+				int arg = i - start + 2;
+				cases.append(" WHEN ").append(task.id()).append(" THEN ?").append(arg);
+				ids[i - start] = task.id();
+				args[arg - 1] = task.valueOf(TaskAdapter._UID);
+			}
+			db.execSQL(String.format(SQL_UPDATE_RELATED_UIDS, cases, TaskDatabaseHelper.createIdSelection(Relation.RELATED_ID, ids, 0, ids.length)), args);
+		}
+	}
+
+
 	@Override
 	public void afterDelete(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
 	{
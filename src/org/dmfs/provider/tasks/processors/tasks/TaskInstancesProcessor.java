@@ -18,19 +18,27 @@
 package org.dmfs.provider.tasks.processors.tasks;
 
 import java.sql.RowId;
+import java.util.List;
 import java.util.TimeZone;
 
+import org.dmfs.ngrams.LongSet;
 import org.dmfs.provider.tasks.TaskContract;
 import org.dmfs.provider.tasks.TaskContract.Instances;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper;
 import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+import org.dmfs.provider.tasks.model.CursorContentValuesTaskAdapter;
 import org.dmfs.provider.tasks.model.TaskAdapter;
 import org.dmfs.provider.tasks.model.adapters.BooleanFieldAdapter;
-import org.dmfs.provider.tasks.processors.AbstractEntityProcessor;
+import org.dmfs.provider.tasks.processors.AbstractBatchEntityProcessor;
+import org.dmfs.provider.tasks.processors.DeferrableEntityProcessor;
 import org.dmfs.rfc5545.DateTime;
 import org.dmfs.rfc5545.Duration;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 
 
@@ -38,10 +46,15 @@ import android.net.Uri;
  * A processor that creates or updates any instance values for a task.
  * <p/>
  * TODO: At present this does not support recurrence.
+ * <p/>
+ * When deferring, this just collects the ids of the tasks that have been inserted or updated and creates or updates their instances in
+ * {@link #flushDeferred(SQLiteDatabase)}.
+ * <p/>
+ * When a chunk of tasks is inserted or updated, and when the deferred work is done, the instances are written with a single prepared statement.
  * 
  * @author Marten Gajda <marten@dmfs.org>
  */
-public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
+public class TaskInstancesProcessor extends AbstractBatchEntityProcessor<TaskAdapter> implements DeferrableEntityProcessor<TaskAdapter>
 {
 
 	/**
@@ -51,6 +64,32 @@ public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
 	private final static BooleanFieldAdapter<TaskAdapter> UPDATE_REQUESTED = new BooleanFieldAdapter<TaskAdapter>(
 		"org.dmfs.tasks.TaskInstanceProcessor.UPDATE_REQUESTED");
 
+	/**
+	 * The instance columns in the order they are bound to {@link #SQL_INSERT_INSTANCE} and {@link #SQL_UPDATE_INSTANCE}. The task id is bound last.
+	 */
+	private final static String[] INSTANCE_COLUMNS = { Instances.INSTANCE_START, Instances.INSTANCE_START_SORTING, Instances.INSTANCE_DUE,
+		Instances.INSTANCE_DUE_SORTING, Instances.INSTANCE_DURATION };
+
+	private final static String SQL_INSERT_INSTANCE = "INSERT INTO " + Tables.INSTANCES + " (" + Instances.INSTANCE_START + ", "
+		+ Instances.INSTANCE_START_SORTING + ", " + Instances.INSTANCE_DUE + ", " + Instances.INSTANCE_DUE_SORTING + ", " + Instances.INSTANCE_DURATION + ", "
+		+ Instances.TASK_ID + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+	private final static String SQL_UPDATE_INSTANCE = "UPDATE " + Tables.INSTANCES + " SET " + Instances.INSTANCE_START + " = ?, "
+		+ Instances.INSTANCE_START_SORTING + " = ?, " + Instances.INSTANCE_DUE + " = ?, " + Instances.INSTANCE_DUE_SORTING + " = ?, "
+		+ Instances.INSTANCE_DURATION + " = ? WHERE " + Instances.TASK_ID + " = ?";
+
+	/**
+	 * The ids of the tasks that have been inserted while deferring.
+	 */
+	private final LongSet mDeferredInserts = new LongSet(1024);
+
+	/**
+	 * The ids of the tasks that have been updated while deferring.
+	 */
+	private final LongSet mDeferredUpdates = new LongSet(1024);
+
+	private boolean mDeferring;
+
 
 	/**
 	 * Add a pseudo column to the given {@link ContentValues} to request an instances update, even if no time value has changed.
@@ -67,6 +106,11 @@ public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
 	@Override
 	public void afterInsert(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
 	{
+		if (mDeferring)
+		{
+			mDeferredInserts.add(task.id());
+			return;
+		}
 		createInstances(db, task);
 	}
 
@@ -92,10 +136,203 @@ public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
 			// date values didn't change and update not requested
 			return;
 		}
+
+		if (mDeferring)
+		{
+			if (!mDeferredInserts.contains(task.id()))
+			{
+				mDeferredUpdates.add(task.id());
+			}
+			return;
+		}
 		updateInstances(db, task);
 	}
 
 
+	@Override
+	public void afterInsertBatch(SQLiteDatabase db, List<TaskAdapter> tasks, boolean isSyncAdapter)
+	{
+		if (mDeferring)
+		{
+			for (TaskAdapter task : tasks)
+			{
+				mDeferredInserts.add(task.id());
+			}
+			return;
+		}
+
+		SQLiteStatement statement = db.compileStatement(SQL_INSERT_INSTANCE);
+		try
+		{
+			for (TaskAdapter task : tasks)
+			{
+				writeInstances(statement, task, true);
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+
+	@Override
+	public void afterUpdateBatch(SQLiteDatabase db, List<TaskAdapter> tasks, boolean isSyncAdapter)
+	{
+		SQLiteStatement statement = null;
+		try
+		{
+			for (TaskAdapter task : tasks)
+			{
+				if (!task.isUpdated(TaskAdapter.DTSTART) && !task.isUpdated(TaskAdapter.DUE) && !task.isUpdated(TaskAdapter.DURATION)
+					&& !task.getState(UPDATE_REQUESTED))
+				{
+					// date values didn't change and update not requested
+					continue;
+				}
+
+				if (mDeferring)
+				{
+					if (!mDeferredInserts.contains(task.id()))
+					{
+						mDeferredUpdates.add(task.id());
+					}
+					continue;
+				}
+
+				if (statement == null)
+				{
+					statement = db.compileStatement(SQL_UPDATE_INSTANCE);
+				}
+				writeInstances(statement, task, false);
+			}
+		}
+		finally
+		{
+			if (statement != null)
+			{
+				statement.close();
+			}
+		}
+	}
+
+
+	@Override
+	public void startDeferring()
+	{
+		mDeferring = true;
+	}
+
+
+	@Override
+	public void flushDeferred(SQLiteDatabase db)
+	{
+		mDeferring = false;
+		try
+		{
+			if (!mDeferredInserts.isEmpty())
+			{
+				processDeferred(db, mDeferredInserts.toArray(), true);
+			}
+			if (!mDeferredUpdates.isEmpty())
+			{
+				processDeferred(db, mDeferredUpdates.toArray(), false);
+			}
+		}
+		finally
+		{
+			mDeferredInserts.clear();
+			mDeferredUpdates.clear();
+		}
+	}
+
+
+	@Override
+	public void discardDeferred()
+	{
+		mDeferring = false;
+		mDeferredInserts.clear();
+		mDeferredUpdates.clear();
+	}
+
+
+	/**
+	 * Creates or updates the instances of the given tasks. The tasks are loaded in chunks.
+	 * 
+	 * @param db
+	 *            A writable {@link SQLiteDatabase}.
+	 * @param taskIds
+	 *            The ids of the tasks.
+	 * @param insert
+	 *            <code>true</code> to create new instances, <code>false</code> to update the existing instances.
+	 */
+	private void processDeferred(SQLiteDatabase db, long[] taskIds, boolean insert)
+	{
+		SQLiteStatement statement = db.compileStatement(insert ? SQL_INSERT_INSTANCE : SQL_UPDATE_INSTANCE);
+		try
+		{
+			for (int start = 0; start < taskIds.length; start += TaskDatabaseHelper.MAX_INLINE_IDS)
+			{
+				int end = Math.min(taskIds.length, start + TaskDatabaseHelper.MAX_INLINE_IDS);
+				Cursor cursor = db.query(Tables.TASKS, null, TaskDatabaseHelper.createIdSelection(Tasks._ID, taskIds, start, end), null, null, null, null);
+				try
+				{
+					while (cursor.moveToNext())
+					{
+						writeInstances(statement, new CursorContentValuesTaskAdapter(cursor, new ContentValues()), insert);
+					}
+				}
+				finally
+				{
+					cursor.close();
+				}
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+
+	/**
+	 * Creates or updates the instances of the given task with a compiled {@link #SQL_INSERT_INSTANCE} or {@link #SQL_UPDATE_INSTANCE} statement.
+	 * 
+	 * @param statement
+	 *            The compiled statement.
+	 * @param task
+	 *            The {@link TaskAdapter} of the task.
+	 * @param insert
+	 *            <code>true</code> if the statement inserts new instances, <code>false</code> if it updates the existing instances.
+	 */
+	private void writeInstances(SQLiteStatement statement, TaskAdapter task, boolean insert)
+	{
+		ContentValues instanceValues = generateInstanceValues(task);
+		for (int i = 0; i < INSTANCE_COLUMNS.length; ++i)
+		{
+			Long value = instanceValues.getAsLong(INSTANCE_COLUMNS[i]);
+			if (value == null)
+			{
+				statement.bindNull(i + 1);
+			}
+			else
+			{
+				statement.bindLong(i + 1, value);
+			}
+		}
+		statement.bindLong(INSTANCE_COLUMNS.length + 1, task.id());
+
+		if (insert)
+		{
+			statement.executeInsert();
+		}
+		else
+		{
+			statement.execute();
+		}
+	}
+
+
 	/**
 	 * Create new {@link ContentValues} for insertion into the instances table.
 	 * 
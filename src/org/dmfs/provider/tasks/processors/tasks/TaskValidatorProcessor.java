@@ -17,11 +17,15 @@
 
 package org.dmfs.provider.tasks.processors.tasks;
 
+import java.util.List;
+
+import org.dmfs.ngrams.LongSet;
 import org.dmfs.provider.tasks.TaskContract.TaskLists;
 import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper;
 import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
 import org.dmfs.provider.tasks.model.TaskAdapter;
-import org.dmfs.provider.tasks.processors.AbstractEntityProcessor;
+import org.dmfs.provider.tasks.processors.AbstractBatchEntityProcessor;
 import org.dmfs.rfc5545.Duration;
 
 import android.database.Cursor;
@@ -30,10 +34,13 @@ import android.database.sqlite.SQLiteDatabase;
 
 /**
  * A processor that validates the values of a task.
+ * <p>
+ * When a chunk of tasks is inserted, the list ids of all tasks are checked with a single query.
+ * </p>
  * 
  * @author Marten Gajda <marten@dmfs.org>
  */
-public class TaskValidatorProcessor extends AbstractEntityProcessor<TaskAdapter>
+public class TaskValidatorProcessor extends AbstractBatchEntityProcessor<TaskAdapter>
 {
 
 	private static final String[] TASKLIST_ID_PROJECTION = { TaskLists._ID };
@@ -73,6 +80,48 @@ public class TaskValidatorProcessor extends AbstractEntityProcessor<TaskAdapter>
 	}
 
 
+	@Override
+	public void beforeInsertBatch(SQLiteDatabase db, List<TaskAdapter> tasks, boolean isSyncAdapter)
+	{
+		LongSet listIds = new LongSet(16);
+		for (TaskAdapter task : tasks)
+		{
+			verifyCommon(task, isSyncAdapter);
+
+			// LIST_ID must be present and refer to an existing TaskList row id
+			Long listId = task.valueOf(TaskAdapter.LIST_ID);
+			if (listId == null)
+			{
+				throw new IllegalArgumentException("LIST_ID is required on INSERT");
+			}
+			listIds.add(listId);
+		}
+
+		// usually all tasks of a chunk belong to the same few lists
+		long[] ids = listIds.toArray();
+		int found = 0;
+		for (int start = 0; start < ids.length; start += TaskDatabaseHelper.MAX_INLINE_IDS)
+		{
+			int end = Math.min(ids.length, start + TaskDatabaseHelper.MAX_INLINE_IDS);
+			Cursor cursor = db.query(Tables.LISTS, TASKLIST_ID_PROJECTION, TaskDatabaseHelper.createIdSelection(TaskLists._ID, ids, start, end), null, null,
+				null, null);
+			try
+			{
+				found += cursor.getCount();
+			}
+			finally
+			{
+				cursor.close();
+			}
+		}
+
+		if (found != ids.length)
+		{
+			throw new IllegalArgumentException("LIST_ID must refer to an existing TaskList");
+		}
+	}
+
+
 	@Override
 	public void beforeUpdate(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
 	{
@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.dmfs.provider.tasks.FTSDatabaseHelper;
+import org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes;
+import org.dmfs.provider.tasks.TaskContract.Instances;
+import org.dmfs.provider.tasks.TaskContract.Properties;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+import org.dmfs.provider.tasks.model.TaskAdapter;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+
+/**
+ * A {@link SearchEngine} that uses an SQLite FTS4 virtual table with a prefix index. Each title, description, location and property text is stored as one
+ * document, so the index is much smaller than the N-gram index and it's updated with a few writes per text.
+ * <p>
+ * In contrast to the {@link NGramSearchEngine} this engine matches word beginnings only, i.e. "meet" finds "meeting", but "ting" doesn't. The score of a task
+ * is the fraction of the query words it matches, weighted by the type of the entries they match.
+ * </p>
+ * <p>
+ * The document id of a task text is <code>task id * 8 + type</code> (see {@link SearchableTypes}), the document id of a property text is the negative property
+ * id. That allows to update a text without looking up its document first.
+ * </p>
+ * <p>
+ * Note that the FTS4 prefix index requires SQLite 3.7.7, which ships with Android 4.1 and later.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class Fts4SearchEngine implements SearchEngine
+{
+	public final static String NAME = "fts4";
+
+	/**
+	 * The name of the FTS4 table.
+	 */
+	public final static String FTS4_TABLE = "Search_Fts4";
+
+	/**
+	 * The columns of the FTS4 table.
+	 */
+	public interface Fts4Columns
+	{
+		/**
+		 * The normalized text of the entry.
+		 */
+		public static final String TEXT = "fts4_text";
+
+		/**
+		 * The row id of the task of the entry.
+		 */
+		public static final String TASK_ID = "fts4_task_id";
+
+		/**
+		 * The {@link SearchableTypes} type of the entry.
+		 */
+		public static final String TYPE = "fts4_type";
+	}
+
+	/**
+	 * The maximum number of query words we search for. Any further words are ignored.
+	 */
+	private final static int MAX_QUERY_TOKENS = 16;
+
+	/**
+	 * The alias of the task id column in the search result sub-query.
+	 */
+	private final static String RESULT_TASK_ID = "search_task_id";
+
+	/**
+	 * SQL command to create the FTS4 table. The prefix index covers prefixes of 2 and 3 characters, longer prefixes are rare enough to do a range scan.
+	 */
+	private final static String SQL_CREATE_FTS4_TABLE = "CREATE VIRTUAL TABLE IF NOT EXISTS " + FTS4_TABLE + " USING fts4(" + Fts4Columns.TEXT + ", "
+		+ Fts4Columns.TASK_ID + ", " + Fts4Columns.TYPE + ", prefix=\"2,3\")";
+
+	private final static String SQL_DROP_FTS4_TABLE = "DROP TABLE IF EXISTS " + FTS4_TABLE;
+
+	private final static String SQL_CREATE_TASK_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS search_fts4_task_delete_trigger AFTER DELETE ON "
+		+ Tables.TASKS + " BEGIN DELETE FROM " + FTS4_TABLE + " WHERE docid = old." + Tasks._ID + " * 8 + " + SearchableTypes.TITLE + "; DELETE FROM "
+		+ FTS4_TABLE + " WHERE docid = old." + Tasks._ID + " * 8 + " + SearchableTypes.DESCRIPTION + "; DELETE FROM " + FTS4_TABLE + " WHERE docid = old."
+		+ Tasks._ID + " * 8 + " + SearchableTypes.LOCATION + "; END";
+
+	private final static String SQL_CREATE_PROPERTY_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS search_fts4_property_delete_trigger AFTER DELETE ON "
+		+ Tables.PROPERTIES + " BEGIN DELETE FROM " + FTS4_TABLE + " WHERE docid = -old." + Properties.PROPERTY_ID + "; END";
+
+	private final static String SQL_DROP_TASK_DELETE_TRIGGER = "DROP TRIGGER IF EXISTS search_fts4_task_delete_trigger";
+
+	private final static String SQL_DROP_PROPERTY_DELETE_TRIGGER = "DROP TRIGGER IF EXISTS search_fts4_property_delete_trigger";
+
+	private final static String SQL_INSERT_ENTRY = "INSERT INTO " + FTS4_TABLE + " (docid, " + Fts4Columns.TEXT + ", " + Fts4Columns.TASK_ID + ", "
+		+ Fts4Columns.TYPE + ") VALUES (?, ?, ?, ?)";
+
+	private final static String SQL_DELETE_ENTRY = "DELETE FROM " + FTS4_TABLE + " WHERE docid = ?";
+
+	private final static String SQL_OPTIMIZE = "INSERT INTO " + FTS4_TABLE + " (" + FTS4_TABLE + ") VALUES ('optimize')";
+
+	/**
+	 * The search query. The score of a query word is the highest weight of the types of the entries it's found in, the score of a task is the sum of the
+	 * scores of its words divided by the number of query words.
+	 * <p>
+	 * The arguments are: 1) the UNION of the word queries, 2) the number of query words, 3) the selection, 4) the sort order and 5) the limit clause.
+	 * </p>
+	 */
+	private final static String SQL_RAW_QUERY_SEARCH_TASK = "SELECT " + Tables.INSTANCE_VIEW + ".*, " + Tasks.SCORE + " FROM (SELECT " + RESULT_TASK_ID
+		+ ", sum(token_score) / %2$d AS " + Tasks.SCORE + " FROM (SELECT CAST(" + Fts4Columns.TASK_ID + " AS INTEGER) AS " + RESULT_TASK_ID + ", max("
+		+ FTSDatabaseHelper.typeWeightExpression("CAST(" + Fts4Columns.TYPE + " AS INTEGER)") + ") AS token_score FROM (%1$s) GROUP BY " + RESULT_TASK_ID
+		+ ", token) GROUP BY " + RESULT_TASK_ID + ") JOIN " + Tables.INSTANCE_VIEW + " ON (" + Tables.INSTANCE_VIEW + "." + Instances.TASK_ID + " = "
+		+ RESULT_TASK_ID + ") WHERE %3$s ORDER BY %4$s%5$s";
+
+	private final static String SQL_RAW_QUERY_SEARCH_TOKEN = "SELECT " + Fts4Columns.TASK_ID + ", " + Fts4Columns.TYPE + ", %d AS token FROM " + FTS4_TABLE
+		+ " WHERE " + Fts4Columns.TEXT + " MATCH ?";
+
+	private final static String SQL_RAW_QUERY_NO_RESULT = "SELECT " + Tables.INSTANCE_VIEW + ".*, 0 AS " + Tasks.SCORE + " FROM " + Tables.INSTANCE_VIEW
+		+ " WHERE 0";
+
+
+	@Override
+	public String name()
+	{
+		return NAME;
+	}
+
+
+	@Override
+	public void rebuildIndex(SQLiteDatabase db)
+	{
+		createIndex(db);
+		db.delete(FTS4_TABLE, null, null);
+
+		EntryWriter writer = new EntryWriter(db, false);
+		try
+		{
+			Cursor c = db.query(Tables.TASKS, new String[] { Tasks._ID, Tasks.TITLE, Tasks.DESCRIPTION, Tasks.LOCATION }, null, null, null, null, null);
+			try
+			{
+				while (c.moveToNext())
+				{
+					long taskId = c.getLong(0);
+					writer.write(taskDocId(taskId, SearchableTypes.TITLE), taskId, SearchableTypes.TITLE, c.getString(1));
+					writer.write(taskDocId(taskId, SearchableTypes.DESCRIPTION), taskId, SearchableTypes.DESCRIPTION, c.getString(2));
+					writer.write(taskDocId(taskId, SearchableTypes.LOCATION), taskId, SearchableTypes.LOCATION, c.getString(3));
+				}
+			}
+			finally
+			{
+				c.close();
+			}
+
+			c = PropertyTextExtractorFactory.queryProperties(db, null);
+			try
+			{
+				while (c.moveToNext())
+				{
+					writer.write(-c.getLong(1), c.getLong(0), PropertyTextExtractorFactory.type(c), PropertyTextExtractorFactory.text(c));
+				}
+			}
+			finally
+			{
+				c.close();
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		optimizeIndex(db);
+	}
+
+
+	@Override
+	public void createIndex(SQLiteDatabase db)
+	{
+		db.execSQL(SQL_CREATE_FTS4_TABLE);
+		db.execSQL(SQL_CREATE_TASK_DELETE_TRIGGER);
+		db.execSQL(SQL_CREATE_PROPERTY_DELETE_TRIGGER);
+	}
+
+
+	@Override
+	public void optimizeIndex(SQLiteDatabase db)
+	{
+		// merge all index segments, this makes the index smaller and faster
+		db.execSQL(SQL_OPTIMIZE);
+	}
+
+
+	@Override
+	public boolean needsOptimization()
+	{
+		// FTS4 merges its segments automatically
+		return false;
+	}
+
+
+	@Override
+	public void dropIndex(SQLiteDatabase db)
+	{
+		db.execSQL(SQL_DROP_TASK_DELETE_TRIGGER);
+		db.execSQL(SQL_DROP_PROPERTY_DELETE_TRIGGER);
+		db.execSQL(SQL_DROP_FTS4_TABLE);
+	}
+
+
+	@Override
+	public void updateTaskEntries(SQLiteDatabase db, TaskAdapter task)
+	{
+		if (!task.isUpdated(TaskAdapter.TITLE) && !task.isUpdated(TaskAdapter.LOCATION) && !task.isUpdated(TaskAdapter.DESCRIPTION))
+		{
+			return;
+		}
+
+		long taskId = task.id();
+		EntryWriter writer = new EntryWriter(db, true);
+		try
+		{
+			if (task.isUpdated(TaskAdapter.TITLE))
+			{
+				writer.write(taskDocId(taskId, SearchableTypes.TITLE), taskId, SearchableTypes.TITLE, task.valueOf(TaskAdapter.TITLE));
+			}
+
+			if (task.isUpdated(TaskAdapter.LOCATION))
+			{
+				writer.write(taskDocId(taskId, SearchableTypes.LOCATION), taskId, SearchableTypes.LOCATION, task.valueOf(TaskAdapter.LOCATION));
+			}
+
+			if (task.isUpdated(TaskAdapter.DESCRIPTION))
+			{
+				writer.write(taskDocId(taskId, SearchableTypes.DESCRIPTION), taskId, SearchableTypes.DESCRIPTION, task.valueOf(TaskAdapter.DESCRIPTION));
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+
+	@Override
+	public void updateTaskEntries(SQLiteDatabase db, long[] taskIds)
+	{
+		String[] projection = new String[] { Tasks._ID, Tasks.TITLE, Tasks.DESCRIPTION, Tasks.LOCATION };
+		EntryWriter writer = new EntryWriter(db, true);
+		try
+		{
+			for (int start = 0; start < taskIds.length; start += TaskDatabaseHelper.MAX_INLINE_IDS)
+			{
+				int end = Math.min(taskIds.length, start + TaskDatabaseHelper.MAX_INLINE_IDS);
+				Cursor c = db.query(Tables.TASKS, projection, TaskDatabaseHelper.createIdSelection(Tasks._ID, taskIds, start, end), null, null, null, null);
+				try
+				{
+					while (c.moveToNext())
+					{
+						long taskId = c.getLong(0);
+						writer.write(taskDocId(taskId, SearchableTypes.TITLE), taskId, SearchableTypes.TITLE, c.getString(1));
+						writer.write(taskDocId(taskId, SearchableTypes.DESCRIPTION), taskId, SearchableTypes.DESCRIPTION, c.getString(2));
+						writer.write(taskDocId(taskId, SearchableTypes.LOCATION), taskId, SearchableTypes.LOCATION, c.getString(3));
+					}
+				}
+				finally
+				{
+					c.close();
+				}
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+
+	@Override
+	public void updatePropertyEntry(SQLiteDatabase db, long taskId, long propertyId, int type, String text)
+	{
+		EntryWriter writer = new EntryWriter(db, true);
+		try
+		{
+			writer.write(-propertyId, taskId, type, text);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+
+	@Override
+	public void updatePropertyEntries(SQLiteDatabase db, long taskId, long[] propertyIds, int[] types, String[] texts)
+	{
+		for (int i = 0; i < propertyIds.length; ++i)
+		{
+			updatePropertyEntry(db, taskId, propertyIds[i], types[i], texts[i]);
+		}
+	}
+
+
+	@Override
+	public void updateTaskState(SQLiteDatabase db, long taskId, boolean closed)
+	{
+		// the index is not partitioned by task state
+	}
+
+
+	@Override
+	public void onBeginTransaction()
+	{
+		// all updates are written right away
+	}
+
+
+	@Override
+	public void onCommitTransaction(SQLiteDatabase db)
+	{
+		// all updates are written right away
+	}
+
+
+	@Override
+	public void onRollbackTransaction()
+	{
+		// all updates are written right away
+	}
+
+
+	@Override
+	public Cursor search(SQLiteDatabase db, String searchString, int types, String[] projection, String selection, String[] selectionArgs,
+		String sortOrder, float minScore, int limit, SearchSession session)
+	{
+		// prefix queries on the FTS4 index are cheap, so we don't use the session
+		List<String> tokens = tokenize(searchString);
+
+		if (tokens.isEmpty())
+		{
+			return db.rawQuery(SQL_RAW_QUERY_NO_RESULT, null);
+		}
+
+		int tokenCount = tokens.size();
+		StringBuilder tokenQuery = new StringBuilder(tokenCount * 96);
+		String[] queryArgs = new String[tokenCount + (selectionArgs == null ? 0 : selectionArgs.length)];
+		for (int i = 0; i < tokenCount; ++i)
+		{
+			if (i > 0)
+			{
+				tokenQuery.append(" UNION ALL ");
+			}
+			// format the numbers in a fixed locale, the default locale might not use ASCII digits
+			tokenQuery.append(String.format(Locale.US, SQL_RAW_QUERY_SEARCH_TOKEN, i));
+			if (types != ScopedQuery.ALL_TYPES)
+			{
+				// the type column of the FTS4 table is text, the filter is applied to the matches of the token
+				tokenQuery.append(" AND ").append(ScopedQuery.typeSelection("CAST(" + Fts4Columns.TYPE + " AS INTEGER)", types));
+			}
+			// match all words starting with the token
+			queryArgs[i] = tokens.get(i) + "*";
+		}
+
+		if (selectionArgs != null)
+		{
+			System.arraycopy(selectionArgs, 0, queryArgs, tokenCount, selectionArgs.length);
+		}
+
+		StringBuilder selectionBuilder = new StringBuilder(256);
+		if (!TextUtils.isEmpty(selection))
+		{
+			selectionBuilder.append("(").append(selection).append(") AND ");
+		}
+		selectionBuilder.append(Tasks._DELETED).append(" = 0 AND ").append(Tasks.SCORE).append(" >= ").append(minScore);
+
+		if (sortOrder == null)
+		{
+			sortOrder = Tasks.SCORE + " desc";
+		}
+		else
+		{
+			sortOrder = Tasks.SCORE + " desc, " + sortOrder;
+		}
+
+		return db.rawQueryWithFactory(null,
+			String.format(Locale.US, SQL_RAW_QUERY_SEARCH_TASK, tokenQuery, tokenCount, selectionBuilder, sortOrder, limit > 0 ? " LIMIT " + limit : ""),
+			queryArgs, null);
+	}
+
+
+	/**
+	 * Returns the document id of a task text.
+	 */
+	private static long taskDocId(long taskId, int type)
+	{
+		return taskId * 8 + type;
+	}
+
+
+	/**
+	 * Returns the distinct words of the given query. The words are normalized like the indexed texts, see {@link #normalize(String)}.
+	 */
+	private static List<String> tokenize(String query)
+	{
+		List<String> result = new ArrayList<String>(8);
+		if (query == null)
+		{
+			return result;
+		}
+
+		for (String token : TextUtils.split(normalize(query), " "))
+		{
+			if (token.length() > 0 && !result.contains(token))
+			{
+				result.add(token);
+				if (result.size() == MAX_QUERY_TOKENS)
+				{
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Converts the given text to lower case and replaces all characters that don't belong to a word or a number by spaces. The FTS4 "simple" tokenizer
+	 * converts ASCII characters only and treats any non-ASCII character as part of a word, so we do that ourselves.
+	 */
+	private static String normalize(String text)
+	{
+		final int len = text.length();
+		char[] chars = new char[len];
+		for (int i = 0; i < len; ++i)
+		{
+			char c = text.charAt(i);
+			chars[i] = isWordChar(c) ? Character.toLowerCase(c) : ' ';
+		}
+		return new String(chars);
+	}
+
+
+	private static boolean isWordChar(char c)
+	{
+		if (Character.isLetterOrDigit(c))
+		{
+			return true;
+		}
+
+		switch (Character.getType(c))
+		{
+			case Character.NON_SPACING_MARK:
+			case Character.ENCLOSING_MARK:
+			case Character.COMBINING_SPACING_MARK:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Writes entries to the FTS4 table using compiled statements.
+	 */
+	private final static class EntryWriter
+	{
+		private final SQLiteDatabase mDb;
+		private final boolean mReplace;
+		private SQLiteStatement mInsert;
+		private SQLiteStatement mDelete;
+
+
+		/**
+		 * Creates an {@link EntryWriter}.
+		 *
+		 * @param db
+		 *            The writable {@link SQLiteDatabase}.
+		 * @param replace
+		 *            <code>true</code> if existing entries must be removed first, <code>false</code> if the table is known to be empty.
+		 */
+		public EntryWriter(SQLiteDatabase db, boolean replace)
+		{
+			mDb = db;
+			mReplace = replace;
+		}
+
+
+		/**
+		 * Writes the given text, removes the entry if the text is empty.
+		 */
+		public void write(long docId, long taskId, int type, String text)
+		{
+			if (mReplace)
+			{
+				if (mDelete == null)
+				{
+					mDelete = mDb.compileStatement(SQL_DELETE_ENTRY);
+				}
+				mDelete.bindLong(1, docId);
+				mDelete.execute();
+			}
+
+			if (text == null || text.length() == 0)
+			{
+				return;
+			}
+
+			if (mInsert == null)
+			{
+				mInsert = mDb.compileStatement(SQL_INSERT_ENTRY);
+			}
+			mInsert.bindLong(1, docId);
+			mInsert.bindString(2, normalize(text));
+			mInsert.bindLong(3, taskId);
+			mInsert.bindLong(4, type);
+			mInsert.executeInsert();
+		}
+
+
+		public void close()
+		{
+			if (mInsert != null)
+			{
+				mInsert.close();
+			}
+			if (mDelete != null)
+			{
+				mDelete.close();
+			}
+		}
+	}
+}
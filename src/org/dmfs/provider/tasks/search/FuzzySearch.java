@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dmfs.ngrams.LongSet;
+import org.dmfs.provider.tasks.FTSDatabaseHelper;
+import org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes;
+import org.dmfs.provider.tasks.TaskContract.Instances;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * A typo tolerant search on the titles and locations of tasks. Each word of the query must match a word (or the beginning of a word) in the title or the
+ * location of a task with at most a few edits, see {@link #allowedEdits(int, int)}. An edit is an insertion, a deletion, a substitution or a transposition of
+ * two adjacent characters.
+ * <p>
+ * To avoid checking every task, the candidates are taken from the regular search with a low minimum score, i.e. from the tasks that share some N-grams with the
+ * query. At most {@link #MAX_CANDIDATES} candidates are checked.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class FuzzySearch
+{
+	/**
+	 * The maximum number of edits per word a caller can ask for.
+	 */
+	public final static int MAX_EDITS = 2;
+
+	/**
+	 * The maximum number of instances to take the candidates from.
+	 */
+	private final static int MAX_CANDIDATES = 200;
+
+	/**
+	 * The minimum score of the candidates. A typo removes all N-grams that contain it, so the candidates can share only a small part of the N-grams of the
+	 * query.
+	 */
+	private final static float CANDIDATE_MIN_SCORE = 0.15f;
+
+	/**
+	 * The types a fuzzy search looks at.
+	 */
+	private final static int FUZZY_TYPES = ScopedQuery.typeBit(SearchableTypes.TITLE) | ScopedQuery.typeBit(SearchableTypes.LOCATION);
+
+	private final static String[] CANDIDATE_PROJECTION = { Instances.TASK_ID };
+
+	private final static String[] TASK_PROJECTION = { Tasks._ID, Tasks.TITLE, Tasks.LOCATION };
+
+	private final static String[] NO_WORDS = {};
+
+
+	private FuzzySearch()
+	{
+	}
+
+
+	/**
+	 * Returns a cursor of the instances of the tasks that match the given search string with a few typos, best matches first. The cursor has the same layout
+	 * as the one returned by
+	 * {@link SearchEngine#search(SQLiteDatabase, String, int, String[], String, String[], String, float, int, SearchSession)}.
+	 * <p>
+	 * If the query doesn't contain any words or is restricted to fields other than the title and the location, this returns the regular search result.
+	 * </p>
+	 *
+	 * @param engine
+	 *            The {@link SearchEngine} to take the candidates from.
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param searchString
+	 *            The search query string without any field restrictions, see {@link ScopedQuery#text()}.
+	 * @param types
+	 *            The types to search as a bit mask, see {@link ScopedQuery#types()}.
+	 * @param projection
+	 *            The projection of the query, may be <code>null</code> for all columns.
+	 * @param selection
+	 *            The selection of the query.
+	 * @param selectionArgs
+	 *            The arguments of the selection.
+	 * @param sortOrder
+	 *            The secondary sort order of the result.
+	 * @param minScore
+	 *            The minimum score of the results.
+	 * @param limit
+	 *            The maximum number of results or a value <code>&lt;= 0</code> to return all results.
+	 * @param maxEdits
+	 *            The maximum number of edits per word, between <code>1</code> and {@link #MAX_EDITS}.
+	 * @return A {@link Cursor} with the search results.
+	 */
+	public static Cursor search(SearchEngine engine, SQLiteDatabase db, String searchString, int types, String[] projection, String selection,
+		String[] selectionArgs, String sortOrder, float minScore, int limit, int maxEdits)
+	{
+		String[] queryWords = words(searchString);
+		int fuzzyTypes = types & FUZZY_TYPES;
+		if (queryWords.length == 0 || fuzzyTypes == 0)
+		{
+			return engine.search(db, searchString, types, projection, selection, selectionArgs, sortOrder, minScore, limit, null);
+		}
+
+		long[] candidates = candidates(engine, db, searchString, fuzzyTypes, selection, selectionArgs);
+		long[] taskIds = new long[candidates.length];
+		float[] scores = new float[candidates.length];
+		int count = 0;
+
+		if (candidates.length > 0)
+		{
+			boolean titles = (fuzzyTypes & ScopedQuery.typeBit(SearchableTypes.TITLE)) != 0;
+			boolean locations = (fuzzyTypes & ScopedQuery.typeBit(SearchableTypes.LOCATION)) != 0;
+
+			Cursor c = db.query(Tables.TASKS, TASK_PROJECTION, TaskDatabaseHelper.createIdSelection(Tasks._ID, candidates, 0, candidates.length), null, null,
+				null, null);
+			try
+			{
+				while (c.moveToNext())
+				{
+					float score = score(queryWords, titles ? words(c.getString(1)) : NO_WORDS, locations ? words(c.getString(2)) : NO_WORDS, maxEdits);
+					if (score > 0 && score >= minScore)
+					{
+						taskIds[count] = c.getLong(0);
+						scores[count] = score;
+						++count;
+					}
+				}
+			}
+			finally
+			{
+				c.close();
+			}
+		}
+
+		long[] resultIds = new long[count];
+		float[] resultScores = new float[count];
+		System.arraycopy(taskIds, 0, resultIds, 0, count);
+		System.arraycopy(scores, 0, resultScores, 0, count);
+		return new SearchResult(resultIds, resultScores).query(db, projection, selection, selectionArgs, sortOrder, limit);
+	}
+
+
+	/**
+	 * Returns the ids of the tasks that share enough N-grams with the query to be worth checking.
+	 */
+	private static long[] candidates(SearchEngine engine, SQLiteDatabase db, String searchString, int types, String selection, String[] selectionArgs)
+	{
+		LongSet result = new LongSet(MAX_CANDIDATES);
+		Cursor c = engine.search(db, searchString, types, CANDIDATE_PROJECTION, selection, selectionArgs, null, CANDIDATE_MIN_SCORE, MAX_CANDIDATES, null);
+		try
+		{
+			int taskIdColumn = c.getColumnIndexOrThrow(Instances.TASK_ID);
+			while (c.moveToNext())
+			{
+				result.add(c.getLong(taskIdColumn));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		return result.toArray();
+	}
+
+
+	/**
+	 * Returns the score of a task. Each query word is scored by its best match in the title or the location, weighted like in the regular search. The score
+	 * of the task is the average score of the words or <code>0</code> if any of the words doesn't match.
+	 */
+	private static float score(String[] queryWords, String[] titleWords, String[] locationWords, int maxEdits)
+	{
+		float sum = 0;
+		for (String queryWord : queryWords)
+		{
+			float wordScore = Math.max(wordScore(queryWord, titleWords, maxEdits) * FTSDatabaseHelper.typeWeight(SearchableTypes.TITLE),
+				wordScore(queryWord, locationWords, maxEdits) * FTSDatabaseHelper.typeWeight(SearchableTypes.LOCATION));
+			if (wordScore <= 0)
+			{
+				return 0;
+			}
+			sum += wordScore;
+		}
+		return sum / queryWords.length;
+	}
+
+
+	/**
+	 * Returns the score of the best match of a query word in the given words. An exact match scores <code>1</code>, each edit lowers the score by the fraction
+	 * of the query word it affects.
+	 */
+	private static float wordScore(String queryWord, String[] words, int maxEdits)
+	{
+		int allowed = allowedEdits(queryWord.length(), maxEdits);
+		int best = allowed + 1;
+		for (String word : words)
+		{
+			best = Math.min(best, prefixDistance(queryWord, word, Math.min(allowed, best)));
+			if (best == 0)
+			{
+				break;
+			}
+		}
+		return best > allowed ? 0 : 1f - (float) best / queryWord.length();
+	}
+
+
+	/**
+	 * Returns the number of edits allowed for a word of the given length. Short words must match exactly, otherwise almost everything would match.
+	 */
+	static int allowedEdits(int length, int maxEdits)
+	{
+		if (length < 3)
+		{
+			return 0;
+		}
+		if (length < 6)
+		{
+			return Math.min(1, maxEdits);
+		}
+		return maxEdits;
+	}
+
+
+	/**
+	 * Returns the smallest number of edits that turn <code>query</code> into a prefix of <code>word</code>, with transpositions counting as one edit. The
+	 * calculation stops early when the distance exceeds <code>bound</code>, in which case <code>bound + 1</code> is returned.
+	 */
+	static int prefixDistance(String query, String word, int bound)
+	{
+		final int m = query.length();
+		final int n = word.length();
+		if (n < m - bound)
+		{
+			// even the whole word is too short
+			return bound + 1;
+		}
+
+		// three rows of the edit distance matrix of query[0..i] and word[0..j]
+		int[] previous2 = new int[n + 1];
+		int[] previous = new int[n + 1];
+		int[] current = new int[n + 1];
+		for (int j = 0; j <= n; ++j)
+		{
+			previous[j] = j;
+		}
+
+		for (int i = 1; i <= m; ++i)
+		{
+			current[0] = i;
+			int rowMin = i;
+			char q = query.charAt(i - 1);
+			for (int j = 1; j <= n; ++j)
+			{
+				char w = word.charAt(j - 1);
+				int cost = q == w ? 0 : 1;
+				int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+				if (i > 1 && j > 1 && q == word.charAt(j - 2) && query.charAt(i - 2) == w)
+				{
+					value = Math.min(value, previous2[j - 2] + 1);
+				}
+				current[j] = value;
+				rowMin = Math.min(rowMin, value);
+			}
+			if (rowMin > bound)
+			{
+				return bound + 1;
+			}
+			int[] tmp = previous2;
+			previous2 = previous;
+			previous = current;
+			current = tmp;
+		}
+
+		// the query may end anywhere in the word
+		int result = bound + 1;
+		for (int j = 0; j <= n; ++j)
+		{
+			result = Math.min(result, previous[j]);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Splits the given text into lower case words.
+	 */
+	static String[] words(String text)
+	{
+		if (text == null || text.length() == 0)
+		{
+			return NO_WORDS;
+		}
+
+		List<String> result = new ArrayList<String>();
+		StringBuilder word = new StringBuilder(32);
+		for (int i = 0, length = text.length(); i <= length; ++i)
+		{
+			char c = i < length ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c))
+			{
+				word.append(Character.toLowerCase(c));
+			}
+			else if (word.length() > 0)
+			{
+				result.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return result.toArray(new String[result.size()]);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import org.dmfs.provider.tasks.FTSDatabaseHelper;
+import org.dmfs.provider.tasks.model.TaskAdapter;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * The {@link SearchEngine} that uses the N-gram tables of the {@link FTSDatabaseHelper}. It works on all versions of Android and finds partial matches within
+ * words, but its index is rather large.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class NGramSearchEngine implements SearchEngine
+{
+	public final static String NAME = "ngram";
+
+
+	@Override
+	public String name()
+	{
+		return NAME;
+	}
+
+
+	@Override
+	public void rebuildIndex(SQLiteDatabase db)
+	{
+		FTSDatabaseHelper.rebuildIndex(db);
+	}
+
+
+	@Override
+	public void createIndex(SQLiteDatabase db)
+	{
+		// the tables are maintained by FTSDatabaseHelper.onCreate and FTSDatabaseHelper.onUpgrade, nothing to do
+	}
+
+
+	@Override
+	public void optimizeIndex(SQLiteDatabase db)
+	{
+		FTSDatabaseHelper.compactIndex(db);
+	}
+
+
+	@Override
+	public boolean needsOptimization()
+	{
+		return false;
+	}
+
+
+	@Override
+	public void dropIndex(SQLiteDatabase db)
+	{
+		// the tables are maintained by FTSDatabaseHelper.onUpgrade, so we just clear them
+		FTSDatabaseHelper.clearIndex(db);
+	}
+
+
+	@Override
+	public void updateTaskEntries(SQLiteDatabase db, TaskAdapter task)
+	{
+		FTSDatabaseHelper.updateTaskFTSEntries(db, task);
+	}
+
+
+	@Override
+	public void updateTaskEntries(SQLiteDatabase db, long[] taskIds)
+	{
+		FTSDatabaseHelper.updateTaskFTSEntries(db, taskIds);
+	}
+
+
+	@Override
+	public void updatePropertyEntry(SQLiteDatabase db, long taskId, long propertyId, int type, String text)
+	{
+		FTSDatabaseHelper.updatePropertyFTSEntry(db, taskId, propertyId, type, text);
+	}
+
+
+	@Override
+	public void updatePropertyEntries(SQLiteDatabase db, long taskId, long[] propertyIds, int[] types, String[] texts)
+	{
+		FTSDatabaseHelper.updatePropertyFTSEntries(db, taskId, propertyIds, types, texts);
+	}
+
+
+	@Override
+	public void updateTaskState(SQLiteDatabase db, long taskId, boolean closed)
+	{
+		FTSDatabaseHelper.updateTaskFTSState(db, taskId, closed);
+	}
+
+
+	@Override
+	public void onBeginTransaction()
+	{
+		FTSDatabaseHelper.onBeginTransaction();
+	}
+
+
+	@Override
+	public void onCommitTransaction(SQLiteDatabase db)
+	{
+		FTSDatabaseHelper.onCommitTransaction();
+	}
+
+
+	@Override
+	public void onRollbackTransaction()
+	{
+		FTSDatabaseHelper.onRollbackTransaction();
+	}
+
+
+	@Override
+	public Cursor search(SQLiteDatabase db, String searchString, int types, String[] projection, String selection, String[] selectionArgs,
+		String sortOrder, float minScore, int limit, SearchSession session)
+	{
+		return FTSDatabaseHelper.getTaskSearchCursor(db, searchString, types, projection, selection, selectionArgs, sortOrder, minScore, limit, session);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes sorted lists of <code>long</code>s into compact byte arrays. The first value is stored as is, each following value as the difference to its
+ * predecessor. All values are stored as unsigned variable length integers with 7 bits per byte, the most significant bit of each byte tells whether another
+ * byte follows.
+ * <p>
+ * Lists of close values, like the task ids of a posting list, take one or two bytes per value. The differences are computed with overflow, so lists that
+ * contain negative values are supported as well, they just take more space.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class PostingCodec
+{
+	private final static byte[] EMPTY = new byte[0];
+
+
+	private PostingCodec()
+	{
+	}
+
+
+	/**
+	 * Encodes the first <code>count</code> values of the given array.
+	 *
+	 * @param values
+	 *            The values in ascending order.
+	 * @param count
+	 *            The number of values to encode.
+	 * @return The encoded values.
+	 */
+	public static byte[] encode(long[] values, int count)
+	{
+		if (count == 0)
+		{
+			return EMPTY;
+		}
+
+		byte[] buffer = new byte[count * 10];
+		int pos = 0;
+		long previous = 0;
+		for (int i = 0; i < count; ++i)
+		{
+			long delta = values[i] - previous;
+			previous = values[i];
+			while ((delta & ~0x7fL) != 0)
+			{
+				buffer[pos++] = (byte) ((delta & 0x7f) | 0x80);
+				delta >>>= 7;
+			}
+			buffer[pos++] = (byte) delta;
+		}
+
+		byte[] result = new byte[pos];
+		System.arraycopy(buffer, 0, result, 0, pos);
+		return result;
+	}
+
+
+	/**
+	 * Decodes a list of values.
+	 *
+	 * @param data
+	 *            The encoded values, may be <code>null</code>.
+	 * @return The values in ascending order.
+	 */
+	public static long[] decode(byte[] data)
+	{
+		if (data == null || data.length == 0)
+		{
+			return new long[0];
+		}
+
+		int count = 0;
+		for (byte b : data)
+		{
+			if (b >= 0)
+			{
+				// the last byte of a value
+				++count;
+			}
+		}
+
+		long[] result = new long[count];
+		long previous = 0;
+		int pos = 0;
+		for (int i = 0; i < count; ++i)
+		{
+			long delta = 0;
+			int shift = 0;
+			byte b;
+			do
+			{
+				b = data[pos++];
+				delta |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			previous += delta;
+			result[i] = previous;
+		}
+		return result;
+	}
+
+
+	/**
+	 * Decodes a list of values from a region of a {@link ByteBuffer}. This doesn't change the position of the buffer, so a read-only buffer can be shared
+	 * among threads.
+	 *
+	 * @param data
+	 *            The {@link ByteBuffer} that contains the encoded values.
+	 * @param start
+	 *            The index of the first byte of the encoded values.
+	 * @param count
+	 *            The number of values to decode.
+	 * @return The values in ascending order.
+	 */
+	public static long[] decode(ByteBuffer data, int start, int count)
+	{
+		long[] result = new long[count];
+		long previous = 0;
+		int pos = start;
+		for (int i = 0; i < count; ++i)
+		{
+			long delta = 0;
+			int shift = 0;
+			byte b;
+			do
+			{
+				b = data.get(pos++);
+				delta |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			previous += delta;
+			result[i] = previous;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,1354 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.dmfs.ngrams.LongSet;
+import org.dmfs.provider.tasks.FTSDatabaseHelper;
+import org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes;
+import org.dmfs.provider.tasks.TaskContract.Properties;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+import org.dmfs.provider.tasks.model.TaskAdapter;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+
+/**
+ * A {@link SearchEngine} that stores the same N-grams as the {@link NGramSearchEngine}, but with one row per N-gram that holds a compressed posting list
+ * instead of one row per N-gram and entry. Searching loads the posting lists of the query N-grams and merges them in memory.
+ * <p>
+ * The elements of a posting list are <code>task id * 8 + type</code> (see {@link SearchableTypes}) in ascending order, encoded by the {@link PostingCodec}. In
+ * addition the engine stores the sorted N-grams of each entry (the forward index), which is needed to update and remove entries.
+ * </p>
+ * <p>
+ * Changes of the posting lists are buffered per provider transaction and written when the transaction is committed, so a transaction that updates many tasks
+ * rewrites each posting list only once. The delete triggers of tasks and properties can't modify the posting lists, they move the forward entries of removed
+ * tasks and properties to a garbage table, which is processed with the next write.
+ * </p>
+ * <p>
+ * Optionally the posting lists are written to a memory-mapped {@link PostingSegment} whenever the index is optimized. The N-grams whose posting lists change
+ * afterwards are recorded in a delta table. Searches read the lists of those N-grams from the database and all others from the segment. Once the delta has
+ * grown too large, {@link #needsOptimization()} requests writing a new segment in the background.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class PostingListSearchEngine implements SearchEngine
+{
+	private static final String TAG = "PostingListSearchEngine";
+
+	public final static String NAME = "postings";
+
+	/**
+	 * The table of the posting lists.
+	 */
+	public final static String POSTING_TABLE = "Search_Posting";
+
+	private final static String POSTING_NGRAM = "posting_ngram";
+	private final static String POSTING_LIST = "posting_list";
+	private final static String POSTING_COUNT = "posting_count";
+
+	/**
+	 * The table of the forward index. The id of an entry is <code>task id * 8 + type</code> for task texts and the negative property id for properties.
+	 */
+	public final static String ENTRY_TABLE = "Search_Entry";
+
+	private final static String ENTRY_ID = "entry_id";
+	private final static String ENTRY_TASK_ID = "entry_task_id";
+	private final static String ENTRY_TYPE = "entry_type";
+	private final static String ENTRY_NGRAMS = "entry_ngrams";
+
+	/**
+	 * The table that takes the forward entries of removed tasks and properties until their N-grams have been removed from the posting lists.
+	 */
+	public final static String GARBAGE_TABLE = "Search_Entry_Garbage";
+
+	/**
+	 * The table of the N-grams whose posting lists have changed since the current {@link PostingSegment} has been written.
+	 */
+	public final static String DELTA_TABLE = "Search_Posting_Delta";
+
+	private final static String DELTA_NGRAM = "delta_ngram";
+
+	/**
+	 * The table that stores the generation of the current {@link PostingSegment}. It has one row if there is a segment and none otherwise.
+	 */
+	public final static String SEGMENT_TABLE = "Search_Segment";
+
+	private final static String SEGMENT_GENERATION = "segment_generation";
+
+	/**
+	 * The number of changed N-grams that triggers writing a new {@link PostingSegment}.
+	 */
+	private final static int MAX_DELTA_SIZE = 4096;
+
+	/**
+	 * The maximum number of results. If more tasks match a query, only the best ones are returned. The ids of the results are put into the statement that
+	 * loads the instances, so this must not exceed {@link SearchResult#MAX_SCORE_QUERY_SIZE}.
+	 */
+	private final static int MAX_RESULTS = SearchResult.MAX_SCORE_QUERY_SIZE;
+
+	/**
+	 * The number of tasks that are indexed at once when the index is rebuilt.
+	 */
+	private final static int REBUILD_CHUNK_SIZE = TaskDatabaseHelper.MAX_INLINE_IDS;
+
+	private final static String SQL_CREATE_POSTING_TABLE = "CREATE TABLE IF NOT EXISTS " + POSTING_TABLE + " (" + POSTING_NGRAM + " Integer PRIMARY KEY, "
+		+ POSTING_LIST + " Blob, " + POSTING_COUNT + " Integer)";
+
+	private final static String SQL_CREATE_ENTRY_TABLE = "CREATE TABLE IF NOT EXISTS " + ENTRY_TABLE + " (" + ENTRY_ID + " Integer PRIMARY KEY, "
+		+ ENTRY_TASK_ID + " Integer, " + ENTRY_TYPE + " Integer, " + ENTRY_NGRAMS + " Blob)";
+
+	private final static String SQL_CREATE_ENTRY_INDEX = "CREATE INDEX IF NOT EXISTS " + ENTRY_TABLE + "_" + ENTRY_TASK_ID + "_idx ON " + ENTRY_TABLE + " ("
+		+ ENTRY_TASK_ID + ", " + ENTRY_TYPE + ")";
+
+	private final static String SQL_CREATE_GARBAGE_TABLE = "CREATE TABLE IF NOT EXISTS " + GARBAGE_TABLE + " (" + ENTRY_TASK_ID + " Integer, " + ENTRY_TYPE
+		+ " Integer, " + ENTRY_NGRAMS + " Blob)";
+
+	private final static String SQL_CREATE_DELTA_TABLE = "CREATE TABLE IF NOT EXISTS " + DELTA_TABLE + " (" + DELTA_NGRAM + " Integer PRIMARY KEY)";
+
+	private final static String SQL_CREATE_SEGMENT_TABLE = "CREATE TABLE IF NOT EXISTS " + SEGMENT_TABLE + " (" + SEGMENT_GENERATION + " Integer)";
+
+	private final static String SQL_CREATE_TASK_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS search_postings_task_delete_trigger AFTER DELETE ON "
+		+ Tables.TASKS + " BEGIN INSERT INTO " + GARBAGE_TABLE + " SELECT " + ENTRY_TASK_ID + ", " + ENTRY_TYPE + ", " + ENTRY_NGRAMS + " FROM " + ENTRY_TABLE
+		+ " WHERE " + ENTRY_TASK_ID + " = old." + Tasks._ID + "; DELETE FROM " + ENTRY_TABLE + " WHERE " + ENTRY_TASK_ID + " = old." + Tasks._ID + "; END";
+
+	private final static String SQL_CREATE_PROPERTY_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS search_postings_property_delete_trigger AFTER DELETE ON "
+		+ Tables.PROPERTIES + " BEGIN INSERT INTO " + GARBAGE_TABLE + " SELECT " + ENTRY_TASK_ID + ", " + ENTRY_TYPE + ", " + ENTRY_NGRAMS + " FROM "
+		+ ENTRY_TABLE + " WHERE " + ENTRY_ID + " = -old." + Properties.PROPERTY_ID + "; DELETE FROM " + ENTRY_TABLE + " WHERE " + ENTRY_ID + " = -old."
+		+ Properties.PROPERTY_ID + "; END";
+
+	private final static String SQL_DROP_TASK_DELETE_TRIGGER = "DROP TRIGGER IF EXISTS search_postings_task_delete_trigger";
+
+	private final static String SQL_DROP_PROPERTY_DELETE_TRIGGER = "DROP TRIGGER IF EXISTS search_postings_property_delete_trigger";
+
+	private final static String SQL_REPLACE_POSTING = "INSERT OR REPLACE INTO " + POSTING_TABLE + " (" + POSTING_NGRAM + ", " + POSTING_LIST + ", "
+		+ POSTING_COUNT + ") VALUES (?, ?, ?)";
+
+	private final static String SQL_DELETE_POSTING = "DELETE FROM " + POSTING_TABLE + " WHERE " + POSTING_NGRAM + " = ?";
+
+	private final static String SQL_INSERT_DELTA = "INSERT OR IGNORE INTO " + DELTA_TABLE + " (" + DELTA_NGRAM + ") VALUES (?)";
+
+	/**
+	 * Returns the segment generation and the changed N-grams that match a selection in a single statement, so both are read from the same snapshot.
+	 */
+	private final static String SQL_QUERY_DELTA = "SELECT " + SEGMENT_GENERATION + ", NULL FROM " + SEGMENT_TABLE + " UNION ALL SELECT NULL, " + DELTA_NGRAM
+		+ " FROM " + DELTA_TABLE + " WHERE %s";
+
+	private final static String SQL_RAW_QUERY_NO_RESULT = "SELECT " + Tables.INSTANCE_VIEW + ".*, 0 AS " + Tasks.SCORE + " FROM " + Tables.INSTANCE_VIEW
+		+ " WHERE 0";
+
+	/**
+	 * The thread that runs the current provider transaction or <code>null</code>.
+	 */
+	private Thread mTransactionThread;
+
+	/**
+	 * The changes of the current provider transaction.
+	 */
+	private PostingBuffer mTransactionBuffer;
+
+	/**
+	 * Whether searches use the {@link PostingSegment}.
+	 */
+	private volatile boolean mSegmentEnabled;
+
+	/**
+	 * The mapped {@link PostingSegment} or <code>null</code> if it hasn't been mapped yet.
+	 */
+	private volatile PostingSegment mSegment;
+
+	/**
+	 * Whether a new {@link PostingSegment} should be written.
+	 */
+	private volatile boolean mMergeNeeded;
+
+	/**
+	 * Whether the merge has been reported by {@link #needsOptimization()}.
+	 */
+	private volatile boolean mMergeRequested;
+
+
+	/**
+	 * Enables or disables the memory-mapped {@link PostingSegment}. If enabled, the posting lists are written to a file next to the database when the index is
+	 * optimized and searches read the posting lists from that file, except for the N-grams that have changed since. Searches of in-memory databases always
+	 * read the posting lists from the database.
+	 *
+	 * @param enabled
+	 *            <code>true</code> to use a {@link PostingSegment}.
+	 */
+	public void setSegmentEnabled(boolean enabled)
+	{
+		mSegmentEnabled = enabled;
+	}
+
+
+	@Override
+	public String name()
+	{
+		return NAME;
+	}
+
+
+	@Override
+	public void rebuildIndex(SQLiteDatabase db)
+	{
+		createIndex(db);
+		db.delete(POSTING_TABLE, null, null);
+		db.delete(ENTRY_TABLE, null, null);
+		db.delete(GARBAGE_TABLE, null, null);
+		deleteSegment(db);
+
+		long lastTaskId = -1;
+		long[] taskIds;
+		do
+		{
+			Cursor c = db.query(Tables.TASKS, new String[] { Tasks._ID }, Tasks._ID + ">?", new String[] { String.valueOf(lastTaskId) }, null, null,
+				Tasks._ID, String.valueOf(REBUILD_CHUNK_SIZE));
+			try
+			{
+				taskIds = new long[c.getCount()];
+				int i = 0;
+				while (c.moveToNext())
+				{
+					taskIds[i++] = c.getLong(0);
+				}
+			}
+			finally
+			{
+				c.close();
+			}
+
+			if (taskIds.length > 0)
+			{
+				updateTaskAndPropertyEntries(db, taskIds);
+				lastTaskId = taskIds[taskIds.length - 1];
+			}
+		} while (taskIds.length == REBUILD_CHUNK_SIZE);
+	}
+
+
+	@Override
+	public void createIndex(SQLiteDatabase db)
+	{
+		db.execSQL(SQL_CREATE_POSTING_TABLE);
+		db.execSQL(SQL_CREATE_ENTRY_TABLE);
+		db.execSQL(SQL_CREATE_ENTRY_INDEX);
+		db.execSQL(SQL_CREATE_GARBAGE_TABLE);
+		db.execSQL(SQL_CREATE_DELTA_TABLE);
+		db.execSQL(SQL_CREATE_SEGMENT_TABLE);
+		db.execSQL(SQL_CREATE_TASK_DELETE_TRIGGER);
+		db.execSQL(SQL_CREATE_PROPERTY_DELETE_TRIGGER);
+	}
+
+
+	@Override
+	public void optimizeIndex(SQLiteDatabase db)
+	{
+		// get rid of the garbage
+		flush(db, new PostingBuffer());
+
+		if (!mSegmentEnabled || !supportsSegment(db))
+		{
+			deleteSegment(db);
+		}
+		else if (db.inTransaction())
+		{
+			// writing the segment takes a while, don't block the caller's transaction, do it with the next optimization
+			mMergeNeeded = true;
+			mMergeRequested = false;
+		}
+		else
+		{
+			mergeSegment(db);
+		}
+	}
+
+
+	@Override
+	public boolean needsOptimization()
+	{
+		if (mMergeNeeded && !mMergeRequested)
+		{
+			mMergeRequested = true;
+			return true;
+		}
+		return false;
+	}
+
+
+	@Override
+	public void dropIndex(SQLiteDatabase db)
+	{
+		db.execSQL(SQL_DROP_TASK_DELETE_TRIGGER);
+		db.execSQL(SQL_DROP_PROPERTY_DELETE_TRIGGER);
+		deleteSegment(db);
+		db.execSQL("DROP TABLE IF EXISTS " + DELTA_TABLE);
+		db.execSQL("DROP TABLE IF EXISTS " + SEGMENT_TABLE);
+		db.execSQL("DROP TABLE IF EXISTS " + POSTING_TABLE);
+		db.execSQL("DROP TABLE IF EXISTS " + ENTRY_TABLE);
+		db.execSQL("DROP TABLE IF EXISTS " + GARBAGE_TABLE);
+	}
+
+
+	@Override
+	public void updateTaskEntries(SQLiteDatabase db, TaskAdapter task)
+	{
+		if (!task.isUpdated(TaskAdapter.TITLE) && !task.isUpdated(TaskAdapter.LOCATION) && !task.isUpdated(TaskAdapter.DESCRIPTION))
+		{
+			return;
+		}
+
+		long taskId = task.id();
+		PostingBuffer buffer = beginUpdate();
+
+		if (task.isUpdated(TaskAdapter.TITLE))
+		{
+			updateEntry(db, buffer, taskEntryId(taskId, SearchableTypes.TITLE), taskId, SearchableTypes.TITLE, task.valueOf(TaskAdapter.TITLE));
+		}
+
+		if (task.isUpdated(TaskAdapter.LOCATION))
+		{
+			updateEntry(db, buffer, taskEntryId(taskId, SearchableTypes.LOCATION), taskId, SearchableTypes.LOCATION, task.valueOf(TaskAdapter.LOCATION));
+		}
+
+		if (task.isUpdated(TaskAdapter.DESCRIPTION))
+		{
+			updateEntry(db, buffer, taskEntryId(taskId, SearchableTypes.DESCRIPTION), taskId, SearchableTypes.DESCRIPTION,
+				task.valueOf(TaskAdapter.DESCRIPTION));
+		}
+
+		endUpdate(db, buffer);
+	}
+
+
+	@Override
+	public void updateTaskEntries(SQLiteDatabase db, long[] taskIds)
+	{
+		PostingBuffer buffer = beginUpdate();
+		updateTaskEntries(db, buffer, taskIds);
+		endUpdate(db, buffer);
+	}
+
+
+	@Override
+	public void updatePropertyEntry(SQLiteDatabase db, long taskId, long propertyId, int type, String text)
+	{
+		PostingBuffer buffer = beginUpdate();
+		updateEntry(db, buffer, -propertyId, taskId, type, text);
+		endUpdate(db, buffer);
+	}
+
+
+	@Override
+	public void updatePropertyEntries(SQLiteDatabase db, long taskId, long[] propertyIds, int[] types, String[] texts)
+	{
+		for (int i = 0; i < propertyIds.length; ++i)
+		{
+			updatePropertyEntry(db, taskId, propertyIds[i], types[i], texts[i]);
+		}
+	}
+
+
+	@Override
+	public void updateTaskState(SQLiteDatabase db, long taskId, boolean closed)
+	{
+		// the index is not partitioned by task state
+	}
+
+
+	@Override
+	public synchronized void onBeginTransaction()
+	{
+		mTransactionThread = Thread.currentThread();
+		mTransactionBuffer = new PostingBuffer();
+	}
+
+
+	@Override
+	public void onCommitTransaction(SQLiteDatabase db)
+	{
+		PostingBuffer buffer;
+		synchronized (this)
+		{
+			if (mTransactionThread != Thread.currentThread())
+			{
+				return;
+			}
+			buffer = mTransactionBuffer;
+			mTransactionThread = null;
+			mTransactionBuffer = null;
+		}
+		flush(db, buffer);
+	}
+
+
+	@Override
+	public synchronized void onRollbackTransaction()
+	{
+		if (mTransactionThread == Thread.currentThread())
+		{
+			// the forward index has been rolled back as well, so we can just drop the buffer
+			mTransactionThread = null;
+			mTransactionBuffer = null;
+		}
+	}
+
+
+	@Override
+	public Cursor search(SQLiteDatabase db, String searchString, int types, String[] projection, String selection, String[] selectionArgs,
+		String sortOrder, float minScore, int limit, SearchSession session)
+	{
+		// the lists are merged in memory, restricting them to the candidates of a session wouldn't save much
+		String query = searchString == null ? "" : searchString.trim();
+		LongSet ngrams = new LongSet(128);
+		FTSDatabaseHelper.tokenize(query, ngrams);
+		if (ngrams.isEmpty())
+		{
+			return db.rawQuery(SQL_RAW_QUERY_NO_RESULT, null);
+		}
+
+		PostingSegment segment = segment(db);
+		LongSet delta = new LongSet(16);
+
+		long[][] postingLists;
+		double[] weights;
+		double totalWeight = 0;
+		if (query.length() == 1)
+		{
+			// find all words that start with this character
+			long[] range = FTSDatabaseHelper.prefixRange(query);
+			long start = range[0];
+			long end = range[1];
+			if (segment != null && queryDelta(db, DELTA_NGRAM + " BETWEEN " + start + " AND " + end, segment, delta))
+			{
+				// the N-grams in the range are the ones of the segment plus the ones that have been added since
+				LongSet rangeNgrams = new LongSet(256);
+				rangeNgrams.addAll(delta);
+				for (int i = segment.lowerBound(start), size = segment.size(); i < size && segment.ngramAt(i) <= end; ++i)
+				{
+					rangeNgrams.add(segment.ngramAt(i));
+				}
+				long[] rangeNgramArray = rangeNgrams.toArray();
+				postingLists = loadPostingLists(db, rangeNgramArray, rangeNgramArray.length, segment, delta);
+			}
+			else
+			{
+				postingLists = queryPostingLists(db, POSTING_NGRAM + " BETWEEN " + start + " AND " + end);
+			}
+			weights = new double[postingLists.length];
+			Arrays.fill(weights, 1);
+			totalWeight = 1;
+		}
+		else
+		{
+			long[] queryNgrams = FTSDatabaseHelper.selectQueryNgrams(ngrams);
+			Arrays.sort(queryNgrams);
+
+			if (segment != null && !queryDelta(db, TaskDatabaseHelper.createIdSelection(DELTA_NGRAM, queryNgrams, 0, queryNgrams.length), segment, delta))
+			{
+				segment = null;
+			}
+
+			double[] ngramWeights = FTSDatabaseHelper.ngramWeights(segment == null ? queryDocumentFrequencies(db, queryNgrams) : segmentDocumentFrequencies(db,
+				queryNgrams, segment, delta), DatabaseUtils.queryNumEntries(db, Tables.TASKS));
+			long[] usedNgrams = new long[queryNgrams.length];
+			int used = 0;
+			for (int i = 0; i < queryNgrams.length; ++i)
+			{
+				if (ngramWeights[i] > 0)
+				{
+					totalWeight += ngramWeights[i];
+					usedNgrams[used++] = queryNgrams[i];
+				}
+			}
+
+			postingLists = segment == null ? queryPostingLists(db, TaskDatabaseHelper.createIdSelection(POSTING_NGRAM, usedNgrams, 0, used)) : loadPostingLists(
+				db, usedNgrams, used, segment, delta);
+			weights = new double[postingLists.length];
+			for (int i = 0; i < postingLists.length; ++i)
+			{
+				// the first element of each list is the N-gram
+				weights[i] = ngramWeights[Arrays.binarySearch(queryNgrams, postingLists[i][0])];
+			}
+		}
+
+		Results results = merge(postingLists, weights, totalWeight, minScore, types);
+		if (results.mCount == 0)
+		{
+			return db.rawQuery(SQL_RAW_QUERY_NO_RESULT, null);
+		}
+
+		String taskSelection = Tasks._DELETED + " = 0";
+		String instanceSelection = TextUtils.isEmpty(selection) ? taskSelection : "(" + selection + ") AND " + taskSelection;
+		if (results.mCount > SearchResultCache.MAX_RESULT_SIZE)
+		{
+			// too many tasks for a search result, join the instances with a score query like the N-gram engine does
+			return SearchResult.query(db, SearchResult.scoreQuery(results.mTaskIds, results.mScores, results.mCount), null, projection, instanceSelection,
+				selectionArgs, sortOrder, limit);
+		}
+
+		long[] taskIds = new long[results.mCount];
+		float[] scores = new float[results.mCount];
+		System.arraycopy(results.mTaskIds, 0, taskIds, 0, results.mCount);
+		System.arraycopy(results.mScores, 0, scores, 0, results.mCount);
+		return new SearchResult(taskIds, scores).query(db, projection, instanceSelection, selectionArgs, sortOrder, limit);
+	}
+
+
+	/**
+	 * Returns the buffer to take the changes of an update.
+	 */
+	private synchronized PostingBuffer beginUpdate()
+	{
+		return mTransactionThread == Thread.currentThread() ? mTransactionBuffer : new PostingBuffer();
+	}
+
+
+	/**
+	 * Writes the changes of an update, unless the update is part of a provider transaction.
+	 */
+	private void endUpdate(SQLiteDatabase db, PostingBuffer buffer)
+	{
+		synchronized (this)
+		{
+			if (buffer == mTransactionBuffer)
+			{
+				// written on commit
+				return;
+			}
+		}
+		flush(db, buffer);
+	}
+
+
+	/**
+	 * Updates the entries of the given tasks and their properties.
+	 */
+	private void updateTaskAndPropertyEntries(SQLiteDatabase db, long[] taskIds)
+	{
+		PostingBuffer buffer = beginUpdate();
+		updateTaskEntries(db, buffer, taskIds);
+
+		Cursor c = PropertyTextExtractorFactory.queryProperties(db, taskIds);
+		try
+		{
+			while (c.moveToNext())
+			{
+				updateEntry(db, buffer, -c.getLong(1), c.getLong(0), PropertyTextExtractorFactory.type(c), PropertyTextExtractorFactory.text(c));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		endUpdate(db, buffer);
+	}
+
+
+	private void updateTaskEntries(SQLiteDatabase db, PostingBuffer buffer, long[] taskIds)
+	{
+		String[] projection = new String[] { Tasks._ID, Tasks.TITLE, Tasks.DESCRIPTION, Tasks.LOCATION };
+		for (int start = 0; start < taskIds.length; start += TaskDatabaseHelper.MAX_INLINE_IDS)
+		{
+			int end = Math.min(taskIds.length, start + TaskDatabaseHelper.MAX_INLINE_IDS);
+			Cursor c = db.query(Tables.TASKS, projection, TaskDatabaseHelper.createIdSelection(Tasks._ID, taskIds, start, end), null, null, null, null);
+			try
+			{
+				while (c.moveToNext())
+				{
+					long taskId = c.getLong(0);
+					updateEntry(db, buffer, taskEntryId(taskId, SearchableTypes.TITLE), taskId, SearchableTypes.TITLE, c.getString(1));
+					updateEntry(db, buffer, taskEntryId(taskId, SearchableTypes.DESCRIPTION), taskId, SearchableTypes.DESCRIPTION, c.getString(2));
+					updateEntry(db, buffer, taskEntryId(taskId, SearchableTypes.LOCATION), taskId, SearchableTypes.LOCATION, c.getString(3));
+				}
+			}
+			finally
+			{
+				c.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Updates the forward entry with the given id and marks all N-grams that have been added or removed in the given buffer.
+	 */
+	private void updateEntry(SQLiteDatabase db, PostingBuffer buffer, long entryId, long taskId, int type, String text)
+	{
+		LongSet ngramSet = new LongSet(128);
+		FTSDatabaseHelper.tokenize(text, ngramSet);
+		long[] ngrams = ngramSet.toArray();
+		Arrays.sort(ngrams);
+
+		long[] oldNgrams = null;
+		Cursor c = db.query(ENTRY_TABLE, new String[] { ENTRY_NGRAMS }, ENTRY_ID + "=" + entryId, null, null, null, null);
+		try
+		{
+			if (c.moveToFirst())
+			{
+				oldNgrams = PostingCodec.decode(c.getBlob(0));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+
+		if (oldNgrams == null)
+		{
+			if (ngrams.length == 0)
+			{
+				return;
+			}
+			oldNgrams = new long[0];
+		}
+
+		// mark the symmetric difference of both sorted arrays
+		long key = postingKey(taskId, type);
+		int changes = 0;
+		int i = 0;
+		int j = 0;
+		while (i < ngrams.length || j < oldNgrams.length)
+		{
+			if (j == oldNgrams.length || i < ngrams.length && ngrams[i] < oldNgrams[j])
+			{
+				buffer.mark(ngrams[i++], key);
+				++changes;
+			}
+			else if (i == ngrams.length || oldNgrams[j] < ngrams[i])
+			{
+				buffer.mark(oldNgrams[j++], key);
+				++changes;
+			}
+			else
+			{
+				++i;
+				++j;
+			}
+		}
+
+		if (changes == 0)
+		{
+			return;
+		}
+
+		if (ngrams.length == 0)
+		{
+			db.delete(ENTRY_TABLE, ENTRY_ID + "=" + entryId, null);
+		}
+		else
+		{
+			ContentValues values = new ContentValues(4);
+			values.put(ENTRY_ID, entryId);
+			values.put(ENTRY_TASK_ID, taskId);
+			values.put(ENTRY_TYPE, type);
+			values.put(ENTRY_NGRAMS, PostingCodec.encode(ngrams, ngrams.length));
+			db.replace(ENTRY_TABLE, null, values);
+		}
+	}
+
+
+	/**
+	 * Writes the changes of the given buffer and of all removed entries to the posting lists.
+	 */
+	private void flush(SQLiteDatabase db, PostingBuffer buffer)
+	{
+		collectGarbage(db, buffer);
+		if (buffer.isEmpty())
+		{
+			return;
+		}
+
+		// the current N-grams of each task and type we've seen so far
+		Map<Long, long[]> currentNgrams = new HashMap<Long, long[]>(64);
+
+		// if there is a segment, it has to know which posting lists have changed
+		boolean hasSegment = currentGeneration(db) >= 0;
+
+		SQLiteStatement replace = db.compileStatement(SQL_REPLACE_POSTING);
+		SQLiteStatement delete = db.compileStatement(SQL_DELETE_POSTING);
+		SQLiteStatement insertDelta = db.compileStatement(SQL_INSERT_DELTA);
+		try
+		{
+			for (Map.Entry<Long, LongSet> dirty : buffer.mDirtyKeys.entrySet())
+			{
+				long ngram = dirty.getKey();
+				long[] posting = queryPostingList(db, ngram);
+				LongSet postingSet = new LongSet(posting.length + dirty.getValue().size());
+				for (long key : posting)
+				{
+					postingSet.add(key);
+				}
+
+				boolean changed = false;
+				for (long key : dirty.getValue().toArray())
+				{
+					long[] keyNgrams = currentNgrams.get(key);
+					if (keyNgrams == null)
+					{
+						keyNgrams = queryKeyNgrams(db, key);
+						currentNgrams.put(key, keyNgrams);
+					}
+
+					if (Arrays.binarySearch(keyNgrams, ngram) >= 0)
+					{
+						changed |= postingSet.add(key);
+					}
+					else
+					{
+						changed |= postingSet.remove(key);
+					}
+				}
+
+				if (!changed)
+				{
+					continue;
+				}
+
+				if (postingSet.isEmpty())
+				{
+					delete.bindLong(1, ngram);
+					delete.execute();
+				}
+				else
+				{
+					long[] keys = postingSet.toArray();
+					Arrays.sort(keys);
+					replace.bindLong(1, ngram);
+					replace.bindBlob(2, PostingCodec.encode(keys, keys.length));
+					replace.bindLong(3, keys.length);
+					replace.executeInsert();
+				}
+
+				if (hasSegment)
+				{
+					insertDelta.bindLong(1, ngram);
+					insertDelta.executeInsert();
+				}
+			}
+		}
+		finally
+		{
+			replace.close();
+			delete.close();
+			insertDelta.close();
+		}
+		buffer.clear();
+
+		if (mSegmentEnabled && !mMergeNeeded && (!hasSegment || DatabaseUtils.queryNumEntries(db, DELTA_TABLE) > MAX_DELTA_SIZE))
+		{
+			mMergeNeeded = true;
+		}
+	}
+
+
+	/**
+	 * Returns the mapped {@link PostingSegment}, mapping the current one if necessary.
+	 *
+	 * @return The {@link PostingSegment} or <code>null</code> if segments are disabled or there is no valid segment.
+	 */
+	private PostingSegment segment(SQLiteDatabase db)
+	{
+		if (!mSegmentEnabled || !supportsSegment(db))
+		{
+			return null;
+		}
+
+		PostingSegment segment = mSegment;
+		if (segment == null)
+		{
+			long generation = currentGeneration(db);
+			if (generation >= 0)
+			{
+				segment = PostingSegment.open(segmentFile(db, generation), generation);
+				mSegment = segment;
+			}
+		}
+		return segment;
+	}
+
+
+	/**
+	 * Loads the N-grams that match the given selection and have changed since the given segment has been written.
+	 *
+	 * @return <code>false</code> if the given segment is no longer current, in which case the delta must not be used.
+	 */
+	private boolean queryDelta(SQLiteDatabase db, String selection, PostingSegment segment, LongSet delta)
+	{
+		long generation = -1;
+		Cursor c = db.rawQuery(String.format(SQL_QUERY_DELTA, selection), null);
+		try
+		{
+			while (c.moveToNext())
+			{
+				if (!c.isNull(0))
+				{
+					generation = c.getLong(0);
+				}
+				else
+				{
+					delta.add(c.getLong(1));
+				}
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+
+		if (generation != segment.generation())
+		{
+			// map the current segment next time
+			mSegment = null;
+			return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns the posting lists of the given sorted N-grams like {@link #queryPostingLists(SQLiteDatabase, String)}. Lists that have changed since the segment
+	 * has been written are loaded from the database, all others from the segment.
+	 */
+	private long[][] loadPostingLists(SQLiteDatabase db, long[] ngrams, int count, PostingSegment segment, LongSet delta)
+	{
+		long[] deltaNgrams = new long[count];
+		int deltaCount = 0;
+		long[][] segmentLists = new long[count][];
+		int segmentCount = 0;
+		for (int i = 0; i < count; ++i)
+		{
+			long ngram = ngrams[i];
+			if (delta.contains(ngram))
+			{
+				deltaNgrams[deltaCount++] = ngram;
+			}
+			else
+			{
+				int index = segment.indexOf(ngram);
+				if (index >= 0)
+				{
+					long[] posting = segment.postingList(index);
+					long[] list = new long[posting.length + 1];
+					list[0] = ngram;
+					System.arraycopy(posting, 0, list, 1, posting.length);
+					segmentLists[segmentCount++] = list;
+				}
+			}
+		}
+
+		long[][] deltaLists = deltaCount == 0 ? new long[0][] : queryPostingLists(db,
+			TaskDatabaseHelper.createIdSelection(POSTING_NGRAM, deltaNgrams, 0, deltaCount));
+		long[][] result = new long[segmentCount + deltaLists.length][];
+		System.arraycopy(segmentLists, 0, result, 0, segmentCount);
+		System.arraycopy(deltaLists, 0, result, segmentCount, deltaLists.length);
+		return result;
+	}
+
+
+	/**
+	 * Returns the lengths of the posting lists of the given sorted N-grams like {@link #queryDocumentFrequencies(SQLiteDatabase, long[])}, taking them from
+	 * the segment unless they have changed since the segment has been written.
+	 */
+	private long[] segmentDocumentFrequencies(SQLiteDatabase db, long[] queryNgrams, PostingSegment segment, LongSet delta)
+	{
+		long[] result = new long[queryNgrams.length];
+		long[] deltaNgrams = new long[queryNgrams.length];
+		int deltaCount = 0;
+		for (int i = 0; i < queryNgrams.length; ++i)
+		{
+			if (delta.contains(queryNgrams[i]))
+			{
+				deltaNgrams[deltaCount++] = queryNgrams[i];
+			}
+			else
+			{
+				int index = segment.indexOf(queryNgrams[i]);
+				if (index >= 0)
+				{
+					result[i] = segment.postingCount(index);
+				}
+			}
+		}
+
+		if (deltaCount > 0)
+		{
+			long[] changedNgrams = new long[deltaCount];
+			System.arraycopy(deltaNgrams, 0, changedNgrams, 0, deltaCount);
+			long[] deltaFrequencies = queryDocumentFrequencies(db, changedNgrams);
+			for (int i = 0; i < deltaCount; ++i)
+			{
+				result[Arrays.binarySearch(queryNgrams, deltaNgrams[i])] = deltaFrequencies[i];
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Writes the current posting lists to a new {@link PostingSegment} and clears the delta. The segment file is written before the new generation is
+	 * committed, so a search that sees the new generation always finds the file. The file of the previous generation is removed afterwards, searches that
+	 * still use it keep their mapping.
+	 */
+	private void mergeSegment(SQLiteDatabase db)
+	{
+		long start = System.currentTimeMillis();
+		long oldGeneration;
+		long generation;
+		File file;
+
+		db.beginTransaction();
+		try
+		{
+			oldGeneration = currentGeneration(db);
+			generation = oldGeneration + 1;
+			file = segmentFile(db, generation);
+
+			Cursor c = db.query(POSTING_TABLE, new String[] { POSTING_NGRAM, POSTING_LIST, POSTING_COUNT }, null, null, null, null, POSTING_NGRAM);
+			try
+			{
+				PostingSegment.write(file, generation, c);
+			}
+			catch (IOException e)
+			{
+				Log.e(TAG, "Can't write search index segment " + file, e);
+				return;
+			}
+			finally
+			{
+				c.close();
+			}
+
+			db.delete(DELTA_TABLE, null, null);
+			db.delete(SEGMENT_TABLE, null, null);
+			ContentValues values = new ContentValues(1);
+			values.put(SEGMENT_GENERATION, generation);
+			db.insert(SEGMENT_TABLE, null, values);
+
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+			mMergeNeeded = false;
+			mMergeRequested = false;
+		}
+
+		mSegment = PostingSegment.open(file, generation);
+		if (oldGeneration >= 0)
+		{
+			segmentFile(db, oldGeneration).delete();
+		}
+		Log.i(TAG, "time to write search index segment: " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+
+	/**
+	 * Removes the current {@link PostingSegment}, if any. Searches read all posting lists from the database afterwards.
+	 */
+	private void deleteSegment(SQLiteDatabase db)
+	{
+		long generation = currentGeneration(db);
+		if (generation >= 0)
+		{
+			db.delete(SEGMENT_TABLE, null, null);
+			db.delete(DELTA_TABLE, null, null);
+			if (supportsSegment(db))
+			{
+				segmentFile(db, generation).delete();
+			}
+		}
+		mSegment = null;
+	}
+
+
+	/**
+	 * Returns the generation of the current {@link PostingSegment} or <code>-1</code> if there is none.
+	 */
+	private long currentGeneration(SQLiteDatabase db)
+	{
+		return DatabaseUtils.longForQuery(db, "SELECT ifnull(max(" + SEGMENT_GENERATION + "), -1) FROM " + SEGMENT_TABLE, null);
+	}
+
+
+	/**
+	 * Returns whether the given database is stored in a file, next to which we can store the segment.
+	 */
+	private static boolean supportsSegment(SQLiteDatabase db)
+	{
+		String path = db.getPath();
+		return path != null && !":memory:".equals(path);
+	}
+
+
+	private static File segmentFile(SQLiteDatabase db, long generation)
+	{
+		return new File(db.getPath() + "-" + NAME + "-" + generation);
+	}
+
+
+	/**
+	 * Marks the N-grams of all removed entries in the given buffer and removes the entries from the garbage table.
+	 */
+	private void collectGarbage(SQLiteDatabase db, PostingBuffer buffer)
+	{
+		Cursor c = db.query(GARBAGE_TABLE, new String[] { ENTRY_TASK_ID, ENTRY_TYPE, ENTRY_NGRAMS }, null, null, null, null, null);
+		try
+		{
+			if (c.getCount() == 0)
+			{
+				return;
+			}
+
+			while (c.moveToNext())
+			{
+				long key = postingKey(c.getLong(0), c.getInt(1));
+				for (long ngram : PostingCodec.decode(c.getBlob(2)))
+				{
+					buffer.mark(ngram, key);
+				}
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		db.delete(GARBAGE_TABLE, null, null);
+	}
+
+
+	/**
+	 * Returns the sorted N-grams of all entries of the given task and type. A task can have multiple property entries.
+	 */
+	private long[] queryKeyNgrams(SQLiteDatabase db, long key)
+	{
+		Cursor c = db.query(ENTRY_TABLE, new String[] { ENTRY_NGRAMS }, ENTRY_TASK_ID + "=" + (key >> 3) + " and " + ENTRY_TYPE + "=" + (key & 7), null,
+			null, null, null);
+		try
+		{
+			if (c.getCount() == 1 && c.moveToFirst())
+			{
+				return PostingCodec.decode(c.getBlob(0));
+			}
+
+			LongSet ngrams = new LongSet(256);
+			while (c.moveToNext())
+			{
+				for (long ngram : PostingCodec.decode(c.getBlob(0)))
+				{
+					ngrams.add(ngram);
+				}
+			}
+			long[] result = ngrams.toArray();
+			Arrays.sort(result);
+			return result;
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Returns the decoded posting list of the given N-gram.
+	 */
+	private long[] queryPostingList(SQLiteDatabase db, long ngram)
+	{
+		Cursor c = db.query(POSTING_TABLE, new String[] { POSTING_LIST }, POSTING_NGRAM + "=" + ngram, null, null, null, null);
+		try
+		{
+			return c.moveToFirst() ? PostingCodec.decode(c.getBlob(0)) : new long[0];
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Returns the posting lists of the N-grams that match the given selection. The first element of each returned array is the N-gram, followed by the
+	 * elements of its posting list.
+	 */
+	private long[][] queryPostingLists(SQLiteDatabase db, String selection)
+	{
+		Cursor c = db.query(POSTING_TABLE, new String[] { POSTING_NGRAM, POSTING_LIST }, selection, null, null, null, null);
+		try
+		{
+			long[][] result = new long[c.getCount()][];
+			int i = 0;
+			while (c.moveToNext())
+			{
+				long[] posting = PostingCodec.decode(c.getBlob(1));
+				long[] list = new long[posting.length + 1];
+				list[0] = c.getLong(0);
+				System.arraycopy(posting, 0, list, 1, posting.length);
+				result[i++] = list;
+			}
+			return result;
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Returns the lengths of the posting lists of the given sorted N-grams.
+	 */
+	private long[] queryDocumentFrequencies(SQLiteDatabase db, long[] queryNgrams)
+	{
+		long[] result = new long[queryNgrams.length];
+		Cursor c = db.query(POSTING_TABLE, new String[] { POSTING_NGRAM, POSTING_COUNT },
+			TaskDatabaseHelper.createIdSelection(POSTING_NGRAM, queryNgrams, 0, queryNgrams.length), null, null, null, null);
+		try
+		{
+			while (c.moveToNext())
+			{
+				int index = Arrays.binarySearch(queryNgrams, c.getLong(0));
+				if (index >= 0)
+				{
+					result[index] = c.getLong(1);
+				}
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		return result;
+	}
+
+
+	/**
+	 * Merges the given posting lists and returns the tasks with a score of at least <code>minScore</code>. The score of a task is the sum of the weights of
+	 * the lists that contain it, each multiplied by the highest type weight of the task in that list, divided by the total weight. Only entries of the given
+	 * types count.
+	 */
+	private static Results merge(long[][] postingLists, double[] weights, double totalWeight, float minScore, int types)
+	{
+		PriorityQueue<ListCursor> queue = new PriorityQueue<ListCursor>(Math.max(1, postingLists.length));
+		for (int i = 0; i < postingLists.length; ++i)
+		{
+			if (postingLists[i].length > 1)
+			{
+				queue.add(new ListCursor(postingLists[i], weights[i], types));
+			}
+		}
+
+		Results results = new Results();
+		while (!queue.isEmpty())
+		{
+			long taskId = queue.peek().taskId();
+			double score = 0;
+			while (!queue.isEmpty() && queue.peek().taskId() == taskId)
+			{
+				ListCursor cursor = queue.poll();
+				score += cursor.consume(taskId);
+				if (!cursor.isDone())
+				{
+					queue.add(cursor);
+				}
+			}
+
+			score = Math.min(1.0, score / totalWeight);
+			if (score > 0 && score >= minScore)
+			{
+				results.add(taskId, (float) score);
+			}
+		}
+		results.keepBest(MAX_RESULTS);
+		return results;
+	}
+
+
+	private static long taskEntryId(long taskId, int type)
+	{
+		return taskId * 8 + type;
+	}
+
+
+	private static long postingKey(long taskId, int type)
+	{
+		return taskId * 8 + type;
+	}
+
+	/**
+	 * The N-grams whose posting lists may have to be updated, each with the keys (task id and type) that may have been added or removed.
+	 */
+	private final static class PostingBuffer
+	{
+		private final Map<Long, LongSet> mDirtyKeys = new HashMap<Long, LongSet>(256);
+
+
+		public void mark(long ngram, long key)
+		{
+			LongSet keys = mDirtyKeys.get(ngram);
+			if (keys == null)
+			{
+				keys = new LongSet(8);
+				mDirtyKeys.put(ngram, keys);
+			}
+			keys.add(key);
+		}
+
+
+		public boolean isEmpty()
+		{
+			return mDirtyKeys.isEmpty();
+		}
+
+
+		public void clear()
+		{
+			mDirtyKeys.clear();
+		}
+	}
+
+	/**
+	 * A position in a posting list. The first element of the list is the N-gram, so the cursor starts at the second element.
+	 */
+	private final static class ListCursor implements Comparable<ListCursor>
+	{
+		private final long[] mList;
+		private final double mWeight;
+		private final int mTypes;
+		private int mPos = 1;
+
+
+		public ListCursor(long[] list, double weight, int types)
+		{
+			mList = list;
+			mWeight = weight;
+			mTypes = types;
+		}
+
+
+		public long taskId()
+		{
+			return mList[mPos] >> 3;
+		}
+
+
+		public boolean isDone()
+		{
+			return mPos == mList.length;
+		}
+
+
+		/**
+		 * Moves the cursor past the given task and returns the weight of this list multiplied by the highest type weight of the task. Entries of types that
+		 * are not searched have no weight.
+		 */
+		public double consume(long taskId)
+		{
+			float typeWeight = 0;
+			while (mPos < mList.length && mList[mPos] >> 3 == taskId)
+			{
+				int type = (int) (mList[mPos] & 7);
+				if ((mTypes & ScopedQuery.typeBit(type)) != 0)
+				{
+					typeWeight = Math.max(typeWeight, FTSDatabaseHelper.typeWeight(type));
+				}
+				++mPos;
+			}
+			return typeWeight * mWeight;
+		}
+
+
+		@Override
+		public int compareTo(ListCursor another)
+		{
+			long taskId = taskId();
+			long otherTaskId = another.taskId();
+			return taskId < otherTaskId ? -1 : (taskId == otherTaskId ? 0 : 1);
+		}
+	}
+
+	/**
+	 * The scores of the matching tasks.
+	 */
+	private final static class Results
+	{
+		private long[] mTaskIds = new long[64];
+		private float[] mScores = new float[64];
+		private int mCount;
+
+
+		public void add(long taskId, float score)
+		{
+			if (mCount == mTaskIds.length)
+			{
+				long[] taskIds = new long[mCount * 2];
+				System.arraycopy(mTaskIds, 0, taskIds, 0, mCount);
+				mTaskIds = taskIds;
+				float[] scores = new float[mCount * 2];
+				System.arraycopy(mScores, 0, scores, 0, mCount);
+				mScores = scores;
+			}
+			mTaskIds[mCount] = taskId;
+			mScores[mCount] = score;
+			++mCount;
+		}
+
+
+		/**
+		 * Removes all but the given number of tasks with the highest scores.
+		 */
+		public void keepBest(int max)
+		{
+			if (mCount <= max)
+			{
+				return;
+			}
+
+			float[] scores = new float[mCount];
+			System.arraycopy(mScores, 0, scores, 0, mCount);
+			Arrays.sort(scores);
+			float threshold = scores[mCount - max];
+			int count = 0;
+			for (int i = 0; i < mCount && count < max; ++i)
+			{
+				if (mScores[i] >= threshold)
+				{
+					mTaskIds[count] = mTaskIds[i];
+					mScores[count] = mScores[i];
+					++count;
+				}
+			}
+			mCount = count;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import android.database.Cursor;
+import android.util.Log;
+
+
+/**
+ * An immutable snapshot of the posting lists of the {@link PostingListSearchEngine} in a memory-mapped file. Looking up a posting list is a binary search in
+ * the mapped N-gram dictionary, which doesn't involve SQLite and doesn't copy any data until the list is decoded.
+ * <p>
+ * The file starts with a header of the magic number, the number of N-grams, the generation of the segment and the offset of the dictionary. The header is
+ * followed by the encoded posting lists (see {@link PostingCodec}) and the dictionary, which consists of the sorted N-grams, the offsets of their posting lists
+ * and the lengths of the posting lists.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class PostingSegment
+{
+	private static final String TAG = "PostingSegment";
+
+	/**
+	 * "TPS1", Task Posting Segment version 1.
+	 */
+	private final static int MAGIC = 0x54505331;
+
+	private final static int HEADER_SIZE = 24;
+
+	private final long mGeneration;
+	private final int mSize;
+	private final ByteBuffer mData;
+	private final LongBuffer mNgrams;
+	private final IntBuffer mOffsets;
+	private final IntBuffer mCounts;
+
+
+	private PostingSegment(long generation, ByteBuffer buffer, int size, int dictionaryOffset)
+	{
+		mGeneration = generation;
+		mSize = size;
+		mData = buffer;
+
+		buffer.position(dictionaryOffset);
+		mNgrams = buffer.slice().asLongBuffer();
+		buffer.position(dictionaryOffset + size * 8);
+		mOffsets = buffer.slice().asIntBuffer();
+		buffer.position(dictionaryOffset + size * 12);
+		mCounts = buffer.slice().asIntBuffer();
+		buffer.position(0);
+	}
+
+
+	/**
+	 * Maps the segment in the given file.
+	 *
+	 * @param file
+	 *            The segment file.
+	 * @param generation
+	 *            The expected generation of the segment.
+	 * @return The {@link PostingSegment} or <code>null</code> if the file doesn't exist or doesn't contain a valid segment of the given generation.
+	 */
+	public static PostingSegment open(File file, long generation)
+	{
+		if (!file.isFile())
+		{
+			return null;
+		}
+
+		try
+		{
+			FileInputStream in = new FileInputStream(file);
+			try
+			{
+				FileChannel channel = in.getChannel();
+				// the mapping stays valid when the channel is closed
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+				if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getLong(8) != generation)
+				{
+					Log.w(TAG, "Ignoring invalid search index segment " + file);
+					return null;
+				}
+
+				int size = buffer.getInt(4);
+				int dictionaryOffset = (int) buffer.getLong(16);
+				if (size < 0 || dictionaryOffset < HEADER_SIZE || dictionaryOffset + (long) size * 16 != buffer.capacity())
+				{
+					Log.w(TAG, "Ignoring truncated search index segment " + file);
+					return null;
+				}
+
+				return new PostingSegment(generation, buffer, size, dictionaryOffset);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			Log.w(TAG, "Can't map search index segment " + file, e);
+			return null;
+		}
+	}
+
+
+	/**
+	 * Writes a new segment file. The file is written to a temporary file first, which replaces the given file when it's complete.
+	 *
+	 * @param file
+	 *            The segment file.
+	 * @param generation
+	 *            The generation of the new segment.
+	 * @param postings
+	 *            A {@link Cursor} that returns the N-gram, the encoded posting list and the length of the posting list in this order, sorted by the N-gram.
+	 * @throws IOException
+	 *             if the file can't be written.
+	 */
+	public static void write(File file, long generation, Cursor postings) throws IOException
+	{
+		int size = postings.getCount();
+		long[] ngrams = new long[size];
+		int[] offsets = new int[size];
+		int[] counts = new int[size];
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+		try
+		{
+			// write a placeholder for the header, it's written when the dictionary offset is known
+			out.write(new byte[HEADER_SIZE]);
+
+			int offset = HEADER_SIZE;
+			int i = 0;
+			while (postings.moveToNext() && i < size)
+			{
+				byte[] list = postings.getBlob(1);
+				ngrams[i] = postings.getLong(0);
+				offsets[i] = offset;
+				counts[i] = postings.getInt(2);
+				out.write(list);
+				offset += list.length;
+				++i;
+			}
+
+			// align the dictionary
+			while ((offset & 7) != 0)
+			{
+				out.write(0);
+				++offset;
+			}
+
+			for (long ngram : ngrams)
+			{
+				out.writeLong(ngram);
+			}
+			for (int listOffset : offsets)
+			{
+				out.writeInt(listOffset);
+			}
+			for (int count : counts)
+			{
+				out.writeInt(count);
+			}
+			out.close();
+			out = null;
+
+			RandomAccessFile header = new RandomAccessFile(tempFile, "rw");
+			try
+			{
+				header.writeInt(MAGIC);
+				header.writeInt(size);
+				header.writeLong(generation);
+				header.writeLong(offset);
+				header.getFD().sync();
+			}
+			finally
+			{
+				header.close();
+			}
+
+			if (!tempFile.renameTo(file))
+			{
+				throw new IOException("Can't rename " + tempFile + " to " + file);
+			}
+		}
+		finally
+		{
+			if (out != null)
+			{
+				out.close();
+			}
+			tempFile.delete();
+		}
+	}
+
+
+	/**
+	 * Returns the generation of this segment.
+	 */
+	public long generation()
+	{
+		return mGeneration;
+	}
+
+
+	/**
+	 * Returns the number of N-grams in this segment.
+	 */
+	public int size()
+	{
+		return mSize;
+	}
+
+
+	/**
+	 * Returns the index of the first N-gram that's not smaller than the given one.
+	 *
+	 * @param ngram
+	 *            An N-gram.
+	 * @return The index, which equals {@link #size()} if all N-grams are smaller.
+	 */
+	public int lowerBound(long ngram)
+	{
+		int low = 0;
+		int high = mSize;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (mNgrams.get(mid) < ngram)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+
+	/**
+	 * Returns the index of the given N-gram.
+	 *
+	 * @param ngram
+	 *            An N-gram.
+	 * @return The index or <code>-1</code> if this segment doesn't contain the N-gram.
+	 */
+	public int indexOf(long ngram)
+	{
+		int index = lowerBound(ngram);
+		return index < mSize && mNgrams.get(index) == ngram ? index : -1;
+	}
+
+
+	/**
+	 * Returns the N-gram at the given index.
+	 */
+	public long ngramAt(int index)
+	{
+		return mNgrams.get(index);
+	}
+
+
+	/**
+	 * Returns the length of the posting list at the given index.
+	 */
+	public int postingCount(int index)
+	{
+		return mCounts.get(index);
+	}
+
+
+	/**
+	 * Decodes the posting list at the given index.
+	 */
+	public long[] postingList(int index)
+	{
+		return PostingCodec.decode(mData, mOffsets.get(index), mCounts.get(index));
+	}
+}
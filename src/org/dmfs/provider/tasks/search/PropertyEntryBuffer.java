@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dmfs.provider.tasks.TaskContract.Properties;
+import org.dmfs.provider.tasks.TaskDatabaseHelper;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Collects the texts of the properties that are written in a transaction and hands them to the {@link SearchEngine} once, grouped by task, right before the
+ * transaction is committed. A property that is written several times in a transaction is tokenized only once, and engines can update all properties of a task
+ * in one go, see {@link SearchEngine#updatePropertyEntries(SQLiteDatabase, long, long[], int[], String[])}.
+ * <p>
+ * The buffer is kept per thread. Outside of a provider transaction the texts are written right away.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class PropertyEntryBuffer
+{
+	private final static ThreadLocal<PropertyEntryBuffer> BUFFER = new ThreadLocal<PropertyEntryBuffer>()
+	{
+		@Override
+		protected PropertyEntryBuffer initialValue()
+		{
+			return new PropertyEntryBuffer();
+		}
+	};
+
+	/**
+	 * A pending entry.
+	 */
+	private final static class Entry
+	{
+		final long taskId;
+		final long propertyId;
+		final int type;
+		final String text;
+
+
+		Entry(long taskId, long propertyId, int type, String text)
+		{
+			this.taskId = taskId;
+			this.propertyId = propertyId;
+			this.type = type;
+			this.text = text;
+		}
+	}
+
+	private final static Comparator<Entry> TASK_ORDER = new Comparator<Entry>()
+	{
+		@Override
+		public int compare(Entry lhs, Entry rhs)
+		{
+			return lhs.taskId < rhs.taskId ? -1 : (lhs.taskId == rhs.taskId ? 0 : 1);
+		}
+	};
+
+	/**
+	 * The pending entries by property id.
+	 */
+	private final Map<Long, Entry> mPending = new HashMap<Long, Entry>(64);
+
+	private boolean mActive;
+
+
+	private PropertyEntryBuffer()
+	{
+	}
+
+
+	/**
+	 * Starts buffering the property entries of the current thread. Must be called when a transaction begins.
+	 */
+	public static void begin()
+	{
+		PropertyEntryBuffer buffer = BUFFER.get();
+		buffer.mPending.clear();
+		buffer.mActive = true;
+	}
+
+
+	/**
+	 * Updates or creates the entry of a property. Passing <code>null</code> as text removes the entry. Within a transaction the update is buffered until
+	 * {@link #flush(SQLiteDatabase, SearchEngine)}, otherwise it's written to the active engine right away.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The row id of the task the property belongs to.
+	 * @param propertyId
+	 *            The row id of the property.
+	 * @param type
+	 *            The {@link org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes} type of the property.
+	 * @param text
+	 *            The searchable text of the property or <code>null</code>.
+	 */
+	public static void update(SQLiteDatabase db, long taskId, long propertyId, int type, String text)
+	{
+		PropertyEntryBuffer buffer = BUFFER.get();
+		if (buffer.mActive)
+		{
+			buffer.mPending.put(propertyId, new Entry(taskId, propertyId, type, text));
+		}
+		else
+		{
+			SearchEngineFactory.activeEngine().updatePropertyEntry(db, taskId, propertyId, type, text);
+		}
+	}
+
+
+	/**
+	 * Writes all buffered entries of the current thread to the given engine and stops buffering. Must be called right before the transaction is committed.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param engine
+	 *            The {@link SearchEngine} of the transaction.
+	 */
+	public static void flush(SQLiteDatabase db, SearchEngine engine)
+	{
+		PropertyEntryBuffer buffer = BUFFER.get();
+		buffer.mActive = false;
+		if (buffer.mPending.isEmpty())
+		{
+			return;
+		}
+
+		List<Entry> entries = new ArrayList<Entry>(buffer.mPending.values());
+		buffer.mPending.clear();
+
+		// properties (or their tasks) that have been deleted in the transaction must not get new entries
+		Set<Long> existing = existingProperties(db, entries);
+
+		Collections.sort(entries, TASK_ORDER);
+		int start = 0;
+		while (start < entries.size())
+		{
+			long taskId = entries.get(start).taskId;
+			int end = start;
+			while (end < entries.size() && entries.get(end).taskId == taskId)
+			{
+				++end;
+			}
+
+			long[] propertyIds = new long[end - start];
+			int[] types = new int[end - start];
+			String[] texts = new String[end - start];
+			int count = 0;
+			for (int i = start; i < end; ++i)
+			{
+				Entry entry = entries.get(i);
+				if (existing.contains(entry.propertyId))
+				{
+					propertyIds[count] = entry.propertyId;
+					types[count] = entry.type;
+					texts[count] = entry.text;
+					++count;
+				}
+			}
+			if (count == end - start)
+			{
+				engine.updatePropertyEntries(db, taskId, propertyIds, types, texts);
+			}
+			else if (count > 0)
+			{
+				long[] existingPropertyIds = new long[count];
+				int[] existingTypes = new int[count];
+				String[] existingTexts = new String[count];
+				System.arraycopy(propertyIds, 0, existingPropertyIds, 0, count);
+				System.arraycopy(types, 0, existingTypes, 0, count);
+				System.arraycopy(texts, 0, existingTexts, 0, count);
+				engine.updatePropertyEntries(db, taskId, existingPropertyIds, existingTypes, existingTexts);
+			}
+			start = end;
+		}
+	}
+
+
+	/**
+	 * Drops all buffered entries of the current thread and stops buffering. Must be called when a transaction has been rolled back.
+	 */
+	public static void discard()
+	{
+		PropertyEntryBuffer buffer = BUFFER.get();
+		buffer.mPending.clear();
+		buffer.mActive = false;
+	}
+
+
+	/**
+	 * Writes the texts of the properties of a {@link Cursor} returned by {@link PropertyTextExtractorFactory#queryProperties(SQLiteDatabase, long[])} to the
+	 * given engine, one task at a time.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param engine
+	 *            The {@link SearchEngine} to update.
+	 * @param cursor
+	 *            The properties, ordered by task id.
+	 */
+	static void writeGrouped(SQLiteDatabase db, SearchEngine engine, Cursor cursor)
+	{
+		List<Long> propertyIds = new ArrayList<Long>();
+		List<Integer> types = new ArrayList<Integer>();
+		List<String> texts = new ArrayList<String>();
+		long taskId = -1;
+		while (cursor.moveToNext())
+		{
+			long rowTaskId = cursor.getLong(0);
+			if (rowTaskId != taskId && !propertyIds.isEmpty())
+			{
+				writeTask(db, engine, taskId, propertyIds, types, texts);
+			}
+			taskId = rowTaskId;
+			propertyIds.add(cursor.getLong(1));
+			types.add(PropertyTextExtractorFactory.type(cursor));
+			texts.add(PropertyTextExtractorFactory.text(cursor));
+		}
+		if (!propertyIds.isEmpty())
+		{
+			writeTask(db, engine, taskId, propertyIds, types, texts);
+		}
+	}
+
+
+	private static void writeTask(SQLiteDatabase db, SearchEngine engine, long taskId, List<Long> propertyIds, List<Integer> types, List<String> texts)
+	{
+		long[] ids = new long[propertyIds.size()];
+		int[] typeArray = new int[ids.length];
+		for (int i = 0; i < ids.length; ++i)
+		{
+			ids[i] = propertyIds.get(i);
+			typeArray[i] = types.get(i);
+		}
+		engine.updatePropertyEntries(db, taskId, ids, typeArray, texts.toArray(new String[texts.size()]));
+		propertyIds.clear();
+		types.clear();
+		texts.clear();
+	}
+
+
+	/**
+	 * Returns the ids of the properties of the given entries that still exist.
+	 */
+	private static Set<Long> existingProperties(SQLiteDatabase db, List<Entry> entries)
+	{
+		long[] ids = new long[entries.size()];
+		for (int i = 0; i < ids.length; ++i)
+		{
+			ids[i] = entries.get(i).propertyId;
+		}
+
+		Set<Long> result = new HashSet<Long>(ids.length * 2);
+		for (int start = 0; start < ids.length; start += TaskDatabaseHelper.MAX_INLINE_IDS)
+		{
+			int end = Math.min(ids.length, start + TaskDatabaseHelper.MAX_INLINE_IDS);
+			Cursor c = db.query(Tables.PROPERTIES, new String[] { Properties.PROPERTY_ID },
+				TaskDatabaseHelper.createIdSelection(Properties.PROPERTY_ID, ids, start, end), null, null, null, null);
+			try
+			{
+				while (c.moveToNext())
+				{
+					result.add(c.getLong(0));
+				}
+			}
+			finally
+			{
+				c.close();
+			}
+		}
+		return result;
+	}
+}
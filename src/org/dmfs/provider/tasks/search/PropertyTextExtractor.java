@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+
+/**
+ * Extracts the searchable text of a property of a specific mimetype. The text is the concatenation of the non-empty values of the text columns of the
+ * property, separated by spaces.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class PropertyTextExtractor
+{
+	private final String mName;
+	private final String mMimeType;
+	private final int mType;
+	private final String[] mColumns;
+
+
+	/**
+	 * Creates a {@link PropertyTextExtractor}.
+	 *
+	 * @param name
+	 *            The short name of the extractor, used to enable or disable it, see {@link PropertyTextExtractorFactory}.
+	 * @param mimeType
+	 *            The mimetype of the properties.
+	 * @param type
+	 *            The {@link SearchableTypes} type of the search index entries of the properties.
+	 * @param columns
+	 *            The columns that contain the searchable text.
+	 */
+	PropertyTextExtractor(String name, String mimeType, int type, String... columns)
+	{
+		mName = name;
+		mMimeType = mimeType;
+		mType = type;
+		mColumns = columns;
+	}
+
+
+	/**
+	 * Returns the short name of this extractor.
+	 *
+	 * @return The name.
+	 */
+	public String name()
+	{
+		return mName;
+	}
+
+
+	/**
+	 * Returns the mimetype of the properties this extractor handles.
+	 *
+	 * @return The mimetype.
+	 */
+	public String mimeType()
+	{
+		return mMimeType;
+	}
+
+
+	/**
+	 * Returns the {@link SearchableTypes} type of the search index entries of the properties this extractor handles.
+	 *
+	 * @return The type.
+	 */
+	public int type()
+	{
+		return mType;
+	}
+
+
+	/**
+	 * Returns the columns this extractor takes the text from.
+	 *
+	 * @return An array of column names. Don't modify it.
+	 */
+	public String[] columns()
+	{
+		return mColumns;
+	}
+
+
+	/**
+	 * Returns whether the given values change the text of a property.
+	 *
+	 * @param values
+	 *            The values of an update.
+	 * @return <code>true</code> if any of the text columns is in <code>values</code>.
+	 */
+	public boolean isUpdated(ContentValues values)
+	{
+		for (String column : mColumns)
+		{
+			if (values.containsKey(column))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Returns the searchable text of a property. Columns that are not in <code>values</code> are taken from the current row of <code>oldValues</code>, if
+	 * given.
+	 *
+	 * @param values
+	 *            The new values of the property.
+	 * @param oldValues
+	 *            A {@link Cursor} pointing to the old values of the property or <code>null</code>.
+	 * @return The text or <code>null</code> if the property has no text.
+	 */
+	public String text(ContentValues values, Cursor oldValues)
+	{
+		StringBuilder result = null;
+		for (String column : mColumns)
+		{
+			String value;
+			if (values.containsKey(column))
+			{
+				value = values.getAsString(column);
+			}
+			else if (oldValues != null)
+			{
+				int index = oldValues.getColumnIndex(column);
+				value = index < 0 ? null : oldValues.getString(index);
+			}
+			else
+			{
+				continue;
+			}
+			result = append(result, value);
+		}
+		return result == null ? null : result.toString();
+	}
+
+
+	private static StringBuilder append(StringBuilder builder, String value)
+	{
+		if (value == null || value.length() == 0)
+		{
+			return builder;
+		}
+		if (builder == null)
+		{
+			return new StringBuilder(value);
+		}
+		return builder.append(' ').append(value);
+	}
+}
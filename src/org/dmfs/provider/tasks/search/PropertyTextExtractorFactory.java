@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2014 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes;
+import org.dmfs.provider.tasks.TaskContract.Properties;
+import org.dmfs.provider.tasks.TaskContract.Property.Attachment;
+import org.dmfs.provider.tasks.TaskContract.Property.Attendee;
+import org.dmfs.provider.tasks.TaskContract.Property.Category;
+import org.dmfs.provider.tasks.TaskContract.Property.Comment;
+import org.dmfs.provider.tasks.TaskContract.Property.Contact;
+import org.dmfs.provider.tasks.TaskDatabaseHelper;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+
+/**
+ * A factory that returns the {@link PropertyTextExtractor} of a property mimetype and keeps track of the ones that are enabled. Only properties with an enabled
+ * extractor are added to the search index.
+ * <p>
+ * By default all extractors are enabled. The enabled extractors can be configured with a meta-data element in the provider declaration of the manifest, like
+ * </p>
+ *
+ * <pre>
+ * &lt;meta-data android:name="org.dmfs.provider.tasks.SEARCH_PROPERTIES" android:value="category,comment" /&gt;
+ * </pre>
+ * <p>
+ * Valid names are <code>category</code>, <code>comment</code>, <code>attendee</code>, <code>contact</code> and <code>attachment</code>. The enabled names are
+ * stored in the database. When the database is opened with other extractors, a rebuild of the search index is scheduled.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class PropertyTextExtractorFactory
+{
+	private static final String TAG = "PropertyTextExtractorFactory";
+
+	/**
+	 * The name of the provider meta-data that contains the comma separated names of the enabled extractors.
+	 */
+	public final static String META_DATA_SEARCH_PROPERTIES = "org.dmfs.provider.tasks.SEARCH_PROPERTIES";
+
+	/**
+	 * The table that stores the names of the extractors the index has been built with.
+	 */
+	private final static String SEARCH_PROPERTIES_TABLE = "Search_Properties";
+
+	private final static String EXTRACTOR_NAMES = "extractor_names";
+
+	private final static String SQL_CREATE_SEARCH_PROPERTIES_TABLE = "CREATE TABLE IF NOT EXISTS " + SEARCH_PROPERTIES_TABLE + " (" + EXTRACTOR_NAMES
+		+ " Text)";
+
+	/**
+	 * The extractors an index that predates this table has been built with.
+	 */
+	private final static String LEGACY_EXTRACTOR_NAMES = "category";
+
+	private final static PropertyTextExtractor[] EXTRACTORS = {
+		new PropertyTextExtractor("category", Category.CONTENT_ITEM_TYPE, SearchableTypes.CATEGORY, Category.CATEGORY_NAME),
+		new PropertyTextExtractor("comment", Comment.CONTENT_ITEM_TYPE, SearchableTypes.COMMENT, Comment.COMMENT),
+		new PropertyTextExtractor("attendee", Attendee.CONTENT_ITEM_TYPE, SearchableTypes.PERSON, Attendee.NAME, Attendee.EMAIL),
+		new PropertyTextExtractor("contact", Contact.CONTENT_ITEM_TYPE, SearchableTypes.PERSON, Contact.NAME),
+		new PropertyTextExtractor("attachment", Attachment.CONTENT_ITEM_TYPE, SearchableTypes.ATTACHMENT, Attachment.DISPLAY_NAME) };
+
+	/**
+	 * The names of the enabled extractors.
+	 */
+	private static volatile Set<String> sEnabled = allNames();
+
+
+	private PropertyTextExtractorFactory()
+	{
+	}
+
+
+	/**
+	 * Returns the enabled {@link PropertyTextExtractor} of the given mimetype.
+	 *
+	 * @param mimeType
+	 *            The mimetype of a property.
+	 * @return The {@link PropertyTextExtractor} or <code>null</code> if properties of this mimetype are not indexed.
+	 */
+	public static PropertyTextExtractor get(String mimeType)
+	{
+		for (PropertyTextExtractor extractor : EXTRACTORS)
+		{
+			if (extractor.mimeType().equals(mimeType))
+			{
+				return sEnabled.contains(extractor.name()) ? extractor : null;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Sets the enabled extractors. This must be called before the database is opened.
+	 *
+	 * @param names
+	 *            The comma separated names of the extractors to enable or <code>null</code> to enable all of them.
+	 */
+	public static void setEnabled(String names)
+	{
+		if (names == null)
+		{
+			sEnabled = allNames();
+			return;
+		}
+
+		Set<String> enabled = new HashSet<String>();
+		for (String name : names.split(","))
+		{
+			name = name.trim();
+			if (name.length() == 0)
+			{
+				continue;
+			}
+			if (!allNames().contains(name))
+			{
+				Log.w(TAG, "Unknown property text extractor " + name + ", ignoring it.");
+				continue;
+			}
+			enabled.add(name);
+		}
+		sEnabled = enabled;
+	}
+
+
+	/**
+	 * Enables or disables the extractor of the given mimetype. This must be called before the database is opened.
+	 *
+	 * @param mimeType
+	 *            The mimetype of the properties.
+	 * @param enabled
+	 *            <code>true</code> to index properties of this mimetype.
+	 */
+	public static void setEnabled(String mimeType, boolean enabled)
+	{
+		for (PropertyTextExtractor extractor : EXTRACTORS)
+		{
+			if (extractor.mimeType().equals(mimeType))
+			{
+				Set<String> result = new HashSet<String>(sEnabled);
+				if (enabled)
+				{
+					result.add(extractor.name());
+				}
+				else
+				{
+					result.remove(extractor.name());
+				}
+				sEnabled = result;
+				return;
+			}
+		}
+		throw new IllegalArgumentException("No text extractor for mimetype " + mimeType);
+	}
+
+
+	/**
+	 * Must be called when the database is opened. If the index has been built with other extractors, this schedules a rebuild of the index.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public static void onOpen(SQLiteDatabase db)
+	{
+		String enabledNames = enabledNames();
+
+		db.beginTransaction();
+		try
+		{
+			db.execSQL(SQL_CREATE_SEARCH_PROPERTIES_TABLE);
+			String indexNames = DatabaseUtils.stringForQuery(db, "SELECT " + EXTRACTOR_NAMES + " FROM " + SEARCH_PROPERTIES_TABLE + " UNION ALL SELECT '"
+				+ LEGACY_EXTRACTOR_NAMES + "' LIMIT 1", null);
+			if (!enabledNames.equals(indexNames))
+			{
+				Log.i(TAG, "indexed properties changed from " + indexNames + " to " + enabledNames);
+				SearchEngineFactory.scheduleRebuild(db);
+
+				ContentValues values = new ContentValues(1);
+				values.put(EXTRACTOR_NAMES, enabledNames);
+				db.delete(SEARCH_PROPERTIES_TABLE, null, null);
+				db.insert(SEARCH_PROPERTIES_TABLE, null, values);
+			}
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+	}
+
+
+	/**
+	 * Returns a {@link Cursor} of all properties that have an extractor, enabled or not, ordered by task id. The cursor contains the task id, the property id
+	 * and the mimetype in its first three columns, followed by the text columns. Use {@link #text(Cursor)} to get the text of a row.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param taskIds
+	 *            The ids of the tasks to return the properties of or <code>null</code> to return the properties of all tasks.
+	 * @return A {@link Cursor}.
+	 */
+	public static Cursor queryProperties(SQLiteDatabase db, long[] taskIds)
+	{
+		List<String> projection = new ArrayList<String>();
+		projection.add(Properties.TASK_ID);
+		projection.add(Properties.PROPERTY_ID);
+		projection.add(Properties.MIMETYPE);
+
+		StringBuilder selection = new StringBuilder(256);
+		selection.append(Properties.MIMETYPE).append(" IN (");
+		boolean first = true;
+		for (PropertyTextExtractor extractor : EXTRACTORS)
+		{
+			for (String column : extractor.columns())
+			{
+				if (!projection.contains(column))
+				{
+					projection.add(column);
+				}
+			}
+			if (!first)
+			{
+				selection.append(',');
+			}
+			DatabaseUtils.appendEscapedSQLString(selection, extractor.mimeType());
+			first = false;
+		}
+		selection.append(')');
+
+		if (taskIds != null)
+		{
+			selection.append(" AND ").append(TaskDatabaseHelper.createIdSelection(Properties.TASK_ID, taskIds, 0, taskIds.length));
+		}
+
+		return db.query(Tables.PROPERTIES, projection.toArray(new String[projection.size()]), selection.toString(), null, null, null, Properties.TASK_ID);
+	}
+
+
+	/**
+	 * Returns the searchable text of the current row of a {@link Cursor} returned by {@link #queryProperties(SQLiteDatabase, long[])}.
+	 *
+	 * @param cursor
+	 *            The {@link Cursor}.
+	 * @return The text or <code>null</code> if the property has no text or its extractor is disabled.
+	 */
+	public static String text(Cursor cursor)
+	{
+		PropertyTextExtractor extractor = get(cursor.getString(2));
+		return extractor == null ? null : extractor.text(new ContentValues(), cursor);
+	}
+
+
+	/**
+	 * Returns the {@link SearchableTypes} type of the current row of a {@link Cursor} returned by {@link #queryProperties(SQLiteDatabase, long[])}.
+	 *
+	 * @param cursor
+	 *            The {@link Cursor}.
+	 * @return The type of the search index entry of the property.
+	 */
+	public static int type(Cursor cursor)
+	{
+		String mimeType = cursor.getString(2);
+		for (PropertyTextExtractor extractor : EXTRACTORS)
+		{
+			if (extractor.mimeType().equals(mimeType))
+			{
+				return extractor.type();
+			}
+		}
+		throw new IllegalArgumentException("No text extractor for mimetype " + mimeType);
+	}
+
+
+	/**
+	 * Updates the entries of the properties of the given tasks, one task at a time. Entries of properties whose extractor is disabled are removed.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param engine
+	 *            The {@link SearchEngine} to update.
+	 * @param taskIds
+	 *            The ids of the tasks.
+	 */
+	public static void updatePropertyEntries(SQLiteDatabase db, SearchEngine engine, long[] taskIds)
+	{
+		Cursor c = queryProperties(db, taskIds);
+		try
+		{
+			PropertyEntryBuffer.writeGrouped(db, engine, c);
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	private static Set<String> allNames()
+	{
+		Set<String> result = new HashSet<String>();
+		for (PropertyTextExtractor extractor : EXTRACTORS)
+		{
+			result.add(extractor.name());
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns the names of the enabled extractors in a canonical order.
+	 */
+	private static String enabledNames()
+	{
+		Set<String> enabled = sEnabled;
+		StringBuilder result = new StringBuilder(64);
+		for (PropertyTextExtractor extractor : EXTRACTORS)
+		{
+			if (enabled.contains(extractor.name()))
+			{
+				if (result.length() > 0)
+				{
+					result.append(',');
+				}
+				result.append(extractor.name());
+			}
+		}
+		return result.toString();
+	}
+}
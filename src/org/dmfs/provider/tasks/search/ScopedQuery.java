@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.util.Locale;
+
+import org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes;
+
+
+/**
+ * A search query that may be restricted to certain fields. A query word of the form <code>field:</code> restricts the search to the given field, any text
+ * after the colon is searched for as usual. Valid fields are <code>title</code>, <code>description</code>, <code>location</code> and <code>category</code>,
+ * all other words that contain a colon are searched for as they are.
+ * <p>
+ * For instance <code>title:milk</code> finds tasks with "milk" in the title and <code>title: location: office</code> finds tasks with "office" in the title
+ * or the location.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class ScopedQuery
+{
+	/**
+	 * The type mask of a query that searches all fields.
+	 */
+	public final static int ALL_TYPES = typeBit(SearchableTypes.TITLE) | typeBit(SearchableTypes.DESCRIPTION) | typeBit(SearchableTypes.LOCATION)
+		| typeBit(SearchableTypes.CATEGORY) | typeBit(SearchableTypes.COMMENT) | typeBit(SearchableTypes.PERSON) | typeBit(SearchableTypes.ATTACHMENT);
+
+	private final static String[] FIELD_NAMES = { "title:", "description:", "location:", "category:" };
+
+	private final static int[] FIELD_TYPES = { SearchableTypes.TITLE, SearchableTypes.DESCRIPTION, SearchableTypes.LOCATION, SearchableTypes.CATEGORY };
+
+	private final String mText;
+	private final int mTypes;
+
+
+	private ScopedQuery(String text, int types)
+	{
+		mText = text;
+		mTypes = types;
+	}
+
+
+	/**
+	 * Parses the given query.
+	 *
+	 * @param query
+	 *            The query string, may be <code>null</code>.
+	 * @return The {@link ScopedQuery}.
+	 */
+	public static ScopedQuery parse(String query)
+	{
+		if (query == null || query.indexOf(':') < 0)
+		{
+			// the common case, keep the query as it is
+			return new ScopedQuery(query, ALL_TYPES);
+		}
+
+		int types = 0;
+		StringBuilder text = new StringBuilder(query.length());
+		for (String word : query.split("\\s+"))
+		{
+			String rest = word;
+			String lowerWord = word.toLowerCase(Locale.ENGLISH);
+			for (int i = 0; i < FIELD_NAMES.length; ++i)
+			{
+				if (lowerWord.startsWith(FIELD_NAMES[i]))
+				{
+					types |= typeBit(FIELD_TYPES[i]);
+					rest = word.substring(FIELD_NAMES[i].length());
+					break;
+				}
+			}
+
+			if (rest.length() > 0)
+			{
+				if (text.length() > 0)
+				{
+					text.append(' ');
+				}
+				text.append(rest);
+			}
+		}
+
+		if (types == 0)
+		{
+			// no field given
+			return new ScopedQuery(query, ALL_TYPES);
+		}
+
+		// keep a trailing space, it tells that the last word is complete
+		if (Character.isWhitespace(query.charAt(query.length() - 1)) && text.length() > 0)
+		{
+			text.append(' ');
+		}
+		return new ScopedQuery(text.toString(), types);
+	}
+
+
+	/**
+	 * Returns the text to search for, without any field restrictions.
+	 *
+	 * @return The search text, may be <code>null</code> if the query was <code>null</code>.
+	 */
+	public String text()
+	{
+		return mText;
+	}
+
+
+	/**
+	 * Returns the {@link SearchableTypes} to search as a bit mask, see {@link #typeBit(int)}.
+	 *
+	 * @return The type mask, {@link #ALL_TYPES} if the query is not restricted.
+	 */
+	public int types()
+	{
+		return mTypes;
+	}
+
+
+	/**
+	 * Returns the bit of the given type in a type mask.
+	 *
+	 * @param type
+	 *            One of the {@link SearchableTypes}.
+	 * @return The bit that represents the type.
+	 */
+	public static int typeBit(int type)
+	{
+		return 1 << type;
+	}
+
+
+	/**
+	 * Returns an SQL selection that restricts the given type column to the types of the given mask.
+	 *
+	 * @param column
+	 *            The name of the column that contains the {@link SearchableTypes}.
+	 * @param types
+	 *            A type mask.
+	 * @return The selection.
+	 */
+	public static String typeSelection(String column, int types)
+	{
+		StringBuilder result = new StringBuilder(column.length() + 24);
+		result.append(column).append(" IN (");
+		boolean first = true;
+		for (int type : FIELD_TYPES)
+		{
+			if ((types & typeBit(type)) != 0)
+			{
+				if (!first)
+				{
+					result.append(',');
+				}
+				result.append(type);
+				first = false;
+			}
+		}
+		return result.append(')').toString();
+	}
+}
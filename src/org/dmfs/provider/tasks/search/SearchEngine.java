@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes;
+import org.dmfs.provider.tasks.model.TaskAdapter;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * The interface of a full-text search engine. A search engine maintains a search index of the texts of the tasks and their properties and returns the tasks
+ * that match a search query.
+ * <p>
+ * All methods that modify the index are called within the transaction that modifies the respective task or property. Transactions of the provider are
+ * announced by {@link #onBeginTransaction()}, {@link #onCommitTransaction(SQLiteDatabase)} and {@link #onRollbackTransaction()}, so engines can buffer their
+ * updates per transaction. Updates outside of such a transaction must be written right away.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public interface SearchEngine
+{
+	/**
+	 * The default minimum score of search results.
+	 */
+	public final static float DEFAULT_MIN_SCORE = 0.4f;
+
+	/**
+	 * Returns the name of this engine. This is the name that selects the engine in the configuration, see {@link SearchEngineFactory#get(String)}.
+	 *
+	 * @return The name of the engine.
+	 */
+	public String name();
+
+
+	/**
+	 * Creates the search index (if necessary) and fills it with the texts of all existing tasks and properties. Any existing entries are removed first.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public void rebuildIndex(SQLiteDatabase db);
+
+
+	/**
+	 * Creates the structures of the search index if they don't exist yet, without adding any entries. The entries are added later on, see
+	 * {@link SearchIndexRebuilder}.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public void createIndex(SQLiteDatabase db);
+
+
+	/**
+	 * Optimizes the search index after a large number of entries has been updated. This may take a while, but it should not block other transactions for
+	 * long.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public void optimizeIndex(SQLiteDatabase db);
+
+
+	/**
+	 * Returns whether the index should be optimized in the background, e.g. because a lot of changes have piled up. Once this returned <code>true</code> it
+	 * returns <code>false</code> until {@link #optimizeIndex(SQLiteDatabase)} has been called, so the optimization is requested only once.
+	 *
+	 * @return <code>true</code> if {@link #optimizeIndex(SQLiteDatabase)} should be called.
+	 */
+	public boolean needsOptimization();
+
+
+	/**
+	 * Removes the search index (or at least all of its entries) from the database. This is called when another engine takes over.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public void dropIndex(SQLiteDatabase db);
+
+
+	/**
+	 * Updates the entries of a task that has been inserted or updated. Only fields that have been changed need to be updated.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param task
+	 *            The {@link TaskAdapter} of the task.
+	 */
+	public void updateTaskEntries(SQLiteDatabase db, TaskAdapter task);
+
+
+	/**
+	 * Updates the entries of the given tasks from the values in the database. This is used to update many tasks at once.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskIds
+	 *            The ids of the tasks to update. Ids of tasks that don't exist are ignored.
+	 */
+	public void updateTaskEntries(SQLiteDatabase db, long[] taskIds);
+
+
+	/**
+	 * Updates or creates the entry of a property. Passing <code>null</code> as text removes the entry.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The row id of the task the property belongs to.
+	 * @param propertyId
+	 *            The row id of the property.
+	 * @param type
+	 *            The {@link SearchableTypes} type of the property.
+	 * @param text
+	 *            The searchable text of the property or <code>null</code>.
+	 */
+	public void updatePropertyEntry(SQLiteDatabase db, long taskId, long propertyId, int type, String text);
+
+
+	/**
+	 * Updates or creates the entries of several properties of the same task, see {@link #updatePropertyEntry(SQLiteDatabase, long, long, int, String)}.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The row id of the task the properties belong to.
+	 * @param propertyIds
+	 *            The row ids of the properties.
+	 * @param types
+	 *            The {@link SearchableTypes} types of the properties.
+	 * @param texts
+	 *            The searchable texts of the properties, an element may be <code>null</code> to remove the entry of that property.
+	 */
+	public void updatePropertyEntries(SQLiteDatabase db, long taskId, long[] propertyIds, int[] types, String[] texts);
+
+
+	/**
+	 * Tells the engine that a task has been closed or reopened. Engines that keep the entries of open and closed tasks apart move the entries of the task to
+	 * the other partition, all other engines ignore this.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            The row id of the task.
+	 * @param closed
+	 *            <code>true</code> if the task is closed now.
+	 */
+	public void updateTaskState(SQLiteDatabase db, long taskId, boolean closed);
+
+
+	/**
+	 * Called when the provider begins a transaction on the current thread.
+	 */
+	public void onBeginTransaction();
+
+
+	/**
+	 * Called right before the provider commits the current transaction. Engines that buffer updates must write them now.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public void onCommitTransaction(SQLiteDatabase db);
+
+
+	/**
+	 * Called when the provider has rolled back the current transaction.
+	 */
+	public void onRollbackTransaction();
+
+
+	/**
+	 * Returns a cursor of the instances of the tasks that match the given search string, best matches first. Apart from the instance columns the cursor
+	 * contains a {@link org.dmfs.provider.tasks.TaskContract.Tasks#SCORE} column.
+	 * <p>
+	 * Engines that score the matches in memory may return only the best {@link SearchResult#MAX_SCORE_QUERY_SIZE} tasks. Note that this limit is applied
+	 * before the selection, so a selection might remove some of those tasks.
+	 * </p>
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param searchString
+	 *            The search query string without any field restrictions, see {@link ScopedQuery#text()}.
+	 * @param types
+	 *            The {@link org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes} to search as a bit mask, see {@link ScopedQuery#types()}. Only matches
+	 *            in these fields count.
+	 * @param projection
+	 *            The projection of the query, may be <code>null</code> for all columns. Engines may return more columns than requested.
+	 * @param selection
+	 *            The selection of the query. Engines may apply terms that only refer to columns of the task table (see {@link TaskFilter}) before they score the
+	 *            matches.
+	 * @param selectionArgs
+	 *            The arguments of the selection.
+	 * @param sortOrder
+	 *            The secondary sort order of the result, the results are always sorted by score first.
+	 * @param minScore
+	 *            The minimum score of the results, see {@link #DEFAULT_MIN_SCORE}.
+	 * @param limit
+	 *            The maximum number of results or a value <code>&lt;= 0</code> to return all results.
+	 * @param session
+	 *            The {@link SearchSession} of the caller or <code>null</code>. Engines may use it to speed up consecutive queries of a search-as-you-type
+	 *            session, but they are free to ignore it.
+	 * @return A {@link Cursor} with the search results.
+	 */
+	public Cursor search(SQLiteDatabase db, String searchString, int types, String[] projection, String selection, String[] selectionArgs,
+		String sortOrder, float minScore, int limit, SearchSession session);
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.Log;
+
+
+/**
+ * A factory that returns the {@link SearchEngine}s and keeps track of the active one.
+ * <p>
+ * The active engine is configured with a meta-data element in the provider declaration of the manifest, like
+ * </p>
+ *
+ * <pre>
+ * &lt;meta-data android:name="org.dmfs.provider.tasks.SEARCH_ENGINE" android:value="fts4" /&gt;
+ * </pre>
+ * <p>
+ * Valid names are <code>ngram</code> (the default), <code>fts4</code> and <code>postings</code>.
+ * </p>
+ * <p>
+ * The name of the engine that maintains the search index is stored in the database. When the database is opened with another active engine, a rebuild of
+ * the index of the new engine is scheduled (see {@link #onOpen(SQLiteDatabase)} and {@link SearchIndexRebuilder}). Until the new index is complete, queries
+ * are served from the old index. Once it's complete the old index is dropped.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class SearchEngineFactory
+{
+	private static final String TAG = "SearchEngineFactory";
+
+	/**
+	 * The name of the provider meta-data that contains the name of the search engine to use.
+	 */
+	public final static String META_DATA_SEARCH_ENGINE = "org.dmfs.provider.tasks.SEARCH_ENGINE";
+
+	/**
+	 * The name of the boolean meta-data element that enables the memory-mapped index segment of the <code>postings</code> engine.
+	 */
+	public final static String META_DATA_SEARCH_INDEX_SEGMENT = "org.dmfs.provider.tasks.SEARCH_INDEX_SEGMENT";
+
+	/**
+	 * The table that stores the name of the engine that maintains the search index.
+	 */
+	private final static String SEARCH_ENGINE_TABLE = "Search_Engine";
+
+	private final static String ENGINE_NAME = "engine_name";
+
+	private final static String SQL_CREATE_SEARCH_ENGINE_TABLE = "CREATE TABLE IF NOT EXISTS " + SEARCH_ENGINE_TABLE + " (" + ENGINE_NAME + " Text)";
+
+	private final static SearchEngine NGRAM_ENGINE = new NGramSearchEngine();
+	private final static SearchEngine FTS4_ENGINE = new Fts4SearchEngine();
+	private final static PostingListSearchEngine POSTINGS_ENGINE = new PostingListSearchEngine();
+
+	/**
+	 * The configured engine.
+	 */
+	private static volatile SearchEngine sActiveEngine = NGRAM_ENGINE;
+
+	/**
+	 * The engine that's used to update and query the index. This differs from {@link #sActiveEngine} while the index is switched to another engine.
+	 */
+	private static volatile SearchEngine sCurrentEngine = NGRAM_ENGINE;
+
+
+	/**
+	 * Returns the {@link SearchEngine} with the given name.
+	 *
+	 * @param name
+	 *            The name of the engine.
+	 * @return The {@link SearchEngine}.
+	 * @throws IllegalArgumentException
+	 *             if there is no engine with that name.
+	 */
+	public static SearchEngine get(String name)
+	{
+		if (NGramSearchEngine.NAME.equals(name))
+		{
+			return NGRAM_ENGINE;
+		}
+		if (Fts4SearchEngine.NAME.equals(name))
+		{
+			return FTS4_ENGINE;
+		}
+		if (PostingListSearchEngine.NAME.equals(name))
+		{
+			return POSTINGS_ENGINE;
+		}
+		throw new IllegalArgumentException("Unknown search engine: " + name);
+	}
+
+
+	/**
+	 * Returns all available {@link SearchEngine}s.
+	 *
+	 * @return An array of {@link SearchEngine}s.
+	 */
+	public static SearchEngine[] all()
+	{
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+		{
+			return new SearchEngine[] { NGRAM_ENGINE, POSTINGS_ENGINE };
+		}
+		return new SearchEngine[] { NGRAM_ENGINE, FTS4_ENGINE, POSTINGS_ENGINE };
+	}
+
+
+	/**
+	 * Returns the active {@link SearchEngine}.
+	 *
+	 * @return The {@link SearchEngine} that maintains the search index.
+	 */
+	public static SearchEngine activeEngine()
+	{
+		return sCurrentEngine;
+	}
+
+
+	/**
+	 * Sets the active {@link SearchEngine}. This must be called before the database is opened. If the engine is not supported on this device the N-gram
+	 * engine is used.
+	 *
+	 * @param name
+	 *            The name of the engine or <code>null</code> to use the default engine.
+	 */
+	public static void setActiveEngine(String name)
+	{
+		if (name == null)
+		{
+			sActiveEngine = NGRAM_ENGINE;
+		}
+		else if (Fts4SearchEngine.NAME.equals(name) && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+		{
+			Log.w(TAG, "The " + name + " search engine requires Android 4.1, using the " + NGramSearchEngine.NAME + " search engine.");
+			sActiveEngine = NGRAM_ENGINE;
+		}
+		else
+		{
+			sActiveEngine = get(name);
+		}
+		sCurrentEngine = sActiveEngine;
+	}
+
+
+	/**
+	 * Enables or disables the memory-mapped index segment of the <code>postings</code> engine, see
+	 * {@link PostingListSearchEngine#setSegmentEnabled(boolean)}. This must be called before the database is opened.
+	 *
+	 * @param enabled
+	 *            <code>true</code> to serve searches from the segment.
+	 */
+	public static void setSegmentEnabled(boolean enabled)
+	{
+		POSTINGS_ENGINE.setSegmentEnabled(enabled);
+	}
+
+
+	/**
+	 * Must be called when the database is opened. If the index is maintained by another engine, this schedules a rebuild of the index of the active engine.
+	 * Queries are served from the old index until the rebuild is complete.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public static void onOpen(SQLiteDatabase db)
+	{
+		SearchEngine activeEngine = sActiveEngine;
+
+		db.beginTransaction();
+		try
+		{
+			String indexEngineName = indexEngineName(db);
+			String rebuildEngineName = SearchIndexRebuilder.pendingEngine(db);
+
+			if (activeEngine.name().equals(indexEngineName))
+			{
+				if (rebuildEngineName != null && !rebuildEngineName.equals(indexEngineName))
+				{
+					// the engine has been switched back before the rebuild was complete
+					Log.i(TAG, "cancelling switch of search index to " + rebuildEngineName);
+					dropIndex(db, rebuildEngineName);
+					SearchIndexRebuilder.cancel(db);
+				}
+				sCurrentEngine = activeEngine;
+			}
+			else
+			{
+				if (!activeEngine.name().equals(rebuildEngineName))
+				{
+					Log.i(TAG, "switching search index from " + indexEngineName + " to " + activeEngine.name());
+					if (rebuildEngineName != null && !rebuildEngineName.equals(indexEngineName))
+					{
+						dropIndex(db, rebuildEngineName);
+					}
+					activeEngine.createIndex(db);
+					SearchIndexRebuilder.schedule(db, activeEngine.name());
+				}
+
+				try
+				{
+					sCurrentEngine = new SwitchingSearchEngine(get(indexEngineName), activeEngine);
+				}
+				catch (IllegalArgumentException e)
+				{
+					Log.w(TAG, "Unknown search engine " + indexEngineName + ", can't use its index.");
+					sCurrentEngine = activeEngine;
+				}
+			}
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+	}
+
+
+	/**
+	 * Schedules a rebuild of the current index, e.g. because the way texts are tokenized has changed. Queries are served from the index while it's rebuilt.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public static void scheduleRebuild(SQLiteDatabase db)
+	{
+		String pendingEngineName = SearchIndexRebuilder.pendingEngine(db);
+		if (pendingEngineName == null)
+		{
+			SearchIndexRebuilder.schedule(db, indexEngineName(db));
+		}
+		// otherwise a rebuild is pending already, it will index all tasks with the current tokenizer
+	}
+
+
+	/**
+	 * Must be called when the database is upgraded. This creates the tables that newer versions of the search engines have added to an existing index.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public static void onUpgrade(SQLiteDatabase db)
+	{
+		String indexEngineName = indexEngineName(db);
+		String rebuildEngineName = SearchIndexRebuilder.pendingEngine(db);
+		for (SearchEngine engine : all())
+		{
+			if (engine.name().equals(indexEngineName) || engine.name().equals(rebuildEngineName))
+			{
+				engine.createIndex(db);
+			}
+		}
+	}
+
+
+	/**
+	 * Called by the {@link SearchIndexRebuilder} within the transaction that completes a rebuild. If the rebuild switched the index to another engine, this
+	 * drops the old index.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param engine
+	 *            The {@link SearchEngine} whose index has been rebuilt.
+	 */
+	static void onRebuildFinished(SQLiteDatabase db, SearchEngine engine)
+	{
+		String indexEngineName = indexEngineName(db);
+		if (engine.name().equals(indexEngineName))
+		{
+			return;
+		}
+
+		dropIndex(db, indexEngineName);
+
+		ContentValues values = new ContentValues(1);
+		values.put(ENGINE_NAME, engine.name());
+		db.delete(SEARCH_ENGINE_TABLE, null, null);
+		db.insert(SEARCH_ENGINE_TABLE, null, values);
+	}
+
+
+	/**
+	 * Called by the {@link SearchIndexRebuilder} after a rebuild has been committed. From now on the index of the given engine is used, unless another engine
+	 * has been activated in the meantime.
+	 *
+	 * @param engine
+	 *            The {@link SearchEngine} whose index has been rebuilt.
+	 */
+	static void activate(SearchEngine engine)
+	{
+		if (engine == sActiveEngine)
+		{
+			sCurrentEngine = engine;
+		}
+	}
+
+
+	/**
+	 * Returns the name of the engine that maintains the search index.
+	 */
+	private static String indexEngineName(SQLiteDatabase db)
+	{
+		db.execSQL(SQL_CREATE_SEARCH_ENGINE_TABLE);
+		return DatabaseUtils.stringForQuery(db, "SELECT " + ENGINE_NAME + " FROM " + SEARCH_ENGINE_TABLE + " UNION ALL SELECT '" + NGramSearchEngine.NAME
+			+ "' LIMIT 1", null);
+	}
+
+
+	/**
+	 * Drops the index of the engine with the given name.
+	 */
+	private static void dropIndex(SQLiteDatabase db, String engineName)
+	{
+		try
+		{
+			get(engineName).dropIndex(db);
+		}
+		catch (IllegalArgumentException e)
+		{
+			Log.w(TAG, "Unknown search engine " + engineName + ", can't drop its index.");
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+
+/**
+ * Rebuilds the search index in chunks of tasks, each in its own transaction. The id of the last task that has been indexed (the watermark) is stored in the
+ * database along with the chunk, so an interrupted rebuild continues where it stopped.
+ * <p>
+ * The entries of each task are updated in place, so queries are served from the old entries of a task until the task has been indexed again. When the index
+ * is switched to another engine, queries are served from the old engine until the new index is complete (see {@link SwitchingSearchEngine}). Only a
+ * rebuild that starts with empty tables, like the one after the upgrade to packed N-grams, returns incomplete results until it's done.
+ * </p>
+ * <p>
+ * Changes of tasks that have already been indexed are written to the index as usual. Tasks beyond the watermark are indexed with their current values
+ * eventually, so the index is consistent once the rebuild is done.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class SearchIndexRebuilder
+{
+	private static final String TAG = "SearchIndexRebuilder";
+
+	/**
+	 * The table that stores the pending rebuild. It has one row while a rebuild is pending and none otherwise.
+	 */
+	private final static String SEARCH_REBUILD_TABLE = "Search_Rebuild";
+
+	private final static String REBUILD_ENGINE = "rebuild_engine";
+
+	private final static String REBUILD_WATERMARK = "rebuild_watermark";
+
+	private final static String SQL_CREATE_SEARCH_REBUILD_TABLE = "CREATE TABLE IF NOT EXISTS " + SEARCH_REBUILD_TABLE + " (" + REBUILD_ENGINE + " Text, "
+		+ REBUILD_WATERMARK + " Integer)";
+
+	private final static String[] REBUILD_PROJECTION = { REBUILD_ENGINE, REBUILD_WATERMARK };
+
+
+	private SearchIndexRebuilder()
+	{
+	}
+
+
+	/**
+	 * Schedules a rebuild of the index of the given engine, replacing any other pending rebuild. The rebuild is performed by subsequent calls to
+	 * {@link #rebuildChunk(SQLiteDatabase, int)}.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param engineName
+	 *            The name of the {@link SearchEngine} to rebuild the index of.
+	 */
+	public static void schedule(SQLiteDatabase db, String engineName)
+	{
+		db.execSQL(SQL_CREATE_SEARCH_REBUILD_TABLE);
+		db.delete(SEARCH_REBUILD_TABLE, null, null);
+
+		ContentValues values = new ContentValues(2);
+		values.put(REBUILD_ENGINE, engineName);
+		values.put(REBUILD_WATERMARK, 0);
+		db.insert(SEARCH_REBUILD_TABLE, null, values);
+	}
+
+
+	/**
+	 * Cancels any pending rebuild.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 */
+	public static void cancel(SQLiteDatabase db)
+	{
+		db.execSQL(SQL_CREATE_SEARCH_REBUILD_TABLE);
+		db.delete(SEARCH_REBUILD_TABLE, null, null);
+	}
+
+
+	/**
+	 * Returns the name of the engine with a pending rebuild.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @return The name of the {@link SearchEngine} or <code>null</code> if no rebuild is pending.
+	 */
+	public static String pendingEngine(SQLiteDatabase db)
+	{
+		db.execSQL(SQL_CREATE_SEARCH_REBUILD_TABLE);
+		Cursor c = db.query(SEARCH_REBUILD_TABLE, REBUILD_PROJECTION, null, null, null, null, null, "1");
+		try
+		{
+			return c.moveToFirst() ? c.getString(0) : null;
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Indexes the next chunk of tasks of the pending rebuild in a transaction. Other transactions can run in between two chunks. After the last chunk the index
+	 * is optimized, see {@link SearchEngine#optimizeIndex(SQLiteDatabase)}.
+	 *
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param maxTasks
+	 *            The maximum number of tasks to index.
+	 * @return <code>true</code> if there are more tasks to index, <code>false</code> if the rebuild is complete or no rebuild is pending.
+	 */
+	public static boolean rebuildChunk(SQLiteDatabase db, int maxTasks)
+	{
+		SearchEngine engine = null;
+		boolean finished = false;
+
+		db.beginTransaction();
+		try
+		{
+			db.execSQL(SQL_CREATE_SEARCH_REBUILD_TABLE);
+			String engineName;
+			long watermark;
+			Cursor c = db.query(SEARCH_REBUILD_TABLE, REBUILD_PROJECTION, null, null, null, null, null, "1");
+			try
+			{
+				if (!c.moveToFirst())
+				{
+					return false;
+				}
+				engineName = c.getString(0);
+				watermark = c.getLong(1);
+			}
+			finally
+			{
+				c.close();
+			}
+
+			try
+			{
+				engine = SearchEngineFactory.get(engineName);
+			}
+			catch (IllegalArgumentException e)
+			{
+				Log.w(TAG, "Unknown search engine " + engineName + ", cancelling rebuild.");
+				db.delete(SEARCH_REBUILD_TABLE, null, null);
+				db.setTransactionSuccessful();
+				return false;
+			}
+
+			long[] taskIds = queryTaskIds(db, watermark, maxTasks);
+			if (taskIds.length > 0)
+			{
+				engine.updateTaskEntries(db, taskIds);
+				PropertyTextExtractorFactory.updatePropertyEntries(db, engine, taskIds);
+			}
+
+			if (taskIds.length < maxTasks)
+			{
+				db.delete(SEARCH_REBUILD_TABLE, null, null);
+				SearchEngineFactory.onRebuildFinished(db, engine);
+				finished = true;
+			}
+			else
+			{
+				ContentValues values = new ContentValues(1);
+				values.put(REBUILD_WATERMARK, taskIds[taskIds.length - 1]);
+				db.update(SEARCH_REBUILD_TABLE, values, null, null);
+			}
+
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+
+		if (finished)
+		{
+			// the new index is complete, serve queries from it
+			SearchEngineFactory.activate(engine);
+
+			// optimize the index outside of the chunk transaction, engines run long optimizations in transactions of their own
+			engine.optimizeIndex(db);
+		}
+		return !finished;
+	}
+
+
+	/**
+	 * Returns the ids of the next tasks after the watermark in ascending order.
+	 */
+	private static long[] queryTaskIds(SQLiteDatabase db, long watermark, int maxTasks)
+	{
+		Cursor c = db.query(Tables.TASKS, new String[] { Tasks._ID }, Tasks._ID + ">?", new String[] { String.valueOf(watermark) }, null, null, Tasks._ID,
+			String.valueOf(maxTasks));
+		try
+		{
+			long[] result = new long[c.getCount()];
+			int i = 0;
+			while (c.moveToNext())
+			{
+				result[i++] = c.getLong(0);
+			}
+			return result;
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+}
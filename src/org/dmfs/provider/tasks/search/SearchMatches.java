@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.dmfs.ngrams.LongSet;
+import org.dmfs.provider.tasks.FTSDatabaseHelper;
+import org.dmfs.provider.tasks.TaskContract.Instances;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Converts a search result into a lightweight result that contains one row per task with the task id, the score and the parts of the title and the
+ * description that match the query, see {@link Tasks#SEARCH_MATCHES_PARAMETER}.
+ * <p>
+ * The matching parts are determined by walking the N-grams of the stored title and description once and looking each one up in the N-grams of the query, so
+ * the caller doesn't need to load the tasks or search the texts again to highlight the matches.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class SearchMatches
+{
+	/**
+	 * The projection to pass to the search. The search result must contain at least these columns.
+	 */
+	public final static String[] SEARCH_PROJECTION = { Instances.TASK_ID, Tasks.SCORE };
+
+	/**
+	 * The columns of the lightweight result.
+	 */
+	private final static String[] COLUMNS = { Tasks._ID, Tasks.SCORE, Tasks.TITLE_MATCHES, Tasks.DESCRIPTION_MATCHES };
+
+	private final static String[] TASK_PROJECTION = { Tasks._ID, Tasks.TITLE, Tasks.DESCRIPTION };
+
+
+	private SearchMatches()
+	{
+	}
+
+
+	/**
+	 * Returns a {@link Cursor} with one row per task of the given search result, in the order of the search result. The search result is closed.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param searchResult
+	 *            The result of a search with {@link #SEARCH_PROJECTION}.
+	 * @param searchString
+	 *            The search query string without any field restrictions, see {@link ScopedQuery#text()}.
+	 * @param limit
+	 *            The maximum number of tasks or a value <code>&lt;= 0</code> to return all tasks.
+	 * @return A {@link Cursor}.
+	 */
+	public static Cursor matches(SQLiteDatabase db, Cursor searchResult, String searchString, int limit)
+	{
+		long[] taskIds;
+		float[] scores;
+		int count = 0;
+		try
+		{
+			int taskIdColumn = searchResult.getColumnIndexOrThrow(Instances.TASK_ID);
+			int scoreColumn = searchResult.getColumnIndexOrThrow(Tasks.SCORE);
+			int max = limit > 0 ? Math.min(limit, searchResult.getCount()) : searchResult.getCount();
+			taskIds = new long[max];
+			scores = new float[max];
+			LongSet seen = new LongSet(max * 2 + 16);
+			while (count < max && searchResult.moveToNext())
+			{
+				long taskId = searchResult.getLong(taskIdColumn);
+				// the instances of a recurring task share the task id
+				if (seen.add(taskId))
+				{
+					taskIds[count] = taskId;
+					scores[count] = searchResult.getFloat(scoreColumn);
+					++count;
+				}
+			}
+		}
+		finally
+		{
+			searchResult.close();
+		}
+
+		LongSet queryNgrams = new LongSet(128);
+		FTSDatabaseHelper.tokenize(searchString, queryNgrams);
+
+		// the matches by task id
+		Map<Long, String[]> matches = new HashMap<Long, String[]>(count * 2);
+		for (int start = 0; start < count; start += TaskDatabaseHelper.MAX_INLINE_IDS)
+		{
+			int end = Math.min(count, start + TaskDatabaseHelper.MAX_INLINE_IDS);
+			Cursor c = db.query(Tables.TASKS, TASK_PROJECTION, TaskDatabaseHelper.createIdSelection(Tasks._ID, taskIds, start, end), null, null, null, null);
+			try
+			{
+				while (c.moveToNext())
+				{
+					matches.put(c.getLong(0),
+						new String[] { FTSDatabaseHelper.matchRanges(c.getString(1), queryNgrams), FTSDatabaseHelper.matchRanges(c.getString(2), queryNgrams) });
+				}
+			}
+			finally
+			{
+				c.close();
+			}
+		}
+
+		MatrixCursor result = new MatrixCursor(COLUMNS, count);
+		for (int i = 0; i < count; ++i)
+		{
+			String[] taskMatches = matches.get(taskIds[i]);
+			if (taskMatches == null)
+			{
+				// the task has been removed in the meantime
+				continue;
+			}
+			result.addRow(new Object[] { taskIds[i], scores[i], taskMatches[0], taskMatches[1] });
+		}
+		return result;
+	}
+}
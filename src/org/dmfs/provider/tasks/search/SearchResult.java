@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import org.dmfs.provider.tasks.TaskContract.Instances;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+
+/**
+ * The ids and scores of the tasks that match a search query. The instances of the tasks are loaded with a query by task id, see
+ * {@link #query(SQLiteDatabase, String[], String, String[], String, int)}. Since the ids are put into the statement, a {@link SearchResult} holds at most
+ * {@link SearchResultCache#MAX_RESULT_SIZE} tasks. The instances of larger results are loaded by joining the score query, see
+ * {@link #query(SQLiteDatabase, String, String[], String[], String, String[], String, int)}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class SearchResult
+{
+	/**
+	 * The query of the instances of the result. The arguments are: 1) the projection, 2) the score expression, 3) the selection and 4) the sort order and
+	 * limit.
+	 */
+	private final static String SQL_RAW_QUERY_RESULT_INSTANCES = "SELECT %1$s, %2$s AS " + Tasks.SCORE + " FROM " + Tables.INSTANCE_VIEW
+		+ " WHERE %3$s ORDER BY %4$s";
+
+	/**
+	 * The query of the instances of the tasks returned by a score query. The arguments are: 1) the projection, 2) the score query, 3) the selection and 4) the
+	 * sort order and limit. The score query must return the columns <code>search_task_id</code> and {@link Tasks#SCORE}.
+	 */
+	private final static String SQL_RAW_QUERY_SCORED_INSTANCES = "SELECT %1$s, search_scores." + Tasks.SCORE + " AS " + Tasks.SCORE + " FROM "
+		+ Tables.INSTANCE_VIEW + " JOIN (%2$s) AS search_scores ON (" + Tables.INSTANCE_VIEW + "." + Instances.TASK_ID
+		+ " = search_scores.search_task_id) WHERE %3$s ORDER BY %4$s";
+
+	/**
+	 * The score query of a chunk of tasks, see {@link #scoreQuery(long[], float[], int)}. The arguments are: 1) the score expression and 2) the selection of
+	 * the task ids.
+	 */
+	private final static String SQL_RAW_QUERY_TASK_SCORES = "SELECT " + Tasks._ID + " AS search_task_id, %1$s AS " + Tasks.SCORE + " FROM " + Tables.TASKS
+		+ " WHERE %2$s";
+
+	/**
+	 * The maximum number of tasks in a score query returned by {@link #scoreQuery(long[], float[], int)}. Each task takes about 20 bytes of the statement, this
+	 * keeps the statement well below the 1,000,000 bytes that SQLite accepts by default.
+	 */
+	public final static int MAX_SCORE_QUERY_SIZE = 20000;
+
+	private final long[] mTaskIds;
+	private final float[] mScores;
+
+
+	/**
+	 * Creates a {@link SearchResult}.
+	 *
+	 * @param taskIds
+	 *            The ids of the matching tasks, at most {@link SearchResultCache#MAX_RESULT_SIZE}.
+	 * @param scores
+	 *            The score of each task.
+	 * @throws IllegalArgumentException
+	 *             if there are too many tasks.
+	 */
+	public SearchResult(long[] taskIds, float[] scores)
+	{
+		if (taskIds.length > SearchResultCache.MAX_RESULT_SIZE)
+		{
+			throw new IllegalArgumentException("too many tasks for a search result: " + taskIds.length);
+		}
+		mTaskIds = taskIds;
+		mScores = scores;
+	}
+
+
+	/**
+	 * Returns the number of tasks in this result.
+	 *
+	 * @return The number of tasks.
+	 */
+	public int size()
+	{
+		return mTaskIds.length;
+	}
+
+
+	/**
+	 * Returns a {@link Cursor} of the instances of the tasks in this result that match the given selection.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param projection
+	 *            The projection or <code>null</code> to return all columns of the instance view. The {@link Tasks#SCORE} column is always added.
+	 * @param selection
+	 *            The selection of the instances, may be <code>null</code>.
+	 * @param selectionArgs
+	 *            The arguments of the selection.
+	 * @param sortOrder
+	 *            The secondary sort order, the instances are always sorted by score first.
+	 * @param limit
+	 *            The maximum number of results or a value <code>&lt;= 0</code> to return all results.
+	 * @return A {@link Cursor}.
+	 */
+	public Cursor query(SQLiteDatabase db, String[] projection, String selection, String[] selectionArgs, String sortOrder, int limit)
+	{
+		String taskIdColumn = Tables.INSTANCE_VIEW + "." + Instances.TASK_ID;
+		String idSelection = mTaskIds.length == 0 ? "0" : TaskDatabaseHelper.createIdSelection(taskIdColumn, mTaskIds, 0, mTaskIds.length);
+
+		return db.rawQueryWithFactory(null,
+			String.format(SQL_RAW_QUERY_RESULT_INSTANCES, projection(projection), scoreExpression(taskIdColumn, mTaskIds, mScores, 0, mTaskIds.length),
+				selection(selection, idSelection), order(sortOrder, limit)), selectionArgs, null);
+	}
+
+
+	/**
+	 * Returns a {@link Cursor} of the instances of the tasks returned by the given score query that match the given selection. Use this for results that are
+	 * too large for a {@link SearchResult}.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param scoreQuery
+	 *            A query that returns the columns <code>search_task_id</code> and {@link Tasks#SCORE} of the matching tasks.
+	 * @param scoreQueryArgs
+	 *            The arguments of the score query, may be <code>null</code>. They are bound before the selection arguments, so the score query must not use
+	 *            numbered arguments.
+	 * @param projection
+	 *            The projection or <code>null</code> to return all columns of the instance view. The {@link Tasks#SCORE} column is always added.
+	 * @param selection
+	 *            The selection of the instances, may be <code>null</code>.
+	 * @param selectionArgs
+	 *            The arguments of the selection.
+	 * @param sortOrder
+	 *            The secondary sort order, the instances are always sorted by score first.
+	 * @param limit
+	 *            The maximum number of results or a value <code>&lt;= 0</code> to return all results.
+	 * @return A {@link Cursor}.
+	 */
+	public static Cursor query(SQLiteDatabase db, String scoreQuery, String[] scoreQueryArgs, String[] projection, String selection, String[] selectionArgs,
+		String sortOrder, int limit)
+	{
+		String[] args = selectionArgs;
+		if (scoreQueryArgs != null && scoreQueryArgs.length > 0)
+		{
+			int selectionArgCount = selectionArgs == null ? 0 : selectionArgs.length;
+			args = new String[scoreQueryArgs.length + selectionArgCount];
+			System.arraycopy(scoreQueryArgs, 0, args, 0, scoreQueryArgs.length);
+			if (selectionArgCount > 0)
+			{
+				System.arraycopy(selectionArgs, 0, args, scoreQueryArgs.length, selectionArgCount);
+			}
+		}
+
+		return db.rawQueryWithFactory(null,
+			String.format(SQL_RAW_QUERY_SCORED_INSTANCES, projection(projection), scoreQuery, selection(selection, "1"), order(sortOrder, limit)), args, null);
+	}
+
+
+	/**
+	 * Returns a score query for {@link #query(SQLiteDatabase, String, String[], String[], String, String[], String, int)} that returns the given tasks and
+	 * their scores. Use this for results that are too large for a {@link SearchResult}. The ids are put into the statement in chunks of
+	 * {@link TaskDatabaseHelper#MAX_INLINE_IDS}.
+	 *
+	 * @param taskIds
+	 *            The task ids.
+	 * @param scores
+	 *            The score of each task in [0, 1].
+	 * @param count
+	 *            The number of tasks to take from the beginning of the arrays, at most {@link #MAX_SCORE_QUERY_SIZE}.
+	 * @return The score query.
+	 * @throws IllegalArgumentException
+	 *             if there are too many tasks.
+	 */
+	public static String scoreQuery(long[] taskIds, float[] scores, int count)
+	{
+		if (count > MAX_SCORE_QUERY_SIZE)
+		{
+			throw new IllegalArgumentException("too many tasks for a score query: " + count);
+		}
+
+		StringBuilder result = new StringBuilder(count * 20 + 128);
+		for (int start = 0; start < count; start += TaskDatabaseHelper.MAX_INLINE_IDS)
+		{
+			int end = Math.min(count, start + TaskDatabaseHelper.MAX_INLINE_IDS);
+			if (start > 0)
+			{
+				result.append(" UNION ALL ");
+			}
+			result.append(String.format(SQL_RAW_QUERY_TASK_SCORES, scoreExpression(Tasks._ID, taskIds, scores, start, end),
+				TaskDatabaseHelper.createIdSelection(Tasks._ID, taskIds, start, end)));
+		}
+		return result.toString();
+	}
+
+
+	/**
+	 * Returns an SQL expression that evaluates to the score of the task id in the given column. To keep the expression short, the scores are rounded to two
+	 * decimal places and the tasks are grouped by their rounded score.
+	 *
+	 * @param column
+	 *            The column that contains the task id.
+	 * @param taskIds
+	 *            The task ids.
+	 * @param scores
+	 *            The score of each task in [0, 1].
+	 * @param start
+	 *            The index of the first task to use.
+	 * @param end
+	 *            The index after the last task to use.
+	 * @return An SQL expression.
+	 */
+	private static String scoreExpression(String column, long[] taskIds, float[] scores, int start, int end)
+	{
+		long[][] buckets = new long[101][];
+		int[] bucketSizes = new int[101];
+		for (int i = start; i < end; ++i)
+		{
+			int bucket = Math.round(scores[i] * 100);
+			if (buckets[bucket] == null)
+			{
+				buckets[bucket] = new long[16];
+			}
+			else if (bucketSizes[bucket] == buckets[bucket].length)
+			{
+				long[] bucketIds = new long[bucketSizes[bucket] * 2];
+				System.arraycopy(buckets[bucket], 0, bucketIds, 0, bucketSizes[bucket]);
+				buckets[bucket] = bucketIds;
+			}
+			buckets[bucket][bucketSizes[bucket]++] = taskIds[i];
+		}
+
+		StringBuilder result = new StringBuilder((end - start) * 8 + 64);
+		result.append("CASE");
+		for (int bucket = buckets.length - 1; bucket >= 0; --bucket)
+		{
+			if (bucketSizes[bucket] > 0)
+			{
+				result.append(" WHEN ");
+				result.append(TaskDatabaseHelper.createIdSelection(column, buckets[bucket], 0, bucketSizes[bucket]));
+				result.append(" THEN ").append(bucket / 100f);
+			}
+		}
+		result.append(" ELSE 0 END");
+		return result.toString();
+	}
+
+
+	/**
+	 * Returns the given selection combined with the given task selection.
+	 */
+	private static String selection(String selection, String taskSelection)
+	{
+		if (TextUtils.isEmpty(selection))
+		{
+			return taskSelection;
+		}
+		return "(" + selection + ") AND " + taskSelection;
+	}
+
+
+	/**
+	 * Returns the order of the result query, including the limit.
+	 */
+	private static String order(String sortOrder, int limit)
+	{
+		StringBuilder order = new StringBuilder(64).append(Tasks.SCORE).append(" desc");
+		if (sortOrder != null)
+		{
+			order.append(", ").append(sortOrder);
+		}
+		if (limit > 0)
+		{
+			order.append(" LIMIT ").append(limit);
+		}
+		return order.toString();
+	}
+
+
+	/**
+	 * Returns the projection of the result query.
+	 */
+	private static String projection(String[] projection)
+	{
+		if (projection == null || projection.length == 0)
+		{
+			return Tables.INSTANCE_VIEW + ".*";
+		}
+
+		StringBuilder result = new StringBuilder(projection.length * 16);
+		for (String column : projection)
+		{
+			if (Tasks.SCORE.equals(column))
+			{
+				// the score is added by the query
+				continue;
+			}
+			if (result.length() > 0)
+			{
+				result.append(", ");
+			}
+			result.append(column);
+		}
+		return result.length() == 0 ? Tables.INSTANCE_VIEW + "." + Instances._ID : result.toString();
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Keeps the {@link SearchResult}s of the most recent searches. Repeating a search (e.g. when a list is reloaded or a cursor is re-queried after a
+ * configuration change) returns the cached task ids and scores, so only the instances of the result have to be loaded.
+ * <p>
+ * All results become invalid when {@link #invalidate()} is called. It must be called after every transaction that modified tasks or properties, including
+ * modifications that don't go through the provider, like a search index rebuild. To avoid races with concurrent writes, get the {@link #generation()}
+ * <strong>before</strong> running the search and pass it to {@link #put(String, SearchResult, long)}.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class SearchResultCache
+{
+	/**
+	 * The maximum number of results to keep.
+	 */
+	private final static int MAX_RESULTS = 32;
+
+	/**
+	 * The maximum number of tasks in a {@link SearchResult}. The ids of a result are put into the query of its instances, so larger results are not kept, their
+	 * instances are loaded by joining the score query instead.
+	 */
+	public final static int MAX_RESULT_SIZE = 1000;
+
+	/**
+	 * A cached result and the generation it belongs to.
+	 */
+	private final static class Entry
+	{
+		final SearchResult result;
+		final long generation;
+
+
+		Entry(SearchResult result, long generation)
+		{
+			this.result = result;
+			this.generation = generation;
+		}
+	}
+
+	private final Map<String, Entry> mResults = new LinkedHashMap<String, Entry>(MAX_RESULTS * 2, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+		{
+			return size() > MAX_RESULTS;
+		}
+	};
+
+	private static volatile long sGeneration;
+
+
+	/**
+	 * Returns the key of a search. The query is normalized by collapsing white space, since the tokenizer doesn't distinguish between one and several spaces.
+	 * Leading and trailing white space is kept, it changes the N-grams at the word boundaries. The sort order and the limit are not part of the key, they are
+	 * applied when the instances of a result are loaded.
+	 *
+	 * @param query
+	 *            The search query.
+	 * @param types
+	 *            The searched types, see {@link ScopedQuery#types()}.
+	 * @param minScore
+	 *            The minimum score of the results.
+	 * @param selection
+	 *            The selection of the search, may be <code>null</code>.
+	 * @param selectionArgs
+	 *            The arguments of the selection, may be <code>null</code>.
+	 * @return The key.
+	 */
+	public static String key(String query, int types, float minScore, String selection, String[] selectionArgs)
+	{
+		StringBuilder result = new StringBuilder(256);
+		result.append(types).append('\u0000').append(minScore).append('\u0000');
+		if (query != null)
+		{
+			boolean space = false;
+			for (int i = 0, length = query.length(); i < length; ++i)
+			{
+				char c = query.charAt(i);
+				if (Character.isWhitespace(c))
+				{
+					space = true;
+					continue;
+				}
+				if (space)
+				{
+					result.append(' ');
+					space = false;
+				}
+				result.append(c);
+			}
+			if (space)
+			{
+				result.append(' ');
+			}
+		}
+		result.append('\u0000').append(selection);
+		if (selectionArgs != null)
+		{
+			for (String arg : selectionArgs)
+			{
+				result.append('\u0000').append(arg);
+			}
+		}
+		return result.toString();
+	}
+
+
+	/**
+	 * Returns the cached result of a search.
+	 *
+	 * @param key
+	 *            The key of the search, see {@link #key(String, int, float, String, String[])}.
+	 * @return The {@link SearchResult} or <code>null</code> if there is no valid result.
+	 */
+	public synchronized SearchResult get(String key)
+	{
+		Entry entry = mResults.get(key);
+		if (entry == null)
+		{
+			return null;
+		}
+		if (entry.generation != sGeneration)
+		{
+			mResults.remove(key);
+			return null;
+		}
+		return entry.result;
+	}
+
+
+	/**
+	 * Stores the result of a search, unless the database has been modified since the search started.
+	 *
+	 * @param key
+	 *            The key of the search, see {@link #key(String, int, float, String, String[])}.
+	 * @param result
+	 *            The {@link SearchResult}.
+	 * @param generation
+	 *            The generation at the time the search was started.
+	 */
+	public synchronized void put(String key, SearchResult result, long generation)
+	{
+		if (generation != sGeneration)
+		{
+			// the result might be outdated
+			return;
+		}
+		mResults.put(key, new Entry(result, generation));
+	}
+
+
+	/**
+	 * Invalidates the results of all caches.
+	 */
+	public static synchronized void invalidate()
+	{
+		++sGeneration;
+	}
+
+
+	/**
+	 * Returns the current generation of the database content. It's incremented by every call to {@link #invalidate()}.
+	 *
+	 * @return The generation.
+	 */
+	public static long generation()
+	{
+		return sGeneration;
+	}
+}
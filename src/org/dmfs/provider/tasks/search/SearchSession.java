@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+/**
+ * The state of a search-as-you-type session. It keeps the ids of the tasks that matched any N-gram of a previous query of the session (the candidates). If the
+ * next query contains all N-grams of that query and the remaining N-grams can't reach the minimum score on their own, no task outside of the candidates can
+ * match the next query, so only the candidates need to be scored again.
+ * <p>
+ * A session is valid until the next write to the database, see {@link SearchSessionCache#invalidate()}. To avoid races with concurrent writes, get the
+ * {@link #generation()} before running a search and pass it to {@link #update(String, long[], long[], long)} after the search.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class SearchSession
+{
+	/**
+	 * The minimum length of a query to reuse its candidates. Shorter queries match too many tasks to be worth it.
+	 */
+	public final static int MIN_QUERY_LENGTH = 3;
+
+	/**
+	 * The maximum number of candidates we store.
+	 */
+	public final static int MAX_CANDIDATES = 2000;
+
+	/**
+	 * The factor to apply to the minimum score when checking whether the new N-grams of a query can reach it. It leaves some room for rounding errors in the
+	 * scores computed by the database.
+	 */
+	private final static float SCORE_MARGIN = 0.999f;
+
+	private final SearchSessionCache mCache;
+
+	private String mScope;
+	private long[] mNgrams;
+	private long[] mCandidates;
+	private long mGeneration;
+
+
+	SearchSession(SearchSessionCache cache)
+	{
+		mCache = cache;
+	}
+
+
+	/**
+	 * Returns the current generation of the database content.
+	 *
+	 * @return The generation.
+	 */
+	public long generation()
+	{
+		return mCache.generation();
+	}
+
+
+	/**
+	 * Returns the candidates for a query with the given N-grams, if every task that reaches the given minimum score is one of them.
+	 *
+	 * @param scope
+	 *            The scope of the query, i.e. the searched fields and the selection. Candidates are only reused within the same scope.
+	 * @param ngrams
+	 *            The sorted N-grams of the query.
+	 * @param weights
+	 *            The weights of the N-grams.
+	 * @param minScore
+	 *            The minimum score of a result.
+	 * @return The ids of the tasks that matched any N-gram of the previous query or <code>null</code> if they can't be used for the given query.
+	 */
+	public synchronized long[] candidates(String scope, long[] ngrams, float[] weights, float minScore)
+	{
+		long[] previous = mNgrams;
+		if (previous == null || mGeneration != mCache.generation() || scope == null || !scope.equals(mScope) || minScore <= 0)
+		{
+			return null;
+		}
+
+		// all previous N-grams must be contained in the new ones, sum up the weights of the new N-grams that are not
+		double total = 0;
+		double added = 0;
+		int p = 0;
+		for (int i = 0; i < ngrams.length; ++i)
+		{
+			total += weights[i];
+			if (p < previous.length && previous[p] == ngrams[i])
+			{
+				++p;
+			}
+			else if (p < previous.length && previous[p] < ngrams[i])
+			{
+				// the new query doesn't contain this N-gram of the previous query
+				return null;
+			}
+			else
+			{
+				added += weights[i];
+			}
+		}
+
+		// a task that doesn't contain any of the previous N-grams scores at most the weight of the added N-grams, since no type weighs more than 1
+		if (p < previous.length || added >= total * minScore * SCORE_MARGIN)
+		{
+			return null;
+		}
+		return mCandidates;
+	}
+
+
+	/**
+	 * Stores the candidates of a query.
+	 *
+	 * @param scope
+	 *            The scope of the query.
+	 * @param ngrams
+	 *            The sorted N-grams of the query.
+	 * @param candidates
+	 *            The ids of all tasks that match any N-gram of the query or <code>null</code> if there are too many of them.
+	 * @param generation
+	 *            The generation of the database content before the candidates have been determined.
+	 */
+	public synchronized void update(String scope, long[] ngrams, long[] candidates, long generation)
+	{
+		if (candidates == null || candidates.length > MAX_CANDIDATES || generation != mCache.generation())
+		{
+			mScope = null;
+			mNgrams = null;
+			mCandidates = null;
+			return;
+		}
+		mScope = scope;
+		mNgrams = ngrams;
+		mCandidates = candidates;
+		mGeneration = generation;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Keeps the {@link SearchSession}s of the most recent search callers. Sessions are identified by a token that's chosen by the caller.
+ * <p>
+ * All sessions become invalid when {@link #invalidate()} is called. It must be called whenever the search index is modified, including modifications that
+ * don't go through the provider, like a search index rebuild.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class SearchSessionCache
+{
+	/**
+	 * The maximum number of sessions to keep.
+	 */
+	private final static int MAX_SESSIONS = 8;
+
+	private final Map<String, SearchSession> mSessions = new LinkedHashMap<String, SearchSession>(MAX_SESSIONS * 2, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SearchSession> eldest)
+		{
+			return size() > MAX_SESSIONS;
+		}
+	};
+
+	private static volatile long sGeneration;
+
+
+	/**
+	 * Returns the {@link SearchSession} with the given token, creating a new one if necessary.
+	 *
+	 * @param token
+	 *            The session token of the caller.
+	 * @return The {@link SearchSession}.
+	 */
+	public synchronized SearchSession get(String token)
+	{
+		SearchSession session = mSessions.get(token);
+		if (session == null)
+		{
+			session = new SearchSession(this);
+			mSessions.put(token, session);
+		}
+		return session;
+	}
+
+
+	/**
+	 * Invalidates all sessions of all caches.
+	 */
+	public static synchronized void invalidate()
+	{
+		++sGeneration;
+	}
+
+
+	/**
+	 * Returns the current generation of the database content. It's incremented by every call to {@link #invalidate()}.
+	 *
+	 * @return The generation.
+	 */
+	long generation()
+	{
+		return sGeneration;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import org.dmfs.provider.tasks.model.TaskAdapter;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * A {@link SearchEngine} that's used while the search index is switched from one engine to another one. All changes are written to both indices, but queries
+ * are served from the old index until the new index has been built.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class SwitchingSearchEngine implements SearchEngine
+{
+	private final SearchEngine mOldEngine;
+	private final SearchEngine mNewEngine;
+
+
+	/**
+	 * Creates a {@link SwitchingSearchEngine}.
+	 *
+	 * @param oldEngine
+	 *            The engine of the complete index that serves the queries.
+	 * @param newEngine
+	 *            The engine of the index that's being built.
+	 */
+	public SwitchingSearchEngine(SearchEngine oldEngine, SearchEngine newEngine)
+	{
+		mOldEngine = oldEngine;
+		mNewEngine = newEngine;
+	}
+
+
+	@Override
+	public String name()
+	{
+		return mNewEngine.name();
+	}
+
+
+	@Override
+	public void rebuildIndex(SQLiteDatabase db)
+	{
+		mOldEngine.rebuildIndex(db);
+		mNewEngine.rebuildIndex(db);
+	}
+
+
+	@Override
+	public void createIndex(SQLiteDatabase db)
+	{
+		mOldEngine.createIndex(db);
+		mNewEngine.createIndex(db);
+	}
+
+
+	@Override
+	public void optimizeIndex(SQLiteDatabase db)
+	{
+		mOldEngine.optimizeIndex(db);
+		mNewEngine.optimizeIndex(db);
+	}
+
+
+	@Override
+	public boolean needsOptimization()
+	{
+		// ask both engines, so neither keeps a pending request
+		boolean oldEngineNeedsOptimization = mOldEngine.needsOptimization();
+		return mNewEngine.needsOptimization() || oldEngineNeedsOptimization;
+	}
+
+
+	@Override
+	public void dropIndex(SQLiteDatabase db)
+	{
+		mOldEngine.dropIndex(db);
+		mNewEngine.dropIndex(db);
+	}
+
+
+	@Override
+	public void updateTaskEntries(SQLiteDatabase db, TaskAdapter task)
+	{
+		mOldEngine.updateTaskEntries(db, task);
+		mNewEngine.updateTaskEntries(db, task);
+	}
+
+
+	@Override
+	public void updateTaskEntries(SQLiteDatabase db, long[] taskIds)
+	{
+		mOldEngine.updateTaskEntries(db, taskIds);
+		mNewEngine.updateTaskEntries(db, taskIds);
+	}
+
+
+	@Override
+	public void updatePropertyEntry(SQLiteDatabase db, long taskId, long propertyId, int type, String text)
+	{
+		mOldEngine.updatePropertyEntry(db, taskId, propertyId, type, text);
+		mNewEngine.updatePropertyEntry(db, taskId, propertyId, type, text);
+	}
+
+
+	@Override
+	public void updatePropertyEntries(SQLiteDatabase db, long taskId, long[] propertyIds, int[] types, String[] texts)
+	{
+		mOldEngine.updatePropertyEntries(db, taskId, propertyIds, types, texts);
+		mNewEngine.updatePropertyEntries(db, taskId, propertyIds, types, texts);
+	}
+
+
+	@Override
+	public void updateTaskState(SQLiteDatabase db, long taskId, boolean closed)
+	{
+		mOldEngine.updateTaskState(db, taskId, closed);
+		mNewEngine.updateTaskState(db, taskId, closed);
+	}
+
+
+	@Override
+	public void onBeginTransaction()
+	{
+		mOldEngine.onBeginTransaction();
+		mNewEngine.onBeginTransaction();
+	}
+
+
+	@Override
+	public void onCommitTransaction(SQLiteDatabase db)
+	{
+		mOldEngine.onCommitTransaction(db);
+		mNewEngine.onCommitTransaction(db);
+	}
+
+
+	@Override
+	public void onRollbackTransaction()
+	{
+		mOldEngine.onRollbackTransaction();
+		mNewEngine.onRollbackTransaction();
+	}
+
+
+	@Override
+	public Cursor search(SQLiteDatabase db, String searchString, int types, String[] projection, String selection, String[] selectionArgs,
+		String sortOrder, float minScore, int limit, SearchSession session)
+	{
+		return mOldEngine.search(db, searchString, types, projection, selection, selectionArgs, sortOrder, minScore, limit, session);
+	}
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2014 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+
+
+/**
+ * The part of a search selection that can be evaluated on the task table alone. A search selection is written against the instance view, but most callers
+ * filter by list or status. Such filters can be applied to the tasks before the N-gram matches are scored, so a search that is scoped to a single list
+ * doesn't have to score the matches in all the other lists.
+ * <p>
+ * The selection is split into its top-level <code>AND</code> terms. A term is pushed down if it references only the columns in {@link #TASK_COLUMNS}, all
+ * other terms remain in the selection of the instances. Selections with a top-level <code>OR</code> are treated as a single term. If any part of the selection
+ * can't be classified with certainty (e.g. because it contains comments, quoted identifiers, numbered arguments or a <code>CASE</code> expression, or because
+ * the number of arguments doesn't match) nothing is pushed down.
+ * </p>
+ * <p>
+ * A filter that selects open tasks only is recognized, see {@link #openOnly()}, so the search can skip the index entries of closed tasks.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class TaskFilter
+{
+	/**
+	 * The columns of the task table that have the same meaning in the instance view. Note that <code>_id</code> is not one of them, it's the instance id in the
+	 * instance view. Columns of the list, like the account, are not contained in the task table.
+	 */
+	private final static Set<String> TASK_COLUMNS = new HashSet<String>(Arrays.asList(Tasks.LIST_ID, Tasks._DELETED, Tasks.IS_CLOSED, Tasks.STATUS));
+
+	/**
+	 * The SQL keywords that may appear in a term that is pushed down.
+	 */
+	private final static Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("and", "or", "not", "in", "is", "null", "like", "glob", "between",
+		"escape", "collate", "nocase"));
+
+	private final String mTaskSelection;
+	private final String[] mTaskSelectionArgs;
+	private final String mSelection;
+	private final String[] mSelectionArgs;
+	private final boolean mOpenOnly;
+
+
+	private TaskFilter(String taskSelection, String[] taskSelectionArgs, String selection, String[] selectionArgs, boolean openOnly)
+	{
+		mTaskSelection = taskSelection;
+		mTaskSelectionArgs = taskSelectionArgs;
+		mSelection = selection;
+		mSelectionArgs = selectionArgs;
+		mOpenOnly = openOnly;
+	}
+
+
+	/**
+	 * Splits the given selection of instances into a selection of tasks and the remaining selection of instances.
+	 *
+	 * @param selection
+	 *            The selection of the search, may be <code>null</code>.
+	 * @param selectionArgs
+	 *            The arguments of the selection, may be <code>null</code>.
+	 * @return The {@link TaskFilter}.
+	 */
+	public static TaskFilter split(String selection, String[] selectionArgs)
+	{
+		if (selection == null || selection.trim().length() == 0)
+		{
+			return new TaskFilter(null, null, null, selectionArgs, false);
+		}
+
+		List<String> terms = new ArrayList<String>();
+		List<Integer> argCounts = new ArrayList<Integer>();
+		if (!splitTerms(selection, terms, argCounts) || argCount(argCounts) != (selectionArgs == null ? 0 : selectionArgs.length))
+		{
+			return new TaskFilter(null, null, selection, selectionArgs, false);
+		}
+
+		StringBuilder taskSelection = new StringBuilder(selection.length());
+		StringBuilder remainingSelection = new StringBuilder(selection.length());
+		List<String> taskArgs = new ArrayList<String>();
+		List<String> remainingArgs = new ArrayList<String>();
+		boolean openOnly = false;
+		int argIndex = 0;
+		for (int i = 0, count = terms.size(); i < count; ++i)
+		{
+			String term = terms.get(i);
+			int argCount = argCounts.get(i);
+			boolean pushDown = isTaskTerm(term);
+
+			StringBuilder target = pushDown ? taskSelection : remainingSelection;
+			if (target.length() > 0)
+			{
+				target.append(" AND ");
+			}
+			target.append('(').append(term).append(')');
+
+			if (pushDown && !openOnly)
+			{
+				openOnly = isOpenTerm(term, argCount == 1 && selectionArgs != null && argIndex < selectionArgs.length ? selectionArgs[argIndex] : null);
+			}
+
+			List<String> targetArgs = pushDown ? taskArgs : remainingArgs;
+			for (int j = 0; j < argCount && selectionArgs != null && argIndex < selectionArgs.length; ++j)
+			{
+				targetArgs.add(selectionArgs[argIndex++]);
+			}
+		}
+
+		return new TaskFilter(taskSelection.length() == 0 ? null : taskSelection.toString(), taskArgs.toArray(new String[taskArgs.size()]),
+			remainingSelection.length() == 0 ? null : remainingSelection.toString(), remainingArgs.toArray(new String[remainingArgs.size()]), openOnly);
+	}
+
+
+	/**
+	 * Returns the selection that can be applied to the task table or <code>null</code> if there is none.
+	 *
+	 * @return A selection.
+	 */
+	public String taskSelection()
+	{
+		return mTaskSelection;
+	}
+
+
+	/**
+	 * Returns the arguments of {@link #taskSelection()}.
+	 *
+	 * @return The arguments, may be <code>null</code>.
+	 */
+	public String[] taskSelectionArgs()
+	{
+		return mTaskSelectionArgs;
+	}
+
+
+	/**
+	 * Returns the remaining selection of the instances or <code>null</code> if there is none.
+	 *
+	 * @return A selection.
+	 */
+	public String selection()
+	{
+		return mSelection;
+	}
+
+
+	/**
+	 * Returns the arguments of {@link #selection()}.
+	 *
+	 * @return The arguments, may be <code>null</code>.
+	 */
+	public String[] selectionArgs()
+	{
+		return mSelectionArgs;
+	}
+
+
+	/**
+	 * Returns whether the selection matches open tasks only, i.e. whether one of the terms that are pushed down restricts {@link Tasks#IS_CLOSED} to
+	 * <code>0</code>.
+	 *
+	 * @return <code>true</code> if closed tasks never match the selection.
+	 */
+	public boolean openOnly()
+	{
+		return mOpenOnly;
+	}
+
+
+	/**
+	 * Splits the selection at its top-level <code>AND</code>s and counts the arguments of each term.
+	 *
+	 * @return <code>false</code> if the selection can't be split.
+	 */
+	private static boolean splitTerms(String selection, List<String> terms, List<Integer> argCounts)
+	{
+		final int length = selection.length();
+		int depth = 0;
+		int termStart = 0;
+		int argCount = 0;
+		boolean between = false;
+		boolean hasOr = false;
+		int i = 0;
+		while (i < length)
+		{
+			char c = selection.charAt(i);
+			if (c == '"' || c == '`' || c == '[' || c == ';' || c == '-' && i + 1 < length && selection.charAt(i + 1) == '-' || c == '/' && i + 1 < length
+				&& selection.charAt(i + 1) == '*')
+			{
+				// quoted identifiers, comments and multiple statements
+				return false;
+			}
+			if (c == '\'')
+			{
+				int end = skipQuoted(selection, i, c);
+				if (end < 0)
+				{
+					return false;
+				}
+				i = end;
+				continue;
+			}
+			if (c == '(')
+			{
+				++depth;
+			}
+			else if (c == ')')
+			{
+				--depth;
+			}
+			else if (c == '?')
+			{
+				if (i + 1 < length && Character.isDigit(selection.charAt(i + 1)))
+				{
+					// numbered arguments may be used more than once
+					return false;
+				}
+				++argCount;
+			}
+			else if (c == ':' || c == '@' || c == '$')
+			{
+				// named arguments
+				return false;
+			}
+			else if (Character.isLetter(c) || c == '_')
+			{
+				int end = i + 1;
+				while (end < length && (Character.isLetterOrDigit(selection.charAt(end)) || selection.charAt(end) == '_'))
+				{
+					++end;
+				}
+				String word = selection.substring(i, end).toLowerCase(Locale.ENGLISH);
+				if ("case".equals(word))
+				{
+					// the AND of a WHEN clause is not a top-level AND
+					return false;
+				}
+				if (depth == 0)
+				{
+					if ("between".equals(word))
+					{
+						between = true;
+					}
+					else if ("or".equals(word))
+					{
+						hasOr = true;
+					}
+					else if ("and".equals(word))
+					{
+						if (between)
+						{
+							// this is the AND of "x BETWEEN a AND b"
+							between = false;
+						}
+						else
+						{
+							terms.add(selection.substring(termStart, i).trim());
+							argCounts.add(argCount);
+							termStart = end;
+							argCount = 0;
+						}
+					}
+				}
+				i = end;
+				continue;
+			}
+			else if (Character.isDigit(c))
+			{
+				// skip numbers, including things like 1e5
+				int end = i + 1;
+				while (end < length && (Character.isLetterOrDigit(selection.charAt(end)) || selection.charAt(end) == '.'))
+				{
+					++end;
+				}
+				i = end;
+				continue;
+			}
+			++i;
+		}
+		terms.add(selection.substring(termStart).trim());
+		argCounts.add(argCount);
+
+		if (depth != 0)
+		{
+			return false;
+		}
+
+		if (hasOr)
+		{
+			// AND binds stronger than OR, so the terms are not independent, treat the selection as a single term
+			int total = argCount(argCounts);
+			terms.clear();
+			argCounts.clear();
+			terms.add(selection.trim());
+			argCounts.add(total);
+		}
+
+		for (String term : terms)
+		{
+			if (term.length() == 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns the total number of arguments of all terms.
+	 */
+	private static int argCount(List<Integer> argCounts)
+	{
+		int result = 0;
+		for (int count : argCounts)
+		{
+			result += count;
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns whether the given term references only {@link #TASK_COLUMNS}.
+	 */
+	private static boolean isTaskTerm(String term)
+	{
+		final int length = term.length();
+		int i = 0;
+		while (i < length)
+		{
+			char c = term.charAt(i);
+			if (c == '\'')
+			{
+				// a string literal
+				i = skipQuoted(term, i, c);
+				continue;
+			}
+			if (c == '.')
+			{
+				// a qualified column name or a number
+				if (i + 1 < length && !Character.isDigit(term.charAt(i + 1)))
+				{
+					return false;
+				}
+			}
+			else if (Character.isLetter(c) || c == '_')
+			{
+				int end = i + 1;
+				while (end < length && (Character.isLetterOrDigit(term.charAt(end)) || term.charAt(end) == '_'))
+				{
+					++end;
+				}
+				String word = term.substring(i, end);
+				if (!TASK_COLUMNS.contains(word) && !KEYWORDS.contains(word.toLowerCase(Locale.ENGLISH)))
+				{
+					// an unknown column or a function
+					return false;
+				}
+				i = end;
+				continue;
+			}
+			else if (Character.isDigit(c))
+			{
+				int end = i + 1;
+				while (end < length && (Character.isLetterOrDigit(term.charAt(end)) || term.charAt(end) == '.'))
+				{
+					++end;
+				}
+				i = end;
+				continue;
+			}
+			++i;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns whether the given term is one of the common ways to select open tasks, like <code>is_closed = 0</code>, <code>is_closed = ?</code> with an
+	 * argument of <code>0</code> or <code>not is_closed</code>.
+	 */
+	private static boolean isOpenTerm(String term, String arg)
+	{
+		StringBuilder normalized = new StringBuilder(term.length());
+		for (int i = 0, length = term.length(); i < length; ++i)
+		{
+			char c = term.charAt(i);
+			if (!Character.isWhitespace(c) && c != '(' && c != ')')
+			{
+				normalized.append(Character.toLowerCase(c));
+			}
+		}
+		String t = normalized.toString();
+		if ("0".equals(arg))
+		{
+			t = t.replace("?", "0");
+		}
+		else if ("1".equals(arg))
+		{
+			t = t.replace("?", "1");
+		}
+		return t.equals(Tasks.IS_CLOSED + "=0") || t.equals(Tasks.IS_CLOSED + "==0") || t.equals(Tasks.IS_CLOSED + "!=1")
+			|| t.equals(Tasks.IS_CLOSED + "<>1") || t.equals("not" + Tasks.IS_CLOSED);
+	}
+
+
+	/**
+	 * Returns the index after the quoted string that starts at the given index or <code>-1</code> if the string is not terminated. Doubled quotes are
+	 * skipped.
+	 */
+	private static int skipQuoted(String s, int start, char quote)
+	{
+		int i = start + 1;
+		final int length = s.length();
+		while (i < length)
+		{
+			if (s.charAt(i) == quote)
+			{
+				if (i + 1 < length && s.charAt(i + 1) == quote)
+				{
+					i += 2;
+					continue;
+				}
+				return i + 1;
+			}
+			++i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.ngrams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+
+/**
+ * Tests {@link LongSet} against a {@link HashSet}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class LongSetTest
+{
+
+	@Test
+	public void testZeroValue()
+	{
+		LongSet set = new LongSet();
+		assertFalse(set.contains(0));
+		assertTrue(set.add(0));
+		assertFalse(set.add(0));
+		assertTrue(set.contains(0));
+		assertEquals(1, set.size());
+		assertEquals(0, set.toArray()[0]);
+		assertTrue(set.remove(0));
+		assertFalse(set.remove(0));
+		assertFalse(set.contains(0));
+		assertTrue(set.isEmpty());
+	}
+
+
+	@Test
+	public void testGrowth()
+	{
+		// start with the smallest table, so it has to grow several times
+		LongSet set = new LongSet(1);
+		for (long i = -1000; i <= 1000; ++i)
+		{
+			assertTrue(set.add(i * 31));
+		}
+		assertEquals(2001, set.size());
+		for (long i = -1000; i <= 1000; ++i)
+		{
+			assertTrue(set.contains(i * 31));
+			assertFalse(set.contains(i * 31 + 1));
+		}
+
+		long[] values = set.toArray();
+		Arrays.sort(values);
+		for (int i = 0; i < values.length; ++i)
+		{
+			assertEquals((i - 1000) * 31L, values[i]);
+		}
+	}
+
+
+	@Test
+	public void testRemove()
+	{
+		// a small range of values in a small table results in long probe sequences, every removal has to move up the following values
+		Random random = new Random(42);
+		LongSet set = new LongSet(16);
+		Set<Long> expected = new HashSet<Long>();
+		for (int i = 0; i < 100000; ++i)
+		{
+			long value = (long) random.nextInt(64) << 56 | random.nextInt(4);
+			if (random.nextBoolean())
+			{
+				assertEquals("add " + value, expected.add(value), set.add(value));
+			}
+			else
+			{
+				assertEquals("remove " + value, expected.remove(value), set.remove(value));
+			}
+			assertEquals(expected.size(), set.size());
+		}
+
+		for (int i = 0; i < 64; ++i)
+		{
+			for (int j = 0; j < 4; ++j)
+			{
+				long value = (long) i << 56 | j;
+				assertEquals("contains " + value, expected.contains(value), set.contains(value));
+			}
+		}
+	}
+
+
+	@Test
+	public void testClear()
+	{
+		LongSet set = new LongSet();
+		set.add(0);
+		set.add(1);
+		set.add(Long.MIN_VALUE);
+		set.clear();
+		assertTrue(set.isEmpty());
+		assertEquals(0, set.toArray().length);
+		assertFalse(set.contains(0));
+		assertFalse(set.contains(Long.MIN_VALUE));
+		assertTrue(set.add(Long.MIN_VALUE));
+	}
+
+
+	@Test
+	public void testAddAll()
+	{
+		LongSet set = new LongSet();
+		set.add(1);
+		set.add(2);
+		LongSet other = new LongSet();
+		other.add(0);
+		other.add(2);
+		other.add(3);
+		set.addAll(other);
+		assertEquals(4, set.size());
+		for (long value = 0; value <= 3; ++value)
+		{
+			assertTrue(set.contains(value));
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.ngrams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.junit.Test;
+
+
+/**
+ * Tests that {@link NGramGenerator#getPackedNgrams(LongSet, CharSequence)} returns the same N-grams as {@link NGramGenerator#getNgrams(String)}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class NGramGeneratorTest
+{
+
+	@Test
+	public void testPackedNgramsMatchNgrams()
+	{
+		for (int n = 3; n <= NGramGenerator.MAX_PACKED_N; ++n)
+		{
+			for (boolean cjkBigrams : new boolean[] { false, true })
+			{
+				for (boolean addSpace : new boolean[] { false, true })
+				{
+					NGramGenerator generator = new NGramGenerator(n, 1).withAddSpaceInFront(addSpace).withCjkBigrams(cjkBigrams).withLocale(Locale.ENGLISH);
+					for (int c = 0; c <= Character.MAX_VALUE; ++c)
+					{
+						char ch = (char) c;
+						if (Character.isSurrogate(ch) || Character.toLowerCase(ch) != ch || String.valueOf(ch).toLowerCase(Locale.ENGLISH).length() != 1)
+						{
+							// the packed N-grams are converted to lower case one character at a time, skip characters that the locale converts differently
+							continue;
+						}
+
+						// put the character into a Latin word, between two words and into a Han word
+						String data = "ab" + ch + "cd " + ch + "中文" + ch + "x";
+						assertEquals("character " + Integer.toHexString(c), packed(generator.getNgrams(data)), toSet(generator.getPackedNgrams(null, data)));
+					}
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void testSupplementaryCharacters()
+	{
+		// letters outside of the BMP: a CJK ideograph of extension B, a mathematical letter without a lower case and a Deseret letter with a lower case
+		String[] letters = { "\ud840\udc00", "\ud835\udc00", "\ud801\udc00", "\ud801\udc28" };
+		// a symbol outside of the BMP and unpaired surrogates, they separate words
+		String[] separators = { "\ud83d\ude00", "\ud840", "\udc00" };
+
+		for (int n = 3; n <= NGramGenerator.MAX_PACKED_N; ++n)
+		{
+			for (boolean cjkBigrams : new boolean[] { false, true })
+			{
+				for (boolean addSpace : new boolean[] { false, true })
+				{
+					NGramGenerator generator = new NGramGenerator(n, 1).withAddSpaceInFront(addSpace).withCjkBigrams(cjkBigrams).withLocale(Locale.ENGLISH);
+					for (String c : letters)
+					{
+						String data = "ab" + c + "cd " + c + "中文" + c + "x " + c + c;
+						assertEquals(data, packed(generator.getNgrams(data)), toSet(generator.getPackedNgrams(null, data)));
+					}
+					for (String c : separators)
+					{
+						String data = "ab" + c + "cd " + c + "中文" + c + "x";
+						assertEquals(data, packed(generator.getNgrams(data)), toSet(generator.getPackedNgrams(null, data)));
+					}
+				}
+			}
+		}
+
+		// the letters are part of a word
+		assertTrue(new NGramGenerator(3, 1).withLocale(Locale.ENGLISH).getPackedNgrams(null, "a\ud835\udc00b").contains(NGramGenerator.pack("a\ud835\udc00")));
+	}
+
+
+	@Test
+	public void testIsCjk()
+	{
+		assertTrue(NGramGenerator.isCjk('中')); // Han
+		assertTrue(NGramGenerator.isCjk('あ')); // Hiragana
+		assertTrue(NGramGenerator.isCjk('ア')); // Katakana
+		assertTrue(NGramGenerator.isCjk('가')); // Hangul
+		assertFalse(NGramGenerator.isCjk('⺀')); // CJK radical
+		assertFalse(NGramGenerator.isCjk('⼀')); // Kangxi radical
+		assertFalse(NGramGenerator.isCjk('・')); // Katakana middle dot
+		assertFalse(NGramGenerator.isCjk('a'));
+	}
+
+
+	private static Set<Long> packed(Set<String> ngrams)
+	{
+		Set<Long> result = new HashSet<Long>(ngrams.size() * 2);
+		for (String ngram : ngrams)
+		{
+			result.add(NGramGenerator.pack(ngram));
+		}
+		return result;
+	}
+
+
+	private static Set<Long> toSet(LongSet ngrams)
+	{
+		Set<Long> result = new HashSet<Long>(ngrams.size() * 2);
+		for (long ngram : ngrams.toArray())
+		{
+			result.add(ngram);
+		}
+		return result;
+	}
+}
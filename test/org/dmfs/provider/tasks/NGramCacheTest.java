@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests that {@link NGramCache} publishes the ids of a transaction only when it's committed.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class NGramCacheTest
+{
+
+	@Test
+	public void testCommit()
+	{
+		NGramCache cache = new NGramCache(64);
+		cache.onBegin();
+		assertFalse(cache.contains(1));
+		cache.add(1);
+		// ids of the current transaction are hits already
+		assertTrue(cache.contains(1));
+		cache.onCommit();
+		assertEquals(1, cache.transactionHits());
+		assertEquals(1, cache.transactionMisses());
+
+		cache.onBegin();
+		assertTrue(cache.contains(1));
+		assertFalse(cache.contains(2));
+		cache.onCommit();
+		assertEquals(2, cache.hits());
+		assertEquals(2, cache.misses());
+	}
+
+
+	@Test
+	public void testRollback()
+	{
+		NGramCache cache = new NGramCache(64);
+		cache.onBegin();
+		cache.add(1);
+		cache.onCommit();
+
+		cache.onBegin();
+		cache.add(2);
+		assertTrue(cache.contains(2));
+		cache.onRollback();
+
+		cache.onBegin();
+		assertTrue(cache.contains(1));
+		assertFalse(cache.contains(2));
+		cache.onCommit();
+	}
+
+
+	@Test
+	public void testOutsideOfTransaction()
+	{
+		NGramCache cache = new NGramCache(64);
+		cache.onBegin();
+		cache.add(1);
+		cache.onCommit();
+
+		// no hits and no new ids without a transaction
+		assertFalse(cache.contains(1));
+		cache.add(2);
+		cache.onBegin();
+		assertFalse(cache.contains(2));
+		cache.onCommit();
+	}
+
+
+	@Test
+	public void testOtherThread() throws InterruptedException
+	{
+		final NGramCache cache = new NGramCache(64);
+		cache.onBegin();
+		cache.add(1);
+		cache.onCommit();
+
+		cache.onBegin();
+		final boolean[] result = new boolean[1];
+		Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				// the transaction belongs to another thread
+				result[0] = cache.contains(1);
+				cache.add(2);
+			}
+		};
+		thread.start();
+		thread.join();
+		assertFalse(result[0]);
+		assertFalse(cache.contains(2));
+		cache.onCommit();
+	}
+
+
+	@Test
+	public void testClear()
+	{
+		NGramCache cache = new NGramCache(64);
+		cache.onBegin();
+		cache.add(1);
+		cache.onCommit();
+		cache.clear();
+
+		cache.onBegin();
+		assertFalse(cache.contains(1));
+		cache.onCommit();
+	}
+
+
+	@Test
+	public void testCapacity()
+	{
+		NGramCache cache = new NGramCache(8);
+		cache.onBegin();
+		for (long id = 1; id <= 1000; ++id)
+		{
+			cache.add(id);
+		}
+		cache.onCommit();
+
+		cache.onBegin();
+		int hits = 0;
+		for (long id = 1; id <= 1000; ++id)
+		{
+			if (cache.contains(id))
+			{
+				++hits;
+			}
+		}
+		cache.onCommit();
+		assertTrue(hits > 0);
+		assertTrue(hits <= 8);
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dmfs.provider.tasks.model.EntityAdapter;
+import org.dmfs.provider.tasks.model.adapters.FieldAdapter;
+import org.dmfs.provider.tasks.processors.AbstractEntityProcessor;
+import org.dmfs.provider.tasks.processors.BatchEntityProcessor;
+import org.dmfs.provider.tasks.processors.EntityProcessor;
+import org.junit.Test;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+
+/**
+ * Tests the order in which {@link ProviderOperation#executeBatch(SQLiteDatabase, List, List, boolean, ProviderOperationsLog, String)} calls the processors.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class ProviderOperationTest
+{
+
+	@Test
+	public void testInsertBatch()
+	{
+		List<String> calls = new ArrayList<String>();
+		ProviderOperationsLog log = new ProviderOperationsLog();
+		ProviderOperation.INSERT.executeBatch(null, processors(calls), entities(true), false, log, "authority");
+
+		assertArrayEquals(new String[] {
+			// the leading batch processor sees all entities first
+			"A before [1, 2]",
+			// then each entity runs through the rest of the chain
+			"B before 1", "C before 1", "D before 1", "B before 2", "C before 2", "D before 2",
+			// the after methods are called in the order of the chain
+			"A after [1, 2]", "B after 1", "B after 2", "C after [1, 2]", "D after 1", "D after 2" }, calls.toArray());
+		assertFalse(log.isEmpty());
+	}
+
+
+	@Test
+	public void testUpdateBatch()
+	{
+		List<String> calls = new ArrayList<String>();
+		ProviderOperationsLog log = new ProviderOperationsLog();
+		ProviderOperation.UPDATE.executeBatch(null, processors(calls), entities(false), false, log, "authority");
+
+		assertArrayEquals(new String[] { "A before [1, 2]", "B before 1", "C before 1", "D before 1", "B before 2", "C before 2", "D before 2",
+			"A after [1, 2]", "B after 1", "B after 2", "C after [1, 2]", "D after 1", "D after 2" }, calls.toArray());
+		// updates without changes are not logged
+		assertTrue(log.isEmpty());
+	}
+
+
+	@Test
+	public void testEmptyBatch()
+	{
+		List<String> calls = new ArrayList<String>();
+		ProviderOperationsLog log = new ProviderOperationsLog();
+		ProviderOperation.INSERT.executeBatch(null, processors(calls), new ArrayList<TestEntity>(), false, log, "authority");
+
+		assertTrue(calls.isEmpty());
+		assertTrue(log.isEmpty());
+	}
+
+
+	/**
+	 * Returns a chain of a batch processor, a simple processor, another batch processor and another simple processor.
+	 */
+	private static List<EntityProcessor<TestEntity>> processors(List<String> calls)
+	{
+		List<EntityProcessor<TestEntity>> result = new ArrayList<EntityProcessor<TestEntity>>();
+		result.add(new RecordingBatchProcessor("A", calls));
+		result.add(new RecordingProcessor("B", calls));
+		result.add(new RecordingBatchProcessor("C", calls));
+		result.add(new RecordingProcessor("D", calls));
+		return result;
+	}
+
+
+	private static List<TestEntity> entities(boolean hasUpdates)
+	{
+		return Arrays.asList(new TestEntity(1, hasUpdates), new TestEntity(2, hasUpdates));
+	}
+
+
+	/**
+	 * An {@link EntityProcessor} that records its calls.
+	 */
+	private static class RecordingProcessor extends AbstractEntityProcessor<TestEntity>
+	{
+		protected final String mName;
+		protected final List<String> mCalls;
+
+
+		public RecordingProcessor(String name, List<String> calls)
+		{
+			mName = name;
+			mCalls = calls;
+		}
+
+
+		@Override
+		public void beforeInsert(SQLiteDatabase db, TestEntity entityAdapter, boolean isSyncAdapter)
+		{
+			mCalls.add(mName + " before " + entityAdapter);
+		}
+
+
+		@Override
+		public void afterInsert(SQLiteDatabase db, TestEntity entityAdapter, boolean isSyncAdapter)
+		{
+			mCalls.add(mName + " after " + entityAdapter);
+		}
+
+
+		@Override
+		public void beforeUpdate(SQLiteDatabase db, TestEntity entityAdapter, boolean isSyncAdapter)
+		{
+			mCalls.add(mName + " before " + entityAdapter);
+		}
+
+
+		@Override
+		public void afterUpdate(SQLiteDatabase db, TestEntity entityAdapter, boolean isSyncAdapter)
+		{
+			mCalls.add(mName + " after " + entityAdapter);
+		}
+	}
+
+
+	/**
+	 * A {@link BatchEntityProcessor} that records its calls.
+	 */
+	private final static class RecordingBatchProcessor extends RecordingProcessor implements BatchEntityProcessor<TestEntity>
+	{
+		public RecordingBatchProcessor(String name, List<String> calls)
+		{
+			super(name, calls);
+		}
+
+
+		@Override
+		public void beforeInsertBatch(SQLiteDatabase db, List<TestEntity> entityAdapters, boolean isSyncAdapter)
+		{
+			mCalls.add(mName + " before " + entityAdapters);
+		}
+
+
+		@Override
+		public void afterInsertBatch(SQLiteDatabase db, List<TestEntity> entityAdapters, boolean isSyncAdapter)
+		{
+			mCalls.add(mName + " after " + entityAdapters);
+		}
+
+
+		@Override
+		public void beforeUpdateBatch(SQLiteDatabase db, List<TestEntity> entityAdapters, boolean isSyncAdapter)
+		{
+			mCalls.add(mName + " before " + entityAdapters);
+		}
+
+
+		@Override
+		public void afterUpdateBatch(SQLiteDatabase db, List<TestEntity> entityAdapters, boolean isSyncAdapter)
+		{
+			mCalls.add(mName + " after " + entityAdapters);
+		}
+	}
+
+
+	/**
+	 * A minimal {@link EntityAdapter} that has just an id.
+	 */
+	private final static class TestEntity implements EntityAdapter<Object>
+	{
+		private final long mId;
+		private final boolean mHasUpdates;
+
+
+		public TestEntity(long id, boolean hasUpdates)
+		{
+			mId = id;
+			mHasUpdates = hasUpdates;
+		}
+
+
+		@Override
+		public long id()
+		{
+			return mId;
+		}
+
+
+		@Override
+		public Uri uri(String authority)
+		{
+			return null;
+		}
+
+
+		@Override
+		public <T> T valueOf(FieldAdapter<T, Object> fieldAdapter)
+		{
+			return null;
+		}
+
+
+		@Override
+		public <T> T oldValueOf(FieldAdapter<T, Object> fieldAdapter)
+		{
+			return null;
+		}
+
+
+		@Override
+		public <T> boolean isUpdated(FieldAdapter<T, Object> fieldAdapter)
+		{
+			return false;
+		}
+
+
+		@Override
+		public boolean isWriteable()
+		{
+			return true;
+		}
+
+
+		@Override
+		public boolean hasUpdates()
+		{
+			return mHasUpdates;
+		}
+
+
+		@Override
+		public <T> void set(FieldAdapter<T, Object> fieldAdapter, T value)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+
+		@Override
+		public <T> void unset(FieldAdapter<T, Object> fieldAdapter)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+
+		@Override
+		public int commit(SQLiteDatabase db)
+		{
+			return 0;
+		}
+
+
+		@Override
+		public <T> T getState(FieldAdapter<T, Object> stateFieldAdater)
+		{
+			return null;
+		}
+
+
+		@Override
+		public <T> void setState(FieldAdapter<T, Object> stateFieldAdater, T value)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+
+		@Override
+		public EntityAdapter<Object> duplicate()
+		{
+			return new TestEntity(mId, mHasUpdates);
+		}
+
+
+		@Override
+		public String toString()
+		{
+			return String.valueOf(mId);
+		}
+	}
+}
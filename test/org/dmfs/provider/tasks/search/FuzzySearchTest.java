@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the edit distance of {@link FuzzySearch}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class FuzzySearchTest
+{
+
+	@Test
+	public void testExactAndPrefix()
+	{
+		assertEquals(0, FuzzySearch.prefixDistance("milk", "milk", 2));
+		assertEquals(0, FuzzySearch.prefixDistance("mil", "milk", 2));
+		assertEquals(0, FuzzySearch.prefixDistance("", "milk", 2));
+	}
+
+
+	@Test
+	public void testEdits()
+	{
+		// substitution
+		assertEquals(1, FuzzySearch.prefixDistance("milc", "milk", 2));
+		// insertion
+		assertEquals(1, FuzzySearch.prefixDistance("mlk", "milk", 2));
+		// deletion
+		assertEquals(1, FuzzySearch.prefixDistance("milkk", "milk", 2));
+		// a transposition is a single edit
+		assertEquals(1, FuzzySearch.prefixDistance("mlik", "milk", 2));
+		assertEquals(1, FuzzySearch.prefixDistance("imlkshake", "milkshake", 2));
+		assertEquals(2, FuzzySearch.prefixDistance("mlikc", "milks", 2));
+	}
+
+
+	@Test
+	public void testBound()
+	{
+		// the distance is capped at bound + 1
+		assertEquals(2, FuzzySearch.prefixDistance("xyzk", "milk", 1));
+		assertEquals(1, FuzzySearch.prefixDistance("milc", "milk", 0));
+		// the word is too short to match even with the allowed edits
+		assertEquals(3, FuzzySearch.prefixDistance("milkshake", "milk", 2));
+	}
+
+
+	@Test
+	public void testAllowedEdits()
+	{
+		assertEquals(0, FuzzySearch.allowedEdits(2, 2));
+		assertEquals(1, FuzzySearch.allowedEdits(3, 2));
+		assertEquals(1, FuzzySearch.allowedEdits(5, 2));
+		assertEquals(0, FuzzySearch.allowedEdits(5, 0));
+		assertEquals(2, FuzzySearch.allowedEdits(6, 2));
+	}
+}
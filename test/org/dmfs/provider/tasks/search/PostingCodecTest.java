@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * Tests that {@link PostingCodec} decodes the values it has encoded.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class PostingCodecTest
+{
+
+	@Test
+	public void testEmpty()
+	{
+		assertEquals(0, PostingCodec.encode(new long[] { 1, 2 }, 0).length);
+		assertEquals(0, PostingCodec.decode(PostingCodec.encode(new long[0], 0)).length);
+		assertEquals(0, PostingCodec.decode(null).length);
+	}
+
+
+	@Test
+	public void testRoundTrip()
+	{
+		assertRoundTrip(new long[] { 0 });
+		assertRoundTrip(new long[] { 127, 128, 16383, 16384 });
+		assertRoundTrip(new long[] { 8, 9, 10, 17, 1000, 1000000 });
+		assertRoundTrip(new long[] { Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE });
+
+		Random random = new Random(42);
+		long[] values = new long[1000];
+		for (int i = 0; i < values.length; ++i)
+		{
+			values[i] = random.nextInt(100000) * 8L + random.nextInt(8);
+		}
+		Arrays.sort(values);
+		assertRoundTrip(values);
+	}
+
+
+	@Test
+	public void testCount()
+	{
+		// only the first values are encoded
+		assertArrayEquals(new long[] { 1, 2 }, PostingCodec.decode(PostingCodec.encode(new long[] { 1, 2, 3 }, 2)));
+	}
+
+
+	@Test
+	public void testCloseValuesAreSmall()
+	{
+		// one byte for the first value and one byte for each delta
+		assertEquals(4, PostingCodec.encode(new long[] { 100, 101, 110, 200 }, 4).length);
+	}
+
+
+	private static void assertRoundTrip(long[] values)
+	{
+		byte[] encoded = PostingCodec.encode(values, values.length);
+		assertArrayEquals(values, PostingCodec.decode(encoded));
+
+		// decode from the middle of a buffer
+		ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 6);
+		buffer.position(3);
+		buffer.put(encoded);
+		assertArrayEquals(values, PostingCodec.decode(buffer, 3, values.length));
+		assertEquals(3 + encoded.length, buffer.position());
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import static org.junit.Assert.assertEquals;
+
+import org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes;
+import org.junit.Test;
+
+
+/**
+ * Tests the field restrictions of {@link ScopedQuery}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class ScopedQueryTest
+{
+
+	@Test
+	public void testUnscoped()
+	{
+		assertQuery(ScopedQuery.parse(null), null, ScopedQuery.ALL_TYPES);
+		assertQuery(ScopedQuery.parse("milk "), "milk ", ScopedQuery.ALL_TYPES);
+		// unknown fields are searched for as they are
+		assertQuery(ScopedQuery.parse("at 10:30 due:today"), "at 10:30 due:today", ScopedQuery.ALL_TYPES);
+	}
+
+
+	@Test
+	public void testAllTypes()
+	{
+		int[] types = { SearchableTypes.TITLE, SearchableTypes.DESCRIPTION, SearchableTypes.LOCATION, SearchableTypes.CATEGORY, SearchableTypes.COMMENT,
+			SearchableTypes.PERSON, SearchableTypes.ATTACHMENT };
+		int mask = 0;
+		for (int type : types)
+		{
+			mask |= ScopedQuery.typeBit(type);
+		}
+		assertEquals(mask, ScopedQuery.ALL_TYPES);
+	}
+
+
+	@Test
+	public void testScoped()
+	{
+		assertQuery(ScopedQuery.parse("title:milk"), "milk", ScopedQuery.typeBit(SearchableTypes.TITLE));
+		assertQuery(ScopedQuery.parse("Title:Milk"), "Milk", ScopedQuery.typeBit(SearchableTypes.TITLE));
+		assertQuery(ScopedQuery.parse("category:work"), "work", ScopedQuery.typeBit(SearchableTypes.CATEGORY));
+		assertQuery(ScopedQuery.parse("title: location: office"), "office",
+			ScopedQuery.typeBit(SearchableTypes.TITLE) | ScopedQuery.typeBit(SearchableTypes.LOCATION));
+		assertQuery(ScopedQuery.parse("description:buy  milk 10:30"), "buy milk 10:30", ScopedQuery.typeBit(SearchableTypes.DESCRIPTION));
+	}
+
+
+	@Test
+	public void testTrailingSpace()
+	{
+		// a trailing space marks the last word as complete, it must be retained
+		assertQuery(ScopedQuery.parse("title:milk "), "milk ", ScopedQuery.typeBit(SearchableTypes.TITLE));
+		assertQuery(ScopedQuery.parse("title: "), "", ScopedQuery.typeBit(SearchableTypes.TITLE));
+	}
+
+
+	@Test
+	public void testTypeSelection()
+	{
+		assertEquals("type IN (" + SearchableTypes.TITLE + ")", ScopedQuery.typeSelection("type", ScopedQuery.typeBit(SearchableTypes.TITLE)));
+		assertEquals("type IN (" + SearchableTypes.LOCATION + "," + SearchableTypes.CATEGORY + ")",
+			ScopedQuery.typeSelection("type", ScopedQuery.typeBit(SearchableTypes.CATEGORY) | ScopedQuery.typeBit(SearchableTypes.LOCATION)));
+	}
+
+
+	private static void assertQuery(ScopedQuery query, String text, int types)
+	{
+		assertEquals(text, query.text());
+		assertEquals(types, query.types());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests which parts of a selection {@link TaskFilter#split(String, String[])} pushes down to the task table.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class TaskFilterTest
+{
+
+	@Test
+	public void testEmpty()
+	{
+		TaskFilter filter = TaskFilter.split(null, null);
+		assertNull(filter.taskSelection());
+		assertNull(filter.selection());
+		assertFalse(filter.openOnly());
+
+		filter = TaskFilter.split("  ", null);
+		assertNull(filter.taskSelection());
+		assertNull(filter.selection());
+	}
+
+
+	@Test
+	public void testSplit()
+	{
+		TaskFilter filter = TaskFilter.split("list_id = ? AND title LIKE ? AND status BETWEEN ? AND ?", new String[] { "1", "%milk%", "0", "1" });
+		assertEquals("(list_id = ?) AND (status BETWEEN ? AND ?)", filter.taskSelection());
+		assertArrayEquals(new String[] { "1", "0", "1" }, filter.taskSelectionArgs());
+		assertEquals("(title LIKE ?)", filter.selection());
+		assertArrayEquals(new String[] { "%milk%" }, filter.selectionArgs());
+		assertFalse(filter.openOnly());
+	}
+
+
+	@Test
+	public void testTaskColumnsOnly()
+	{
+		TaskFilter filter = TaskFilter.split("list_id IN (1, 2) and _deleted=0", null);
+		assertEquals("(list_id IN (1, 2)) AND (_deleted=0)", filter.taskSelection());
+		assertNull(filter.selection());
+	}
+
+
+	@Test
+	public void testNotPushedDown()
+	{
+		// the instance id, qualified names and functions are not pushed down
+		TaskFilter filter = TaskFilter.split("_id=1 AND Tasks.list_id=2 AND lower(status)='x' AND title='a and b'", null);
+		assertNull(filter.taskSelection());
+		assertEquals("(_id=1) AND (Tasks.list_id=2) AND (lower(status)='x') AND (title='a and b')", filter.selection());
+	}
+
+
+	@Test
+	public void testOr()
+	{
+		// a top-level OR makes the whole selection a single term
+		TaskFilter filter = TaskFilter.split("list_id=1 AND status=0 OR title=?", new String[] { "x" });
+		assertNull(filter.taskSelection());
+		assertEquals("(list_id=1 AND status=0 OR title=?)", filter.selection());
+		assertArrayEquals(new String[] { "x" }, filter.selectionArgs());
+
+		filter = TaskFilter.split("list_id=1 OR status=0", null);
+		assertEquals("(list_id=1 OR status=0)", filter.taskSelection());
+		assertNull(filter.selection());
+	}
+
+
+	@Test
+	public void testUnsupported()
+	{
+		String[] selections = { "list_id=1 -- AND title='x'", "list_id=1 /* x */", "\"list_id\"=1 AND title='x'", "list_id=?1 AND title=?1",
+			"list_id=:list AND title='x'", "CASE WHEN list_id=1 AND status=0 THEN 1 END", "list_id=1; DROP TABLE Tasks", "list_id=(1 AND title='x'",
+			"title='x AND list_id=1" };
+		for (String selection : selections)
+		{
+			TaskFilter filter = TaskFilter.split(selection, null);
+			assertNull(selection, filter.taskSelection());
+			assertEquals(selection, selection, filter.selection());
+		}
+
+		// the number of arguments doesn't match
+		TaskFilter filter = TaskFilter.split("list_id=? AND title=?", new String[] { "1" });
+		assertNull(filter.taskSelection());
+		assertEquals("list_id=? AND title=?", filter.selection());
+		assertArrayEquals(new String[] { "1" }, filter.selectionArgs());
+	}
+
+
+	@Test
+	public void testOpenOnly()
+	{
+		assertTrue(TaskFilter.split("is_closed=0", null).openOnly());
+		assertTrue(TaskFilter.split("list_id=1 AND (is_closed == 0)", null).openOnly());
+		assertTrue(TaskFilter.split("NOT is_closed AND title=?", new String[] { "x" }).openOnly());
+		assertTrue(TaskFilter.split("list_id=? AND is_closed=?", new String[] { "1", "0" }).openOnly());
+		assertFalse(TaskFilter.split("is_closed=?", new String[] { "1" }).openOnly());
+		assertFalse(TaskFilter.split("is_closed=1", null).openOnly());
+		assertFalse(TaskFilter.split("is_closed=0 OR list_id=1", null).openOnly());
+	}
+}